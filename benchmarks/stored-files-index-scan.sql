@@ -0,0 +1,68 @@
+-- Scan cost of the reaper's claim queries on a seeded stored_files table, before and after the
+-- V4 indexes. Run against a scratch database that has been migrated up to V3:
+--
+--   psql "$DB_URL" -v rows=5000000 -f benchmarks/stored-files-index-scan.sql
+--
+-- Everything happens inside one transaction that is rolled back at the end.
+
+\set ON_ERROR_STOP on
+\timing on
+
+BEGIN;
+
+DROP INDEX IF EXISTS idx_stored_files_expires_at;
+DROP INDEX IF EXISTS idx_stored_files_exhausted;
+
+-- Steady state: expiries spread over the next 30 days, ~0.1% already expired, ~1% used up
+INSERT INTO stored_files (id, storage_path, size_bytes, expires_at, created_at, downloads_remaining, max_downloads)
+SELECT 'bench' || n,
+       '/bench/' || n,
+       1024,
+       now() - interval '1 hour' + random() * interval '30 days',
+       now() - interval '1 day',
+       CASE WHEN random() < 0.01 THEN 0 ELSE 100 END,
+       100
+FROM generate_series(1, :rows) AS n;
+
+ANALYZE stored_files;
+
+\echo '=== expired claim, no index ==='
+EXPLAIN (ANALYZE, BUFFERS)
+SELECT id FROM stored_files
+WHERE expires_at < now()
+ORDER BY expires_at
+LIMIT 500
+FOR UPDATE SKIP LOCKED;
+
+\echo '=== exhausted claim, no index ==='
+EXPLAIN (ANALYZE, BUFFERS)
+SELECT id FROM stored_files
+WHERE downloads_remaining <= 0
+LIMIT 500
+FOR UPDATE SKIP LOCKED;
+
+CREATE INDEX idx_stored_files_expires_at
+    ON stored_files (expires_at);
+
+CREATE INDEX idx_stored_files_exhausted
+    ON stored_files (id)
+    WHERE downloads_remaining <= 0;
+
+ANALYZE stored_files;
+
+\echo '=== expired claim, btree on expires_at ==='
+EXPLAIN (ANALYZE, BUFFERS)
+SELECT id FROM stored_files
+WHERE expires_at < now()
+ORDER BY expires_at
+LIMIT 500
+FOR UPDATE SKIP LOCKED;
+
+\echo '=== exhausted claim, partial index ==='
+EXPLAIN (ANALYZE, BUFFERS)
+SELECT id FROM stored_files
+WHERE downloads_remaining <= 0
+LIMIT 500
+FOR UPDATE SKIP LOCKED;
+
+ROLLBACK;
@@ -0,0 +1,53 @@
+package xyz.stanleyw.secureshare.benchmark;
+
+import com.soundicly.jnanoidenhanced.jnanoid.NanoIdUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import xyz.stanleyw.secureshare.service.FileIdGenerator;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of minting one file ID, alone and with several uploads generating IDs at once:
+ * {@link FileIdGenerator} as used by {@code FileSystemStorageService} against the
+ * {@code NanoIdUtils} call it replaced. Run with {@code -prof gc} to compare allocation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class IdGenerationBenchmark {
+
+    // Same alphabet and length as FileSystemStorageService
+    private static final String ID_ALPHABET = "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz";
+
+    private static final int ID_LENGTH = 7;
+
+    private final FileIdGenerator fileIdGenerator = new FileIdGenerator(ID_ALPHABET, ID_LENGTH);
+
+    @Benchmark
+    public String randomNanoId() {
+        return NanoIdUtils.randomNanoId(ID_ALPHABET, ID_LENGTH);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public String randomNanoIdContended() {
+        return NanoIdUtils.randomNanoId(ID_ALPHABET, ID_LENGTH);
+    }
+
+    @Benchmark
+    public String fileIdGenerator() {
+        return fileIdGenerator.next();
+    }
+
+    @Benchmark
+    @Threads(8)
+    public String fileIdGeneratorContended() {
+        return fileIdGenerator.next();
+    }
+}
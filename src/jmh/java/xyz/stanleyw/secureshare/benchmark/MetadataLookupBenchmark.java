@@ -0,0 +1,62 @@
+package xyz.stanleyw.secureshare.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import xyz.stanleyw.secureshare.config.StorageProperties;
+import xyz.stanleyw.secureshare.entity.StoredFile;
+import xyz.stanleyw.secureshare.repository.StoredFileRepository;
+import xyz.stanleyw.secureshare.service.FileSystemStorageService;
+import xyz.stanleyw.secureshare.service.StorageUsage;
+import xyz.stanleyw.secureshare.service.StoredFileMetadataCache;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@code getMetadata} against a stubbed repository, with the metadata cache warm and with
+ * every lookup falling through to the repository. The stub has no I/O, so the uncached
+ * numbers are a floor; a real lookup adds a database round trip on top.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class MetadataLookupBenchmark {
+
+    private static final String FILE_ID = "aB3dE5f";
+
+    @Param({"true", "false"})
+    boolean cached;
+
+    private FileSystemStorageService storageService;
+
+    @Setup
+    public void setUp() {
+        StorageProperties storageProperties = new StorageProperties();
+        storageProperties.setLocation(System.getProperty("java.io.tmpdir"));
+        if (!cached) {
+            // Entries expire as soon as they are loaded
+            storageProperties.setMetadataCacheTtl(Duration.ZERO);
+        }
+
+        Instant now = Instant.now();
+        StoredFile storedFile = new StoredFile(FILE_ID, "/srv/storage/" + FILE_ID, 1024, now.plus(1, ChronoUnit.DAYS),
+                now, 100, 100, "report.pdf", null, null, 1024, null, null, null);
+
+        StoredFileRepository storedFileRepository = StubRepositories.storedFiles(storedFile);
+        storageService = new FileSystemStorageService(storageProperties, storedFileRepository,
+                null, new StoredFileMetadataCache(storageProperties), new StorageUsage(storageProperties, storedFileRepository), false);
+    }
+
+    @Benchmark
+    public StoredFile getMetadata() {
+        return storageService.getMetadata(FILE_ID);
+    }
+}
@@ -0,0 +1,93 @@
+package xyz.stanleyw.secureshare.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.springframework.util.FileSystemUtils;
+import xyz.stanleyw.secureshare.config.StorageProperties;
+import xyz.stanleyw.secureshare.entity.StoredFile;
+import xyz.stanleyw.secureshare.repository.StoredFileRepository;
+import xyz.stanleyw.secureshare.service.FileSystemStorageService;
+import xyz.stanleyw.secureshare.service.StorageUsage;
+import xyz.stanleyw.secureshare.service.StoredFileMetadataCache;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Base64;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Streaming store throughput across file sizes, from request body to a file on local disk, in
+ * the clear and encrypted at rest. Multiply ops/s by {@code sizeBytes} for bytes per second.
+ * Each stored file is removed again outside the measured section so the disk does not fill up.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class StoreBenchmark {
+
+    @Param({"4096", "1048576", "16777216"})
+    int sizeBytes;
+
+    @Param({"false", "true"})
+    boolean encrypted;
+
+    private Path rootLocation;
+
+    private FileSystemStorageService storageService;
+
+    private byte[] content;
+
+    private StoredFile lastStored;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        rootLocation = Files.createTempDirectory("jmh-store");
+
+        StorageProperties storageProperties = new StorageProperties();
+        storageProperties.setLocation(rootLocation.toString());
+        // Sharded, so every upload gets its own file like in production
+        storageProperties.setShardLevels(2);
+        if (encrypted) {
+            byte[] key = new byte[32];
+            ThreadLocalRandom.current().nextBytes(key);
+            storageProperties.setEncryptionEnabled(true);
+            storageProperties.setEncryptionKey(Base64.getEncoder().encodeToString(key));
+        }
+
+        StoredFileRepository storedFileRepository = StubRepositories.storedFiles(null);
+        storageService = new FileSystemStorageService(storageProperties, storedFileRepository,
+                null, new StoredFileMetadataCache(storageProperties), new StorageUsage(storageProperties, storedFileRepository), false);
+        storageService.init();
+
+        content = new byte[sizeBytes];
+        ThreadLocalRandom.current().nextBytes(content);
+    }
+
+    @TearDown(Level.Invocation)
+    public void removeStoredFile() throws IOException {
+        Files.deleteIfExists(Paths.get(lastStored.getStoragePath()));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        FileSystemUtils.deleteRecursively(rootLocation);
+    }
+
+    @Benchmark
+    public StoredFile storeStream() {
+        lastStored = storageService.storeStream("benchmark.bin", sizeBytes, new ByteArrayInputStream(content));
+        return lastStored;
+    }
+}
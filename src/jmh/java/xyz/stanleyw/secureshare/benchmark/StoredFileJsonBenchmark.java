@@ -0,0 +1,41 @@
+package xyz.stanleyw.secureshare.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import tools.jackson.databind.json.JsonMapper;
+import xyz.stanleyw.secureshare.entity.StoredFile;
+
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serialization of the metadata response body returned by {@code GET /{fileId}}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class StoredFileJsonBenchmark {
+
+    private final JsonMapper jsonMapper = JsonMapper.builder().build();
+
+    private StoredFile storedFile;
+
+    @Setup
+    public void setUp() {
+        Instant now = Instant.now().truncatedTo(ChronoUnit.SECONDS);
+        storedFile = new StoredFile("aB3dE5f", "/srv/storage/3f/a1/aB3dE5f", 1_048_576, now.plus(1, ChronoUnit.DAYS),
+                now, 100, 97, "quarterly-report.pdf", null, null, 1_048_576, null, now,
+                "b94d27b9934d3e08a52e52d7da7dabfac484efe37a5380ee9088f7ace2efcde9");
+    }
+
+    @Benchmark
+    public String serialize() {
+        return jsonMapper.writeValueAsString(storedFile);
+    }
+}
@@ -0,0 +1,36 @@
+package xyz.stanleyw.secureshare.benchmark;
+
+import xyz.stanleyw.secureshare.entity.StoredFile;
+import xyz.stanleyw.secureshare.repository.StoredFileRepository;
+
+import java.lang.reflect.Proxy;
+import java.util.Optional;
+
+/**
+ * In-memory stand-ins for the Spring Data repositories, so benchmarks measure the service
+ * code rather than a database round trip.
+ */
+final class StubRepositories {
+
+    private StubRepositories() {
+    }
+
+    /**
+     * A repository that accepts every insert and knows exactly one row, {@code row} (may be null).
+     */
+    static StoredFileRepository storedFiles(StoredFile row) {
+        return (StoredFileRepository) Proxy.newProxyInstance(
+                StoredFileRepository.class.getClassLoader(),
+                new Class<?>[]{StoredFileRepository.class},
+                (proxy, method, args) -> switch (method.getName()) {
+                    case "save" -> args[0];
+                    case "insert" -> true;
+                    case "findById" -> Optional.ofNullable(row != null && row.getId().equals(args[0]) ? row : null);
+                    case "existsByStoragePath" -> false;
+                    case "hashCode" -> System.identityHashCode(proxy);
+                    case "equals" -> proxy == args[0];
+                    case "toString" -> "StubStoredFileRepository";
+                    default -> throw new UnsupportedOperationException(method.getName());
+                });
+    }
+}
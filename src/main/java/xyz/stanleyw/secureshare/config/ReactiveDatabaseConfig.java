@@ -0,0 +1,51 @@
+package xyz.stanleyw.secureshare.config;
+
+import io.r2dbc.spi.ConnectionFactories;
+import io.r2dbc.spi.ConnectionFactory;
+import io.r2dbc.spi.ConnectionFactoryOptions;
+import io.r2dbc.spi.Option;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.r2dbc.core.DatabaseClient;
+import xyz.stanleyw.secureshare.exception.StorageException;
+
+/**
+ * R2DBC access to the same database as the JDBC data source, for the reactive stack only. Flyway,
+ * the reaper and the other background jobs keep using JDBC in either mode.
+ */
+@Configuration
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.REACTIVE)
+public class ReactiveDatabaseConfig {
+
+    private static final String JDBC_PREFIX = "jdbc:";
+
+    @Bean(destroyMethod = "dispose")
+    public ConnectionFactory connectionFactory(@Value("${spring.datasource.url}") String jdbcUrl,
+                                               @Value("${spring.datasource.username}") String username,
+                                               @Value("${spring.datasource.password}") String password,
+                                               StorageProperties storageProperties) {
+        ConnectionFactoryOptions options = ConnectionFactoryOptions.parse(toPooledR2dbcUrl(jdbcUrl)).mutate()
+                .option(ConnectionFactoryOptions.USER, username)
+                .option(ConnectionFactoryOptions.PASSWORD, password)
+                .option(Option.valueOf("maxSize"), storageProperties.getReactiveDatabaseConnections())
+                .build();
+
+        return ConnectionFactories.get(options);
+    }
+
+    @Bean
+    public DatabaseClient databaseClient(ConnectionFactory connectionFactory) {
+        return DatabaseClient.create(connectionFactory);
+    }
+
+    // jdbc:postgresql://host/db becomes r2dbc:pool:postgresql://host/db
+    static String toPooledR2dbcUrl(String jdbcUrl) {
+        if (jdbcUrl == null || !jdbcUrl.startsWith(JDBC_PREFIX)) {
+            throw new StorageException("Can not derive an R2DBC URL from data source URL: " + jdbcUrl);
+        }
+
+        return "r2dbc:pool:" + jdbcUrl.substring(JDBC_PREFIX.length());
+    }
+}
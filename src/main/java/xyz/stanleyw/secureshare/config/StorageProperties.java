@@ -1,9 +1,16 @@
 package xyz.stanleyw.secureshare.config;
 
-import jakarta.validation.constraints.NotEmpty;
+import jakarta.validation.Valid;
+import jakarta.validation.constraints.DecimalMax;
+import jakarta.validation.constraints.DecimalMin;
+import jakarta.validation.constraints.Max;
+import jakarta.validation.constraints.Min;
 import lombok.Getter;
 import lombok.Setter;
 import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.util.unit.DataSize;
+
+import java.time.Duration;
 import org.springframework.validation.annotation.Validated;
 
 @Setter
@@ -11,7 +18,169 @@ import org.springframework.validation.annotation.Validated;
 @Validated
 @ConfigurationProperties("storage")
 public class StorageProperties {
-    @NotEmpty
-    private String location;
+    // Where content is kept: "filesystem" under location, or "object-store" in an S3-compatible bucket
+    private Backend backend = Backend.FILESYSTEM;
+
+    // Root directory of the filesystem backend, which refuses to start without one
+    private String location = "";
+
+    // Cheaper volume that shares move to once nobody downloaded them for coldAfter; empty keeps
+    // everything under location. Deduplicated blobs are shared and stay where they are.
+    private String coldLocation = "";
+
+    private Duration coldAfter = Duration.ofHours(6);
+
+    @Min(1)
+    private int coldMoveBatchSize = 200;
+
+    // Stored content is re-read in the background and checked against its SHA-256, at most this
+    // many bytes per second so downloads keep the disk; empty turns the scrubber off. Files stored
+    // without a hash get one on their first pass.
+    private DataSize scrubBytesPerSecond = DataSize.ofMegabytes(8);
+
+    @Min(1)
+    private int scrubBatchSize = 100;
+
+    // Levels of hex directories files are spread over; 0 keeps everything flat in the root
+    @Min(0)
+    @Max(4)
+    private int shardLevels = 0;
+
+    // Upper bound for raw streamed uploads, which bypass the multipart size limits
+    private DataSize maxUploadSize = DataSize.ofMegabytes(50);
+
+    // Chunked upload sessions, for files beyond the single-request limits
+    private DataSize chunkSize = DataSize.ofMegabytes(8);
+
+    private DataSize maxChunkedUploadSize = DataSize.ofGigabytes(5);
+
+    private Duration uploadSessionTimeout = Duration.ofHours(1);
+
+    // Files and rows younger than this are left out of reconciling, since an upload or move on any
+    // instance sharing the volume may still own them; the session timeout counts if it is longer
+    private Duration reconcileGracePeriod = Duration.ofHours(6);
+
+    // Sessions open at once per instance; each one holds an open part file or multipart upload
+    // until it completes or times out, so starts beyond this are turned away
+    @Min(1)
+    private int maxUploadSessions = 64;
+
+    // Upper bound for the sizeBytes of all stored files together; empty for no quota. Uploads that
+    // would not fit, or would leave less than minFreeSpace on the volume, are turned away up front.
+    private DataSize quota;
+
+    private DataSize minFreeSpace = DataSize.ofBytes(0);
+
+    // Per-client upload limits, keyed by remote address. An upload over the concurrency limit waits
+    // up to uploadQueueTimeout for a slot; empty bandwidth means unthrottled.
+    @Min(1)
+    private int maxConcurrentUploadsPerClient = 4;
+
+    private Duration uploadQueueTimeout = Duration.ofSeconds(2);
+
+    private DataSize maxUploadBandwidthPerClient;
+
+    // Idle clients beyond this are forgotten first; clients with uploads in flight are always kept
+    @Min(1)
+    private long maxTrackedUploadClients = 100_000;
+
+    // Store single-request uploads once per distinct content in the blob store
+    private boolean deduplicationEnabled = false;
+
+    // Keep directly stored uploads gzip-compressed when their first block compresses to at most
+    // compressionMaxRatio of its size. Chunked uploads and deduplicated blobs are stored as is.
+    private boolean compressionEnabled = false;
+
+    @Min(1)
+    @Max(9)
+    private int compressionLevel = 1;
+
+    @DecimalMin("0.0")
+    @DecimalMax("1.0")
+    private double compressionMaxRatio = 0.9;
+
+    // Encrypt new uploads at rest with segmented AES-256-GCM under this base64 encoded 256-bit key.
+    // The key stays needed to read files written while encryption was on.
+    private boolean encryptionEnabled = false;
+
+    private String encryptionKey;
+
+    // Expired files are reaped in batches of this many rows, at most reaperMaxBatches per run
+    @Min(1)
+    private int reaperBatchSize = 500;
+
+    // How long a share outlives its last download, so that download can finish and be resumed
+    private Duration exhaustedGracePeriod = Duration.ofHours(1);
+
+    @Min(1)
+    private int reaperMaxBatches = 20;
+
+    @Min(1)
+    private int reaperThreads = 4;
+
+    // Bulk uploads: files per request and how many of them are written to disk at once
+    @Min(1)
+    private int maxBulkFiles = 100;
+
+    @Min(1)
+    private int bulkUploadThreads = 4;
+
+    @Min(1)
+    private int maxArchiveFiles = 100;
+
+    // Files whose limits one bulk expiration update may change at once
+    @Min(1)
+    private int maxExpirationUpdates = 1000;
+
+    // R2DBC connections of the reactive stack, only opened with spring.main.web-application-type=reactive
+    @Min(1)
+    private int reactiveDatabaseConnections = 20;
+
+    // Download and metadata events waiting to be written; events past this are dropped, never waited on
+    @Min(1)
+    private int accessLogBufferSize = 65_536;
+
+    // In-process metadata cache; entries never outlive the share itself
+    private long metadataCacheSize = 100_000;
+
+    private Duration metadataCacheTtl = Duration.ofMinutes(5);
+
+    // How long unknown IDs are remembered, off by default. Uploads on another instance can not
+    // replace the entry, so with several instances keep this to a couple of seconds at most.
+    private Duration metadataNegativeCacheTtl = Duration.ZERO;
+
+    @Valid
+    private ObjectStoreProperties objectStore = new ObjectStoreProperties();
+
+    public enum Backend {
+        FILESYSTEM,
+        OBJECT_STORE
+    }
+
+    @Setter
+    @Getter
+    public static class ObjectStoreProperties {
+        // Left empty for AWS itself; set for MinIO and other S3-compatible stores
+        private String endpoint;
+
+        private String region = "us-east-1";
+
+        private String bucket;
+
+        // Empty keys fall back to the default AWS credential chain
+        private String accessKey;
+
+        private String secretKey;
+
+        // Most self-hosted stores only serve bucket/key paths, not bucket subdomains
+        private boolean pathStyleAccess = true;
+
+        // Uploads larger than one part go up as a multipart upload, this many parts at a time per
+        // upload. Every part in flight is held in memory.
+        private DataSize partSize = DataSize.ofMegabytes(8);
+
+        @Min(1)
+        private int partUploadThreads = 4;
+    }
 }
 
@@ -0,0 +1,25 @@
+package xyz.stanleyw.secureshare.config;
+
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.boot.web.servlet.FilterRegistrationBean;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import tools.jackson.databind.ObjectMapper;
+import xyz.stanleyw.secureshare.controller.UploadAdmissionFilter;
+import xyz.stanleyw.secureshare.service.StorageUsage;
+
+@Configuration
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
+public class UploadAdmissionConfig {
+
+    @Bean
+    public FilterRegistrationBean<UploadAdmissionFilter> uploadAdmissionFilter(StorageProperties storageProperties,
+                                                                               StorageUsage storageUsage,
+                                                                               ObjectMapper objectMapper) {
+        FilterRegistrationBean<UploadAdmissionFilter> registration =
+                new FilterRegistrationBean<>(new UploadAdmissionFilter(storageProperties, storageUsage, objectMapper));
+        // Only the upload endpoints, so downloads and metadata calls never wait for a slot
+        registration.addUrlPatterns("/upload", "/upload/*");
+        return registration;
+    }
+}
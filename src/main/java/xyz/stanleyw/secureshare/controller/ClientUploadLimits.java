@@ -0,0 +1,73 @@
+package xyz.stanleyw.secureshare.controller;
+
+import java.time.Duration;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Upload slots and bandwidth shared by every upload of one client.
+ * <p>
+ * Bandwidth is a token bucket that holds up to one second worth of bytes: a reader that gets
+ * ahead of the rate sleeps until its bytes are paid for, so all of a client's uploads together
+ * never sustain more than the configured rate.
+ */
+class ClientUploadLimits {
+    private final Semaphore slots;
+
+    // Uploads that entered the filter and have not left it yet, whether holding a slot or waiting
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    // 0 when unthrottled
+    private final long bytesPerSecond;
+
+    // When the bucket would be full again, in System.nanoTime() terms
+    private long bucketFullAtNanos = System.nanoTime();
+
+    private static final long BURST_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    ClientUploadLimits(int maxConcurrentUploads, long bytesPerSecond) {
+        this.slots = new Semaphore(maxConcurrentUploads);
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    void enter() {
+        inFlight.incrementAndGet();
+    }
+
+    void leave() {
+        inFlight.decrementAndGet();
+    }
+
+    boolean isIdle() {
+        return inFlight.get() == 0;
+    }
+
+    boolean acquireSlot(long timeoutMillis) throws InterruptedException {
+        return slots.tryAcquire(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    void releaseSlot() {
+        slots.release();
+    }
+
+    boolean isThrottled() {
+        return bytesPerSecond > 0;
+    }
+
+    // Blocks the calling reader until these bytes fit into the client's rate
+    void consume(int bytes) throws InterruptedException {
+        long waitNanos;
+
+        synchronized (this) {
+            long now = System.nanoTime();
+            long cost = bytes * TimeUnit.SECONDS.toNanos(1) / bytesPerSecond;
+            bucketFullAtNanos = Math.max(bucketFullAtNanos, now) + cost;
+            waitNanos = bucketFullAtNanos - now - BURST_NANOS;
+        }
+
+        if (waitNanos > 0) {
+            Thread.sleep(Duration.ofNanos(waitNanos));
+        }
+    }
+}
@@ -1,42 +1,169 @@
 package xyz.stanleyw.secureshare.controller;
 
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.core.io.Resource;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.multipart.MultipartFile;
 import xyz.stanleyw.secureshare.entity.StoredFile;
+import xyz.stanleyw.secureshare.model.AccessEvent;
+import xyz.stanleyw.secureshare.model.BulkExpirationRequest;
 import xyz.stanleyw.secureshare.model.ExpirationDetails;
+import xyz.stanleyw.secureshare.model.UploadSessionRequest;
+import xyz.stanleyw.secureshare.model.UploadSessionStatus;
+import xyz.stanleyw.secureshare.service.AccessLog;
 import xyz.stanleyw.secureshare.service.StorageService;
+import xyz.stanleyw.secureshare.service.StoredFileResource;
 
+import java.io.IOException;
+import java.time.Instant;
+import java.util.List;
 import java.util.Map;
-import java.util.UUID;
 
 @RestController
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
 public class FileController {
 
     private final StorageService storageService;
 
-    public FileController(StorageService storageService) {
+    private final AccessLog accessLog;
+
+    // Handed out with every charged download and sent back to resume it for free
+    private static final String DOWNLOAD_TOKEN = "Download-Token";
+
+    public FileController(StorageService storageService, AccessLog accessLog) {
         this.storageService = storageService;
+        this.accessLog = accessLog;
     }
 
     @PostMapping("/upload")
     public ResponseEntity<?> uploadFile(@RequestParam("file") MultipartFile file) {
-        storageService.store(file);
+        StoredFile storedFile = storageService.store(file);
+
+        return ResponseEntity.ok(Map.of("id", storedFile.getId()));
+    }
+
+    @PostMapping("/upload/batch")
+    public ResponseEntity<?> uploadFiles(@RequestParam("files") List<MultipartFile> files) {
+        List<String> ids = storageService.storeAll(files).stream()
+                .map(StoredFile::getId)
+                .toList();
+
+        return ResponseEntity.ok(Map.of("ids", ids));
+    }
+
+    @PutMapping("/upload/stream")
+    public ResponseEntity<?> uploadFileStream(@RequestParam("filename") String filename,
+                                              @RequestHeader(HttpHeaders.CONTENT_LENGTH) long contentLength,
+                                              HttpServletRequest request) throws IOException {
+        // Reads the raw body directly, so nothing is spooled to a multipart temp file first
+        StoredFile storedFile = storageService.storeStream(filename, contentLength, request.getInputStream());
+
+        return ResponseEntity.ok(Map.of("id", storedFile.getId()));
+    }
+
+    @PostMapping("/upload/sessions")
+    public ResponseEntity<?> createUploadSession(@RequestBody UploadSessionRequest uploadSessionRequest) {
+        UploadSessionStatus uploadSession = storageService.createUploadSession(
+                uploadSessionRequest.getFilename(), uploadSessionRequest.getTotalSize());
+
+        return ResponseEntity.ok(uploadSession);
+    }
+
+    @GetMapping("/upload/sessions/{sessionId}")
+    public ResponseEntity<?> getUploadSession(@PathVariable String sessionId) {
+        UploadSessionStatus uploadSession = storageService.getUploadSession(sessionId);
 
-        return ResponseEntity.ok(Map.of("id", UUID.randomUUID()));
+        return ResponseEntity.ok(uploadSession);
+    }
+
+    @PutMapping("/upload/sessions/{sessionId}/chunks/{index}")
+    public ResponseEntity<?> uploadChunk(@PathVariable String sessionId,
+                                         @PathVariable int index,
+                                         @RequestHeader(HttpHeaders.CONTENT_LENGTH) long contentLength,
+                                         HttpServletRequest request) throws IOException {
+        storageService.writeChunk(sessionId, index, contentLength, request.getInputStream());
+
+        return ResponseEntity.noContent().build();
+    }
+
+    @PostMapping("/upload/sessions/{sessionId}/complete")
+    public ResponseEntity<?> completeUploadSession(@PathVariable String sessionId) {
+        StoredFile storedFile = storageService.completeUploadSession(sessionId);
+
+        return ResponseEntity.ok(Map.of("id", storedFile.getId()));
     }
 
     @GetMapping("/{fileId}")
     public ResponseEntity<?> getStoredFileMetadata(@PathVariable String fileId) {
         StoredFile storedFile = storageService.getMetadata(fileId);
+        accessLog.record(fileId, AccessEvent.Type.METADATA);
 
         return ResponseEntity.ok(storedFile);
     }
 
+    // Counts only cover events already flushed, which trail requests by about a second
+    @GetMapping("/{fileId}/access")
+    public ResponseEntity<?> getAccessCounts(@PathVariable String fileId,
+                                             @RequestParam(value = "since", required = false) Instant since) {
+        Map<AccessEvent.Type, Long> counts = accessLog.countsFor(fileId, since != null ? since : Instant.EPOCH);
+
+        return ResponseEntity.ok(Map.of(
+                "id", fileId,
+                "downloads", counts.getOrDefault(AccessEvent.Type.DOWNLOAD, 0L),
+                "resumes", counts.getOrDefault(AccessEvent.Type.RESUME, 0L),
+                "metadataReads", counts.getOrDefault(AccessEvent.Type.METADATA, 0L)));
+    }
+
+    // The suffix keeps this path apart from GET /{fileId}, IDs never contain a dot
+    @GetMapping("/archive.zip")
+    public void downloadArchive(@RequestParam("ids") List<String> ids,
+                                HttpServletResponse response) throws IOException {
+        // Charges one download per file up front, so a rejected archive sends no bytes at all
+        List<StoredFileResource> files = storageService.consumeDownloads(ids);
+        files.forEach(file -> accessLog.record(file.getStoredFile().getId(), AccessEvent.Type.DOWNLOAD));
+
+        new ArchiveDownload(files, "shares.zip").writeTo(response);
+    }
+
+    @GetMapping("/{fileId}/content")
+    public void downloadFile(@PathVariable String fileId,
+                             HttpServletRequest request,
+                             HttpServletResponse response) throws IOException {
+        Resource resource = storageService.loadAsResource(fileId);
+
+        FileDownload download = FileDownload.prepare(resource, FileDownload.eTagOf(resource, fileId), request);
+
+        // Only a range backed by the token of an earlier charged download is free; any other
+        // response with content is charged, so ranges can not be used to skip the limit
+        if (download.resumesDownload() && storageService.isResumable(fileId, request.getHeader(DOWNLOAD_TOKEN))) {
+            accessLog.record(fileId, AccessEvent.Type.RESUME);
+        } else if (download.sendsContent()) {
+            response.setHeader(DOWNLOAD_TOKEN, storageService.consumeDownload(fileId));
+            accessLog.record(fileId, AccessEvent.Type.DOWNLOAD);
+        }
+
+        download.writeTo(request, response);
+    }
+
     @PutMapping("/{fileId}")
     public ResponseEntity<?> updateExpirationDetails(@PathVariable String fileId,
                                                      @RequestBody ExpirationDetails expirationDetails) {
         StoredFile storedFile = storageService.updateExpiration(fileId, expirationDetails);
         return ResponseEntity.ok(storedFile);
     }
+
+    // Applies the same limits to every listed file in one statement; unknown IDs are left out of the result
+    @PutMapping("/expiration/batch")
+    public ResponseEntity<?> updateExpirationDetailsBatch(@RequestBody BulkExpirationRequest bulkExpirationRequest) {
+        ExpirationDetails expirationDetails = new ExpirationDetails(
+                bulkExpirationRequest.getMaxDownloads(), bulkExpirationRequest.getExpiresInSeconds());
+
+        List<StoredFile> storedFiles = storageService.updateExpirations(bulkExpirationRequest.getIds(), expirationDetails);
+
+        return ResponseEntity.ok(Map.of("files", storedFiles));
+    }
 }
@@ -0,0 +1,321 @@
+package xyz.stanleyw.secureshare.controller;
+
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.core.io.Resource;
+import org.springframework.http.ContentDisposition;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpRange;
+import org.springframework.http.MediaType;
+import xyz.stanleyw.secureshare.service.ContentHash;
+import xyz.stanleyw.secureshare.service.StoredFileResource;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+/**
+ * Plans and writes the response for a single stored file download.
+ * <p>
+ * Files stored as is are never buffered on the heap: when the servlet container supports sendfile
+ * the file region is handed to the connector, otherwise it is moved with {@link FileChannel#transferTo}.
+ * Only a single byte range is honoured, multi-range and malformed Range headers are answered
+ * with the full file as RFC 9110 allows.
+ * <p>
+ * Files stored compressed have two representations. Clients that accept the stored encoding get
+ * the encoded bytes, with {@code Content-Encoding} set and ranges counted in encoded bytes;
+ * everyone else gets the content inflated on the fly, which makes a range cost a decompression of
+ * everything before it. Encrypted files are decrypted segment by segment, so a range only reads
+ * the segments it overlaps. Neither can use sendfile.
+ * <p>
+ * Files in the object store are fetched with one ranged GET covering exactly the bytes sent.
+ * <p>
+ * Files with a known SHA-256 use it as their validator and send it as {@code Repr-Digest}, and
+ * as the older {@code Digest}, whenever the content goes out unencoded.
+ */
+final class FileDownload {
+
+    // Tomcat request attributes used to hand a file region over to the connector's sendfile support
+    private static final String SENDFILE_SUPPORTED_ATTR = "org.apache.tomcat.sendfile.support";
+    private static final String SENDFILE_FILENAME_ATTR = "org.apache.tomcat.sendfile.filename";
+    private static final String SENDFILE_START_ATTR = "org.apache.tomcat.sendfile.start";
+    private static final String SENDFILE_END_ATTR = "org.apache.tomcat.sendfile.end";
+
+    private static final int DECODE_BUFFER_SIZE = 64 * 1024;
+
+    private static final String REPR_DIGEST = "Repr-Digest";
+
+    private static final String DIGEST = "Digest";
+
+    private final Representation representation;
+    private final int status;
+    private final long start;
+    // Inclusive, like the last-pos of a byte range
+    private final long end;
+
+    private FileDownload(Representation representation, int status, long start, long end) {
+        this.representation = representation;
+        this.status = status;
+        this.start = start;
+        this.end = end;
+    }
+
+    // Stored content never changes once uploaded, so its hash, or the ID while it has none, is a valid strong validator
+    static String eTagOf(Resource resource, String fileId) {
+        String contentSha256 = contentSha256Of(resource);
+        return "\"" + (contentSha256 != null ? contentSha256 : fileId) + "\"";
+    }
+
+    private static String contentSha256Of(Resource resource) {
+        return resource instanceof StoredFileResource storedFile ? storedFile.getStoredFile().getContentSha256() : null;
+    }
+
+    static FileDownload prepare(Resource resource, String eTag, HttpServletRequest request) throws IOException {
+        Representation representation = Representation.select(resource, eTag, request);
+        long length = representation.length();
+        String representationETag = representation.eTag();
+
+        if (matchesAny(request.getHeader(HttpHeaders.IF_NONE_MATCH), representationETag)) {
+            return new FileDownload(representation, HttpServletResponse.SC_NOT_MODIFIED, 0, length - 1);
+        }
+
+        FileDownload full = new FileDownload(representation, HttpServletResponse.SC_OK, 0, length - 1);
+
+        // A stale If-Range validator means the client's partial copy is outdated, so send everything
+        String rangeHeader = request.getHeader(HttpHeaders.RANGE);
+        String ifRange = request.getHeader(HttpHeaders.IF_RANGE);
+        if (rangeHeader == null || (ifRange != null && !ifRange.trim().equals(representationETag))) {
+            return full;
+        }
+
+        List<HttpRange> ranges;
+        try {
+            ranges = HttpRange.parseRanges(rangeHeader);
+        } catch (IllegalArgumentException e) {
+            return full;
+        }
+
+        if (ranges.size() != 1) {
+            return full;
+        }
+
+        HttpRange range = ranges.get(0);
+        long rangeStart = range.getRangeStart(length);
+        long rangeEnd = range.getRangeEnd(length);
+
+        if (rangeStart >= length || rangeStart > rangeEnd) {
+            return new FileDownload(representation, HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE, 0, -1);
+        }
+
+        return new FileDownload(representation, HttpServletResponse.SC_PARTIAL_CONTENT, rangeStart, rangeEnd);
+    }
+
+    // Whether the response carries content; revalidations and unsatisfiable ranges do not
+    boolean sendsContent() {
+        return status == HttpServletResponse.SC_OK || status == HttpServletResponse.SC_PARTIAL_CONTENT;
+    }
+
+    // Whether the response continues a partial copy rather than starting from the first byte
+    boolean resumesDownload() {
+        return status == HttpServletResponse.SC_PARTIAL_CONTENT && start > 0;
+    }
+
+    void writeTo(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        response.setStatus(status);
+        response.setHeader(HttpHeaders.ETAG, representation.eTag());
+        response.setHeader(HttpHeaders.ACCEPT_RANGES, "bytes");
+
+        if (representation.negotiated()) {
+            response.setHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+        }
+
+        if (status == HttpServletResponse.SC_NOT_MODIFIED) {
+            return;
+        }
+
+        if (status == HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE) {
+            response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes */" + representation.length());
+            return;
+        }
+
+        if (status == HttpServletResponse.SC_PARTIAL_CONTENT) {
+            response.setHeader(HttpHeaders.CONTENT_RANGE,
+                    "bytes " + start + "-" + end + "/" + representation.length());
+        }
+
+        long count = end - start + 1;
+        response.setContentType(MediaType.APPLICATION_OCTET_STREAM_VALUE);
+        response.setContentLengthLong(count);
+
+        if (representation.contentEncoding() != null) {
+            response.setHeader(HttpHeaders.CONTENT_ENCODING, representation.contentEncoding());
+        }
+
+        if (representation.filename() != null) {
+            response.setHeader(HttpHeaders.CONTENT_DISPOSITION, ContentDisposition.attachment()
+                    .filename(representation.filename(), StandardCharsets.UTF_8).build().toString());
+        }
+
+        // The hash is of the content as uploaded, so it does not describe an encoded representation
+        String contentSha256 = representation.contentEncoding() == null ? contentSha256Of(representation.resource()) : null;
+        if (contentSha256 != null) {
+            response.setHeader(REPR_DIGEST, ContentHash.toReprDigest(contentSha256));
+            response.setHeader(DIGEST, ContentHash.toLegacyDigest(contentSha256));
+        }
+
+        if (representation.source() != Source.FILE) {
+            writeDecoded(representation, response.getOutputStream(), count);
+            return;
+        }
+
+        Path file = representation.file();
+
+        if (Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORTED_ATTR))) {
+            // The connector streams the region itself once the handler returns (end is exclusive here)
+            request.setAttribute(SENDFILE_FILENAME_ATTR, file.toAbsolutePath().toString());
+            request.setAttribute(SENDFILE_START_ATTR, start);
+            request.setAttribute(SENDFILE_END_ATTR, end + 1);
+            return;
+        }
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            WritableByteChannel out = Channels.newChannel(response.getOutputStream());
+            long position = start;
+            long remaining = count;
+
+            while (remaining > 0) {
+                long transferred = channel.transferTo(position, remaining, out);
+                if (transferred <= 0) {
+                    throw new EOFException("Stored file ended before the requested range: " + file);
+                }
+                position += transferred;
+                remaining -= transferred;
+            }
+        }
+    }
+
+    private void writeDecoded(Representation representation, OutputStream out, long count) throws IOException {
+        StoredFileResource resource = representation.resource();
+
+        try (InputStream content = representation.source() == Source.ENCODED
+                ? resource.openEncoded(start, end)
+                : resource.openContent(start, end)) {
+            byte[] buffer = new byte[DECODE_BUFFER_SIZE];
+            long remaining = count;
+
+            while (remaining > 0) {
+                int read = content.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (read == -1) {
+                    throw new EOFException("Stored file ended before the requested range: " + resource.getDescription());
+                }
+                out.write(buffer, 0, read);
+                remaining -= read;
+            }
+        }
+    }
+
+    private static boolean matchesAny(String ifNoneMatch, String eTag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+
+        for (String candidate : ifNoneMatch.split(",")) {
+            String tag = candidate.trim();
+            // If-None-Match uses weak comparison
+            if (tag.startsWith("W/")) {
+                tag = tag.substring(2);
+            }
+            if (tag.equals("*") || tag.equals(eTag)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    // Where the body comes from: the local file as is, the decrypted codec-encoded bytes, or the decoded content
+    private enum Source { FILE, ENCODED, CONTENT }
+
+    /**
+     * What is sent for the requested file: the bytes on disk, the content in its stored encoding,
+     * or the decoded content. Only files on local disk have a {@code file}.
+     *
+     * @param negotiated whether another client could get a different representation of the same file
+     */
+    private record Representation(Path file, StoredFileResource resource, Source source, String filename,
+                                  String eTag, long length, String contentEncoding, boolean negotiated) {
+
+        static Representation select(Resource resource, String eTag, HttpServletRequest request) throws IOException {
+            String filename = resource.getFilename();
+
+            if (!(resource instanceof StoredFileResource storedFile)) {
+                Path file = resource.getFile().toPath();
+                return new Representation(file, null, Source.FILE, filename, eTag, Files.size(file), null, false);
+            }
+
+            Path file = storedFile.isFile() ? storedFile.getFile().toPath() : null;
+
+            if (file != null && storedFile.isStoredAsIs()) {
+                return new Representation(file, storedFile, Source.FILE, filename, eTag, Files.size(file), null, false);
+            }
+
+            String codec = storedFile.getCodec();
+
+            if (codec != null && accepts(request.getHeader(HttpHeaders.ACCEPT_ENCODING), codec)) {
+                // The encoded bytes are a different entity, so they need a validator of their own
+                String encodedETag = eTag.substring(0, eTag.length() - 1) + "-" + codec + "\"";
+                Source source = file != null && !storedFile.isEncrypted() ? Source.FILE : Source.ENCODED;
+                return new Representation(file, storedFile, source, filename, encodedETag,
+                        storedFile.encodedLength(), codec, true);
+            }
+
+            return new Representation(file, storedFile, Source.CONTENT, filename, eTag,
+                    storedFile.contentLength(), null, codec != null);
+        }
+
+        // The coding named explicitly wins over a wildcard; an explicit q=0 refuses it
+        private static boolean accepts(String acceptEncoding, String codec) {
+            if (acceptEncoding == null) {
+                return false;
+            }
+
+            Boolean wildcard = null;
+
+            for (String candidate : acceptEncoding.split(",")) {
+                String[] parts = candidate.split(";");
+                String coding = parts[0].trim();
+                boolean accepted = !isRefused(parts);
+
+                if (coding.equalsIgnoreCase(codec)) {
+                    return accepted;
+                }
+
+                if (coding.equals("*")) {
+                    wildcard = accepted;
+                }
+            }
+
+            return Boolean.TRUE.equals(wildcard);
+        }
+
+        private static boolean isRefused(String[] parts) {
+            for (int i = 1; i < parts.length; i++) {
+                String parameter = parts[i].trim();
+                if (parameter.startsWith("q=") || parameter.startsWith("Q=")) {
+                    return parameter.substring(2).trim().matches("0(\\.0{0,3})?");
+                }
+            }
+
+            return false;
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package xyz.stanleyw.secureshare.controller;
+
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.http.ContentDisposition;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.http.codec.multipart.FilePart;
+import org.springframework.http.server.reactive.ServerHttpRequest;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.server.ServerWebExchange;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import xyz.stanleyw.secureshare.entity.StoredFile;
+import xyz.stanleyw.secureshare.model.AccessEvent;
+import xyz.stanleyw.secureshare.service.AccessLog;
+import xyz.stanleyw.secureshare.service.ContentHash;
+import xyz.stanleyw.secureshare.service.ReactiveStorageService;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * Upload, metadata and download endpoints of {@link FileController} on the reactive stack, which
+ * replaces the servlet one with {@code spring.main.web-application-type=reactive}. Downloads are
+ * always sent whole; range requests need the servlet stack.
+ */
+@RestController
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.REACTIVE)
+public class ReactiveFileController {
+
+    private final ReactiveStorageService storageService;
+
+    // Appending never blocks, so it is safe on the event loop
+    private final AccessLog accessLog;
+
+    public ReactiveFileController(ReactiveStorageService storageService, AccessLog accessLog) {
+        this.storageService = storageService;
+        this.accessLog = accessLog;
+    }
+
+    @PostMapping("/upload")
+    public Mono<ResponseEntity<Map<String, String>>> uploadFile(@RequestPart("file") FilePart file) {
+        return storageService.store(file.filename(), -1, file.content())
+                .map(storedFile -> ResponseEntity.ok(Map.of("id", storedFile.getId())));
+    }
+
+    @PutMapping("/upload/stream")
+    public Mono<ResponseEntity<Map<String, String>>> uploadFileStream(@RequestParam("filename") String filename,
+                                                                      @RequestHeader(HttpHeaders.CONTENT_LENGTH) long contentLength,
+                                                                      ServerHttpRequest request) {
+        return storageService.store(filename, contentLength, request.getBody())
+                .map(storedFile -> ResponseEntity.ok(Map.of("id", storedFile.getId())));
+    }
+
+    @GetMapping("/{fileId}")
+    public Mono<ResponseEntity<StoredFile>> getStoredFileMetadata(@PathVariable String fileId) {
+        return storageService.getMetadata(fileId)
+                .doOnNext(storedFile -> accessLog.record(fileId, AccessEvent.Type.METADATA))
+                .map(ResponseEntity::ok);
+    }
+
+    @GetMapping("/{fileId}/content")
+    public Mono<ResponseEntity<Flux<DataBuffer>>> downloadFile(@PathVariable String fileId, ServerWebExchange exchange) {
+        return storageService.getMetadata(fileId).flatMap(storedFile -> {
+            // Stored content never changes once uploaded, so its hash, or the ID while it has none, is a valid strong validator
+            String contentSha256 = storedFile.getContentSha256();
+            String eTag = "\"" + (contentSha256 != null ? contentSha256 : fileId) + "\"";
+
+            // Revalidations are answered before a download is charged
+            if (exchange.checkNotModified(eTag)) {
+                return Mono.just(ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(eTag).<Flux<DataBuffer>>build());
+            }
+
+            return storageService.download(storedFile).map(download -> {
+                accessLog.record(fileId, AccessEvent.Type.DOWNLOAD);
+
+                ResponseEntity.BodyBuilder response = ResponseEntity.ok()
+                        .eTag(eTag)
+                        .contentType(MediaType.APPLICATION_OCTET_STREAM)
+                        .contentLength(download.contentLength())
+                        .header(HttpHeaders.CONTENT_DISPOSITION, ContentDisposition.attachment()
+                                .filename(download.filename(), StandardCharsets.UTF_8).build().toString());
+
+                if (contentSha256 != null) {
+                    response.header("Repr-Digest", ContentHash.toReprDigest(contentSha256))
+                            .header("Digest", ContentHash.toLegacyDigest(contentSha256));
+                }
+
+                return response.body(download.content());
+            });
+        });
+    }
+}
@@ -0,0 +1,249 @@
+package xyz.stanleyw.secureshare.controller;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ReadListener;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.ServletInputStream;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletRequestWrapper;
+import jakarta.servlet.http.HttpServletResponse;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.util.unit.DataSize;
+import org.springframework.web.filter.OncePerRequestFilter;
+import tools.jackson.databind.ObjectMapper;
+import xyz.stanleyw.secureshare.config.StorageProperties;
+import xyz.stanleyw.secureshare.exception.InsufficientStorageException;
+import xyz.stanleyw.secureshare.service.StorageUsage;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.time.Duration;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Admits uploads before the container reads any of their body.
+ * <p>
+ * An upload first takes one of its client's upload slots, waiting up to the queue timeout for one
+ * and otherwise answered with 503 and a {@code Retry-After}. It then reserves its
+ * {@code Content-Length} against the storage quota for as long as it runs, answered with 507 when
+ * that does not fit. Chunks of an upload session skip that, their session already holds room for
+ * all of them. Bodies read from the request stream are held to their client's bandwidth
+ * limit; multipart bodies are parsed by the container itself and only get the slot and quota
+ * checks. Clients are told apart by remote address.
+ */
+@Slf4j
+public class UploadAdmissionFilter extends OncePerRequestFilter {
+    private final StorageUsage storageUsage;
+
+    private final ObjectMapper objectMapper;
+
+    private final int maxConcurrentUploads;
+
+    private final long queueTimeoutMillis;
+
+    private final long bytesPerSecond;
+
+    // Idle clients are forgotten, a returning one starts with a fresh set of limits. Clients with
+    // uploads in flight weigh nothing and never expire, so they are never handed a fresh set
+    // while their running uploads still hold the old one.
+    private final Cache<String, ClientUploadLimits> clients;
+
+    private static final long IDLE_CLIENT_TIMEOUT_NANOS = Duration.ofMinutes(10).toNanos();
+
+    private static final String RETRY_AFTER_SECONDS = "1";
+
+    private static final Pattern SESSION_CHUNK = Pattern.compile(".*/upload/sessions/[^/]+/chunks/[^/]+");
+
+    public UploadAdmissionFilter(StorageProperties storageProperties, StorageUsage storageUsage, ObjectMapper objectMapper) {
+        this.storageUsage = storageUsage;
+        this.objectMapper = objectMapper;
+        this.maxConcurrentUploads = storageProperties.getMaxConcurrentUploadsPerClient();
+        this.queueTimeoutMillis = storageProperties.getUploadQueueTimeout().toMillis();
+        DataSize bandwidth = storageProperties.getMaxUploadBandwidthPerClient();
+        this.bytesPerSecond = bandwidth != null ? bandwidth.toBytes() : 0;
+        this.clients = Caffeine.newBuilder()
+                .maximumWeight(storageProperties.getMaxTrackedUploadClients())
+                .weigher((String client, ClientUploadLimits limits) -> limits.isIdle() ? 1 : 0)
+                .expireAfter(new Expiry<String, ClientUploadLimits>() {
+                    @Override
+                    public long expireAfterCreate(String client, ClientUploadLimits limits, long currentTime) {
+                        return limits.isIdle() ? IDLE_CLIENT_TIMEOUT_NANOS : Long.MAX_VALUE;
+                    }
+
+                    @Override
+                    public long expireAfterUpdate(String client, ClientUploadLimits limits, long currentTime, long currentDuration) {
+                        return expireAfterCreate(client, limits, currentTime);
+                    }
+
+                    @Override
+                    public long expireAfterRead(String client, ClientUploadLimits limits, long currentTime, long currentDuration) {
+                        return currentDuration;
+                    }
+                })
+                .build();
+    }
+
+    @Override
+    protected boolean shouldNotFilter(HttpServletRequest request) {
+        String method = request.getMethod();
+        return !HttpMethod.POST.matches(method) && !HttpMethod.PUT.matches(method);
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response,
+                                    FilterChain filterChain) throws ServletException, IOException {
+        String client = request.getRemoteAddr();
+        ClientUploadLimits limits = enter(client);
+
+        try {
+            if (!acquireSlot(limits)) {
+                log.info("Upload from [{}] turned away, {} uploads already in progress", client, maxConcurrentUploads);
+                response.setHeader(HttpHeaders.RETRY_AFTER, RETRY_AFTER_SECONDS);
+                reject(response, HttpStatus.SERVICE_UNAVAILABLE, "Too many uploads in progress, try again shortly.");
+                return;
+            }
+
+            try {
+                admit(request, response, filterChain, client, limits);
+            } finally {
+                limits.releaseSlot();
+            }
+        } finally {
+            leave(client, limits);
+        }
+    }
+
+    private void admit(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain,
+                       String client, ClientUploadLimits limits) throws ServletException, IOException {
+        // Null for session chunks, which try-with-resources simply skips
+        StorageUsage.Reservation reservation = null;
+        if (!SESSION_CHUNK.matcher(request.getRequestURI()).matches()) {
+            try {
+                reservation = storageUsage.reserve(Math.max(request.getContentLengthLong(), 0));
+            } catch (InsufficientStorageException e) {
+                log.warn("Upload from [{}] rejected: {}", client, e.getMessage());
+                reject(response, HttpStatus.INSUFFICIENT_STORAGE, e.getMessage());
+                return;
+            }
+        }
+
+        try (StorageUsage.Reservation admitted = reservation) {
+            filterChain.doFilter(limits.isThrottled() ? new ThrottledRequest(request, limits) : request, response);
+        }
+    }
+
+    // Weight and expiry are only evaluated on writes, so entering and leaving both write the entry
+    private ClientUploadLimits enter(String client) {
+        return clients.asMap().compute(client, (key, limits) -> {
+            ClientUploadLimits entered = limits != null ? limits : new ClientUploadLimits(maxConcurrentUploads, bytesPerSecond);
+            entered.enter();
+            return entered;
+        });
+    }
+
+    // Leaves through the limits the upload holds; the entry could only have changed while idle
+    private void leave(String client, ClientUploadLimits limits) {
+        limits.leave();
+        clients.asMap().computeIfPresent(client, (key, current) -> current);
+    }
+
+    private boolean acquireSlot(ClientUploadLimits limits) {
+        try {
+            return limits.acquireSlot(queueTimeoutMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private void reject(HttpServletResponse response, HttpStatus status, String message) throws IOException {
+        response.setStatus(status.value());
+        response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+        objectMapper.writeValue(response.getOutputStream(), Map.of("error", message));
+    }
+
+    private static class ThrottledRequest extends HttpServletRequestWrapper {
+        private final ClientUploadLimits limits;
+
+        private ServletInputStream inputStream;
+
+        ThrottledRequest(HttpServletRequest request, ClientUploadLimits limits) {
+            super(request);
+            this.limits = limits;
+        }
+
+        @Override
+        public ServletInputStream getInputStream() throws IOException {
+            if (inputStream == null) {
+                inputStream = new ThrottledInputStream(super.getInputStream(), limits);
+            }
+            return inputStream;
+        }
+    }
+
+    private static class ThrottledInputStream extends ServletInputStream {
+        private final ServletInputStream delegate;
+
+        private final ClientUploadLimits limits;
+
+        ThrottledInputStream(ServletInputStream delegate, ClientUploadLimits limits) {
+            this.delegate = delegate;
+            this.limits = limits;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = delegate.read();
+            if (b != -1) {
+                pay(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int read = delegate.read(buffer, offset, length);
+            if (read > 0) {
+                pay(read);
+            }
+            return read;
+        }
+
+        private void pay(int bytes) throws IOException {
+            try {
+                limits.consume(bytes);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while throttling upload");
+            }
+        }
+
+        @Override
+        public boolean isFinished() {
+            return delegate.isFinished();
+        }
+
+        @Override
+        public boolean isReady() {
+            return delegate.isReady();
+        }
+
+        @Override
+        public void setReadListener(ReadListener readListener) {
+            delegate.setReadListener(readListener);
+        }
+
+        @Override
+        public void close() throws IOException {
+            delegate.close();
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package xyz.stanleyw.secureshare.entity;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.Id;
+import jakarta.persistence.Table;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Entity
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@Table(name = "blobs")
+public class StoredBlob {
+
+    // Hex encoded SHA-256 of the content
+    @Id
+    private String digest;
+
+    @Column(nullable = false, length = 1024)
+    private String storagePath;
+
+    @Column(nullable = false)
+    private long sizeBytes;
+
+    @Column(nullable = false)
+    private int refCount;
+}
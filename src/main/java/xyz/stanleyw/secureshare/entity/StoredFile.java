@@ -7,6 +7,7 @@ import jakarta.persistence.Table;
 import lombok.AllArgsConstructor;
 import lombok.Data;
 import lombok.NoArgsConstructor;
+import lombok.With;
 
 import java.time.Instant;
 
@@ -35,6 +36,33 @@ public class StoredFile {
     @Column(nullable = false)
     private int maxDownloads;
 
+    @With
     @Column(nullable = false)
     private int downloadsRemaining;
+
+    @Column(length = 1024)
+    private String originalFilename;
+
+    // Set when the content lives in the deduplicating blob store
+    @Column(length = 64)
+    private String blobDigest;
+
+    // Content encoding on disk, null when stored as uploaded
+    @Column(length = 16)
+    private String codec;
+
+    // Bytes on disk; differs from sizeBytes when a codec is applied
+    @Column(nullable = false)
+    private long storedSizeBytes;
+
+    // Encryption scheme of the bytes on disk, null when stored in the clear
+    @Column(length = 32)
+    private String encryption;
+
+    // Last download that used up a download, null until the first one
+    private Instant lastAccessedAt;
+
+    // Hex SHA-256 of the content as uploaded, null until the scrubber got to files stored without one
+    @Column(length = 64)
+    private String contentSha256;
 }
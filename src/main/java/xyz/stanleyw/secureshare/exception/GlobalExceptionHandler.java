@@ -1,5 +1,6 @@
 package xyz.stanleyw.secureshare.exception;
 
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.ControllerAdvice;
@@ -17,6 +18,43 @@ public class GlobalExceptionHandler {
                 .body(Map.of("error", ex.getMessage()));
     }
 
+    @ExceptionHandler(StoredFileGoneException.class)
+    public ResponseEntity<?> handleStoredFileGoneException(StoredFileGoneException ex) {
+        return ResponseEntity
+                .status(HttpStatus.GONE)
+                .body(Map.of("error", ex.getMessage()));
+    }
+
+    @ExceptionHandler(InvalidUploadException.class)
+    public ResponseEntity<?> handleInvalidUploadException(InvalidUploadException ex) {
+        return ResponseEntity
+                .status(HttpStatus.BAD_REQUEST)
+                .body(Map.of("error", ex.getMessage()));
+    }
+
+    @ExceptionHandler(UploadTooLargeException.class)
+    public ResponseEntity<?> handleUploadTooLargeException(UploadTooLargeException ex) {
+        return ResponseEntity
+                .status(HttpStatus.CONTENT_TOO_LARGE)
+                .body(Map.of("error", ex.getMessage()));
+    }
+
+    @ExceptionHandler(InsufficientStorageException.class)
+    public ResponseEntity<?> handleInsufficientStorageException(InsufficientStorageException ex) {
+        return ResponseEntity
+                .status(HttpStatus.INSUFFICIENT_STORAGE)
+                .body(Map.of("error", ex.getMessage()));
+    }
+
+    // Sessions free up as they complete or expire, so this is worth retrying later
+    @ExceptionHandler(TooManyUploadSessionsException.class)
+    public ResponseEntity<?> handleTooManyUploadSessionsException(TooManyUploadSessionsException ex) {
+        return ResponseEntity
+                .status(HttpStatus.SERVICE_UNAVAILABLE)
+                .header(HttpHeaders.RETRY_AFTER, "60")
+                .body(Map.of("error", ex.getMessage()));
+    }
+
     @ExceptionHandler(StorageException.class)
     public ResponseEntity<?> handleStorageException(StorageException ex) {
         return ResponseEntity
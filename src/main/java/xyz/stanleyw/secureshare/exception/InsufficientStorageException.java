@@ -0,0 +1,11 @@
+package xyz.stanleyw.secureshare.exception;
+
+public class InsufficientStorageException extends StorageException {
+    public InsufficientStorageException(String message) {
+        super(message);
+    }
+
+    public InsufficientStorageException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -0,0 +1,11 @@
+package xyz.stanleyw.secureshare.exception;
+
+public class InvalidUploadException extends StorageException {
+    public InvalidUploadException(String message) {
+        super(message);
+    }
+
+    public InvalidUploadException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
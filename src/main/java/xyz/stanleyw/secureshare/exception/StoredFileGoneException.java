@@ -0,0 +1,11 @@
+package xyz.stanleyw.secureshare.exception;
+
+public class StoredFileGoneException extends StorageException {
+    public StoredFileGoneException(String message) {
+        super(message);
+    }
+
+    public StoredFileGoneException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -0,0 +1,7 @@
+package xyz.stanleyw.secureshare.exception;
+
+public class TooManyUploadSessionsException extends StorageException {
+    public TooManyUploadSessionsException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,11 @@
+package xyz.stanleyw.secureshare.exception;
+
+public class UploadTooLargeException extends StorageException {
+    public UploadTooLargeException(String message) {
+        super(message);
+    }
+
+    public UploadTooLargeException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
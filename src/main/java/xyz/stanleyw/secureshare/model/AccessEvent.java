@@ -0,0 +1,15 @@
+package xyz.stanleyw.secureshare.model;
+
+import java.time.Instant;
+
+/**
+ * One download, resumed download or metadata request for a share, as recorded in {@code access_events}.
+ */
+public record AccessEvent(String fileId, Type type, Instant occurredAt) {
+
+    public enum Type {
+        DOWNLOAD,
+        RESUME,
+        METADATA
+    }
+}
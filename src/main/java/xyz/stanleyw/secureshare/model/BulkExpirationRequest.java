@@ -0,0 +1,19 @@
+package xyz.stanleyw.secureshare.model;
+
+import jakarta.validation.constraints.NotNull;
+import lombok.*;
+
+import java.util.List;
+
+@Getter
+@Setter
+@AllArgsConstructor
+@NoArgsConstructor
+public class BulkExpirationRequest {
+    @NotNull
+    private List<String> ids = List.of();
+
+    private int maxDownloads;
+
+    private long expiresInSeconds;
+}
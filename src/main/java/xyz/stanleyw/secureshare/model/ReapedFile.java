@@ -0,0 +1,12 @@
+package xyz.stanleyw.secureshare.model;
+
+// Projection of a stored_files row removed by the expiry reaper
+public interface ReapedFile {
+    String getId();
+
+    String getStoragePath();
+
+    long getSizeBytes();
+
+    String getBlobDigest();
+}
@@ -0,0 +1,18 @@
+package xyz.stanleyw.secureshare.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+@Getter
+@AllArgsConstructor
+public class ReaperRun {
+    private int batches;
+
+    private int deletedRows;
+
+    private int unlinkedFiles;
+
+    private int failedUnlinks;
+
+    private long durationMillis;
+}
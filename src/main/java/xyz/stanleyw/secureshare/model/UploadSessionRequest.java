@@ -0,0 +1,16 @@
+package xyz.stanleyw.secureshare.model;
+
+import jakarta.validation.constraints.NotNull;
+import lombok.*;
+
+@Getter
+@Setter
+@AllArgsConstructor
+@NoArgsConstructor
+public class UploadSessionRequest {
+    @NotNull
+    private String filename;
+
+    @NotNull
+    private long totalSize;
+}
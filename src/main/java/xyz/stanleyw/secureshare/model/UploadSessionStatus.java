@@ -0,0 +1,23 @@
+package xyz.stanleyw.secureshare.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.util.List;
+
+@Getter
+@AllArgsConstructor
+public class UploadSessionStatus {
+    private String sessionId;
+
+    private String filename;
+
+    private long totalSize;
+
+    private long chunkSize;
+
+    private int chunkCount;
+
+    // Lets a client resume after a dropped connection by only sending what is missing
+    private List<Integer> receivedChunks;
+}
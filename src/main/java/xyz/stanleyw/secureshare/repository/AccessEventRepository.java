@@ -0,0 +1,76 @@
+package xyz.stanleyw.secureshare.repository;
+
+import org.springframework.jdbc.core.BatchPreparedStatementSetter;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+import xyz.stanleyw.secureshare.model.AccessEvent;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Plain JDBC access to {@code access_events}: events go in as one batch per flush, and only
+ * ever come back out as counts.
+ */
+@Repository
+public class AccessEventRepository {
+    private final JdbcTemplate jdbcTemplate;
+
+    private static final String INSERT_SQL = """
+            INSERT INTO access_events (file_id, event_type, occurred_at)
+            VALUES (?, ?, ?)
+            """;
+
+    private static final String COUNT_SQL = """
+            SELECT event_type, COUNT(*) AS events
+            FROM access_events
+            WHERE file_id = ?
+              AND occurred_at >= ?
+            GROUP BY event_type
+            """;
+
+    public AccessEventRepository(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    @Transactional
+    public void insertAll(List<AccessEvent> events) {
+        jdbcTemplate.batchUpdate(INSERT_SQL, new BatchPreparedStatementSetter() {
+            @Override
+            public void setValues(PreparedStatement ps, int i) throws SQLException {
+                AccessEvent event = events.get(i);
+                ps.setString(1, event.fileId());
+                ps.setString(2, event.type().name());
+                ps.setObject(3, toOffsetDateTime(event.occurredAt()));
+            }
+
+            @Override
+            public int getBatchSize() {
+                return events.size();
+            }
+        });
+    }
+
+    // Events of the file at or after the given instant, by type; types without events are left out
+    public Map<AccessEvent.Type, Long> countByType(String fileId, Instant since) {
+        Map<AccessEvent.Type, Long> counts = new EnumMap<>(AccessEvent.Type.class);
+
+        jdbcTemplate.query(COUNT_SQL, (RowCallbackHandler) rs ->
+                        counts.put(AccessEvent.Type.valueOf(rs.getString("event_type")), rs.getLong("events")),
+                fileId, toOffsetDateTime(since));
+
+        return counts;
+    }
+
+    private static OffsetDateTime toOffsetDateTime(Instant instant) {
+        return instant.atOffset(ZoneOffset.UTC);
+    }
+}
@@ -0,0 +1,110 @@
+package xyz.stanleyw.secureshare.repository;
+
+import io.r2dbc.spi.Readable;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.r2dbc.core.DatabaseClient;
+import org.springframework.stereotype.Repository;
+import reactor.core.publisher.Mono;
+import xyz.stanleyw.secureshare.entity.StoredFile;
+
+import java.time.Instant;
+
+/**
+ * The {@code stored_files} statements the reactive stack needs, over R2DBC. Each one matches its
+ * counterpart in {@link StoredFileRepository}.
+ */
+@Repository
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.REACTIVE)
+public class ReactiveStoredFileRepository {
+    private final DatabaseClient databaseClient;
+
+    public ReactiveStoredFileRepository(DatabaseClient databaseClient) {
+        this.databaseClient = databaseClient;
+    }
+
+    public Mono<StoredFile> findById(String id) {
+        return databaseClient.sql("SELECT * FROM stored_files WHERE id = :id")
+                .bind("id", id)
+                .map(ReactiveStoredFileRepository::toStoredFile)
+                .one();
+    }
+
+    public Mono<Boolean> existsById(String id) {
+        return databaseClient.sql("SELECT 1 FROM stored_files WHERE id = :id")
+                .bind("id", id)
+                .map(row -> true)
+                .one()
+                .defaultIfEmpty(false);
+    }
+
+    // Persist-only insert: an existing row with the same ID is left alone and false is emitted
+    public Mono<Boolean> insert(StoredFile storedFile) {
+        DatabaseClient.GenericExecuteSpec spec = databaseClient.sql("""
+                    INSERT INTO stored_files (id, storage_path, size_bytes, expires_at, created_at,
+                                              max_downloads, downloads_remaining, original_filename, blob_digest,
+                                              codec, stored_size_bytes, encryption, content_sha256)
+                    VALUES (:id, :storagePath, :sizeBytes, :expiresAt, :createdAt,
+                            :maxDownloads, :downloadsRemaining, :originalFilename, :blobDigest,
+                            :codec, :storedSizeBytes, :encryption, :contentSha256)
+                    ON CONFLICT (id) DO NOTHING
+                    """)
+                .bind("id", storedFile.getId())
+                .bind("storagePath", storedFile.getStoragePath())
+                .bind("sizeBytes", storedFile.getSizeBytes())
+                .bind("expiresAt", storedFile.getExpiresAt())
+                .bind("createdAt", storedFile.getCreatedAt())
+                .bind("maxDownloads", storedFile.getMaxDownloads())
+                .bind("downloadsRemaining", storedFile.getDownloadsRemaining())
+                .bind("storedSizeBytes", storedFile.getStoredSizeBytes());
+
+        spec = bindNullable(spec, "originalFilename", storedFile.getOriginalFilename());
+        spec = bindNullable(spec, "blobDigest", storedFile.getBlobDigest());
+        spec = bindNullable(spec, "codec", storedFile.getCodec());
+        spec = bindNullable(spec, "encryption", storedFile.getEncryption());
+        spec = bindNullable(spec, "contentSha256", storedFile.getContentSha256());
+
+        return spec.fetch().rowsUpdated().map(rows -> rows == 1);
+    }
+
+    // Conditional decrement in a single statement, empty when the file can not be downloaded
+    public Mono<Integer> consumeDownload(String id, Instant now) {
+        return databaseClient.sql("""
+                    UPDATE stored_files
+                    SET downloads_remaining = downloads_remaining - 1,
+                        last_accessed_at = :now,
+                        exhausted_at = CASE WHEN downloads_remaining <= 1 THEN :now END
+                    WHERE id = :id
+                      AND downloads_remaining > 0
+                      AND expires_at > :now
+                    RETURNING downloads_remaining
+                    """)
+                .bind("id", id)
+                .bind("now", now)
+                .map(row -> row.get("downloads_remaining", Integer.class))
+                .one();
+    }
+
+    private static DatabaseClient.GenericExecuteSpec bindNullable(DatabaseClient.GenericExecuteSpec spec,
+                                                                  String name, String value) {
+        return value != null ? spec.bind(name, value) : spec.bindNull(name, String.class);
+    }
+
+    private static StoredFile toStoredFile(Readable row) {
+        return new StoredFile(
+                row.get("id", String.class),
+                row.get("storage_path", String.class),
+                row.get("size_bytes", Long.class),
+                row.get("expires_at", Instant.class),
+                row.get("created_at", Instant.class),
+                row.get("max_downloads", Integer.class),
+                row.get("downloads_remaining", Integer.class),
+                row.get("original_filename", String.class),
+                row.get("blob_digest", String.class),
+                row.get("codec", String.class),
+                row.get("stored_size_bytes", Long.class),
+                row.get("encryption", String.class),
+                row.get("last_accessed_at", Instant.class),
+                row.get("content_sha256", String.class)
+        );
+    }
+}
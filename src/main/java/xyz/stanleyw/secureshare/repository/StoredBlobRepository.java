@@ -0,0 +1,47 @@
+package xyz.stanleyw.secureshare.repository;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.transaction.annotation.Transactional;
+import xyz.stanleyw.secureshare.entity.StoredBlob;
+
+import java.time.Instant;
+import java.util.List;
+
+public interface StoredBlobRepository extends JpaRepository<StoredBlob, String> {
+
+    // Creates the blob's row on first use, without a reference, and marks it as just touched. The
+    // row lock is held until the caller's transaction commits. References are taken and released
+    // by the statements that insert and delete the stored_files rows holding them.
+    @Modifying
+    @Transactional
+    @Query(
+            value = """
+                INSERT INTO blobs (digest, storage_path, size_bytes, ref_count, touched_at)
+                VALUES (:digest, :storagePath, :sizeBytes, 0, :now)
+                ON CONFLICT (digest) DO UPDATE
+                SET touched_at = :now
+                """,
+            nativeQuery = true
+    )
+    int touch(@Param("digest") String digest,
+              @Param("storagePath") String storagePath,
+              @Param("sizeBytes") long sizeBytes,
+              @Param("now") Instant now);
+
+    // Skips rows an uploader is currently touching, and those touched since the cutoff whose row
+    // may still be on its way, so collection never races a new reference
+    @Query(
+            value = """
+                SELECT * FROM blobs
+                WHERE ref_count <= 0
+                  AND touched_at < :cutoff
+                LIMIT :limit
+                FOR UPDATE SKIP LOCKED
+                """,
+            nativeQuery = true
+    )
+    List<StoredBlob> lockUnreferenced(@Param("cutoff") Instant cutoff, @Param("limit") int limit);
+}
@@ -0,0 +1,15 @@
+package xyz.stanleyw.secureshare.repository;
+
+import xyz.stanleyw.secureshare.entity.StoredFile;
+
+import java.util.List;
+
+public interface StoredFileBatchRepository {
+
+    /**
+     * Inserts every row in one JDBC batch and one transaction without overwriting existing rows.
+     *
+     * @return the rows that were skipped because their ID is already taken
+     */
+    List<StoredFile> insertAllIfAbsent(List<StoredFile> storedFiles);
+}
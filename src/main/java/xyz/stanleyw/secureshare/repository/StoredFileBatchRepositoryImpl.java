@@ -0,0 +1,91 @@
+package xyz.stanleyw.secureshare.repository;
+
+import org.springframework.jdbc.core.BatchPreparedStatementSetter;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.annotation.Transactional;
+import xyz.stanleyw.secureshare.entity.StoredFile;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Plain JDBC batch insert for bulk uploads: one round trip for the whole batch instead of one
+ * {@code save} per row. Rows keep their per-statement update counts, so ID collisions are
+ * reported back rather than failing the batch. Blob references of the inserted rows are taken in
+ * the same transaction.
+ */
+public class StoredFileBatchRepositoryImpl implements StoredFileBatchRepository {
+    private final JdbcTemplate jdbcTemplate;
+
+    private static final String INSERT_SQL = """
+            INSERT INTO stored_files (id, storage_path, size_bytes, expires_at, created_at,
+                                      max_downloads, downloads_remaining, original_filename, blob_digest,
+                                      codec, stored_size_bytes, encryption, content_sha256)
+            VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)
+            ON CONFLICT (id) DO NOTHING
+            """;
+
+    private static final String REFERENCE_SQL = """
+            UPDATE blobs
+            SET ref_count = ref_count + 1
+            WHERE digest = ?
+            """;
+
+    public StoredFileBatchRepositoryImpl(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    @Override
+    @Transactional
+    public List<StoredFile> insertAllIfAbsent(List<StoredFile> storedFiles) {
+        int[] inserted = jdbcTemplate.batchUpdate(INSERT_SQL, new BatchPreparedStatementSetter() {
+            @Override
+            public void setValues(PreparedStatement ps, int i) throws SQLException {
+                StoredFile storedFile = storedFiles.get(i);
+                ps.setString(1, storedFile.getId());
+                ps.setString(2, storedFile.getStoragePath());
+                ps.setLong(3, storedFile.getSizeBytes());
+                ps.setObject(4, toOffsetDateTime(storedFile.getExpiresAt()));
+                ps.setObject(5, toOffsetDateTime(storedFile.getCreatedAt()));
+                ps.setInt(6, storedFile.getMaxDownloads());
+                ps.setInt(7, storedFile.getDownloadsRemaining());
+                ps.setString(8, storedFile.getOriginalFilename());
+                ps.setString(9, storedFile.getBlobDigest());
+                ps.setString(10, storedFile.getCodec());
+                ps.setLong(11, storedFile.getStoredSizeBytes());
+                ps.setString(12, storedFile.getEncryption());
+                ps.setString(13, storedFile.getContentSha256());
+            }
+
+            @Override
+            public int getBatchSize() {
+                return storedFiles.size();
+            }
+        });
+
+        List<StoredFile> taken = new ArrayList<>();
+        List<Object[]> references = new ArrayList<>();
+        for (int i = 0; i < inserted.length; i++) {
+            if (inserted[i] == 0) {
+                taken.add(storedFiles.get(i));
+            } else if (storedFiles.get(i).getBlobDigest() != null) {
+                references.add(new Object[]{storedFiles.get(i).getBlobDigest()});
+            }
+        }
+
+        if (!references.isEmpty()) {
+            jdbcTemplate.batchUpdate(REFERENCE_SQL, references);
+        }
+
+        return taken;
+    }
+
+    private static OffsetDateTime toOffsetDateTime(Instant instant) {
+        return instant.atOffset(ZoneOffset.UTC);
+    }
+}
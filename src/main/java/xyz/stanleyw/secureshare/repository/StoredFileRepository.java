@@ -7,21 +7,384 @@ import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.query.Param;
 import org.springframework.transaction.annotation.Transactional;
 import xyz.stanleyw.secureshare.entity.StoredFile;
+import xyz.stanleyw.secureshare.model.ReapedFile;
 
 import java.time.Instant;
+import java.util.Collection;
 import java.util.List;
 
-public interface StoredFileRepository extends JpaRepository<StoredFile, String> {
+public interface StoredFileRepository extends JpaRepository<StoredFile, String>, StoredFileBatchRepository {
 
+    // Deletes one bounded batch of expired rows. SKIP LOCKED lets several instances reap side by
+    // side, and blob references of the deleted rows are released in the same statement.
     @Modifying
     @Transactional
     @Query(
             value = """
-                DELETE FROM stored_files
-                WHERE expires_at < :now
+                WITH doomed AS (
+                    SELECT id FROM stored_files
+                    WHERE expires_at < :now
+                    ORDER BY expires_at
+                    LIMIT :batchSize
+                    FOR UPDATE SKIP LOCKED
+                ), deleted AS (
+                    DELETE FROM stored_files
+                    USING doomed
+                    WHERE stored_files.id = doomed.id
+                    RETURNING stored_files.id, stored_files.storage_path, stored_files.size_bytes, stored_files.blob_digest
+                ), released AS (
+                    UPDATE blobs
+                    SET ref_count = blobs.ref_count - released_refs.refs
+                    FROM (
+                        SELECT blob_digest, COUNT(*) AS refs
+                        FROM deleted
+                        WHERE blob_digest IS NOT NULL
+                        GROUP BY blob_digest
+                    ) AS released_refs
+                    WHERE blobs.digest = released_refs.blob_digest
+                )
+                SELECT id AS "id", storage_path AS "storagePath", size_bytes AS "sizeBytes", blob_digest AS "blobDigest"
+                FROM deleted
+                """,
+            nativeQuery = true
+    )
+    List<ReapedFile> deleteExpiredBatch(@Param("now") Instant now, @Param("batchSize") int batchSize);
+
+    // Same as deleteExpiredBatch for shares whose downloads were used up before the cutoff (served
+    // by the partial index). The last download may still be in flight or resumed until then.
+    @Modifying
+    @Transactional
+    @Query(
+            value = """
+                WITH doomed AS (
+                    SELECT id FROM stored_files
+                    WHERE downloads_remaining <= 0
+                      AND exhausted_at < :cutoff
+                    LIMIT :batchSize
+                    FOR UPDATE SKIP LOCKED
+                ), deleted AS (
+                    DELETE FROM stored_files
+                    USING doomed
+                    WHERE stored_files.id = doomed.id
+                    RETURNING stored_files.id, stored_files.storage_path, stored_files.size_bytes, stored_files.blob_digest
+                ), released AS (
+                    UPDATE blobs
+                    SET ref_count = blobs.ref_count - released_refs.refs
+                    FROM (
+                        SELECT blob_digest, COUNT(*) AS refs
+                        FROM deleted
+                        WHERE blob_digest IS NOT NULL
+                        GROUP BY blob_digest
+                    ) AS released_refs
+                    WHERE blobs.digest = released_refs.blob_digest
+                )
+                SELECT id AS "id", storage_path AS "storagePath", size_bytes AS "sizeBytes", blob_digest AS "blobDigest"
+                FROM deleted
+                """,
+            nativeQuery = true
+    )
+    List<ReapedFile> deleteExhaustedBatch(@Param("cutoff") Instant cutoff, @Param("batchSize") int batchSize);
+
+    // Persist-only insert: an existing row with the same ID is left alone and nothing is returned.
+    // A blob reference is taken in the same statement, so it only exists along with its row.
+    @Modifying
+    @Transactional
+    @Query(
+            value = """
+                WITH inserted AS (
+                    INSERT INTO stored_files (id, storage_path, size_bytes, expires_at, created_at,
+                                              max_downloads, downloads_remaining, original_filename, blob_digest,
+                                              codec, stored_size_bytes, encryption, content_sha256)
+                    VALUES (:id, :storagePath, :sizeBytes, :expiresAt, :createdAt,
+                            :maxDownloads, :downloadsRemaining,
+                            CAST(:originalFilename AS VARCHAR), CAST(:blobDigest AS VARCHAR),
+                            CAST(:codec AS VARCHAR), :storedSizeBytes, CAST(:encryption AS VARCHAR),
+                            CAST(:contentSha256 AS VARCHAR))
+                    ON CONFLICT (id) DO NOTHING
+                    RETURNING id, blob_digest
+                ), referenced AS (
+                    UPDATE blobs
+                    SET ref_count = ref_count + 1
+                    WHERE digest IN (SELECT blob_digest FROM inserted)
+                )
+                SELECT id FROM inserted
+                """,
+            nativeQuery = true
+    )
+    List<String> insertIfAbsent(@Param("id") String id,
+                       @Param("storagePath") String storagePath,
+                       @Param("sizeBytes") long sizeBytes,
+                       @Param("expiresAt") Instant expiresAt,
+                       @Param("createdAt") Instant createdAt,
+                       @Param("maxDownloads") int maxDownloads,
+                       @Param("downloadsRemaining") int downloadsRemaining,
+                       @Param("originalFilename") String originalFilename,
+                       @Param("blobDigest") String blobDigest,
+                       @Param("codec") String codec,
+                       @Param("storedSizeBytes") long storedSizeBytes,
+                       @Param("encryption") String encryption,
+                       @Param("contentSha256") String contentSha256);
+
+    default boolean insert(StoredFile storedFile) {
+        return insertIfAbsent(storedFile.getId(), storedFile.getStoragePath(), storedFile.getSizeBytes(),
+                storedFile.getExpiresAt(), storedFile.getCreatedAt(), storedFile.getMaxDownloads(),
+                storedFile.getDownloadsRemaining(), storedFile.getOriginalFilename(), storedFile.getBlobDigest(),
+                storedFile.getCodec(), storedFile.getStoredSizeBytes(), storedFile.getEncryption(),
+                storedFile.getContentSha256()).size() == 1;
+    }
+
+    // Deletes the row and releases its blob reference in the same statement
+    @Modifying
+    @Transactional
+    @Query(
+            value = """
+                WITH deleted AS (
+                    DELETE FROM stored_files
+                    WHERE id = :id
+                    RETURNING blob_digest
+                )
+                UPDATE blobs
+                SET ref_count = ref_count - 1
+                WHERE digest IN (SELECT blob_digest FROM deleted)
+                """,
+            nativeQuery = true
+    )
+    int deleteReleasingBlob(@Param("id") String id);
+
+    // Conditional decrement in a single statement so concurrent downloads can never over-serve.
+    // The grant that lets this download be resumed is recorded in the same statement.
+    @Modifying
+    @Transactional
+    @Query(
+            value = """
+                WITH consumed AS (
+                    UPDATE stored_files
+                    SET downloads_remaining = downloads_remaining - 1,
+                        last_accessed_at = :now,
+                        exhausted_at = CASE WHEN downloads_remaining <= 1 THEN :now END
+                    WHERE id = :id
+                      AND downloads_remaining > 0
+                      AND expires_at > :now
+                    RETURNING id, downloads_remaining
+                ), granted AS (
+                    INSERT INTO download_grants (token, file_id, granted_at)
+                    SELECT :token, id, :now FROM consumed
+                )
+                SELECT downloads_remaining FROM consumed
+                """,
+            nativeQuery = true
+    )
+    List<Integer> consumeDownloadGranting(@Param("id") String id,
+                                          @Param("token") String token,
+                                          @Param("now") Instant now);
+
+    // Whether the token was granted by a charged download of this file that has not expired since.
+    // Used-up downloads do not matter, the grant already paid for the one being resumed.
+    @Query(
+            value = """
+                SELECT EXISTS (
+                    SELECT 1 FROM download_grants
+                    JOIN stored_files ON stored_files.id = download_grants.file_id
+                    WHERE download_grants.token = :token
+                      AND download_grants.file_id = :id
+                      AND stored_files.expires_at > :now
+                )
+                """,
+            nativeQuery = true
+    )
+    boolean isGranted(@Param("id") String id, @Param("token") String token, @Param("now") Instant now);
+
+    // All-or-nothing variant for archives: decrements every row only if each one can still be
+    // downloaded. The rows are locked first, so the count cannot change before the update.
+    @Modifying
+    @Transactional
+    @Query(
+            value = """
+                WITH available AS (
+                    SELECT id FROM stored_files
+                    WHERE id IN (:ids)
+                      AND downloads_remaining > 0
+                      AND expires_at > :now
+                    FOR UPDATE
+                )
+                UPDATE stored_files
+                SET downloads_remaining = downloads_remaining - 1,
+                    last_accessed_at = :now,
+                    exhausted_at = CASE WHEN downloads_remaining <= 1 THEN :now END
+                WHERE id IN (SELECT id FROM available)
+                  AND (SELECT COUNT(*) FROM available) = :expected
                 RETURNING id
                 """,
             nativeQuery = true
     )
-    List<String> deleteExpiredReturningIds(@Param("now") Instant now);
+    List<String> consumeDownloadsIfAllAvailable(@Param("ids") List<String> ids,
+                                                @Param("now") Instant now,
+                                                @Param("expected") int expected);
+
+    // New limits relative to the share's creation, with downloads already used still counted
+    // against the new maximum. The right-hand sides all see the row as it was before the update.
+    @Modifying
+    @Transactional
+    @Query(
+            value = """
+                UPDATE stored_files
+                SET expires_at = created_at + :expiresInSeconds * INTERVAL '1 second',
+                    downloads_remaining = :maxDownloads - (max_downloads - downloads_remaining),
+                    max_downloads = :maxDownloads,
+                    exhausted_at = CASE WHEN :maxDownloads - (max_downloads - downloads_remaining) <= 0
+                                        THEN COALESCE(exhausted_at, CURRENT_TIMESTAMP) END
+                WHERE id = :id
+                RETURNING *
+                """,
+            nativeQuery = true
+    )
+    List<StoredFile> updateExpirationReturning(@Param("id") String id,
+                                               @Param("maxDownloads") int maxDownloads,
+                                               @Param("expiresInSeconds") long expiresInSeconds);
+
+    // Same as updateExpirationReturning for many rows in one statement; unknown IDs are skipped
+    @Modifying
+    @Transactional
+    @Query(
+            value = """
+                UPDATE stored_files
+                SET expires_at = created_at + :expiresInSeconds * INTERVAL '1 second',
+                    downloads_remaining = :maxDownloads - (max_downloads - downloads_remaining),
+                    max_downloads = :maxDownloads,
+                    exhausted_at = CASE WHEN :maxDownloads - (max_downloads - downloads_remaining) <= 0
+                                        THEN COALESCE(exhausted_at, CURRENT_TIMESTAMP) END
+                WHERE id IN (:ids)
+                RETURNING *
+                """,
+            nativeQuery = true
+    )
+    List<StoredFile> updateExpirationsReturning(@Param("ids") List<String> ids,
+                                                @Param("maxDownloads") int maxDownloads,
+                                                @Param("expiresInSeconds") long expiresInSeconds);
+
+    // Keyset-paged scan for rows whose content still sits directly in the storage root
+    @Query(
+            value = """
+                SELECT * FROM stored_files
+                WHERE id > :afterId
+                  AND blob_digest IS NULL
+                  AND storage_path LIKE :flatPattern
+                  AND storage_path NOT LIKE :nestedPattern
+                ORDER BY id
+                LIMIT :limit
+                """,
+            nativeQuery = true
+    )
+    List<StoredFile> findFlatLayoutCandidates(@Param("afterId") String afterId,
+                                              @Param("flatPattern") String flatPattern,
+                                              @Param("nestedPattern") String nestedPattern,
+                                              @Param("limit") int limit);
+
+    // Keyset-paged scan for live rows in the hot tier that nobody downloaded since the cutoff
+    @Query(
+            value = """
+                SELECT * FROM stored_files
+                WHERE id > :afterId
+                  AND blob_digest IS NULL
+                  AND storage_path LIKE :hotPattern
+                  AND COALESCE(last_accessed_at, created_at) < :cutoff
+                  AND downloads_remaining > 0
+                  AND expires_at > :now
+                ORDER BY id
+                LIMIT :limit
+                """,
+            nativeQuery = true
+    )
+    List<StoredFile> findColdCandidates(@Param("afterId") String afterId,
+                                        @Param("hotPattern") String hotPattern,
+                                        @Param("cutoff") Instant cutoff,
+                                        @Param("now") Instant now,
+                                        @Param("limit") int limit);
+
+    // Only moves the row if nobody else changed its path in the meantime
+    @Modifying
+    @Transactional
+    @Query(
+            value = """
+                UPDATE stored_files
+                SET storage_path = :newPath,
+                    original_filename = COALESCE(original_filename, :originalFilename)
+                WHERE id = :id
+                  AND storage_path = :oldPath
+                """,
+            nativeQuery = true
+    )
+    int relocate(@Param("id") String id,
+                 @Param("oldPath") String oldPath,
+                 @Param("newPath") String newPath,
+                 @Param("originalFilename") String originalFilename);
+
+    // Keyset-paged scan over live rows for the content scrubber
+    @Query(
+            value = """
+                SELECT * FROM stored_files
+                WHERE id > :afterId
+                  AND expires_at > :now
+                ORDER BY id
+                LIMIT :limit
+                """,
+            nativeQuery = true
+    )
+    List<StoredFile> findScrubCandidates(@Param("afterId") String afterId,
+                                         @Param("now") Instant now,
+                                         @Param("limit") int limit);
+
+    // Fills in the hash of a file stored without one, as long as the row still points at what was hashed
+    @Modifying
+    @Transactional
+    @Query(
+            value = """
+                UPDATE stored_files
+                SET content_sha256 = :contentSha256
+                WHERE id = :id
+                  AND storage_path = :storagePath
+                  AND content_sha256 IS NULL
+                """,
+            nativeQuery = true
+    )
+    int recordContentSha256(@Param("id") String id,
+                            @Param("storagePath") String storagePath,
+                            @Param("contentSha256") String contentSha256);
+
+    // Keyset-paged scan over rows with their own file in the storage root, created before the cutoff
+    @Query(
+            value = """
+                SELECT * FROM stored_files
+                WHERE id > :afterId
+                  AND blob_digest IS NULL
+                  AND storage_path LIKE :rootPattern
+                  AND created_at < :cutoff
+                ORDER BY id
+                LIMIT :limit
+                """,
+            nativeQuery = true
+    )
+    List<StoredFile> findReconcileCandidates(@Param("afterId") String afterId,
+                                             @Param("rootPattern") String rootPattern,
+                                             @Param("cutoff") Instant cutoff,
+                                             @Param("limit") int limit);
+
+    // The given paths that some row points at
+    @Query(value = "SELECT DISTINCT storage_path FROM stored_files WHERE storage_path IN (:storagePaths)", nativeQuery = true)
+    List<String> findReferencedStoragePaths(@Param("storagePaths") Collection<String> storagePaths);
+
+    // The given IDs that have a row
+    @Query(value = "SELECT id FROM stored_files WHERE id IN (:ids)", nativeQuery = true)
+    List<String> findExistingIds(@Param("ids") Collection<String> ids);
+
+    // Only removes the row if it still points at the content that was checked
+    @Modifying
+    @Transactional
+    @Query(value = "DELETE FROM stored_files WHERE id = :id AND storage_path = :storagePath", nativeQuery = true)
+    int deleteIfAt(@Param("id") String id, @Param("storagePath") String storagePath);
+
+    @Query(value = "SELECT COALESCE(SUM(size_bytes), 0) FROM stored_files", nativeQuery = true)
+    long sumSizeBytes();
+
+    boolean existsByStoragePath(String storagePath);
 }
@@ -0,0 +1,380 @@
+package xyz.stanleyw.secureshare.service;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.Resource;
+import xyz.stanleyw.secureshare.config.StorageProperties;
+import xyz.stanleyw.secureshare.entity.StoredFile;
+import xyz.stanleyw.secureshare.exception.InvalidUploadException;
+import xyz.stanleyw.secureshare.exception.StorageException;
+import xyz.stanleyw.secureshare.exception.StoredFileGoneException;
+import xyz.stanleyw.secureshare.exception.StoredFileNotFoundException;
+import xyz.stanleyw.secureshare.model.ExpirationDetails;
+import xyz.stanleyw.secureshare.repository.StoredFileRepository;
+
+import java.io.IOException;
+import java.security.SecureRandom;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * What every backend shares: the {@code stored_files} rows, the metadata cache, file IDs and
+ * download accounting. Backends decide where content is written and how it is read back and
+ * removed again.
+ */
+@Getter
+@Slf4j
+abstract class AbstractStorageBackend implements StorageBackend {
+    private final StoredFileRepository storedFileRepository;
+
+    private final StoredFileMetadataCache metadataCache;
+
+    private final StorageUsage storageUsage;
+
+    private final int maxArchiveFiles;
+
+    private final int maxExpirationUpdates;
+
+    @Getter(AccessLevel.NONE)
+    private final FileIdGenerator idGenerator = newIdGenerator();
+
+    // Custom alphabet for generating Nano IDs for uploaded files
+    private static final String id_alphabet = "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz";
+
+    private static final int ID_LENGTH = 7;
+
+    // A collision is rare at 62^7 IDs, several in a row mean something else is wrong
+    static final int MAX_ID_ATTEMPTS = 5;
+
+    private static final SecureRandom TOKEN_RANDOM = new SecureRandom();
+
+    private static final int DOWNLOAD_TOKEN_BYTES = 24;
+
+    AbstractStorageBackend(StorageProperties storageProperties,
+                           StoredFileRepository storedFileRepository,
+                           StoredFileMetadataCache metadataCache,
+                           StorageUsage storageUsage) {
+        this.storedFileRepository = storedFileRepository;
+        this.metadataCache = metadataCache;
+        this.storageUsage = storageUsage;
+        this.maxArchiveFiles = storageProperties.getMaxArchiveFiles();
+        this.maxExpirationUpdates = storageProperties.getMaxExpirationUpdates();
+    }
+
+    /**
+     * The content of a row, not yet checked for being readable.
+     */
+    abstract StoredFileResource openResource(StoredFile storedFile);
+
+    // Removes the content of a row that was just deleted
+    abstract void deleteContent(StoredFile storedFile);
+
+    // Undoes the content side of a row that never made it into the database
+    abstract void discardContent(StoredFile storedFile);
+
+    static FileIdGenerator newIdGenerator() {
+        return new FileIdGenerator(id_alphabet, ID_LENGTH);
+    }
+
+    String newFileId(String filename) {
+        return idGenerator.next();
+    }
+
+    // Content named after its ID has to follow it to the new one; nothing to do by default
+    void moveContent(StoredFile storedFile, String newId) throws IOException {
+    }
+
+    static StoredFile newStoredFile(String id, String storagePath, long sizeBytes, String originalFilename,
+                                    String blobDigest) {
+        // Create default expiration instant 1 day from now
+        Instant oneDayFromNow = Instant.now().plus(1, ChronoUnit.DAYS).truncatedTo(ChronoUnit.SECONDS);
+        Instant now = Instant.now().truncatedTo(ChronoUnit.SECONDS);
+
+        return new StoredFile(
+                id,
+                storagePath,
+                sizeBytes,
+                oneDayFromNow,
+                now,
+                100,
+                100,
+                originalFilename,
+                blobDigest,
+                null,
+                sizeBytes,
+                null,
+                null,
+                // Blobs are named by the SHA-256 of their content
+                blobDigest
+        );
+    }
+
+    StoredFile saveStoredFile(StoredFile storedFile) throws IOException {
+        insertWithUniqueId(storedFile);
+        storageUsage.recordStored(storedFile.getSizeBytes());
+        // Replaces a negative entry left behind by anyone who asked for this ID before it existed
+        metadataCache.put(storedFile);
+        return storedFile;
+    }
+
+    // Every write is awaited before giving up, so nothing is still being written during cleanup
+    List<StoredFile> awaitWrites(List<Future<StoredFile>> writes) {
+        List<StoredFile> written = new ArrayList<>(writes.size());
+        RuntimeException failure = null;
+        for (Future<StoredFile> write : writes) {
+            try {
+                written.add(write.get());
+            } catch (ExecutionException e) {
+                failure = failure != null ? failure : toStorageException(e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                failure = failure != null ? failure : new StorageException("Interrupted while storing files", e);
+            }
+        }
+
+        if (failure != null) {
+            log.error("Failed to store bulk upload! Error:{}", failure.getMessage());
+            written.forEach(this::discardContent);
+            throw failure;
+        }
+
+        return written;
+    }
+
+    // One batch and one transaction for all rows; IDs that turn out to be taken are retried one by one.
+    // The upload is all or nothing: if a retry fails, the rows inserted so far are deleted again.
+    void saveAll(List<StoredFile> written) {
+        List<StoredFile> taken;
+        try {
+            taken = storedFileRepository.insertAllIfAbsent(written);
+        } catch (RuntimeException e) {
+            log.error("Failed to save bulk upload! Error:{}", e.getMessage());
+            written.forEach(this::discardContent);
+            throw e;
+        }
+
+        for (int i = 0; i < taken.size(); i++) {
+            try {
+                reassignId(taken.get(i));
+                insertWithUniqueId(taken.get(i));
+            } catch (IOException | RuntimeException e) {
+                log.error("Failed to save bulk upload! Error:{}", e.getMessage());
+                discardAll(written, taken.subList(i, taken.size()));
+                throw toStorageException(e);
+            }
+        }
+
+        written.forEach(metadataCache::put);
+        storageUsage.recordStored(written.stream().mapToLong(StoredFile::getSizeBytes).sum());
+    }
+
+    // Rows still waiting for an ID were never inserted, and their old ID belongs to someone else
+    private void discardAll(List<StoredFile> written, List<StoredFile> notInserted) {
+        Set<StoredFile> skipped = Collections.newSetFromMap(new IdentityHashMap<>());
+        skipped.addAll(notInserted);
+
+        for (StoredFile storedFile : written) {
+            if (!skipped.contains(storedFile)) {
+                try {
+                    storedFileRepository.deleteReleasingBlob(storedFile.getId());
+                } catch (RuntimeException e) {
+                    // The row still points at its content, so it stays until the row is reaped
+                    log.error("Failed to remove file [{}] of failed bulk upload! Error:{}", storedFile.getId(), e.getMessage());
+                    continue;
+                }
+            }
+            discardContent(storedFile);
+        }
+    }
+
+    // Insert only, so an ID collision can never overwrite someone else's share
+    private void insertWithUniqueId(StoredFile storedFile) throws IOException {
+        for (int attempt = 1; !storedFileRepository.insert(storedFile); attempt++) {
+            if (attempt == MAX_ID_ATTEMPTS) {
+                throw new StorageException("Could not allocate a unique file ID");
+            }
+
+            reassignId(storedFile);
+        }
+    }
+
+    private void reassignId(StoredFile storedFile) throws IOException {
+        String retryId = newFileId(storedFile.getOriginalFilename());
+        log.warn("File ID [{}] is already taken, retrying as [{}]", storedFile.getId(), retryId);
+
+        moveContent(storedFile, retryId);
+        storedFile.setId(retryId);
+    }
+
+    static RuntimeException toStorageException(Throwable cause) {
+        if (cause instanceof RuntimeException runtimeException) {
+            return runtimeException;
+        }
+
+        return new StorageException("Failed to store file!", cause);
+    }
+
+    @Override
+    public Resource loadAsResource(String id) {
+        return openReadable(id);
+    }
+
+    private StoredFileResource openReadable(String id) {
+        StoredFile storedFile = getMetadata(id);
+        StoredFileResource resource = openResource(storedFile);
+
+        if (!resource.isReadable()) {
+            // A cached row may still point at content that has since moved to the cold tier
+            StoredFile current = storedFileRepository.findById(id).orElse(null);
+            if (current != null && !current.getStoragePath().equals(storedFile.getStoragePath())) {
+                metadataCache.put(current);
+                resource = openResource(current);
+            }
+        }
+
+        if (!resource.isReadable()) {
+            log.error("Stored content missing for file [{}]", id);
+            throw new StoredFileNotFoundException("Failed to read content for file: " + id);
+        }
+
+        return resource;
+    }
+
+    @Override
+    public StoredFile getMetadata(String id) {
+        log.info("Fetching metadata for file [{}]", id);
+        StoredFile metadata = metadataCache.get(id, storedFileRepository::findById).orElse(null);
+
+        if (metadata == null) {
+            log.error("Metadata lookup failed for file [{}]", id);
+            throw new StoredFileNotFoundException("Failed to get metadata for file: " + id);
+        }
+
+        return metadata;
+    }
+
+    @Override
+    public String consumeDownload(String id) {
+        String token = newDownloadToken();
+        List<Integer> remaining = storedFileRepository.consumeDownloadGranting(id, token, Instant.now());
+
+        if (remaining.isEmpty()) {
+            // Only the rejected path pays for a second lookup to tell a missing file from a used-up one
+            if (storedFileRepository.existsById(id)) {
+                log.info("No downloads remaining for file [{}]", id);
+                throw new StoredFileGoneException("File is no longer available: " + id);
+            }
+
+            log.error("Could not find file [{}]", id);
+            throw new StoredFileNotFoundException("Failed to fetch file: " + id);
+        }
+
+        metadataCache.updateDownloadsRemaining(id, remaining.get(0));
+        return token;
+    }
+
+    @Override
+    public boolean isResumable(String id, String token) {
+        return token != null && !token.isBlank() && storedFileRepository.isGranted(id, token.trim(), Instant.now());
+    }
+
+    // Unguessable, since holding one is what lets a client download for free
+    private static String newDownloadToken() {
+        byte[] token = new byte[DOWNLOAD_TOKEN_BYTES];
+        TOKEN_RANDOM.nextBytes(token);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(token);
+    }
+
+    @Override
+    public List<StoredFileResource> consumeDownloads(List<String> ids) {
+        List<String> distinctIds = ids.stream().distinct().toList();
+
+        if (distinctIds.isEmpty()) {
+            throw new InvalidUploadException("No files requested.");
+        }
+
+        if (distinctIds.size() > maxArchiveFiles) {
+            throw new InvalidUploadException("Archive of " + distinctIds.size() + " files exceeds the limit of " + maxArchiveFiles);
+        }
+
+        // Unknown IDs and missing content are rejected before anything is charged
+        List<StoredFileResource> resources = new ArrayList<>(distinctIds.size());
+        for (String id : distinctIds) {
+            resources.add(openReadable(id));
+        }
+
+        List<String> consumed = storedFileRepository.consumeDownloadsIfAllAvailable(
+                distinctIds, Instant.now(), distinctIds.size());
+        metadataCache.invalidateAll(distinctIds);
+
+        if (consumed.size() != distinctIds.size()) {
+            log.info("Archive of {} files rejected, not every file can still be downloaded", distinctIds.size());
+            throw new StoredFileGoneException("One or more files are no longer available");
+        }
+
+        return resources;
+    }
+
+    @Override
+    public StoredFile updateExpiration(String id, ExpirationDetails expirationDetails) {
+        log.info("Updating expiration metadata for file [{}]", id);
+
+        // New expiresAt = createdAt + expiresInSeconds, used downloads are taken off the new maximum
+        List<StoredFile> updated = storedFileRepository.updateExpirationReturning(
+                id, expirationDetails.getMaxDownloads(), expirationDetails.getExpiresInSeconds());
+
+        if (updated.isEmpty()) {
+            log.error("Could not find file [{}]", id);
+            throw new StoredFileNotFoundException("Failed to fetch file: " + id);
+        }
+
+        StoredFile storedFile = updated.get(0);
+        metadataCache.put(storedFile);
+        return storedFile;
+    }
+
+    @Override
+    public List<StoredFile> updateExpirations(List<String> ids, ExpirationDetails expirationDetails) {
+        List<String> distinctIds = ids.stream().distinct().toList();
+
+        if (distinctIds.isEmpty()) {
+            throw new InvalidUploadException("No files requested.");
+        }
+
+        if (distinctIds.size() > maxExpirationUpdates) {
+            throw new InvalidUploadException("Update of " + distinctIds.size() + " files exceeds the limit of " + maxExpirationUpdates);
+        }
+
+        log.info("Updating expiration metadata for {} files", distinctIds.size());
+        List<StoredFile> updated = storedFileRepository.updateExpirationsReturning(
+                distinctIds, expirationDetails.getMaxDownloads(), expirationDetails.getExpiresInSeconds());
+
+        updated.forEach(metadataCache::put);
+        return updated;
+    }
+
+    @Override
+    public void delete(String id) {
+        log.info("Deleting file [{}]", id);
+        StoredFile storedFile = storedFileRepository.findById(id).orElse(null);
+
+        if (storedFile == null) {
+            log.error("Could not find file [{}]", id);
+            throw new StoredFileNotFoundException("Failed to fetch file: " + id);
+        }
+
+        storedFileRepository.deleteReleasingBlob(id);
+        storageUsage.recordRemoved(storedFile.getSizeBytes());
+        metadataCache.invalidate(id);
+        deleteContent(storedFile);
+    }
+}
@@ -0,0 +1,86 @@
+package xyz.stanleyw.secureshare.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.dao.DataAccessException;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import xyz.stanleyw.secureshare.config.StorageProperties;
+import xyz.stanleyw.secureshare.model.AccessEvent;
+import xyz.stanleyw.secureshare.repository.AccessEventRepository;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Per-share download and metadata history, written behind the requests that produce it.
+ * <p>
+ * Requests only append to a {@link RingBuffer}, which takes no lock and never waits, and a
+ * background writer moves the buffered events into {@code access_events} a JDBC batch at a time.
+ * Events that arrive while the buffer is full are dropped and counted rather than slowing the
+ * request down, as are batches the database rejects. Counts therefore trail the requests by up to
+ * one flush.
+ */
+@Slf4j
+@Service
+public class AccessLog {
+    private final AccessEventRepository accessEventRepository;
+
+    private final RingBuffer<AccessEvent> buffer;
+
+    private final Counter droppedEvents;
+
+    private static final int BATCH_SIZE = 1000;
+
+    public AccessLog(StorageProperties storageProperties,
+                     AccessEventRepository accessEventRepository,
+                     MeterRegistry meterRegistry) {
+        this.accessEventRepository = accessEventRepository;
+        this.buffer = new RingBuffer<>(storageProperties.getAccessLogBufferSize());
+        this.droppedEvents = meterRegistry.counter("storage.access_log.dropped");
+        Gauge.builder("storage.access_log.pending", buffer, RingBuffer::size).register(meterRegistry);
+    }
+
+    public void record(String fileId, AccessEvent.Type type) {
+        if (!buffer.offer(new AccessEvent(fileId, type, Instant.now()))) {
+            droppedEvents.increment();
+        }
+    }
+
+    // Counts of what was flushed so far, at or after the given instant
+    public Map<AccessEvent.Type, Long> countsFor(String fileId, Instant since) {
+        return accessEventRepository.countByType(fileId, since);
+    }
+
+    /**
+     * Writes out everything buffered so far. Synchronized because the buffer allows only one
+     * consumer; requests never enter it.
+     */
+    @Scheduled(fixedDelay = 1_000)
+    public synchronized void flush() {
+        List<AccessEvent> batch = new ArrayList<>(BATCH_SIZE);
+
+        while (buffer.drainTo(batch, BATCH_SIZE) > 0) {
+            try {
+                accessEventRepository.insertAll(batch);
+            } catch (DataAccessException e) {
+                // Whatever is still buffered is tried again on the next flush
+                log.error("[ACCESS LOG] Dropped {} events! Error:{}", batch.size(), e.getMessage());
+                droppedEvents.increment(batch.size());
+                return;
+            }
+
+            batch = new ArrayList<>(BATCH_SIZE);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        flush();
+    }
+}
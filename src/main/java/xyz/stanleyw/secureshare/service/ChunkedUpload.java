@@ -0,0 +1,109 @@
+package xyz.stanleyw.secureshare.service;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+import xyz.stanleyw.secureshare.exception.InvalidUploadException;
+import xyz.stanleyw.secureshare.model.UploadSessionStatus;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * State of one in-progress chunked upload. Chunks land at their own offsets of a preallocated
+ * part file through positional writes on a shared channel, so they may arrive in any order and
+ * in parallel. Encrypted uploads get a part file laid out like the finished encrypted file,
+ * header included, with each chunk landing on the segments it covers. The session holds room for
+ * its total size against the quota from start to end, so concurrent sessions can not overbook.
+ */
+@Getter
+class ChunkedUpload {
+    private final String sessionId;
+
+    private final String filename;
+
+    private final long totalSize;
+
+    private final long chunkSize;
+
+    private final int chunkCount;
+
+    private final Path partFile;
+
+    private final FileChannel channel;
+
+    // Header of the encrypted part file, null when the upload is stored in the clear
+    private final byte[] encryptionHeader;
+
+    private final StorageUsage.Reservation reservation;
+
+    @Getter(AccessLevel.NONE)
+    private final BitSet receivedChunks;
+
+    private volatile long lastActivityMillis;
+
+    ChunkedUpload(String sessionId, String filename, long totalSize, long chunkSize, Path partFile,
+                  byte[] encryptionHeader, StorageUsage.Reservation reservation) throws IOException {
+        this.sessionId = sessionId;
+        this.filename = filename;
+        this.totalSize = totalSize;
+        this.chunkSize = chunkSize;
+        this.chunkCount = (int) ((totalSize + chunkSize - 1) / chunkSize);
+        this.partFile = partFile;
+        this.encryptionHeader = encryptionHeader;
+        this.reservation = reservation;
+        this.receivedChunks = new BitSet(chunkCount);
+        this.lastActivityMillis = System.currentTimeMillis();
+
+        this.channel = FileChannel.open(partFile,
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        // Extend the file to its final size up front so every chunk offset already exists
+        if (encryptionHeader != null) {
+            channel.write(ByteBuffer.allocate(1), ContentEncryption.encryptedSize(totalSize) - 1);
+            channel.write(ByteBuffer.wrap(encryptionHeader), 0);
+        } else {
+            channel.write(ByteBuffer.allocate(1), totalSize - 1);
+        }
+    }
+
+    boolean isEncrypted() {
+        return encryptionHeader != null;
+    }
+
+    long offsetOf(int index) {
+        return index * chunkSize;
+    }
+
+    long lengthOf(int index) {
+        if (index < 0 || index >= chunkCount) {
+            throw new InvalidUploadException("Chunk " + index + " is outside of 0.." + (chunkCount - 1));
+        }
+
+        return Math.min(chunkSize, totalSize - offsetOf(index));
+    }
+
+    void touch() {
+        lastActivityMillis = System.currentTimeMillis();
+    }
+
+    synchronized void markReceived(int index) {
+        receivedChunks.set(index);
+    }
+
+    synchronized boolean isComplete() {
+        return receivedChunks.cardinality() == chunkCount;
+    }
+
+    synchronized UploadSessionStatus toStatus() {
+        List<Integer> received = new ArrayList<>(receivedChunks.cardinality());
+        receivedChunks.stream().forEach(received::add);
+
+        return new UploadSessionStatus(sessionId, filename, totalSize, chunkSize, chunkCount, received);
+    }
+}
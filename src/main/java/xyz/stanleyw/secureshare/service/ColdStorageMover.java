@@ -0,0 +1,185 @@
+package xyz.stanleyw.secureshare.service;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import xyz.stanleyw.secureshare.config.StorageProperties;
+import xyz.stanleyw.secureshare.entity.StoredFile;
+import xyz.stanleyw.secureshare.exception.StorageException;
+import xyz.stanleyw.secureshare.repository.StoredFileRepository;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+
+/**
+ * Demotes shares nobody downloaded for a while from the primary location to the cold location,
+ * a small batch at a time while the service keeps running.
+ * <p>
+ * The tiers are separate volumes, so each file is copied into the cold tier under a temporary
+ * name of its own, synced and renamed into place. Only then is the row repointed, and only if its
+ * path is still the hot one, so readers always find the content and several instances can move
+ * side by side. A cold copy already in place is never replaced, and one is only taken back by the
+ * call that created it, once no row points at it. Downloads simply read whatever path the row
+ * holds. The hot copy is unlinked once no row references it anymore.
+ */
+@Getter
+@Slf4j
+@Component
+public class ColdStorageMover {
+    private final StorageLayout hotLayout;
+
+    // Null when no cold location is configured
+    private final StorageLayout coldLayout;
+
+    private final StoredFileRepository storedFileRepository;
+
+    private final StoredFileMetadataCache metadataCache;
+
+    private final Duration coldAfter;
+
+    private final int batchSize;
+
+    private final String hotPattern;
+
+    // Keyset cursor over stored_files.id, starting over once it runs off the end
+    private volatile String cursor = "";
+
+    private static final String TEMP_SUFFIX = ".moving";
+
+    public ColdStorageMover(StorageProperties storageProperties,
+                            StoredFileRepository storedFileRepository,
+                            StoredFileMetadataCache metadataCache) {
+        this.hotLayout = new StorageLayout(Paths.get(storageProperties.getLocation()), storageProperties.getShardLevels());
+        this.coldLayout = storageProperties.getColdLocation().isBlank()
+                ? null
+                : new StorageLayout(Paths.get(storageProperties.getColdLocation()), storageProperties.getShardLevels());
+        this.storedFileRepository = storedFileRepository;
+        this.metadataCache = metadataCache;
+        this.coldAfter = storageProperties.getColdAfter();
+        this.batchSize = storageProperties.getColdMoveBatchSize();
+        this.hotPattern = hotLayout.getRootLocation() + "/%";
+
+        if (coldLayout != null && (coldLayout.getRootLocation().startsWith(hotLayout.getRootLocation())
+                || hotLayout.getRootLocation().startsWith(coldLayout.getRootLocation()))) {
+            throw new StorageException("Cold location must not overlap the storage location.");
+        }
+    }
+
+    public boolean isEnabled() {
+        return coldLayout != null;
+    }
+
+    @Scheduled(initialDelay = 60_000, fixedDelay = 60_000)
+    public void moveNextBatch() {
+        if (!isEnabled()) {
+            return;
+        }
+
+        Instant now = Instant.now();
+        List<StoredFile> candidates = storedFileRepository.findColdCandidates(
+                cursor, hotPattern, now.minus(coldAfter), now, batchSize);
+
+        // A short batch means the scan reached the end, the next one starts over
+        cursor = candidates.size() < batchSize ? "" : candidates.get(candidates.size() - 1).getId();
+
+        int moved = 0;
+        for (StoredFile storedFile : candidates) {
+            // LIKE treats '_' in the root path as a wildcard, so confirm the match here
+            if (Paths.get(storedFile.getStoragePath()).startsWith(hotLayout.getRootLocation()) && demote(storedFile)) {
+                moved++;
+            }
+        }
+
+        if (moved > 0) {
+            log.info("[TIERING] Moved {} of {} cold files to [{}]", moved, candidates.size(), coldLayout.getRootLocation());
+        }
+    }
+
+    boolean demote(StoredFile storedFile) {
+        Path hotPath = Paths.get(storedFile.getStoragePath());
+        // Named by ID, since flat uploads with the same name share one hot file but each get a copy
+        Path coldPath = coldLayout.shardDirectory(storedFile.getId()).resolve(storedFile.getId());
+        Path tempPath = null;
+
+        try {
+            Files.createDirectories(coldPath.getParent());
+            // Unique per call, so instances moving the same row never write into each other's copy
+            tempPath = Files.createTempFile(coldPath.getParent(), storedFile.getId() + "-", TEMP_SUFFIX);
+            copyDurably(hotPath, tempPath);
+            boolean created = moveIntoPlace(tempPath, coldPath);
+
+            // Another instance got its complete copy in first, which serves just as well
+            if (!created && Files.size(coldPath) != Files.size(hotPath)) {
+                log.warn("[TIERING] [{}] already exists with other content, file [{}] stays hot", coldPath, storedFile.getId());
+                return false;
+            }
+
+            String originalFilename = hotPath.getFileName().toString();
+            if (storedFileRepository.relocate(storedFile.getId(), hotPath.toString(), coldPath.toString(), originalFilename) == 0) {
+                // The row was deleted or moved by someone else meanwhile, possibly to this very
+                // path. Only a copy this call made and no row points at is taken back.
+                if (created && !storedFileRepository.existsByStoragePath(coldPath.toString())) {
+                    Files.deleteIfExists(coldPath);
+                }
+                return false;
+            }
+
+            // Cached rows still point at the hot copy, which is about to go away
+            metadataCache.invalidate(storedFile.getId());
+
+            if (!storedFileRepository.existsByStoragePath(hotPath.toString())) {
+                Files.deleteIfExists(hotPath);
+            }
+
+            return true;
+        } catch (NoSuchFileException e) {
+            log.warn("[TIERING] Content of file [{}] is missing at [{}]", storedFile.getId(), hotPath);
+            return false;
+        } catch (IOException e) {
+            log.error("[TIERING] Failed to move file [{}]! Error:{}", storedFile.getId(), e.getMessage());
+            return false;
+        } finally {
+            if (tempPath != null) {
+                deleteQuietly(tempPath);
+            }
+        }
+    }
+
+    // Returns whether the copy took the final name; without REPLACE_EXISTING an existing one stays
+    private static boolean moveIntoPlace(Path tempPath, Path coldPath) throws IOException {
+        try {
+            Files.move(tempPath, coldPath);
+            return true;
+        } catch (FileAlreadyExistsException e) {
+            return false;
+        }
+    }
+
+    // The copy has to be on disk before the row points at it and the hot copy goes away
+    private static void copyDurably(Path source, Path target) throws IOException {
+        Files.copy(source, target, StandardCopyOption.REPLACE_EXISTING);
+
+        try (FileChannel channel = FileChannel.open(target, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+    }
+
+    private void deleteQuietly(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            log.warn("[TIERING] Could not remove partial copy [{}]: {}", file, e.getMessage());
+        }
+    }
+}
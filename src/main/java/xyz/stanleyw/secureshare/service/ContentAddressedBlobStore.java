@@ -0,0 +1,121 @@
+package xyz.stanleyw.secureshare.service;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.annotation.Transactional;
+import xyz.stanleyw.secureshare.config.StorageProperties;
+import xyz.stanleyw.secureshare.entity.StoredBlob;
+import xyz.stanleyw.secureshare.exception.StorageException;
+import xyz.stanleyw.secureshare.repository.StoredBlobRepository;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+
+/**
+ * Keeps exactly one file per distinct content under {@code <root>/blobs}, addressed by its
+ * SHA-256 digest and shared between {@code StoredFile} rows through a reference count.
+ * <p>
+ * A reference is taken by the same statement that inserts the row holding it, and released by
+ * the one that deletes it, so a crash can never leave a count no row accounts for. Committing
+ * content only creates the blob and marks it touched, under its row lock. Garbage collection
+ * unlinks unreferenced blobs while holding their row lock and skips those touched within the
+ * grace period, so a blob is never removed underneath an upload whose row is still on its way.
+ */
+@Getter
+@Slf4j
+@Component
+public class ContentAddressedBlobStore {
+    private final Path blobsLocation;
+
+    private final Path tempLocation;
+
+    private final StoredBlobRepository storedBlobRepository;
+
+    private static final String BLOBS_DIRECTORY = "blobs";
+
+    private static final int GC_BATCH_SIZE = 500;
+
+    // Longer than any upload takes from committing its content to inserting its row
+    private static final Duration UNREFERENCED_GRACE_PERIOD = Duration.ofHours(1);
+
+    public ContentAddressedBlobStore(StorageProperties storageProperties, StoredBlobRepository storedBlobRepository) {
+        this.blobsLocation = Paths.get(storageProperties.getLocation()).resolve(BLOBS_DIRECTORY);
+        this.tempLocation = blobsLocation.resolve(".tmp");
+        this.storedBlobRepository = storedBlobRepository;
+    }
+
+    public void init() throws IOException {
+        Files.createDirectories(tempLocation);
+    }
+
+    public Path createTempFile() throws IOException {
+        return Files.createTempFile(tempLocation, "upload-", ".tmp");
+    }
+
+    public Path pathOf(String digest) {
+        // Two levels of digest prefix keep every directory small
+        return blobsLocation
+                .resolve(digest.substring(0, 2))
+                .resolve(digest.substring(2, 4))
+                .resolve(digest)
+                .toAbsolutePath();
+    }
+
+    /**
+     * Makes sure the blob with the given digest exists. The fully written temp file is moved into
+     * place unless the content is there already, in which case it is discarded. The reference is
+     * only taken once the row pointing at the returned path is inserted.
+     */
+    @Transactional
+    public Path commit(Path tempFile, String digest, long sizeBytes) {
+        Path blobFile = pathOf(digest);
+        // Holds the row lock, so collection can not unlink the file between the check and the commit
+        storedBlobRepository.touch(digest, blobFile.toString(), sizeBytes, Instant.now());
+
+        try {
+            if (Files.exists(blobFile)) {
+                Files.delete(tempFile);
+                log.info("Deduplicated upload against blob [{}]", digest);
+            } else {
+                Files.createDirectories(blobFile.getParent());
+                Files.move(tempFile, blobFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            log.error("Failed to commit blob [{}]! Error:{}", digest, e.getMessage());
+            throw new StorageException("Failed to commit blob!", e);
+        }
+
+        return blobFile;
+    }
+
+    @Scheduled(fixedDelay = 60_000)
+    @Transactional
+    public void collectUnreferencedBlobs() {
+        List<StoredBlob> unreferenced = storedBlobRepository.lockUnreferenced(
+                Instant.now().minus(UNREFERENCED_GRACE_PERIOD), GC_BATCH_SIZE);
+
+        if (unreferenced.isEmpty()) {
+            return;
+        }
+
+        for (StoredBlob blob : unreferenced) {
+            try {
+                Files.deleteIfExists(Paths.get(blob.getStoragePath()));
+            } catch (IOException e) {
+                // Keep going, a leftover file only costs disk and never shadows a live blob
+                log.warn("Could not remove blob file [{}]: {}", blob.getStoragePath(), e.getMessage());
+            }
+        }
+
+        storedBlobRepository.deleteAllInBatch(unreferenced);
+        log.info("[BLOB GC] Removed {} unreferenced blobs", unreferenced.size());
+    }
+}
@@ -0,0 +1,87 @@
+package xyz.stanleyw.secureshare.service;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Transparent compression of stored content.
+ * <p>
+ * Compressible uploads are kept in gzip format, so the bytes on disk can be sent unchanged to
+ * clients that accept {@code Content-Encoding: gzip} and are only inflated for those that don't.
+ * Whether an upload is compressible is decided from a trial compression of its first block.
+ */
+public final class ContentCodec {
+    public static final String GZIP = "gzip";
+
+    // Below this the gzip header and trailer eat most of what compression could save
+    static final int MIN_COMPRESSIBLE_SIZE = 1024;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    // CRC-32 and input size, both little-endian
+    public static final int TRAILER_SIZE = 8;
+
+    private ContentCodec() {
+    }
+
+    /**
+     * Compresses the sample at the given level and tells whether it shrank to at most
+     * {@code maxRatio} of its size. Gives up as soon as the output passes that bound.
+     */
+    static boolean isCompressible(byte[] sample, int length, int level, double maxRatio) {
+        if (length == 0) {
+            return false;
+        }
+
+        long limit = (long) (length * maxRatio);
+        byte[] scratch = new byte[Math.min(length, 8 * 1024)];
+        Deflater deflater = new Deflater(level, true);
+
+        try {
+            deflater.setInput(sample, 0, length);
+            deflater.finish();
+
+            while (!deflater.finished()) {
+                deflater.deflate(scratch);
+                if (deflater.getBytesWritten() > limit) {
+                    return false;
+                }
+            }
+
+            return true;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    static OutputStream compressing(OutputStream out, int level) throws IOException {
+        return new GZIPOutputStream(out, BUFFER_SIZE) {
+            {
+                def.setLevel(level);
+            }
+        };
+    }
+
+    public static InputStream decompressing(InputStream in) throws IOException {
+        return new GZIPInputStream(in, BUFFER_SIZE);
+    }
+
+    /**
+     * The CRC-32 of the uncompressed content, taken from the gzip trailer instead of inflating
+     * the whole file.
+     */
+    public static long crcOf(byte[] trailer) throws IOException {
+        if (trailer.length != TRAILER_SIZE) {
+            throw new EOFException("Truncated gzip trailer");
+        }
+
+        return Integer.toUnsignedLong(ByteBuffer.wrap(trailer).order(ByteOrder.LITTLE_ENDIAN).getInt(0));
+    }
+}
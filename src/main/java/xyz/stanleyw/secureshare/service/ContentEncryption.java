@@ -0,0 +1,353 @@
+package xyz.stanleyw.secureshare.service;
+
+import xyz.stanleyw.secureshare.exception.StorageException;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+/**
+ * Segmented AES-256-GCM encryption of stored content.
+ * <p>
+ * An encrypted file is a short header followed by independently authenticated segments:
+ * <pre>
+ * header   version (1) | salt (16) | nonce prefix (7)
+ * segment  up to 64 KiB of ciphertext | GCM tag (16)
+ * </pre>
+ * Every file is encrypted under its own key, derived from the master key and the file's random
+ * salt with HKDF-SHA256. A segment's nonce is the file's nonce prefix, the segment index and a
+ * flag set only on the last segment, so segments can neither be reordered nor cut off at the end
+ * without failing authentication.
+ * <p>
+ * Each plaintext offset falls into exactly one segment, which makes byte ranges cheap: only the
+ * segments that overlap the range are read and decrypted. Both directions hold one segment of
+ * plaintext and one of ciphertext per transfer, whatever the file size. The JDK's AES-GCM is
+ * intrinsified on CPUs with AES and carry-less multiply instructions.
+ */
+public final class ContentEncryption {
+    // Recorded on the row, so files written under a different layout can be told apart later
+    public static final String SCHEME = "aes256-gcm-64k";
+
+    public static final int SEGMENT_SIZE = 64 * 1024;
+
+    static final int TAG_SIZE = 16;
+
+    private static final int ENCRYPTED_SEGMENT_SIZE = SEGMENT_SIZE + TAG_SIZE;
+
+    private static final byte VERSION = 1;
+
+    private static final int SALT_SIZE = 16;
+
+    private static final int NONCE_PREFIX_SIZE = 7;
+
+    private static final int NONCE_SIZE = 12;
+
+    static final int HEADER_SIZE = 1 + SALT_SIZE + NONCE_PREFIX_SIZE;
+
+    private static final int KEY_SIZE = 32;
+
+    private static final byte[] KEY_INFO = "secure-share content key".getBytes(StandardCharsets.US_ASCII);
+
+    private final byte[] masterKey;
+
+    private final SecureRandom random = new SecureRandom();
+
+    public ContentEncryption(byte[] masterKey) {
+        if (masterKey.length != KEY_SIZE) {
+            throw new IllegalArgumentException("Encryption key must be " + KEY_SIZE + " bytes, got " + masterKey.length);
+        }
+
+        this.masterKey = masterKey.clone();
+    }
+
+    /**
+     * Size on disk of the given amount of plaintext. Empty content still gets one (empty) last segment.
+     */
+    public static long encryptedSize(long plaintextSize) {
+        long segments = Math.max(1, (plaintextSize + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+        return HEADER_SIZE + plaintextSize + segments * TAG_SIZE;
+    }
+
+    public static long plaintextSize(long encryptedSize) {
+        long body = encryptedSize - HEADER_SIZE;
+        long segments = (body + ENCRYPTED_SEGMENT_SIZE - 1) / ENCRYPTED_SEGMENT_SIZE;
+        return body - segments * TAG_SIZE;
+    }
+
+    static long segmentOffset(long index) {
+        return HEADER_SIZE + index * ENCRYPTED_SEGMENT_SIZE;
+    }
+
+    /**
+     * Keys a new file with a fresh salt and nonce prefix.
+     */
+    FileCipher newFile() {
+        byte[] header = new byte[HEADER_SIZE];
+        random.nextBytes(header);
+        header[0] = VERSION;
+        return new FileCipher(header);
+    }
+
+    FileCipher forHeader(byte[] header) throws IOException {
+        if (header.length != HEADER_SIZE || header[0] != VERSION) {
+            throw new IOException("Unsupported encryption header");
+        }
+
+        return new FileCipher(header.clone());
+    }
+
+    /**
+     * Encrypts everything written to the returned stream into the target, header first. The last
+     * segment is only written on close.
+     */
+    public OutputStream encrypting(OutputStream target) throws IOException {
+        return new EncryptingOutputStream(newFile(), target);
+    }
+
+    /**
+     * Decrypts an encrypted file from the given plaintext offset on, reading only the segments it needs.
+     */
+    public InputStream decrypting(Path file, long start) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            readFully(channel, header, 0);
+            return new DecryptingInputStream(channel, forHeader(header.array()), start);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read == -1) {
+                throw new EOFException("Encrypted file is truncated");
+            }
+        }
+    }
+
+    /**
+     * The key material of one file and a cipher to apply it segment by segment. Not thread-safe;
+     * writers of the same file on several threads each get their own from {@link #forHeader}.
+     */
+    final class FileCipher {
+        private final byte[] header;
+
+        private final SecretKeySpec key;
+
+        private final Cipher cipher;
+
+        private final byte[] nonce = new byte[NONCE_SIZE];
+
+        private FileCipher(byte[] header) {
+            this.header = header;
+
+            try {
+                byte[] salt = Arrays.copyOfRange(header, 1, 1 + SALT_SIZE);
+                this.key = new SecretKeySpec(deriveKey(salt), "AES");
+                this.cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            } catch (GeneralSecurityException e) {
+                throw new StorageException("AES-GCM is not available", e);
+            }
+
+            System.arraycopy(header, 1 + SALT_SIZE, nonce, 0, NONCE_PREFIX_SIZE);
+        }
+
+        byte[] header() {
+            return header.clone();
+        }
+
+        int encrypt(int index, boolean last, byte[] plaintext, int length, byte[] ciphertext) {
+            try {
+                cipher.init(Cipher.ENCRYPT_MODE, key, nonceFor(index, last));
+                return cipher.doFinal(plaintext, 0, length, ciphertext, 0);
+            } catch (GeneralSecurityException e) {
+                throw new StorageException("Could not encrypt segment " + index, e);
+            }
+        }
+
+        int decrypt(int index, boolean last, byte[] ciphertext, int length, byte[] plaintext) throws IOException {
+            try {
+                cipher.init(Cipher.DECRYPT_MODE, key, nonceFor(index, last));
+                return cipher.doFinal(ciphertext, 0, length, plaintext, 0);
+            } catch (AEADBadTagException e) {
+                throw new IOException("Segment " + index + " of encrypted content failed authentication", e);
+            } catch (GeneralSecurityException e) {
+                throw new StorageException("Could not decrypt segment " + index, e);
+            }
+        }
+
+        private GCMParameterSpec nonceFor(int index, boolean last) {
+            nonce[NONCE_PREFIX_SIZE] = (byte) (index >>> 24);
+            nonce[NONCE_PREFIX_SIZE + 1] = (byte) (index >>> 16);
+            nonce[NONCE_PREFIX_SIZE + 2] = (byte) (index >>> 8);
+            nonce[NONCE_PREFIX_SIZE + 3] = (byte) index;
+            nonce[NONCE_SIZE - 1] = (byte) (last ? 1 : 0);
+            return new GCMParameterSpec(TAG_SIZE * 8, nonce);
+        }
+
+        // HKDF-SHA256 (RFC 5869) with a single output block
+        private byte[] deriveKey(byte[] salt) throws GeneralSecurityException {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(salt, "HmacSHA256"));
+            byte[] pseudoRandomKey = mac.doFinal(masterKey);
+
+            mac.init(new SecretKeySpec(pseudoRandomKey, "HmacSHA256"));
+            mac.update(KEY_INFO);
+            mac.update((byte) 1);
+            return mac.doFinal();
+        }
+    }
+
+    private static final class EncryptingOutputStream extends OutputStream {
+        private final FileCipher cipher;
+
+        private final OutputStream target;
+
+        private final byte[] plaintext = new byte[SEGMENT_SIZE];
+
+        private final byte[] ciphertext = new byte[ENCRYPTED_SEGMENT_SIZE];
+
+        private int buffered;
+
+        private int segmentIndex;
+
+        private boolean closed;
+
+        EncryptingOutputStream(FileCipher cipher, OutputStream target) throws IOException {
+            this.cipher = cipher;
+            this.target = target;
+            target.write(cipher.header());
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                // A full segment is only sealed once more data shows it is not the last one
+                if (buffered == SEGMENT_SIZE) {
+                    writeSegment(false);
+                }
+
+                int count = Math.min(len, SEGMENT_SIZE - buffered);
+                System.arraycopy(b, off, plaintext, buffered, count);
+                buffered += count;
+                off += count;
+                len -= count;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+
+            try (target) {
+                writeSegment(true);
+            }
+        }
+
+        private void writeSegment(boolean last) throws IOException {
+            int length = cipher.encrypt(segmentIndex++, last, plaintext, buffered, ciphertext);
+            target.write(ciphertext, 0, length);
+            buffered = 0;
+        }
+    }
+
+    private static final class DecryptingInputStream extends InputStream {
+        private final FileChannel channel;
+
+        private final FileCipher cipher;
+
+        private final long lastSegment;
+
+        private final ByteBuffer ciphertext = ByteBuffer.allocate(ENCRYPTED_SEGMENT_SIZE);
+
+        private final byte[] plaintext = new byte[SEGMENT_SIZE];
+
+        private int nextSegment;
+
+        private int position;
+
+        private int limit;
+
+        DecryptingInputStream(FileChannel channel, FileCipher cipher, long start) throws IOException {
+            this.channel = channel;
+            this.cipher = cipher;
+
+            long encryptedSize = channel.size();
+            this.lastSegment = (encryptedSize - HEADER_SIZE - 1) / ENCRYPTED_SEGMENT_SIZE;
+            this.nextSegment = (int) (start / SEGMENT_SIZE);
+
+            // Start mid-segment by decrypting that segment and skipping into it
+            if (nextSegment <= lastSegment && start % SEGMENT_SIZE != 0) {
+                loadSegment();
+                position = (int) Math.min(start % SEGMENT_SIZE, limit);
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            return read(single, 0, 1) == -1 ? -1 : single[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+
+            while (position == limit) {
+                if (nextSegment > lastSegment) {
+                    return -1;
+                }
+                loadSegment();
+            }
+
+            int count = Math.min(len, limit - position);
+            System.arraycopy(plaintext, position, b, off, count);
+            position += count;
+            return count;
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+
+        private void loadSegment() throws IOException {
+            long offset = segmentOffset(nextSegment);
+            ciphertext.clear();
+            ciphertext.limit((int) Math.min(ENCRYPTED_SEGMENT_SIZE, channel.size() - offset));
+            readFully(channel, ciphertext, offset);
+
+            limit = cipher.decrypt(nextSegment, nextSegment == lastSegment, ciphertext.array(), ciphertext.limit(), plaintext);
+            position = 0;
+            nextSegment++;
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package xyz.stanleyw.secureshare.service;
+
+import xyz.stanleyw.secureshare.exception.StorageException;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.HexFormat;
+
+/**
+ * SHA-256 of stored content as uploaded, kept hex encoded in {@code stored_files.content_sha256}.
+ */
+public final class ContentHash {
+
+    private ContentHash() {
+    }
+
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new StorageException("SHA-256 is not available", e);
+        }
+    }
+
+    public static String toHex(MessageDigest digest) {
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    // RFC 9530 field value, e.g. sha-256=:uU0nuZNNPgilLlLX2n2r+sSE7+N6U4DukIj3rOLvzek=:
+    public static String toReprDigest(String contentSha256) {
+        return "sha-256=:" + toBase64(contentSha256) + ":";
+    }
+
+    // RFC 3230 field value, for clients that predate Repr-Digest
+    public static String toLegacyDigest(String contentSha256) {
+        return "SHA-256=" + toBase64(contentSha256);
+    }
+
+    private static String toBase64(String contentSha256) {
+        return Base64.getEncoder().encodeToString(HexFormat.of().parseHex(contentSha256));
+    }
+}
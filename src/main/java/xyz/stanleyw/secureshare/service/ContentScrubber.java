@@ -0,0 +1,207 @@
+package xyz.stanleyw.secureshare.service;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+import xyz.stanleyw.secureshare.config.StorageProperties;
+import xyz.stanleyw.secureshare.entity.StoredFile;
+import xyz.stanleyw.secureshare.exception.StorageException;
+import xyz.stanleyw.secureshare.repository.StoredFileRepository;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.NoSuchFileException;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Re-reads stored content in the background and checks it against the SHA-256 taken while it was
+ * uploaded, so bit rot and truncated writes turn up before a downloader runs into them.
+ * <p>
+ * Each run scrubs a small batch along a keyset cursor over {@code stored_files.id}, which starts
+ * over once it reaches the end. Reads are paced to {@code scrubBytesPerSecond} across the whole
+ * run, so the scrubber only ever takes that slice of the disk. Files stored without a hash, like
+ * chunked uploads and files from before hashes were kept, get theirs recorded on the first pass.
+ * Mismatches are logged and counted, the content is never touched.
+ */
+@Getter
+@Slf4j
+@Component
+@ConditionalOnProperty(name = "storage.backend", havingValue = "filesystem", matchIfMissing = true)
+public class ContentScrubber {
+    private final FileSystemStorageService storageService;
+
+    private final StoredFileRepository storedFileRepository;
+
+    private final StoredFileMetadataCache metadataCache;
+
+    // 0 when the scrubber is off
+    private final long bytesPerSecond;
+
+    private final int batchSize;
+
+    // Keyset cursor over stored_files.id, starting over once it runs off the end
+    private volatile String cursor = "";
+
+    @Getter(AccessLevel.NONE)
+    private final MeterRegistry meterRegistry;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    enum Result { VERIFIED, RECORDED, CORRUPT, MISSING, SKIPPED }
+
+    public ContentScrubber(StorageProperties storageProperties,
+                           FileSystemStorageService storageService,
+                           StoredFileRepository storedFileRepository,
+                           StoredFileMetadataCache metadataCache,
+                           MeterRegistry meterRegistry) {
+        this.storageService = storageService;
+        this.storedFileRepository = storedFileRepository;
+        this.metadataCache = metadataCache;
+        this.meterRegistry = meterRegistry;
+        DataSize rate = storageProperties.getScrubBytesPerSecond();
+        this.bytesPerSecond = rate != null ? rate.toBytes() : 0;
+        this.batchSize = storageProperties.getScrubBatchSize();
+    }
+
+    public boolean isEnabled() {
+        return bytesPerSecond > 0;
+    }
+
+    @Scheduled(initialDelay = 90_000, fixedDelay = 60_000)
+    public void scrubNextBatch() {
+        if (!isEnabled()) {
+            return;
+        }
+
+        List<StoredFile> candidates = storedFileRepository.findScrubCandidates(cursor, Instant.now(), batchSize);
+
+        // A short batch means the scan reached the end, the next one starts over
+        cursor = candidates.size() < batchSize ? "" : candidates.get(candidates.size() - 1).getId();
+
+        Throttle throttle = new Throttle(bytesPerSecond);
+        int corrupt = 0;
+
+        for (StoredFile storedFile : candidates) {
+            Result result = scrub(storedFile, throttle);
+            meterRegistry.counter("storage.scrub.files", "result", result.name().toLowerCase(Locale.ROOT)).increment();
+
+            if (result == Result.CORRUPT || result == Result.MISSING) {
+                corrupt++;
+            }
+
+            if (Thread.currentThread().isInterrupted()) {
+                return;
+            }
+        }
+
+        if (corrupt > 0) {
+            log.error("[SCRUB] {} of {} files failed verification", corrupt, candidates.size());
+        }
+    }
+
+    Result scrub(StoredFile storedFile, Throttle throttle) {
+        String id = storedFile.getId();
+        String actual;
+
+        try {
+            actual = hash(storageService.openResource(storedFile), storedFile.getSizeBytes(), throttle);
+        } catch (NoSuchFileException e) {
+            if (!isCurrent(storedFile)) {
+                // Reaped or moved to the cold tier since the batch was read
+                return Result.SKIPPED;
+            }
+            log.error("[SCRUB] Content of file [{}] is missing at [{}]", id, storedFile.getStoragePath());
+            return Result.MISSING;
+        } catch (IOException | StorageException e) {
+            if (!isCurrent(storedFile)) {
+                return Result.SKIPPED;
+            }
+            log.error("[SCRUB] Content of file [{}] could not be read back! Error:{}", id, e.getMessage());
+            return Result.CORRUPT;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return Result.SKIPPED;
+        }
+
+        String expected = storedFile.getContentSha256();
+
+        if (expected == null) {
+            if (storedFileRepository.recordContentSha256(id, storedFile.getStoragePath(), actual) == 0) {
+                return Result.SKIPPED;
+            }
+
+            // Cached rows still lack the hash, and with it the validator downloads should use
+            metadataCache.invalidate(id);
+            return Result.RECORDED;
+        }
+
+        if (!expected.equals(actual)) {
+            log.error("[SCRUB] Content of file [{}] does not match its SHA-256, expected {} but read {}", id, expected, actual);
+            return Result.CORRUPT;
+        }
+
+        return Result.VERIFIED;
+    }
+
+    private boolean isCurrent(StoredFile storedFile) {
+        return storedFileRepository.findById(storedFile.getId())
+                .map(current -> current.getStoragePath().equals(storedFile.getStoragePath()))
+                .orElse(false);
+    }
+
+    private static String hash(StoredFileResource resource, long expectedLength, Throttle throttle)
+            throws IOException, InterruptedException {
+        MessageDigest digest = ContentHash.newDigest();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        long length = 0;
+
+        try (InputStream content = resource.getInputStream()) {
+            int read;
+            while ((read = content.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+                length += read;
+                throttle.pay(read);
+            }
+        }
+
+        if (length != expectedLength) {
+            throw new IOException("Content ended after " + length + " of " + expectedLength + " bytes");
+        }
+
+        return ContentHash.toHex(digest);
+    }
+
+    /**
+     * Holds reads to a fixed rate over a whole run, sleeping whenever they get ahead of it.
+     */
+    static final class Throttle {
+        private final long bytesPerSecond;
+
+        private final long startedNanos = System.nanoTime();
+
+        private long bytes;
+
+        Throttle(long bytesPerSecond) {
+            this.bytesPerSecond = bytesPerSecond;
+        }
+
+        void pay(int read) throws InterruptedException {
+            bytes += read;
+            long dueNanos = startedNanos + (long) (bytes * 1_000_000_000.0 / bytesPerSecond);
+            long waitNanos = dueNanos - System.nanoTime();
+
+            if (waitNanos > 0) {
+                Thread.sleep(Duration.ofNanos(waitNanos));
+            }
+        }
+    }
+}
@@ -0,0 +1,235 @@
+package xyz.stanleyw.secureshare.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PreDestroy;
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import xyz.stanleyw.secureshare.config.StorageProperties;
+import xyz.stanleyw.secureshare.model.ReapedFile;
+import xyz.stanleyw.secureshare.model.ReaperRun;
+import xyz.stanleyw.secureshare.repository.StoredFileRepository;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Deletes expired and fully downloaded files in bounded batches and reclaims their disk space,
+ * or removes their objects when they live in the object store. Fully downloaded files stay for a
+ * grace period first, so the download that used them up is not cut off halfway.
+ * <p>
+ * Every batch is its own short transaction, so a backlog after an outage is worked off over a few
+ * runs instead of in one huge delete. Rows are claimed with {@code FOR UPDATE SKIP LOCKED}, which
+ * lets every app instance run the reaper without two of them touching the same rows. Unlinking
+ * happens on a small fixed pool once the batch has committed; blob-backed rows only drop their
+ * reference and are unlinked by the blob collector.
+ */
+@Getter
+@Slf4j
+@Component
+public class ExpiredFileReaper {
+    private final StoredFileRepository storedFileRepository;
+
+    private final StoredFileMetadataCache metadataCache;
+
+    private final StorageUsage storageUsage;
+
+    private final StorageLayout layout;
+
+    // Only present with the object-store backend
+    @Getter(AccessLevel.NONE)
+    private final ObjectStore objectStore;
+
+    private final int batchSize;
+
+    private final int maxBatches;
+
+    private final Duration exhaustedGracePeriod;
+
+    private final ExecutorService unlinkExecutor;
+
+    private volatile ReaperRun lastRun;
+
+    @Getter(AccessLevel.NONE)
+    private final Timer runTimer;
+
+    @Getter(AccessLevel.NONE)
+    private final DistributionSummary batchSizes;
+
+    @Getter(AccessLevel.NONE)
+    private final Counter failedUnlinks;
+
+    public ExpiredFileReaper(StorageProperties storageProperties,
+                             StoredFileRepository storedFileRepository,
+                             StoredFileMetadataCache metadataCache,
+                             StorageUsage storageUsage,
+                             Optional<ObjectStore> objectStore,
+                             MeterRegistry meterRegistry,
+                             @Value("${spring.threads.virtual.enabled:false}") boolean virtualThreads) {
+        this.storedFileRepository = storedFileRepository;
+        this.metadataCache = metadataCache;
+        this.storageUsage = storageUsage;
+        this.layout = new StorageLayout(Paths.get(storageProperties.getLocation()), storageProperties.getShardLevels());
+        this.objectStore = objectStore.orElse(null);
+        this.batchSize = storageProperties.getReaperBatchSize();
+        this.maxBatches = storageProperties.getReaperMaxBatches();
+        this.exhaustedGracePeriod = storageProperties.getExhaustedGracePeriod();
+        // The pool size still caps concurrent unlinks, virtual workers just don't hold an OS thread each
+        this.unlinkExecutor = virtualThreads
+                ? Executors.newFixedThreadPool(storageProperties.getReaperThreads(), Thread.ofVirtual().name("reaper-unlink-", 0).factory())
+                : Executors.newFixedThreadPool(storageProperties.getReaperThreads());
+
+        this.runTimer = Timer.builder("storage.reaper.run")
+                .description("Duration of reaper runs")
+                .register(meterRegistry);
+        this.batchSizes = DistributionSummary.builder("storage.reaper.batch.size")
+                .description("Rows deleted per reaper batch")
+                .register(meterRegistry);
+        this.failedUnlinks = Counter.builder("storage.reaper.unlink.failures")
+                .description("Reaped files whose content could not be unlinked")
+                .register(meterRegistry);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        unlinkExecutor.shutdown();
+    }
+
+    // @Scheduled(cron = "0 */5 * * * *")
+    @Scheduled(cron = "*/30 * * * * *")
+    public void deleteExpiredFilesScanner() {
+        ReaperRun run = reapExpiredFiles();
+        runTimer.record(run.getDurationMillis(), TimeUnit.MILLISECONDS);
+        failedUnlinks.increment(run.getFailedUnlinks());
+        lastRun = run;
+    }
+
+    public ReaperRun reapExpiredFiles() {
+        long started = System.nanoTime();
+        Instant now = Instant.now();
+        Instant exhaustedBefore = now.minus(exhaustedGracePeriod);
+        AtomicInteger unlinked = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        int batches = 0;
+        int deletedRows = 0;
+
+        // Expired shares first, then shares whose downloads were used up at least the grace period
+        // ago, sharing one batch budget
+        List<Supplier<List<ReapedFile>>> sources = List.of(
+                () -> storedFileRepository.deleteExpiredBatch(now, batchSize),
+                () -> storedFileRepository.deleteExhaustedBatch(exhaustedBefore, batchSize)
+        );
+
+        for (Supplier<List<ReapedFile>> source : sources) {
+            while (batches < maxBatches) {
+                List<ReapedFile> reaped = source.get();
+                batches++;
+                deletedRows += reaped.size();
+                batchSizes.record(reaped.size());
+
+                metadataCache.invalidateAll(reaped.stream().map(ReapedFile::getId).toList());
+                storageUsage.recordRemoved(reaped.stream().mapToLong(ReapedFile::getSizeBytes).sum());
+                unlinkAll(reaped, unlinked, failed);
+
+                if (reaped.size() < batchSize) {
+                    break;
+                }
+            }
+        }
+
+        ReaperRun run = new ReaperRun(batches, deletedRows, unlinked.get(), failed.get(),
+                (System.nanoTime() - started) / 1_000_000);
+
+        if (deletedRows > 0) {
+            log.info("[REAPER] Deleted {} expired or exhausted files in {} batches, unlinked {} ({} failed) in {} ms",
+                    run.getDeletedRows(), run.getBatches(), run.getUnlinkedFiles(), run.getFailedUnlinks(), run.getDurationMillis());
+        }
+
+        return run;
+    }
+
+    private void unlinkAll(List<ReapedFile> reaped, AtomicInteger unlinked, AtomicInteger failed) {
+        List<Callable<Void>> tasks = new ArrayList<>();
+
+        for (ReapedFile file : reaped) {
+            if (file.getBlobDigest() != null) {
+                continue;
+            }
+
+            tasks.add(() -> {
+                if (unlink(file.getStoragePath())) {
+                    unlinked.incrementAndGet();
+                } else {
+                    failed.incrementAndGet();
+                }
+                return null;
+            });
+        }
+
+        if (tasks.isEmpty()) {
+            return;
+        }
+
+        try {
+            // Waiting for the batch keeps at most one batch of unlinks in flight
+            unlinkExecutor.invokeAll(tasks);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private boolean unlink(String storagePath) {
+        if (ObjectStoreStorageService.isStoredObject(storagePath)) {
+            return deleteObject(ObjectStoreStorageService.keyOf(storagePath));
+        }
+
+        Path file = Paths.get(storagePath);
+
+        // Flat uploads with the same name share one file, keep it while another row points at it
+        if (layout.isFlat(file) && storedFileRepository.existsByStoragePath(file.toString())) {
+            return true;
+        }
+
+        try {
+            Files.deleteIfExists(file);
+            return true;
+        } catch (IOException e) {
+            log.warn("[REAPER] Could not unlink [{}]: {}", file, e.getMessage());
+            return false;
+        }
+    }
+
+    private boolean deleteObject(String key) {
+        if (objectStore == null) {
+            log.warn("[REAPER] Could not remove object [{}]: the object-store backend is not active", key);
+            return false;
+        }
+
+        try {
+            objectStore.delete(key);
+            return true;
+        } catch (IOException e) {
+            log.warn("[REAPER] Could not remove object [{}]: {}", key, e.getMessage());
+            return false;
+        }
+    }
+}
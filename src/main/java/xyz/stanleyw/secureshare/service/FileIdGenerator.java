@@ -0,0 +1,87 @@
+package xyz.stanleyw.secureshare.service;
+
+import java.security.SecureRandom;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Generates random IDs over a fixed alphabet from pools of pre-fetched {@link SecureRandom} bytes.
+ * <p>
+ * Platform threads each own a pool, so the only allocation per ID is the returned string and the
+ * shared {@code SecureRandom} is touched once per few dozen IDs. Virtual threads are created per
+ * task and would fill a fresh pool every time, so they share a small set of locked pools instead.
+ * Characters are picked by rejection sampling, every character of the alphabet is equally likely.
+ */
+public final class FileIdGenerator {
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private static final int POOL_BYTES = 256;
+
+    private static final int SHARED_POOLS = 16;
+
+    private final char[] alphabet;
+
+    private final int length;
+
+    // Smallest all-ones bit mask covering every alphabet index
+    private final int mask;
+
+    private final ThreadLocal<RandomPool> threadPools = ThreadLocal.withInitial(RandomPool::new);
+
+    private final RandomPool[] sharedPools = new RandomPool[SHARED_POOLS];
+
+    public FileIdGenerator(String alphabet, int length) {
+        if (alphabet.length() < 2 || alphabet.length() > 256) {
+            throw new IllegalArgumentException("Alphabet must have between 2 and 256 characters");
+        }
+
+        this.alphabet = alphabet.toCharArray();
+        this.length = length;
+        this.mask = -1 >>> Integer.numberOfLeadingZeros(alphabet.length() - 1);
+
+        for (int i = 0; i < SHARED_POOLS; i++) {
+            sharedPools[i] = new RandomPool();
+        }
+    }
+
+    public String next() {
+        Thread current = Thread.currentThread();
+        RandomPool pool = current.isVirtual()
+                ? sharedPools[(int) (current.threadId() & (SHARED_POOLS - 1))]
+                : threadPools.get();
+
+        return pool.nextId();
+    }
+
+    private final class RandomPool {
+        private final byte[] bytes = new byte[POOL_BYTES];
+
+        private final char[] id = new char[length];
+
+        // Never contended for thread-owned pools; a lock rather than synchronized keeps virtual threads unpinned
+        private final ReentrantLock lock = new ReentrantLock();
+
+        private int position = POOL_BYTES;
+
+        String nextId() {
+            lock.lock();
+            try {
+                int filled = 0;
+                while (filled < length) {
+                    if (position == POOL_BYTES) {
+                        RANDOM.nextBytes(bytes);
+                        position = 0;
+                    }
+
+                    int index = bytes[position++] & mask;
+                    if (index < alphabet.length) {
+                        id[filled++] = alphabet[index];
+                    }
+                }
+
+                return new String(id);
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
@@ -1,61 +1,234 @@
 package xyz.stanleyw.secureshare.service;
 
-import com.soundicly.jnanoidenhanced.jnanoid.NanoIdUtils;
+import jakarta.annotation.PreDestroy;
+import lombok.AccessLevel;
 import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.core.io.Resource;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 import org.springframework.web.multipart.MultipartFile;
 import xyz.stanleyw.secureshare.config.StorageProperties;
 import xyz.stanleyw.secureshare.entity.StoredFile;
+import xyz.stanleyw.secureshare.exception.InvalidUploadException;
 import xyz.stanleyw.secureshare.exception.StorageException;
 import xyz.stanleyw.secureshare.exception.StoredFileNotFoundException;
-import xyz.stanleyw.secureshare.model.ExpirationDetails;
+import xyz.stanleyw.secureshare.exception.TooManyUploadSessionsException;
+import xyz.stanleyw.secureshare.exception.UploadTooLargeException;
+import xyz.stanleyw.secureshare.model.UploadSessionStatus;
 import xyz.stanleyw.secureshare.repository.StoredFileRepository;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.time.Instant;
-import java.time.temporal.ChronoUnit;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
 
 @Getter
 @Service
+@ConditionalOnProperty(name = "storage.backend", havingValue = "filesystem", matchIfMissing = true)
 @Slf4j
-public class FileSystemStorageService implements StorageService {
+public class FileSystemStorageService extends AbstractStorageBackend {
     private final Path rootLocation;
 
-    private final StoredFileRepository storedFileRepository;
+    private final StorageLayout layout;
 
-    // Custom alphabet for generating Nano IDs for uploaded files
-    private static final String id_alphabet = "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz";
+    private final ContentAddressedBlobStore blobStore;
+
+    private final boolean deduplicationEnabled;
+
+    private final boolean compressionEnabled;
+
+    private final int compressionLevel;
+
+    private final double compressionMaxRatio;
+
+    private final boolean encryptionEnabled;
+
+    // Present whenever a key is configured, so files encrypted earlier stay readable with encryption off
+    @Getter(AccessLevel.NONE)
+    private final ContentEncryption encryption;
+
+    private final long maxUploadSize;
+
+    private final Path uploadsLocation;
+
+    private final long chunkSize;
+
+    private final long maxChunkedUploadSize;
+
+    private final long uploadSessionTimeoutMillis;
+
+    private final int maxBulkFiles;
+
+    @Getter(AccessLevel.NONE)
+    private final ExecutorService bulkWriteExecutor;
+
+    @Getter(AccessLevel.NONE)
+    private final Map<String, ChunkedUpload> uploadSessions = new ConcurrentHashMap<>();
+
+    // One permit per session that may still be opened
+    @Getter(AccessLevel.NONE)
+    private final Semaphore sessionSlots;
+
+    @Getter(AccessLevel.NONE)
+    private final StorageReconciler reconciler;
+
+    @Getter(AccessLevel.NONE)
+    private final DirectBufferPool bufferPool = new DirectBufferPool(STREAM_BUFFER_SIZE, MAX_POOLED_BUFFERS);
+
+    // Streaming uploads move data through one direct buffer of this size per transfer
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+
+    private static final int MAX_POOLED_BUFFERS = 64;
+
+    // Part files of chunked uploads live in a hidden directory on the same volume, so completing
+    // an upload is a rename rather than a copy
+    private static final String UPLOADS_DIRECTORY = ".uploads";
+
+    // Single uploads are written next to their final name under a temp name first
+    private static final String TEMP_PREFIX = ".upload-";
+
+    private static final String TEMP_SUFFIX = ".tmp";
 
     @Autowired
-    public FileSystemStorageService(StorageProperties storageProperties, StoredFileRepository storedFileRepository) {
+    public FileSystemStorageService(StorageProperties storageProperties,
+                                    StoredFileRepository storedFileRepository,
+                                    ContentAddressedBlobStore blobStore,
+                                    StoredFileMetadataCache metadataCache,
+                                    StorageUsage storageUsage,
+                                    @Value("${spring.threads.virtual.enabled:false}") boolean virtualThreads) {
+        super(storageProperties, storedFileRepository, metadataCache, storageUsage);
+
         if (storageProperties.getLocation().trim().isEmpty()) {
             throw new StorageException("File upload location can not be empty.");
         }
 
         this.rootLocation = Paths.get(storageProperties.getLocation());
+        this.layout = new StorageLayout(rootLocation, storageProperties.getShardLevels());
+        this.maxUploadSize = storageProperties.getMaxUploadSize().toBytes();
+        this.uploadsLocation = rootLocation.resolve(UPLOADS_DIRECTORY);
+        this.chunkSize = storageProperties.getChunkSize().toBytes();
+        this.maxChunkedUploadSize = storageProperties.getMaxChunkedUploadSize().toBytes();
+        this.uploadSessionTimeoutMillis = storageProperties.getUploadSessionTimeout().toMillis();
+        this.sessionSlots = new Semaphore(storageProperties.getMaxUploadSessions());
+        this.deduplicationEnabled = storageProperties.isDeduplicationEnabled();
+        this.compressionEnabled = storageProperties.isCompressionEnabled();
+        this.compressionLevel = storageProperties.getCompressionLevel();
+        this.compressionMaxRatio = storageProperties.getCompressionMaxRatio();
+        this.encryptionEnabled = storageProperties.isEncryptionEnabled();
+        this.encryption = newContentEncryption(storageProperties);
+        this.maxBulkFiles = storageProperties.getMaxBulkFiles();
+        // The pool size still caps concurrent writes, virtual workers just don't hold an OS thread each
+        this.bulkWriteExecutor = virtualThreads
+                ? Executors.newFixedThreadPool(storageProperties.getBulkUploadThreads(), Thread.ofVirtual().name("bulk-write-", 0).factory())
+                : Executors.newFixedThreadPool(storageProperties.getBulkUploadThreads());
+        Duration reconcileGracePeriod = storageProperties.getReconcileGracePeriod()
+                .compareTo(storageProperties.getUploadSessionTimeout()) >= 0
+                ? storageProperties.getReconcileGracePeriod()
+                : storageProperties.getUploadSessionTimeout();
+        this.reconciler = new StorageReconciler(layout, storedFileRepository, metadataCache, storageUsage,
+                reconcileGracePeriod);
         log.info("Root Location: {}", rootLocation);
-        this.storedFileRepository = storedFileRepository;
+        this.blobStore = blobStore;
+    }
+
+    private static ContentEncryption newContentEncryption(StorageProperties storageProperties) {
+        String encodedKey = storageProperties.getEncryptionKey();
+
+        if (encodedKey == null || encodedKey.isBlank()) {
+            if (storageProperties.isEncryptionEnabled()) {
+                throw new StorageException("Encryption is enabled but no encryption key is configured.");
+            }
+            return null;
+        }
+
+        if (storageProperties.isEncryptionEnabled() && storageProperties.isDeduplicationEnabled()) {
+            // Blobs are shared between uploads by plaintext digest, which encryption at rest must not reveal
+            throw new StorageException("Encryption can not be combined with deduplication.");
+        }
+
+        // Chunks are sealed on their own, so they have to end on segment boundaries
+        if (storageProperties.isEncryptionEnabled()
+                && storageProperties.getChunkSize().toBytes() % ContentEncryption.SEGMENT_SIZE != 0) {
+            throw new StorageException("Chunk size must be a multiple of " + ContentEncryption.SEGMENT_SIZE
+                    + " bytes when encryption is enabled.");
+        }
+
+        try {
+            return new ContentEncryption(Base64.getDecoder().decode(encodedKey.trim()));
+        } catch (IllegalArgumentException e) {
+            throw new StorageException("Invalid encryption key: " + e.getMessage(), e);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        bulkWriteExecutor.shutdown();
     }
 
     @Override
     public void init() {
         try {
             Files.createDirectories(rootLocation);
+            Files.createDirectories(uploadsLocation);
+
+            if (deduplicationEnabled) {
+                blobStore.init();
+            }
+
+            removeStaleParts();
         } catch (IOException e) {
             throw new StorageException("Could not initialize storage!", e);
         }
     }
 
+    /**
+     * Clears leftovers of a crash once, a minute after startup. The walk grows with the number of
+     * stored files, so it runs in the background instead of holding up startup; leftovers only
+     * waste space meanwhile, and storage stays usable if they can not be cleared.
+     */
+    @Scheduled(initialDelay = 60_000)
+    public void reconcile() {
+        try {
+            reconciler.reconcile();
+        } catch (StorageException e) {
+            log.error("[RECONCILE] Failed to reconcile storage! Error:{}", e.getMessage());
+        }
+    }
+
     @Override
-    public void store(MultipartFile file) {
+    public StoredFile store(MultipartFile file) {
+        StoredFile storedFile;
+
         try {
             if (file.isEmpty()) {
                 throw new StorageException("Failed to store empty file.");
@@ -65,109 +238,614 @@ public class FileSystemStorageService implements StorageService {
                 throw new StorageException("Failed to store file with null file name");
             }
 
-            Path destinationFile = this.rootLocation
-                    .resolve(Paths.get(file.getOriginalFilename()))
-                    .normalize()
-                    .toAbsolutePath();
+            String id = newFileId(file.getOriginalFilename());
 
-            // Safety check to make sure that there's no malicious file path
-            if (!destinationFile.getParent().equals(this.rootLocation.toAbsolutePath())) {
-                throw new StorageException("Cannot store file outside current directory");
+            // Copied rather than moved into place, so the content is hashed on the way
+            try (InputStream inputStream = file.getInputStream()) {
+                storedFile = deduplicationEnabled
+                        ? storeDeduplicated(id, file.getOriginalFilename(), file.getSize(), inputStream)
+                        : storeDirect(id, file.getOriginalFilename(), file.getSize(), inputStream);
             }
+        } catch (IOException e) {
+            log.error("Failed to store file! Error:{}", e.getMessage());
+            throw new StorageException("Failed to store file!", e);
+        }
+
+        log.info("RECEIVED FILE: [{}]", file.getOriginalFilename());
+        return storedFile;
+    }
 
-            file.transferTo(destinationFile);
+    @Override
+    public StoredFile storeStream(String filename, long contentLength, InputStream inputStream) {
+        if (contentLength <= 0) {
+            throw new StorageException("Failed to store empty file.");
+        }
 
-            // Create default expiration instant 1 day from now
-            Instant oneDayFromNow = Instant.now().plus(1, ChronoUnit.DAYS).truncatedTo(ChronoUnit.SECONDS);
-            Instant now = Instant.now().truncatedTo(ChronoUnit.SECONDS);
+        if (contentLength > maxUploadSize) {
+            throw new UploadTooLargeException("Upload of " + contentLength + " bytes exceeds the limit of " + maxUploadSize);
+        }
 
-            StoredFile storedFile = new StoredFile(
-                    NanoIdUtils.randomNanoId(id_alphabet, 7),
-                    destinationFile.toString(),
-                    file.getSize(),
-                    oneDayFromNow,
-                    now,
-                    100,
-                    100
-            );
+        if (filename == null) {
+            throw new StorageException("Failed to store file with null file name");
+        }
 
-            storedFileRepository.save(storedFile);
+        String id = newFileId(filename);
+        StoredFile storedFile;
+
+        try {
+            storedFile = deduplicationEnabled
+                    ? storeDeduplicated(id, filename, contentLength, inputStream)
+                    : storeDirect(id, filename, contentLength, inputStream);
         } catch (IOException e) {
-            log.error("Failed to store file! Error:{}", e.getMessage());
+            log.error("Failed to store streamed file! Error:{}", e.getMessage());
             throw new StorageException("Failed to store file!", e);
         }
 
-        log.info("RECEIVED FILE: [{}]", file.getOriginalFilename());
+        log.info("RECEIVED STREAMED FILE: [{}]", filename);
+        return storedFile;
     }
 
     @Override
-    public Resource loadAsResource(String filename) {
-        return null;
+    public List<StoredFile> storeAll(List<MultipartFile> files) {
+        if (files.isEmpty()) {
+            throw new InvalidUploadException("Failed to store an empty set of files.");
+        }
+
+        if (files.size() > maxBulkFiles) {
+            throw new InvalidUploadException("Bulk upload of " + files.size() + " files exceeds the limit of " + maxBulkFiles);
+        }
+
+        Set<String> filenames = new HashSet<>();
+        for (MultipartFile file : files) {
+            if (file.isEmpty()) {
+                throw new StorageException("Failed to store empty file.");
+            }
+
+            if (file.getOriginalFilename() == null) {
+                throw new StorageException("Failed to store file with null file name");
+            }
+
+            // Flat files are named after the upload, two parallel writes to one name would interleave
+            if (!layout.isSharded() && !deduplicationEnabled && !filenames.add(file.getOriginalFilename())) {
+                throw new InvalidUploadException("Duplicate file name in bulk upload: " + file.getOriginalFilename());
+            }
+        }
+
+        List<Future<StoredFile>> writes = new ArrayList<>(files.size());
+        for (MultipartFile file : files) {
+            writes.add(bulkWriteExecutor.submit(() -> writeContent(file)));
+        }
+
+        List<StoredFile> written = awaitWrites(writes);
+        saveAll(written);
+        log.info("RECEIVED {} FILES IN BULK", written.size());
+        return written;
     }
 
     @Override
-    public StoredFile getMetadata(String id) {
-        log.info("Fetching metadata for file [{}]", id);
-        StoredFile metadata = storedFileRepository.findById(id).orElse(null);
+    public UploadSessionStatus createUploadSession(String filename, long totalSize) {
+        if (totalSize <= 0) {
+            throw new InvalidUploadException("Failed to start upload of an empty file.");
+        }
 
-        if (metadata == null) {
-            log.error("Metadata lookup failed for file [{}]", id);
-            throw new StoredFileNotFoundException("Failed to get metadata for file: " + id);
+        if (totalSize > maxChunkedUploadSize) {
+            throw new UploadTooLargeException("Upload of " + totalSize + " bytes exceeds the limit of " + maxChunkedUploadSize);
         }
 
-        return metadata;
+        if (filename == null) {
+            throw new StorageException("Failed to store file with null file name");
+        }
+
+        // Reject bad names now rather than after every chunk has been sent
+        String sessionId = UUID.randomUUID().toString();
+        layout.resolve(sessionId, filename);
+
+        if (!sessionSlots.tryAcquire()) {
+            log.warn("Upload session for [{}] turned away, {} sessions already open", filename, uploadSessions.size());
+            throw new TooManyUploadSessionsException("Too many upload sessions open, try again later.");
+        }
+
+        StorageUsage.Reservation reservation = null;
+        boolean started = false;
+
+        try {
+            // Held until the session completes or expires, so chunks never find their room taken
+            reservation = getStorageUsage().reserve(totalSize);
+
+            Files.createDirectories(uploadsLocation);
+            ChunkedUpload upload = new ChunkedUpload(sessionId, filename, totalSize, chunkSize,
+                    uploadsLocation.resolve(sessionId + ".part"),
+                    encryptionEnabled ? encryption.newFile().header() : null, reservation);
+            uploadSessions.put(sessionId, upload);
+            started = true;
+
+            log.info("Started upload session [{}] for [{}] ({} chunks)", sessionId, filename, upload.getChunkCount());
+            return upload.toStatus();
+        } catch (IOException e) {
+            log.error("Failed to start upload session! Error:{}", e.getMessage());
+            throw new StorageException("Failed to start upload session!", e);
+        } finally {
+            if (!started) {
+                sessionSlots.release();
+                if (reservation != null) {
+                    reservation.close();
+                }
+            }
+        }
+    }
+
+    // Takes the session out of the open ones, exactly once however many callers race for it
+    private boolean endSession(ChunkedUpload upload) {
+        if (!uploadSessions.remove(upload.getSessionId(), upload)) {
+            return false;
+        }
+
+        sessionSlots.release();
+        return true;
+    }
+
+    @Override
+    public UploadSessionStatus getUploadSession(String sessionId) {
+        return requireUploadSession(sessionId).toStatus();
     }
 
     @Override
-    public StoredFile updateExpiration(String id, ExpirationDetails expirationDetails) {
-        log.info("Updating expiration metadata for file [{}]", id);
-        StoredFile storedFile = storedFileRepository.findById(id).orElse(null);
+    public void writeChunk(String sessionId, int index, long contentLength, InputStream inputStream) {
+        ChunkedUpload upload = requireUploadSession(sessionId);
+        long expectedLength = upload.lengthOf(index);
 
-        if (storedFile == null) {
-            log.error("Could not find file [{}]", id);
-            throw new StoredFileNotFoundException("Failed to fetch file: " + id);
+        if (contentLength != expectedLength) {
+            throw new InvalidUploadException("Chunk " + index + " must be " + expectedLength + " bytes, got " + contentLength);
         }
 
-        // Requested expiration updates
-        long timeDetail = expirationDetails.getExpiresInSeconds();
-        int downloadDetail = expirationDetails.getMaxDownloads();
+        upload.touch();
 
-        // New expiresAt = createdAt + timeDetail (in seconds)
-        Instant updatedExpiresAtTime = storedFile.getCreatedAt().plus(timeDetail, ChronoUnit.SECONDS);
+        try {
+            if (upload.isEncrypted()) {
+                writeEncryptedChunk(upload, index, expectedLength, inputStream);
+            } else {
+                writePlainChunk(upload, index, expectedLength, inputStream);
+            }
+        } catch (IOException e) {
+            log.error("Failed to write chunk {} of session [{}]! Error:{}", index, sessionId, e.getMessage());
+            throw new StorageException("Failed to write chunk!", e);
+        }
+
+        upload.markReceived(index);
+    }
+
+    private void writePlainChunk(ChunkedUpload upload, int index, long expectedLength, InputStream inputStream) throws IOException {
+        long start = upload.offsetOf(index);
+        long end = start + expectedLength;
+        ReadableByteChannel source = Channels.newChannel(inputStream);
+        ByteBuffer buffer = bufferPool.acquire();
+
+        try {
+            long position = start;
 
-        // Remove however many downloads have already been used from the updated max downloads value
-        int usedDownloads = storedFile.getMaxDownloads() - storedFile.getDownloadsRemaining();
-        int updatedDownloadsRemaining = downloadDetail - usedDownloads;
+            while (position < end) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), end - position));
 
-        storedFile.setMaxDownloads(downloadDetail);
-        storedFile.setDownloadsRemaining(updatedDownloadsRemaining);
-        storedFile.setExpiresAt(updatedExpiresAtTime);
+                if (source.read(buffer) == -1) {
+                    break;
+                }
 
-        return storedFileRepository.save(storedFile);
+                // Positional writes leave the channel's own position alone, so chunks can be written concurrently
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    position += upload.getChannel().write(buffer, position);
+                }
+            }
+
+            if (position != end) {
+                throw new InvalidUploadException("Chunk " + index + " ended after " + (position - start) + " of " + expectedLength + " bytes");
+            }
+        } finally {
+            bufferPool.release(buffer);
+        }
+    }
+
+    // Chunks span whole segments, so each segment is sealed as it arrives and written to its own
+    // place in the part file. Only the segment holding the final byte is sealed as the last one.
+    private void writeEncryptedChunk(ChunkedUpload upload, int index, long expectedLength, InputStream inputStream) throws IOException {
+        ContentEncryption.FileCipher cipher = encryption.forHeader(upload.getEncryptionHeader());
+        byte[] plaintext = new byte[ContentEncryption.SEGMENT_SIZE];
+        byte[] ciphertext = new byte[ContentEncryption.SEGMENT_SIZE + ContentEncryption.TAG_SIZE];
+
+        long start = upload.offsetOf(index);
+        long end = start + expectedLength;
+        int lastSegment = (int) ((upload.getTotalSize() - 1) / ContentEncryption.SEGMENT_SIZE);
+
+        for (long offset = start; offset < end; offset += ContentEncryption.SEGMENT_SIZE) {
+            int length = (int) Math.min(ContentEncryption.SEGMENT_SIZE, end - offset);
+            int read = inputStream.readNBytes(plaintext, 0, length);
+
+            if (read != length) {
+                throw new InvalidUploadException("Chunk " + index + " ended after " + (offset - start + read) + " of " + expectedLength + " bytes");
+            }
+
+            int segment = (int) (offset / ContentEncryption.SEGMENT_SIZE);
+            int sealed = cipher.encrypt(segment, segment == lastSegment, plaintext, length, ciphertext);
+
+            ByteBuffer buffer = ByteBuffer.wrap(ciphertext, 0, sealed);
+            long position = ContentEncryption.segmentOffset(segment);
+            while (buffer.hasRemaining()) {
+                position += upload.getChannel().write(buffer, position);
+            }
+        }
     }
 
     @Override
-    public void delete(String id) {
-        log.info("Deleting file [{}]", id);
-        StoredFile storedFile = storedFileRepository.findById(id).orElse(null);
+    public StoredFile completeUploadSession(String sessionId) {
+        ChunkedUpload upload = requireUploadSession(sessionId);
 
-        if (storedFile == null) {
-            log.error("Could not find file [{}]", id);
-            throw new StoredFileNotFoundException("Failed to fetch file: " + id);
+        synchronized (upload) {
+            if (!upload.isComplete()) {
+                throw new InvalidUploadException("Upload session " + sessionId + " is missing chunks");
+            }
+
+            if (!endSession(upload)) {
+                throw new StoredFileNotFoundException("Unknown upload session: " + sessionId);
+            }
+        }
+
+        StoredFile storedFile;
+
+        // Once the row is saved its size counts as stored, until then the reservation covers it
+        try (StorageUsage.Reservation reservation = upload.getReservation()) {
+            upload.getChannel().force(true);
+            upload.getChannel().close();
+
+            // All bytes are already in place, so completing is a rename plus the metadata row
+            String id = newFileId(upload.getFilename());
+            Path destinationFile = resolveDestination(id, upload.getFilename());
+            moveIntoPlace(upload.getPartFile(), destinationFile);
+
+            StoredFile completed = newStoredFile(id, destinationFile.toString(), upload.getTotalSize(), upload.getFilename(), null);
+            if (upload.isEncrypted()) {
+                completed.setEncryption(ContentEncryption.SCHEME);
+                completed.setStoredSizeBytes(Files.size(destinationFile));
+            }
+
+            storedFile = saveStoredFile(completed);
+        } catch (IOException e) {
+            log.error("Failed to complete upload session [{}]! Error:{}", sessionId, e.getMessage());
+            deleteQuietly(upload.getPartFile());
+            throw new StorageException("Failed to complete upload!", e);
+        }
+
+        log.info("RECEIVED CHUNKED FILE: [{}]", upload.getFilename());
+        return storedFile;
+    }
+
+    private ChunkedUpload requireUploadSession(String sessionId) {
+        ChunkedUpload upload = uploadSessions.get(sessionId);
+
+        if (upload == null) {
+            log.error("Could not find upload session [{}]", sessionId);
+            throw new StoredFileNotFoundException("Unknown upload session: " + sessionId);
+        }
+
+        return upload;
+    }
+
+    private Path resolveDestination(String id, String filename) {
+        Path destinationFile = layout.resolve(id, filename);
+
+        if (layout.isSharded()) {
+            try {
+                Files.createDirectories(destinationFile.getParent());
+            } catch (IOException e) {
+                throw new StorageException("Could not create shard directory!", e);
+            }
         }
 
-        storedFileRepository.delete(storedFile);
+        return destinationFile;
+    }
+
+    @Override
+    String newFileId(String filename) {
+        String id = super.newFileId(filename);
+
+        // Sharded content is named after its ID, so never hand out one whose file is still on disk
+        for (int attempt = 1; layout.isSharded() && attempt < MAX_ID_ATTEMPTS
+                && Files.exists(layout.resolve(id, filename)); attempt++) {
+            id = super.newFileId(filename);
+        }
+
+        return id;
+    }
+
+    private StoredFile storeDirect(String id, String filename, long expectedLength, InputStream inputStream) throws IOException {
+        return saveStoredFile(writeDirect(id, filename, expectedLength, inputStream));
     }
 
-    // @Scheduled(cron = "0 */5 * * * *")
-    @Scheduled(cron = "*/30 * * * * *")
-    public void deleteExpiredFilesScanner() {
-        log.info("[SCANNER] Querying for expired files...");
-        List<String> deletedFileIds = storedFileRepository.deleteExpiredReturningIds(Instant.now());
-        log.info("[SCANNER] Deleted {} expired files", deletedFileIds.size());
+    // Writes the body to its own file, compressed when a trial run over the first block says it
+    // pays off and encrypted when encryption is on. The content is hashed as it is read, so the
+    // sniffed head counts once. It goes to a temp file that is only committed under its final
+    // name once complete; the returned row is not saved yet.
+    private StoredFile writeDirect(String id, String filename, long expectedLength, InputStream rawInputStream) throws IOException {
+        Path destinationFile = resolveDestination(id, filename);
+        Path tempFile = createTempFile(destinationFile);
+        MessageDigest contentDigest = ContentHash.newDigest();
+        InputStream inputStream = new DigestInputStream(rawInputStream, contentDigest);
+
+        try {
+            InputStream body = inputStream;
+            byte[] head = null;
+            String codec = null;
+
+            if (compressionEnabled && expectedLength >= ContentCodec.MIN_COMPRESSIBLE_SIZE) {
+                head = inputStream.readNBytes((int) Math.min(expectedLength, STREAM_BUFFER_SIZE));
+
+                if (ContentCodec.isCompressible(head, head.length, compressionLevel, compressionMaxRatio)) {
+                    codec = ContentCodec.GZIP;
+                } else {
+                    body = new SequenceInputStream(new ByteArrayInputStream(head), inputStream);
+                    head = null;
+                }
+            }
+
+            if (codec == null && !encryptionEnabled) {
+                long written = writeStream(body, tempFile, expectedLength, null);
+                verifyLength(tempFile, written, expectedLength);
+                commitFile(tempFile, destinationFile);
+
+                StoredFile storedFile = newStoredFile(id, destinationFile.toString(), written, filename, null);
+                storedFile.setContentSha256(ContentHash.toHex(contentDigest));
+                return storedFile;
+            }
+
+            long written = writeEncoded(head, body, tempFile, expectedLength, codec);
+            verifyLength(tempFile, written, expectedLength);
+            long storedSize = Files.size(tempFile);
+            commitFile(tempFile, destinationFile);
+
+            StoredFile storedFile = newStoredFile(id, destinationFile.toString(), written, filename, null);
+            storedFile.setContentSha256(ContentHash.toHex(contentDigest));
+            storedFile.setCodec(codec);
+            storedFile.setEncryption(encryptionEnabled ? ContentEncryption.SCHEME : null);
+            storedFile.setStoredSizeBytes(storedSize);
+            return storedFile;
+        } finally {
+            // Already gone once committed
+            deleteQuietly(tempFile);
+        }
+    }
+
+    // Hidden, and unique even among uploads of the same flat name. Being on the same volume as the
+    // destination makes the final rename atomic.
+    static Path createTempFile(Path destinationFile) throws IOException {
+        return Files.createTempFile(destinationFile.getParent(), TEMP_PREFIX, TEMP_SUFFIX);
+    }
+
+    // Makes a completely written file visible under its final name. The content is synced before
+    // the rename and the directory after it, so after a crash the name holds either the previous
+    // file or the whole new one, and a row is only ever inserted for content that is on disk.
+    private static void commitFile(Path writtenFile, Path destinationFile) throws IOException {
+        syncFile(writtenFile);
+        moveIntoPlace(writtenFile, destinationFile);
+    }
+
+    private static void syncFile(Path writtenFile) throws IOException {
+        try (FileChannel channel = FileChannel.open(writtenFile, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+    }
+
+    static void moveIntoPlace(Path syncedFile, Path destinationFile) throws IOException {
+        Files.move(syncedFile, destinationFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+        try (FileChannel directory = FileChannel.open(destinationFile.getParent(), StandardOpenOption.READ)) {
+            directory.force(true);
+        } catch (IOException e) {
+            // Not every platform can sync a directory; the rename still happened
+            log.debug("Could not sync directory of [{}]: {}", destinationFile, e.getMessage());
+        }
+    }
+
+    // Runs the body through the codec, then the encryption, whichever apply. The head already read
+    // for sniffing goes first and its buffer is reused for the rest; like writeStream this stops
+    // one buffer past the expected length. Returns the number of content bytes consumed.
+    private long writeEncoded(byte[] head, InputStream inputStream, Path destinationFile, long expectedLength,
+                              String codec) throws IOException {
+        OutputStream target = Files.newOutputStream(destinationFile);
+        try {
+            if (encryptionEnabled) {
+                target = encryption.encrypting(target);
+            }
+            if (codec != null) {
+                target = ContentCodec.compressing(target, compressionLevel);
+            }
+        } catch (IOException | RuntimeException e) {
+            target.close();
+            throw e;
+        }
+
+        try (OutputStream out = target) {
+            byte[] buffer = head != null ? head : new byte[STREAM_BUFFER_SIZE];
+            long written = 0;
+
+            if (head != null) {
+                out.write(head);
+                written = head.length;
+            }
 
-        for (String id: deletedFileIds) {
-            log.info("Deleted StoredFile: [{}]", id);
+            int read;
+            while (written <= expectedLength && (read = inputStream.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+                written += read;
+            }
+
+            return written;
+        }
+    }
+
+    // Writes the content of one bulk upload file; the row is inserted later with the whole batch
+    private StoredFile writeContent(MultipartFile file) throws IOException {
+        String filename = file.getOriginalFilename();
+        String id = newFileId(filename);
+
+        if (deduplicationEnabled) {
+            try (InputStream inputStream = file.getInputStream()) {
+                return writeDeduplicated(id, filename, file.getSize(), inputStream);
+            }
+        }
+
+        try (InputStream inputStream = file.getInputStream()) {
+            return writeDirect(id, filename, file.getSize(), inputStream);
+        }
+    }
+
+    @Override
+    void discardContent(StoredFile storedFile) {
+        if (storedFile.getBlobDigest() == null && layout.isSharded()) {
+            deleteQuietly(Paths.get(storedFile.getStoragePath()));
+        }
+        // Flat files are named after the upload and may belong to another share, so they stay.
+        // Blobs only get a reference along with their row, unreferenced ones are collected later.
+    }
+
+    private StoredFile storeDeduplicated(String id, String filename, long expectedLength, InputStream inputStream) throws IOException {
+        return saveStoredFile(writeDeduplicated(id, filename, expectedLength, inputStream));
+    }
+
+    // Hashes the content while writing it to a temp file, then hands it to the blob store which
+    // either moves it into place or drops it in favour of an identical existing blob. The returned
+    // row is not saved yet; inserting it takes the blob reference.
+    private StoredFile writeDeduplicated(String id, String filename, long expectedLength, InputStream inputStream) throws IOException {
+        // Blobs are addressed by digest, so the name is only validated here
+        layout.resolve(id, filename);
+        Path tempFile = blobStore.createTempFile();
+
+        try {
+            MessageDigest digest = ContentHash.newDigest();
+            long written = writeStream(inputStream, tempFile, expectedLength, digest);
+            verifyLength(tempFile, written, expectedLength);
+            syncFile(tempFile);
+
+            String contentDigest = ContentHash.toHex(digest);
+            Path blobFile = blobStore.commit(tempFile, contentDigest, written);
+
+            return newStoredFile(id, blobFile.toString(), written, filename, contentDigest);
+        } finally {
+            deleteQuietly(tempFile);
+        }
+    }
+
+    private void verifyLength(Path writtenFile, long written, long expectedLength) throws IOException {
+        if (written != expectedLength) {
+            Files.deleteIfExists(writtenFile);
+            throw new StorageException("Upload ended after " + written + " of " + expectedLength + " bytes");
+        }
+    }
+
+    // Pipes the body straight into the destination through one pooled direct buffer, reading at
+    // most one buffer past the expected length so an oversized body is detected without draining it
+    private long writeStream(InputStream inputStream, Path destinationFile, long expectedLength,
+                             MessageDigest digest) throws IOException {
+        ReadableByteChannel source = Channels.newChannel(inputStream);
+        ByteBuffer buffer = bufferPool.acquire();
+
+        try (FileChannel target = FileChannel.open(destinationFile,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            long written = 0;
+
+            while (written <= expectedLength && source.read(buffer) != -1) {
+                buffer.flip();
+                if (digest != null) {
+                    buffer.mark();
+                    digest.update(buffer);
+                    buffer.reset();
+                }
+                while (buffer.hasRemaining()) {
+                    written += target.write(buffer);
+                }
+                buffer.clear();
+            }
+
+            return written;
+        } finally {
+            bufferPool.release(buffer);
+        }
+    }
+
+    @Override
+    void moveContent(StoredFile storedFile, String newId) throws IOException {
+        if (storedFile.getBlobDigest() == null && layout.isSharded()) {
+            // The content is named after the ID, so it moves along with it
+            Path retryDestination = resolveDestination(newId, storedFile.getOriginalFilename());
+            Files.move(Paths.get(storedFile.getStoragePath()), retryDestination);
+            storedFile.setStoragePath(retryDestination.toString());
+        }
+    }
+
+    private void deleteQuietly(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            log.warn("Could not remove partial file [{}]: {}", file, e.getMessage());
+        }
+    }
+
+    @Override
+    StoredFileResource openResource(StoredFile storedFile) {
+        return new StoredFileResource(storedFile, encryption);
+    }
+
+    @Override
+    void deleteContent(StoredFile storedFile) {
+        // Blobs lost their reference along with the row and are left to the blob collector
+        if (storedFile.getBlobDigest() == null
+                && !getStoredFileRepository().existsByStoragePath(storedFile.getStoragePath())) {
+            // Flat uploads with the same name share one file, only the last row takes it along
+            deleteQuietly(Paths.get(storedFile.getStoragePath()));
+        }
+    }
+
+    @Scheduled(fixedDelay = 60_000)
+    public void expireUploadSessions() {
+        long cutoff = System.currentTimeMillis() - uploadSessionTimeoutMillis;
+
+        for (ChunkedUpload upload : uploadSessions.values()) {
+            if (upload.getLastActivityMillis() < cutoff && endSession(upload)) {
+                try {
+                    upload.getChannel().close();
+                } catch (IOException e) {
+                    log.warn("Could not close part file [{}]: {}", upload.getPartFile(), e.getMessage());
+                }
+                deleteQuietly(upload.getPartFile());
+                upload.getReservation().close();
+                log.info("Expired idle upload session [{}]", upload.getSessionId());
+            }
+        }
+
+        try {
+            removeStaleParts();
+        } catch (IOException e) {
+            log.warn("Could not clear stale part files: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Removes part files nobody wrote to for longer than the session timeout. Sessions are held in
+     * memory, so such parts belong to a previous run and can never complete. Other instances
+     * sharing the volume keep writing to theirs, so their parts are left alone.
+     */
+    private void removeStaleParts() throws IOException {
+        long cutoff = System.currentTimeMillis() - uploadSessionTimeoutMillis;
+
+        try (DirectoryStream<Path> parts = Files.newDirectoryStream(uploadsLocation)) {
+            for (Path part : parts) {
+                try {
+                    if (Files.getLastModifiedTime(part).toMillis() < cutoff && Files.deleteIfExists(part)) {
+                        log.info("Removed stale part file [{}]", part);
+                    }
+                } catch (NoSuchFileException e) {
+                    // Completed or removed since the directory was listed
+                }
+            }
         }
     }
 }
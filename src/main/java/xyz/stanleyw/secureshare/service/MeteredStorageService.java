@@ -0,0 +1,196 @@
+package xyz.stanleyw.secureshare.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.context.annotation.Primary;
+import org.springframework.core.io.Resource;
+import org.springframework.stereotype.Service;
+import org.springframework.web.multipart.MultipartFile;
+import xyz.stanleyw.secureshare.entity.StoredFile;
+import xyz.stanleyw.secureshare.model.ExpirationDetails;
+import xyz.stanleyw.secureshare.model.UploadSessionStatus;
+
+import java.io.InputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+/**
+ * Records latency, throughput and concurrency of the storage hot paths and delegates the actual
+ * work to the active {@link StorageBackend}.
+ * <p>
+ * Meters, all visible under {@code /actuator/metrics}:
+ * <ul>
+ *     <li>{@code storage.operation} timer with percentile histograms, tagged by {@code operation}
+ *     and {@code outcome}</li>
+ *     <li>{@code storage.bytes.written} counter of bytes accepted by successful uploads and chunks,
+ *     its rate is the write throughput</li>
+ *     <li>{@code storage.uploads.active} gauge of uploads and chunk writes in progress</li>
+ * </ul>
+ */
+@Primary
+@Service
+public class MeteredStorageService implements StorageService {
+    private final StorageService delegate;
+
+    private final MeterRegistry meterRegistry;
+
+    private final Counter bytesWritten;
+
+    private final AtomicInteger activeUploads = new AtomicInteger();
+
+    // Registered once up front, looking a timer up in the registry on every call is not free
+    private final Map<String, OperationTimers> timers;
+
+    private static final List<String> OPERATIONS = List.of(
+            "store", "store_stream", "store_all", "create_upload_session", "write_chunk",
+            "complete_upload_session", "load", "get_metadata", "consume_download", "is_resumable",
+            "consume_downloads", "update_expiration", "update_expirations", "delete");
+
+    private record OperationTimers(Timer success, Timer error) {
+    }
+
+    public MeteredStorageService(StorageBackend delegate, MeterRegistry meterRegistry) {
+        this.delegate = delegate;
+        this.meterRegistry = meterRegistry;
+        this.timers = OPERATIONS.stream().collect(Collectors.toUnmodifiableMap(
+                operation -> operation,
+                operation -> new OperationTimers(
+                        registerTimer(meterRegistry, operation, "success"),
+                        registerTimer(meterRegistry, operation, "error"))));
+        this.bytesWritten = Counter.builder("storage.bytes.written")
+                .description("Bytes written by successful uploads and chunk writes")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+        meterRegistry.gauge("storage.uploads.active", activeUploads);
+    }
+
+    @Override
+    public void init() {
+        delegate.init();
+    }
+
+    @Override
+    public StoredFile store(MultipartFile file) {
+        StoredFile storedFile = upload("store", () -> delegate.store(file));
+        bytesWritten.increment(storedFile.getSizeBytes());
+        return storedFile;
+    }
+
+    @Override
+    public StoredFile storeStream(String filename, long contentLength, InputStream inputStream) {
+        StoredFile storedFile = upload("store_stream", () -> delegate.storeStream(filename, contentLength, inputStream));
+        bytesWritten.increment(storedFile.getSizeBytes());
+        return storedFile;
+    }
+
+    @Override
+    public List<StoredFile> storeAll(List<MultipartFile> files) {
+        List<StoredFile> storedFiles = upload("store_all", () -> delegate.storeAll(files));
+        storedFiles.forEach(storedFile -> bytesWritten.increment(storedFile.getSizeBytes()));
+        return storedFiles;
+    }
+
+    @Override
+    public UploadSessionStatus createUploadSession(String filename, long totalSize) {
+        return time("create_upload_session", () -> delegate.createUploadSession(filename, totalSize));
+    }
+
+    @Override
+    public UploadSessionStatus getUploadSession(String sessionId) {
+        return delegate.getUploadSession(sessionId);
+    }
+
+    @Override
+    public void writeChunk(String sessionId, int index, long contentLength, InputStream inputStream) {
+        upload("write_chunk", () -> {
+            delegate.writeChunk(sessionId, index, contentLength, inputStream);
+            return null;
+        });
+        bytesWritten.increment(contentLength);
+    }
+
+    @Override
+    public StoredFile completeUploadSession(String sessionId) {
+        // The bytes were already counted chunk by chunk
+        return time("complete_upload_session", () -> delegate.completeUploadSession(sessionId));
+    }
+
+    @Override
+    public Resource loadAsResource(String id) {
+        return time("load", () -> delegate.loadAsResource(id));
+    }
+
+    @Override
+    public StoredFile getMetadata(String id) {
+        return time("get_metadata", () -> delegate.getMetadata(id));
+    }
+
+    @Override
+    public String consumeDownload(String id) {
+        return time("consume_download", () -> delegate.consumeDownload(id));
+    }
+
+    @Override
+    public boolean isResumable(String id, String token) {
+        return time("is_resumable", () -> delegate.isResumable(id, token));
+    }
+
+    @Override
+    public List<StoredFileResource> consumeDownloads(List<String> ids) {
+        return time("consume_downloads", () -> delegate.consumeDownloads(ids));
+    }
+
+    @Override
+    public StoredFile updateExpiration(String id, ExpirationDetails expirationDetails) {
+        return time("update_expiration", () -> delegate.updateExpiration(id, expirationDetails));
+    }
+
+    @Override
+    public List<StoredFile> updateExpirations(List<String> ids, ExpirationDetails expirationDetails) {
+        return time("update_expirations", () -> delegate.updateExpirations(ids, expirationDetails));
+    }
+
+    @Override
+    public void delete(String id) {
+        time("delete", () -> {
+            delegate.delete(id);
+            return null;
+        });
+    }
+
+    private <T> T upload(String operation, Supplier<T> action) {
+        activeUploads.incrementAndGet();
+        try {
+            return time(operation, action);
+        } finally {
+            activeUploads.decrementAndGet();
+        }
+    }
+
+    private <T> T time(String operation, Supplier<T> action) {
+        OperationTimers operationTimers = timers.get(operation);
+        Timer.Sample sample = Timer.start(meterRegistry);
+        Timer outcome = operationTimers.error();
+
+        try {
+            T result = action.get();
+            outcome = operationTimers.success();
+            return result;
+        } finally {
+            sample.stop(outcome);
+        }
+    }
+
+    private static Timer registerTimer(MeterRegistry meterRegistry, String operation, String outcome) {
+        return Timer.builder("storage.operation")
+                .description("Latency of storage operations")
+                .tag("operation", operation)
+                .tag("outcome", outcome)
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+    }
+}
@@ -0,0 +1,90 @@
+package xyz.stanleyw.secureshare.service;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+import xyz.stanleyw.secureshare.exception.InvalidUploadException;
+import xyz.stanleyw.secureshare.model.UploadSessionStatus;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * State of one chunked upload sent to the object store as a multipart upload, chunk {@code i}
+ * becoming part {@code i + 1}. Chunks may arrive in any order and in parallel; a chunk sent again
+ * replaces its part. The session holds room for its total size against the quota from start to
+ * end, so concurrent sessions can not overbook.
+ */
+@Getter
+class MultipartObjectUpload {
+    private final String sessionId;
+
+    private final String filename;
+
+    private final long totalSize;
+
+    private final long chunkSize;
+
+    private final int chunkCount;
+
+    private final String key;
+
+    private final String uploadId;
+
+    private final StorageUsage.Reservation reservation;
+
+    // ETag of every part received so far, null for the ones still missing
+    @Getter(AccessLevel.NONE)
+    private final String[] partETags;
+
+    private volatile long lastActivityMillis;
+
+    MultipartObjectUpload(String sessionId, String filename, long totalSize, long chunkSize, String key, String uploadId,
+                          StorageUsage.Reservation reservation) {
+        this.sessionId = sessionId;
+        this.filename = filename;
+        this.totalSize = totalSize;
+        this.chunkSize = chunkSize;
+        this.chunkCount = (int) ((totalSize + chunkSize - 1) / chunkSize);
+        this.key = key;
+        this.uploadId = uploadId;
+        this.reservation = reservation;
+        this.partETags = new String[chunkCount];
+        this.lastActivityMillis = System.currentTimeMillis();
+    }
+
+    long lengthOf(int index) {
+        if (index < 0 || index >= chunkCount) {
+            throw new InvalidUploadException("Chunk " + index + " is outside of 0.." + (chunkCount - 1));
+        }
+
+        return Math.min(chunkSize, totalSize - index * chunkSize);
+    }
+
+    void touch() {
+        lastActivityMillis = System.currentTimeMillis();
+    }
+
+    synchronized void markReceived(int index, String eTag) {
+        partETags[index] = eTag;
+    }
+
+    synchronized boolean isComplete() {
+        return Arrays.stream(partETags).allMatch(eTag -> eTag != null);
+    }
+
+    synchronized List<String> partETags() {
+        return List.of(partETags);
+    }
+
+    synchronized UploadSessionStatus toStatus() {
+        List<Integer> received = new ArrayList<>();
+        for (int index = 0; index < chunkCount; index++) {
+            if (partETags[index] != null) {
+                received.add(index);
+            }
+        }
+
+        return new UploadSessionStatus(sessionId, filename, totalSize, chunkSize, chunkCount, received);
+    }
+}
@@ -0,0 +1,47 @@
+package xyz.stanleyw.secureshare.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.OptionalLong;
+
+/**
+ * The handful of S3-style object operations the object-store backend is built on. Every call is
+ * a single request against the store; failures surface as {@link IOException}.
+ */
+public interface ObjectStore {
+
+    /**
+     * Makes sure the bucket exists, creating it when it does not.
+     */
+    void init() throws IOException;
+
+    void put(String key, InputStream content, long length) throws IOException;
+
+    String createMultipartUpload(String key) throws IOException;
+
+    /**
+     * Uploads one part of a multipart upload and returns its ETag. Part numbers start at 1, parts
+     * of one upload may be sent concurrently and in any order.
+     */
+    String uploadPart(String key, String uploadId, int partNumber, InputStream content, long length) throws IOException;
+
+    /**
+     * Assembles the uploaded parts into the object, the ETags in part number order.
+     */
+    void completeMultipartUpload(String key, String uploadId, List<String> partETags) throws IOException;
+
+    void abortMultipartUpload(String key, String uploadId) throws IOException;
+
+    /**
+     * The bytes {@code start} through {@code end}, both inclusive, in a single ranged GET.
+     */
+    InputStream get(String key, long start, long end) throws IOException;
+
+    /**
+     * Size of the object, empty when there is none under the key.
+     */
+    OptionalLong size(String key) throws IOException;
+
+    void delete(String key) throws IOException;
+}
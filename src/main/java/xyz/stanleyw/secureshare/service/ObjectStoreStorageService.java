@@ -0,0 +1,558 @@
+package xyz.stanleyw.secureshare.service;
+
+import jakarta.annotation.PreDestroy;
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.web.multipart.MultipartFile;
+import xyz.stanleyw.secureshare.config.StorageProperties;
+import xyz.stanleyw.secureshare.entity.StoredFile;
+import xyz.stanleyw.secureshare.exception.InvalidUploadException;
+import xyz.stanleyw.secureshare.exception.StorageException;
+import xyz.stanleyw.secureshare.exception.StoredFileNotFoundException;
+import xyz.stanleyw.secureshare.exception.TooManyUploadSessionsException;
+import xyz.stanleyw.secureshare.exception.UploadTooLargeException;
+import xyz.stanleyw.secureshare.model.UploadSessionStatus;
+import xyz.stanleyw.secureshare.repository.StoredFileRepository;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Keeps content in an S3-compatible object store, so any number of stateless app nodes can share
+ * one storage tier. Share metadata stays in {@code stored_files}; a row's storage path names its
+ * object.
+ * <p>
+ * Uploads that fit in one part are a single PUT. Larger ones become a multipart upload: the body is
+ * cut into parts as it arrives and up to {@code partUploadThreads} parts of it are sent at once, so
+ * an upload is not limited to what a single connection to the store can carry. Parts in flight are
+ * held in memory. A chunked upload session is one multipart upload, every chunk streamed straight
+ * through as its part. Downloads read exactly the requested bytes with ranged GETs.
+ * <p>
+ * Objects are keyed by a random UUID rather than the share ID, so an ID retried after a collision
+ * never moves content. Upload sessions still live on the node that started them, and
+ * deduplication, compression and encryption are only available on the filesystem backend.
+ * Multipart uploads abandoned by a crash are best cleared by a bucket lifecycle rule.
+ */
+@Getter
+@Service
+@ConditionalOnProperty(name = "storage.backend", havingValue = "object-store")
+@Slf4j
+public class ObjectStoreStorageService extends AbstractStorageBackend {
+    private final ObjectStore objectStore;
+
+    private final long maxUploadSize;
+
+    private final long partSize;
+
+    private final int partUploadThreads;
+
+    private final long chunkSize;
+
+    private final long maxChunkedUploadSize;
+
+    private final long uploadSessionTimeoutMillis;
+
+    private final int maxBulkFiles;
+
+    @Getter(AccessLevel.NONE)
+    private final ExecutorService partUploadExecutor;
+
+    @Getter(AccessLevel.NONE)
+    private final ExecutorService bulkWriteExecutor;
+
+    @Getter(AccessLevel.NONE)
+    private final Map<String, MultipartObjectUpload> uploadSessions = new ConcurrentHashMap<>();
+
+    // One permit per session that may still be opened
+    @Getter(AccessLevel.NONE)
+    private final Semaphore sessionSlots;
+
+    // Storage paths of object-backed rows are the object key behind this prefix
+    static final String STORAGE_PATH_PREFIX = "object:";
+
+    // S3 rejects smaller parts, except for the last one, and more than MAX_PARTS of them
+    static final long MIN_PART_SIZE = 5L * 1024 * 1024;
+
+    static final int MAX_PARTS = 10_000;
+
+    public ObjectStoreStorageService(StorageProperties storageProperties,
+                                     StoredFileRepository storedFileRepository,
+                                     ObjectStore objectStore,
+                                     StoredFileMetadataCache metadataCache,
+                                     StorageUsage storageUsage,
+                                     @Value("${spring.threads.virtual.enabled:false}") boolean virtualThreads) {
+        super(storageProperties, storedFileRepository, metadataCache, storageUsage);
+
+        if (storageProperties.isDeduplicationEnabled() || storageProperties.isCompressionEnabled()
+                || storageProperties.isEncryptionEnabled()) {
+            throw new StorageException("Deduplication, compression and encryption are not supported by the object-store backend.");
+        }
+
+        this.objectStore = objectStore;
+        this.maxUploadSize = storageProperties.getMaxUploadSize().toBytes();
+        this.partSize = storageProperties.getObjectStore().getPartSize().toBytes();
+        this.partUploadThreads = storageProperties.getObjectStore().getPartUploadThreads();
+        this.chunkSize = storageProperties.getChunkSize().toBytes();
+        this.maxChunkedUploadSize = storageProperties.getMaxChunkedUploadSize().toBytes();
+        this.uploadSessionTimeoutMillis = storageProperties.getUploadSessionTimeout().toMillis();
+        this.sessionSlots = new Semaphore(storageProperties.getMaxUploadSessions());
+        this.maxBulkFiles = storageProperties.getMaxBulkFiles();
+
+        // Parts are buffered in arrays, chunks are sent as parts of their own
+        if (partSize < MIN_PART_SIZE || partSize > Integer.MAX_VALUE || chunkSize < MIN_PART_SIZE) {
+            throw new StorageException("Part and chunk size must be at least " + MIN_PART_SIZE
+                    + " bytes and parts at most " + Integer.MAX_VALUE + " bytes for the object-store backend.");
+        }
+
+        if (partCount(maxUploadSize, partSize) > MAX_PARTS || partCount(maxChunkedUploadSize, chunkSize) > MAX_PARTS) {
+            throw new StorageException("The largest upload would take more than " + MAX_PARTS + " parts.");
+        }
+
+        // The pool sizes still cap concurrent uploads, virtual workers just don't hold an OS thread each
+        this.partUploadExecutor = virtualThreads
+                ? Executors.newFixedThreadPool(partUploadThreads, Thread.ofVirtual().name("part-upload-", 0).factory())
+                : Executors.newFixedThreadPool(partUploadThreads);
+        this.bulkWriteExecutor = virtualThreads
+                ? Executors.newFixedThreadPool(storageProperties.getBulkUploadThreads(), Thread.ofVirtual().name("bulk-write-", 0).factory())
+                : Executors.newFixedThreadPool(storageProperties.getBulkUploadThreads());
+    }
+
+    private static long partCount(long size, long partSize) {
+        return (size + partSize - 1) / partSize;
+    }
+
+    static String storagePathOf(String key) {
+        return STORAGE_PATH_PREFIX + key;
+    }
+
+    static boolean isStoredObject(String storagePath) {
+        return storagePath.startsWith(STORAGE_PATH_PREFIX);
+    }
+
+    static String keyOf(String storagePath) {
+        return storagePath.substring(STORAGE_PATH_PREFIX.length());
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        bulkWriteExecutor.shutdown();
+        partUploadExecutor.shutdown();
+    }
+
+    @Override
+    public void init() {
+        try {
+            objectStore.init();
+        } catch (IOException e) {
+            throw new StorageException("Could not initialize storage!", e);
+        }
+    }
+
+    @Override
+    public StoredFile store(MultipartFile file) {
+        if (file.isEmpty()) {
+            throw new StorageException("Failed to store empty file.");
+        }
+
+        if (file.getOriginalFilename() == null) {
+            throw new StorageException("Failed to store file with null file name");
+        }
+
+        StoredFile storedFile;
+
+        try (InputStream inputStream = file.getInputStream()) {
+            storedFile = storeObject(file.getOriginalFilename(), file.getSize(), inputStream);
+        } catch (IOException e) {
+            log.error("Failed to store file! Error:{}", e.getMessage());
+            throw new StorageException("Failed to store file!", e);
+        }
+
+        log.info("RECEIVED FILE: [{}]", file.getOriginalFilename());
+        return storedFile;
+    }
+
+    @Override
+    public StoredFile storeStream(String filename, long contentLength, InputStream inputStream) {
+        if (contentLength <= 0) {
+            throw new StorageException("Failed to store empty file.");
+        }
+
+        if (contentLength > maxUploadSize) {
+            throw new UploadTooLargeException("Upload of " + contentLength + " bytes exceeds the limit of " + maxUploadSize);
+        }
+
+        if (filename == null) {
+            throw new StorageException("Failed to store file with null file name");
+        }
+
+        StoredFile storedFile;
+
+        try {
+            storedFile = storeObject(filename, contentLength, inputStream);
+        } catch (IOException e) {
+            log.error("Failed to store streamed file! Error:{}", e.getMessage());
+            throw new StorageException("Failed to store file!", e);
+        }
+
+        log.info("RECEIVED STREAMED FILE: [{}]", filename);
+        return storedFile;
+    }
+
+    @Override
+    public List<StoredFile> storeAll(List<MultipartFile> files) {
+        if (files.isEmpty()) {
+            throw new InvalidUploadException("Failed to store an empty set of files.");
+        }
+
+        if (files.size() > maxBulkFiles) {
+            throw new InvalidUploadException("Bulk upload of " + files.size() + " files exceeds the limit of " + maxBulkFiles);
+        }
+
+        for (MultipartFile file : files) {
+            if (file.isEmpty()) {
+                throw new StorageException("Failed to store empty file.");
+            }
+
+            if (file.getOriginalFilename() == null) {
+                throw new StorageException("Failed to store file with null file name");
+            }
+        }
+
+        // Files go up side by side on their own pool, their parts on the part pool they wait for
+        List<Future<StoredFile>> writes = new ArrayList<>(files.size());
+        for (MultipartFile file : files) {
+            writes.add(bulkWriteExecutor.submit(() -> {
+                try (InputStream inputStream = file.getInputStream()) {
+                    return writeContent(file.getOriginalFilename(), file.getSize(), inputStream);
+                }
+            }));
+        }
+
+        List<StoredFile> written = awaitWrites(writes);
+        saveAll(written);
+        log.info("RECEIVED {} FILES IN BULK", written.size());
+        return written;
+    }
+
+    @Override
+    public UploadSessionStatus createUploadSession(String filename, long totalSize) {
+        if (totalSize <= 0) {
+            throw new InvalidUploadException("Failed to start upload of an empty file.");
+        }
+
+        if (totalSize > maxChunkedUploadSize) {
+            throw new UploadTooLargeException("Upload of " + totalSize + " bytes exceeds the limit of " + maxChunkedUploadSize);
+        }
+
+        if (filename == null) {
+            throw new StorageException("Failed to store file with null file name");
+        }
+
+        String sessionId = UUID.randomUUID().toString();
+        String key = UUID.randomUUID().toString();
+
+        if (!sessionSlots.tryAcquire()) {
+            log.warn("Upload session for [{}] turned away, {} sessions already open", filename, uploadSessions.size());
+            throw new TooManyUploadSessionsException("Too many upload sessions open, try again later.");
+        }
+
+        StorageUsage.Reservation reservation = null;
+        boolean started = false;
+
+        try {
+            // Held until the session completes or expires, so chunks never find their room taken
+            reservation = getStorageUsage().reserve(totalSize);
+
+            MultipartObjectUpload upload = new MultipartObjectUpload(sessionId, filename, totalSize, chunkSize,
+                    key, objectStore.createMultipartUpload(key), reservation);
+            uploadSessions.put(sessionId, upload);
+            started = true;
+
+            log.info("Started upload session [{}] for [{}] ({} chunks)", sessionId, filename, upload.getChunkCount());
+            return upload.toStatus();
+        } catch (IOException e) {
+            log.error("Failed to start upload session! Error:{}", e.getMessage());
+            throw new StorageException("Failed to start upload session!", e);
+        } finally {
+            if (!started) {
+                sessionSlots.release();
+                if (reservation != null) {
+                    reservation.close();
+                }
+            }
+        }
+    }
+
+    // Takes the session out of the open ones, exactly once however many callers race for it
+    private boolean endSession(MultipartObjectUpload upload) {
+        if (!uploadSessions.remove(upload.getSessionId(), upload)) {
+            return false;
+        }
+
+        sessionSlots.release();
+        return true;
+    }
+
+    @Override
+    public UploadSessionStatus getUploadSession(String sessionId) {
+        return requireUploadSession(sessionId).toStatus();
+    }
+
+    @Override
+    public void writeChunk(String sessionId, int index, long contentLength, InputStream inputStream) {
+        MultipartObjectUpload upload = requireUploadSession(sessionId);
+        long expectedLength = upload.lengthOf(index);
+
+        if (contentLength != expectedLength) {
+            throw new InvalidUploadException("Chunk " + index + " must be " + expectedLength + " bytes, got " + contentLength);
+        }
+
+        upload.touch();
+
+        try {
+            String eTag = objectStore.uploadPart(upload.getKey(), upload.getUploadId(), index + 1, inputStream, expectedLength);
+            upload.markReceived(index, eTag);
+        } catch (IOException e) {
+            log.error("Failed to write chunk {} of session [{}]! Error:{}", index, sessionId, e.getMessage());
+            throw new StorageException("Failed to write chunk!", e);
+        }
+    }
+
+    @Override
+    public StoredFile completeUploadSession(String sessionId) {
+        MultipartObjectUpload upload = requireUploadSession(sessionId);
+
+        synchronized (upload) {
+            if (!upload.isComplete()) {
+                throw new InvalidUploadException("Upload session " + sessionId + " is missing chunks");
+            }
+
+            if (!endSession(upload)) {
+                throw new StoredFileNotFoundException("Unknown upload session: " + sessionId);
+            }
+        }
+
+        // Once the row is saved its size counts as stored, until then the reservation covers it
+        try (StorageUsage.Reservation reservation = upload.getReservation()) {
+            try {
+                objectStore.completeMultipartUpload(upload.getKey(), upload.getUploadId(), upload.partETags());
+            } catch (IOException e) {
+                log.error("Failed to complete upload session [{}]! Error:{}", sessionId, e.getMessage());
+                abortQuietly(upload.getKey(), upload.getUploadId());
+                throw new StorageException("Failed to complete upload!", e);
+            }
+
+            StoredFile storedFile = newStoredFile(newFileId(upload.getFilename()), storagePathOf(upload.getKey()),
+                    upload.getTotalSize(), upload.getFilename(), null);
+
+            try {
+                saveStoredFile(storedFile);
+            } catch (IOException e) {
+                discardContent(storedFile);
+                throw new StorageException("Failed to complete upload!", e);
+            } catch (RuntimeException e) {
+                discardContent(storedFile);
+                throw e;
+            }
+
+            log.info("RECEIVED CHUNKED FILE: [{}]", upload.getFilename());
+            return storedFile;
+        }
+    }
+
+    private MultipartObjectUpload requireUploadSession(String sessionId) {
+        MultipartObjectUpload upload = uploadSessions.get(sessionId);
+
+        if (upload == null) {
+            log.error("Could not find upload session [{}]", sessionId);
+            throw new StoredFileNotFoundException("Unknown upload session: " + sessionId);
+        }
+
+        return upload;
+    }
+
+    private StoredFile storeObject(String filename, long contentLength, InputStream inputStream) throws IOException {
+        StoredFile storedFile = writeContent(filename, contentLength, inputStream);
+
+        try {
+            return saveStoredFile(storedFile);
+        } catch (IOException | RuntimeException e) {
+            discardContent(storedFile);
+            throw e;
+        }
+    }
+
+    // Uploads the content under a fresh key, hashing it on the way; the returned row is not saved yet
+    private StoredFile writeContent(String filename, long contentLength, InputStream inputStream) throws IOException {
+        String key = UUID.randomUUID().toString();
+        MessageDigest contentDigest = ContentHash.newDigest();
+        writeObject(key, new DigestInputStream(inputStream, contentDigest), contentLength);
+
+        StoredFile storedFile = newStoredFile(newFileId(filename), storagePathOf(key), contentLength, filename, null);
+        storedFile.setContentSha256(ContentHash.toHex(contentDigest));
+        return storedFile;
+    }
+
+    // One PUT when the body fits in a part, a multipart upload otherwise. Like the filesystem
+    // backend this reads at most one byte past the expected length, so an oversized body is
+    // detected without draining it.
+    private void writeObject(String key, InputStream inputStream, long expectedLength) throws IOException {
+        if (expectedLength <= partSize) {
+            // Buffered, so the SDK can replay the body when it retries a failed request
+            byte[] content = readPart(inputStream, 0, expectedLength);
+            verifyEnded(inputStream, expectedLength);
+            objectStore.put(key, new ByteArrayInputStream(content), content.length);
+            return;
+        }
+
+        String uploadId = objectStore.createMultipartUpload(key);
+        List<Future<String>> parts = new ArrayList<>();
+        // One permit per part held in memory, so reading ahead stops once enough parts are waiting
+        Semaphore inFlight = new Semaphore(partUploadThreads);
+
+        try {
+            for (long offset = 0; offset < expectedLength; offset += partSize) {
+                byte[] part = readPart(inputStream, offset, expectedLength);
+                int partNumber = parts.size() + 1;
+
+                inFlight.acquire();
+                parts.add(partUploadExecutor.submit(() -> {
+                    try {
+                        return objectStore.uploadPart(key, uploadId, partNumber, new ByteArrayInputStream(part), part.length);
+                    } finally {
+                        inFlight.release();
+                    }
+                }));
+            }
+
+            verifyEnded(inputStream, expectedLength);
+            objectStore.completeMultipartUpload(key, uploadId, awaitParts(parts));
+        } catch (IOException | RuntimeException e) {
+            awaitQuietly(parts);
+            abortQuietly(key, uploadId);
+            throw e;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            awaitQuietly(parts);
+            abortQuietly(key, uploadId);
+            throw new StorageException("Interrupted while uploading parts", e);
+        }
+    }
+
+    private byte[] readPart(InputStream inputStream, long offset, long expectedLength) throws IOException {
+        int length = (int) Math.min(partSize, expectedLength - offset);
+        byte[] part = inputStream.readNBytes(length);
+
+        if (part.length != length) {
+            throw new StorageException("Upload ended after " + (offset + part.length) + " of " + expectedLength + " bytes");
+        }
+
+        return part;
+    }
+
+    private static void verifyEnded(InputStream inputStream, long expectedLength) throws IOException {
+        if (inputStream.read() != -1) {
+            throw new StorageException("Upload is longer than the expected " + expectedLength + " bytes");
+        }
+    }
+
+    private static List<String> awaitParts(List<Future<String>> parts) throws IOException, InterruptedException {
+        List<String> eTags = new ArrayList<>(parts.size());
+
+        for (Future<String> part : parts) {
+            try {
+                eTags.add(part.get());
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException ioException) {
+                    throw ioException;
+                }
+                throw toStorageException(e.getCause());
+            }
+        }
+
+        return eTags;
+    }
+
+    // Parts still being sent could land after an abort and be kept, so they finish first
+    private static void awaitQuietly(List<Future<String>> parts) {
+        for (Future<String> part : parts) {
+            try {
+                part.get();
+            } catch (ExecutionException e) {
+                // Already failed, nothing left to wait for
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private void abortQuietly(String key, String uploadId) {
+        try {
+            objectStore.abortMultipartUpload(key, uploadId);
+        } catch (IOException e) {
+            log.warn("Could not abort multipart upload of [{}]: {}", key, e.getMessage());
+        }
+    }
+
+    private void deleteQuietly(String key) {
+        try {
+            objectStore.delete(key);
+        } catch (IOException e) {
+            log.warn("Could not remove object [{}]: {}", key, e.getMessage());
+        }
+    }
+
+    @Override
+    StoredFileResource openResource(StoredFile storedFile) {
+        if (!isStoredObject(storedFile.getStoragePath())) {
+            throw new StorageException("File is not in the object store: " + storedFile.getId());
+        }
+
+        return new StoredObjectResource(storedFile, objectStore, keyOf(storedFile.getStoragePath()));
+    }
+
+    @Override
+    void deleteContent(StoredFile storedFile) {
+        // Every row has an object of its own, so there is no reference to check first
+        if (isStoredObject(storedFile.getStoragePath())) {
+            deleteQuietly(keyOf(storedFile.getStoragePath()));
+        }
+    }
+
+    @Override
+    void discardContent(StoredFile storedFile) {
+        deleteQuietly(keyOf(storedFile.getStoragePath()));
+    }
+
+    @Scheduled(fixedDelay = 60_000)
+    public void expireUploadSessions() {
+        long cutoff = System.currentTimeMillis() - uploadSessionTimeoutMillis;
+
+        for (MultipartObjectUpload upload : uploadSessions.values()) {
+            if (upload.getLastActivityMillis() < cutoff && endSession(upload)) {
+                abortQuietly(upload.getKey(), upload.getUploadId());
+                upload.getReservation().close();
+                log.info("Expired idle upload session [{}]", upload.getSessionId());
+            }
+        }
+    }
+}
@@ -0,0 +1,302 @@
+package xyz.stanleyw.secureshare.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferFactory;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+import xyz.stanleyw.secureshare.config.StorageProperties;
+import xyz.stanleyw.secureshare.entity.StoredFile;
+import xyz.stanleyw.secureshare.exception.StorageException;
+import xyz.stanleyw.secureshare.exception.StoredFileGoneException;
+import xyz.stanleyw.secureshare.exception.StoredFileNotFoundException;
+import xyz.stanleyw.secureshare.exception.UploadTooLargeException;
+import xyz.stanleyw.secureshare.repository.ReactiveStoredFileRepository;
+
+import java.io.IOException;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Single uploads, metadata and downloads for the reactive stack.
+ * <p>
+ * Content moves between the connection and an {@link AsynchronousFileChannel} one buffer at a
+ * time, and the next buffer is only requested once the previous one is written, so a slow client
+ * holds a few buffers but never a thread. Rows go through R2DBC. Uploads are stored as sent, so
+ * this stack only runs on the filesystem backend with compression, encryption and deduplication
+ * off; files the servlet stack stored encoded are still served, decoded on a worker thread.
+ * <p>
+ * Like the servlet stack, an upload is written to a temp file next to its final name, synced and
+ * renamed into place, so readers never see it half written and a failed upload leaves whatever
+ * held the name before. Each upload reserves its length against the quota, or the upload size
+ * limit when the length is unknown. The per-client slots and bandwidth limits of the upload
+ * admission filter are servlet only and do not apply here.
+ */
+@Slf4j
+@Service
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.REACTIVE)
+public class ReactiveStorageService {
+    private final ReactiveStoredFileRepository storedFileRepository;
+
+    // Only used to decode files the servlet stack stored compressed or encrypted
+    private final StorageService storageService;
+
+    private final StorageUsage storageUsage;
+
+    private final StorageLayout layout;
+
+    private final long maxUploadSize;
+
+    private final FileIdGenerator idGenerator = AbstractStorageBackend.newIdGenerator();
+
+    private final DataBufferFactory bufferFactory = DefaultDataBufferFactory.sharedInstance;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    public ReactiveStorageService(StorageProperties storageProperties,
+                                  ReactiveStoredFileRepository storedFileRepository,
+                                  StorageService storageService,
+                                  StorageUsage storageUsage) {
+        if (storageProperties.getBackend() != StorageProperties.Backend.FILESYSTEM) {
+            throw new StorageException("The reactive stack only supports the filesystem backend.");
+        }
+
+        if (storageProperties.isCompressionEnabled() || storageProperties.isEncryptionEnabled()
+                || storageProperties.isDeduplicationEnabled()) {
+            throw new StorageException("The reactive stack stores uploads as sent and can not be combined with "
+                    + "compression, encryption or deduplication.");
+        }
+
+        this.storedFileRepository = storedFileRepository;
+        this.storageService = storageService;
+        this.storageUsage = storageUsage;
+        this.layout = new StorageLayout(Paths.get(storageProperties.getLocation()), storageProperties.getShardLevels());
+        this.maxUploadSize = storageProperties.getMaxUploadSize().toBytes();
+    }
+
+    /**
+     * Streams an upload to disk and saves its row. A negative content length stands for an
+     * unknown one, as with multipart parts, which are then only held to the upload size limit.
+     */
+    public Mono<StoredFile> store(String filename, long contentLength, Flux<DataBuffer> content) {
+        if (contentLength == 0) {
+            return Mono.error(new StorageException("Failed to store empty file."));
+        }
+
+        if (contentLength > maxUploadSize) {
+            return Mono.error(new UploadTooLargeException("Upload of " + contentLength + " bytes exceeds the limit of " + maxUploadSize));
+        }
+
+        if (filename == null) {
+            return Mono.error(new StorageException("Failed to store file with null file name"));
+        }
+
+        return Mono.using(
+                        () -> storageUsage.reserve(contentLength > 0 ? contentLength : maxUploadSize),
+                        reservation -> Mono.defer(() -> {
+                            String id = idGenerator.next();
+                            Path destination = resolveDestination(id, filename);
+                            MessageDigest contentDigest = ContentHash.newDigest();
+
+                            return write(content, destination, contentLength, contentDigest)
+                                    .map(written -> {
+                                        StoredFile storedFile = AbstractStorageBackend.newStoredFile(
+                                                id, destination.toString(), written, filename, null);
+                                        storedFile.setContentSha256(ContentHash.toHex(contentDigest));
+                                        return storedFile;
+                                    })
+                                    .flatMap(this::save);
+                        }),
+                        StorageUsage.Reservation::close)
+                .doOnNext(storedFile -> log.info("RECEIVED STREAMED FILE: [{}]", filename));
+    }
+
+    public Mono<StoredFile> getMetadata(String id) {
+        return storedFileRepository.findById(id)
+                .switchIfEmpty(Mono.error(() -> {
+                    log.error("Metadata lookup failed for file [{}]", id);
+                    return new StoredFileNotFoundException("Failed to get metadata for file: " + id);
+                }));
+    }
+
+    /**
+     * Charges one download of the file and hands back its content as uploaded. Nothing is charged
+     * when the content is missing.
+     */
+    public Mono<Download> download(StoredFile storedFile) {
+        String id = storedFile.getId();
+        Path file = Paths.get(storedFile.getStoragePath());
+
+        if (!Files.isReadable(file)) {
+            log.error("Stored content missing for file [{}]", id);
+            return Mono.error(new StoredFileNotFoundException("Failed to read content for file: " + id));
+        }
+
+        return storedFileRepository.consumeDownload(id, Instant.now())
+                .switchIfEmpty(Mono.defer(() -> storedFileRepository.existsById(id)
+                        .flatMap(exists -> Mono.<Integer>error(exists
+                                ? new StoredFileGoneException("File is no longer available: " + id)
+                                : new StoredFileNotFoundException("Failed to fetch file: " + id)))))
+                .map(remaining -> new Download(filenameOf(storedFile, file), storedFile.getSizeBytes(),
+                        isStoredAsIs(storedFile) ? readFile(file) : readDecoded(id)));
+    }
+
+    /**
+     * Content of one download, ready to be streamed.
+     */
+    public record Download(String filename, long contentLength, Flux<DataBuffer> content) {
+    }
+
+    private Flux<DataBuffer> readFile(Path file) {
+        return DataBufferUtils.readAsynchronousFileChannel(
+                () -> AsynchronousFileChannel.open(file, StandardOpenOption.READ), bufferFactory, BUFFER_SIZE);
+    }
+
+    // Codecs and decryption only come as blocking streams, so they are kept off the event loop
+    private Flux<DataBuffer> readDecoded(String id) {
+        return Mono.fromCallable(() -> storageService.loadAsResource(id))
+                .flatMapMany(resource -> DataBufferUtils.readInputStream(resource::getInputStream, bufferFactory, BUFFER_SIZE))
+                .subscribeOn(Schedulers.boundedElastic());
+    }
+
+    // Hashes each buffer before it is written to a temp file, which only takes the destination's
+    // name once complete and synced. Reads at most one buffer past the expected length, so an
+    // oversized body is not drained. Syncing and renaming block, so they run on a worker thread.
+    private Mono<Long> write(Flux<DataBuffer> content, Path destination, long expectedLength, MessageDigest digest) {
+        long limit = expectedLength > 0 ? expectedLength : maxUploadSize;
+        AtomicLong written = new AtomicLong();
+
+        Flux<DataBuffer> counted = content.doOnNext(buffer -> {
+            if (written.addAndGet(buffer.readableByteCount()) > limit) {
+                DataBufferUtils.release(buffer);
+                throw expectedLength > 0
+                        ? new StorageException("Upload is longer than " + expectedLength + " bytes")
+                        : new UploadTooLargeException("Upload exceeds the limit of " + maxUploadSize + " bytes");
+            }
+
+            try (DataBuffer.ByteBufferIterator byteBuffers = buffer.readableByteBuffers()) {
+                byteBuffers.forEachRemaining(digest::update);
+            }
+        });
+
+        return Mono.fromCallable(() -> FileSystemStorageService.createTempFile(destination))
+                .subscribeOn(Schedulers.boundedElastic())
+                .flatMap(tempFile -> Mono.using(
+                                () -> AsynchronousFileChannel.open(tempFile, StandardOpenOption.WRITE),
+                                channel -> DataBufferUtils.write(counted, channel)
+                                        .map(DataBufferUtils::release)
+                                        .then(Mono.fromCallable(() -> {
+                                            channel.force(true);
+                                            return written.get();
+                                        }).subscribeOn(Schedulers.boundedElastic())),
+                                this::closeQuietly)
+                        .flatMap(length -> {
+                            if (length == 0) {
+                                return Mono.error(new StorageException("Failed to store empty file."));
+                            }
+                            if (expectedLength > 0 && length != expectedLength) {
+                                return Mono.error(new StorageException("Upload ended after " + length + " of " + expectedLength + " bytes"));
+                            }
+                            return Mono.fromCallable(() -> {
+                                FileSystemStorageService.moveIntoPlace(tempFile, destination);
+                                return length;
+                            }).subscribeOn(Schedulers.boundedElastic());
+                        })
+                        // Gone already once moved into place; the destination is never touched here
+                        .doFinally(signal -> deleteQuietly(tempFile)))
+                .doOnError(e -> log.error("Failed to store streamed file! Error:{}", e.getMessage()));
+    }
+
+    private Mono<StoredFile> save(StoredFile storedFile) {
+        return insertWithUniqueId(storedFile, 1)
+                .doOnNext(saved -> storageUsage.recordStored(saved.getSizeBytes()))
+                .doOnError(e -> discardContent(storedFile));
+    }
+
+    // Insert only, so an ID collision can never overwrite someone else's share
+    private Mono<StoredFile> insertWithUniqueId(StoredFile storedFile, int attempt) {
+        return storedFileRepository.insert(storedFile).flatMap(inserted -> {
+            if (inserted) {
+                return Mono.just(storedFile);
+            }
+
+            if (attempt == AbstractStorageBackend.MAX_ID_ATTEMPTS) {
+                return Mono.error(new StorageException("Could not allocate a unique file ID"));
+            }
+
+            return Mono.fromCallable(() -> reassignId(storedFile))
+                    .flatMap(retry -> insertWithUniqueId(retry, attempt + 1));
+        });
+    }
+
+    private StoredFile reassignId(StoredFile storedFile) throws IOException {
+        String retryId = idGenerator.next();
+        log.warn("File ID [{}] is already taken, retrying as [{}]", storedFile.getId(), retryId);
+
+        if (layout.isSharded()) {
+            // The content is named after the ID, so it moves along with it
+            Path retryDestination = resolveDestination(retryId, storedFile.getOriginalFilename());
+            Files.move(Paths.get(storedFile.getStoragePath()), retryDestination);
+            storedFile.setStoragePath(retryDestination.toString());
+        }
+
+        storedFile.setId(retryId);
+        return storedFile;
+    }
+
+    private Path resolveDestination(String id, String filename) {
+        Path destinationFile = layout.resolve(id, filename);
+
+        if (layout.isSharded()) {
+            try {
+                Files.createDirectories(destinationFile.getParent());
+            } catch (IOException e) {
+                throw new StorageException("Failed to create shard directory!", e);
+            }
+        }
+
+        return destinationFile;
+    }
+
+    // Flat files are named after the upload and may belong to another share, so they stay
+    private void discardContent(StoredFile storedFile) {
+        if (layout.isSharded()) {
+            deleteQuietly(Paths.get(storedFile.getStoragePath()));
+        }
+    }
+
+    private static boolean isStoredAsIs(StoredFile storedFile) {
+        return storedFile.getCodec() == null && storedFile.getEncryption() == null;
+    }
+
+    private static String filenameOf(StoredFile storedFile, Path file) {
+        return storedFile.getOriginalFilename() != null ? storedFile.getOriginalFilename() : file.getFileName().toString();
+    }
+
+    private void closeQuietly(AsynchronousFileChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            log.warn("Could not close file channel: {}", e.getMessage());
+        }
+    }
+
+    private void deleteQuietly(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            log.warn("Could not remove partial file [{}]: {}", file, e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package xyz.stanleyw.secureshare.service;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded ring buffer for many producers and one consumer that never blocks a producer.
+ * <p>
+ * A producer claims the next sequence with a compare-and-set on {@code head} and then publishes
+ * its element into that slot. The consumer takes slots in sequence order and clears each one
+ * before moving {@code tail} past it, so a claimed slot is always free. A slot that is claimed
+ * but not published yet ends the drain until the next one. Offers to a full buffer fail instead
+ * of waiting.
+ */
+final class RingBuffer<E> {
+    private final AtomicReferenceArray<E> slots;
+
+    private final int mask;
+
+    // Next sequence to claim
+    private final AtomicLong head = new AtomicLong();
+
+    // Next sequence to take, only moved by the consumer
+    private final AtomicLong tail = new AtomicLong();
+
+    RingBuffer(int capacity) {
+        // A power of two, so the slot of a sequence is a mask instead of a division
+        int size = capacity <= 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+        this.slots = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+    }
+
+    int capacity() {
+        return slots.length();
+    }
+
+    // Approximate while producers are active
+    int size() {
+        return (int) (head.get() - tail.get());
+    }
+
+    boolean offer(E element) {
+        long claimed;
+
+        do {
+            claimed = head.get();
+
+            if (claimed - tail.get() >= slots.length()) {
+                return false;
+            }
+        } while (!head.compareAndSet(claimed, claimed + 1));
+
+        slots.set((int) claimed & mask, element);
+        return true;
+    }
+
+    /**
+     * Moves up to {@code limit} elements into {@code target}, oldest first. Only one thread may
+     * drain at a time.
+     */
+    int drainTo(Collection<? super E> target, int limit) {
+        long next = tail.get();
+        int drained = 0;
+
+        while (drained < limit) {
+            int slot = (int) next & mask;
+            E element = slots.get(slot);
+
+            if (element == null) {
+                break;
+            }
+
+            slots.set(slot, null);
+            target.add(element);
+            tail.set(++next);
+            drained++;
+        }
+
+        return drained;
+    }
+}
@@ -0,0 +1,183 @@
+package xyz.stanleyw.secureshare.service;
+
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+import software.amazon.awssdk.auth.credentials.AwsBasicCredentials;
+import software.amazon.awssdk.auth.credentials.AwsCredentialsProvider;
+import software.amazon.awssdk.auth.credentials.DefaultCredentialsProvider;
+import software.amazon.awssdk.auth.credentials.StaticCredentialsProvider;
+import software.amazon.awssdk.core.exception.SdkException;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.S3ClientBuilder;
+import software.amazon.awssdk.services.s3.model.AbortMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CompleteMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CompletedMultipartUpload;
+import software.amazon.awssdk.services.s3.model.CompletedPart;
+import software.amazon.awssdk.services.s3.model.CreateBucketRequest;
+import software.amazon.awssdk.services.s3.model.CreateMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.DeleteObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.HeadBucketRequest;
+import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
+import software.amazon.awssdk.services.s3.model.NoSuchBucketException;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.UploadPartRequest;
+import xyz.stanleyw.secureshare.config.StorageProperties;
+import xyz.stanleyw.secureshare.exception.StorageException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.OptionalLong;
+import java.util.function.Supplier;
+
+/**
+ * {@link ObjectStore} on top of the AWS SDK, for S3 itself and S3-compatible stores such as MinIO.
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(name = "storage.backend", havingValue = "object-store")
+public class S3ObjectStore implements ObjectStore {
+    private final S3Client client;
+
+    private final String bucket;
+
+    public S3ObjectStore(StorageProperties storageProperties) {
+        StorageProperties.ObjectStoreProperties properties = storageProperties.getObjectStore();
+
+        if (isBlank(properties.getBucket())) {
+            throw new StorageException("The object-store backend needs a bucket.");
+        }
+
+        this.bucket = properties.getBucket();
+
+        S3ClientBuilder builder = S3Client.builder()
+                .region(Region.of(properties.getRegion()))
+                .credentialsProvider(credentialsOf(properties))
+                .forcePathStyle(properties.isPathStyleAccess());
+
+        if (!isBlank(properties.getEndpoint())) {
+            builder.endpointOverride(URI.create(properties.getEndpoint()));
+        }
+
+        this.client = builder.build();
+        log.info("Object store bucket: {}", bucket);
+    }
+
+    private static AwsCredentialsProvider credentialsOf(StorageProperties.ObjectStoreProperties properties) {
+        if (isBlank(properties.getAccessKey())) {
+            return DefaultCredentialsProvider.builder().build();
+        }
+
+        return StaticCredentialsProvider.create(
+                AwsBasicCredentials.create(properties.getAccessKey(), properties.getSecretKey()));
+    }
+
+    private static boolean isBlank(String value) {
+        return value == null || value.isBlank();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        client.close();
+    }
+
+    @Override
+    public void init() throws IOException {
+        try {
+            client.headBucket(HeadBucketRequest.builder().bucket(bucket).build());
+        } catch (NoSuchBucketException e) {
+            log.info("Creating bucket [{}]", bucket);
+            call("create bucket", bucket, () -> client.createBucket(CreateBucketRequest.builder().bucket(bucket).build()));
+        } catch (SdkException e) {
+            throw new IOException("Could not reach bucket [" + bucket + "]: " + e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public void put(String key, InputStream content, long length) throws IOException {
+        call("put", key, () -> client.putObject(
+                PutObjectRequest.builder().bucket(bucket).key(key).contentLength(length).build(),
+                RequestBody.fromInputStream(content, length)));
+    }
+
+    @Override
+    public String createMultipartUpload(String key) throws IOException {
+        return call("create multipart upload", key, () -> client.createMultipartUpload(
+                CreateMultipartUploadRequest.builder().bucket(bucket).key(key).build()).uploadId());
+    }
+
+    @Override
+    public String uploadPart(String key, String uploadId, int partNumber, InputStream content, long length) throws IOException {
+        return call("upload part " + partNumber, key, () -> client.uploadPart(
+                UploadPartRequest.builder()
+                        .bucket(bucket)
+                        .key(key)
+                        .uploadId(uploadId)
+                        .partNumber(partNumber)
+                        .contentLength(length)
+                        .build(),
+                RequestBody.fromInputStream(content, length)).eTag());
+    }
+
+    @Override
+    public void completeMultipartUpload(String key, String uploadId, List<String> partETags) throws IOException {
+        List<CompletedPart> parts = new ArrayList<>(partETags.size());
+        for (int i = 0; i < partETags.size(); i++) {
+            parts.add(CompletedPart.builder().partNumber(i + 1).eTag(partETags.get(i)).build());
+        }
+
+        call("complete multipart upload", key, () -> client.completeMultipartUpload(
+                CompleteMultipartUploadRequest.builder()
+                        .bucket(bucket)
+                        .key(key)
+                        .uploadId(uploadId)
+                        .multipartUpload(CompletedMultipartUpload.builder().parts(parts).build())
+                        .build()));
+    }
+
+    @Override
+    public void abortMultipartUpload(String key, String uploadId) throws IOException {
+        call("abort multipart upload", key, () -> client.abortMultipartUpload(
+                AbortMultipartUploadRequest.builder().bucket(bucket).key(key).uploadId(uploadId).build()));
+    }
+
+    @Override
+    public InputStream get(String key, long start, long end) throws IOException {
+        return call("get", key, () -> client.getObject(
+                GetObjectRequest.builder().bucket(bucket).key(key).range("bytes=" + start + "-" + end).build()));
+    }
+
+    @Override
+    public OptionalLong size(String key) throws IOException {
+        try {
+            return OptionalLong.of(client.headObject(
+                    HeadObjectRequest.builder().bucket(bucket).key(key).build()).contentLength());
+        } catch (NoSuchKeyException e) {
+            return OptionalLong.empty();
+        } catch (SdkException e) {
+            throw new IOException("Object store head of [" + key + "] failed: " + e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public void delete(String key) throws IOException {
+        call("delete", key, () -> client.deleteObject(DeleteObjectRequest.builder().bucket(bucket).key(key).build()));
+    }
+
+    // The SDK only throws unchecked exceptions, callers expect I/O failures as IOException
+    private static <T> T call(String operation, String key, Supplier<T> request) throws IOException {
+        try {
+            return request.get();
+        } catch (SdkException e) {
+            throw new IOException("Object store " + operation + " of [" + key + "] failed: " + e.getMessage(), e);
+        }
+    }
+}
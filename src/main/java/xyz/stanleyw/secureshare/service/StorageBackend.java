@@ -0,0 +1,9 @@
+package xyz.stanleyw.secureshare.service;
+
+/**
+ * Where shared content actually lives. Exactly one backend is active, picked by
+ * {@code storage.backend}; the rest of the application only sees the metered
+ * {@link StorageService} in front of it.
+ */
+public interface StorageBackend extends StorageService {
+}
@@ -0,0 +1,63 @@
+package xyz.stanleyw.secureshare.service;
+
+import lombok.Getter;
+import xyz.stanleyw.secureshare.exception.StorageException;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.zip.CRC32;
+
+/**
+ * Maps stored files to their location under the root directory.
+ * <p>
+ * With shard levels configured, files are named by their ID and spread over nested directories
+ * named by hex prefixes of a hash of that ID, e.g. {@code <root>/3f/a2/<id>}, so no directory
+ * grows past a few thousand entries even at millions of files. Zero levels keeps the original
+ * flat layout where files sit directly in the root under their uploaded name.
+ */
+@Getter
+public class StorageLayout {
+    private final Path rootLocation;
+
+    private final int shardLevels;
+
+    public StorageLayout(Path rootLocation, int shardLevels) {
+        this.rootLocation = rootLocation.toAbsolutePath();
+        this.shardLevels = shardLevels;
+    }
+
+    public boolean isSharded() {
+        return shardLevels > 0;
+    }
+
+    public Path resolve(String id, String filename) {
+        Path flatFile = rootLocation
+                .resolve(Paths.get(filename))
+                .normalize();
+
+        // Safety check to make sure that there's no malicious file path
+        if (!flatFile.getParent().equals(rootLocation)) {
+            throw new StorageException("Cannot store file outside current directory");
+        }
+
+        return isSharded() ? shardDirectory(id).resolve(id) : flatFile;
+    }
+
+    public Path shardDirectory(String id) {
+        CRC32 crc = new CRC32();
+        crc.update(id.getBytes(StandardCharsets.UTF_8));
+        String hex = String.format("%08x", crc.getValue());
+
+        Path directory = rootLocation;
+        for (int level = 0; level < shardLevels; level++) {
+            directory = directory.resolve(hex.substring(level * 2, level * 2 + 2));
+        }
+
+        return directory;
+    }
+
+    public boolean isFlat(Path file) {
+        return rootLocation.equals(file.toAbsolutePath().getParent());
+    }
+}
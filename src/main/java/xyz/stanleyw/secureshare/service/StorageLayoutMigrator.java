@@ -0,0 +1,166 @@
+package xyz.stanleyw.secureshare.service;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import xyz.stanleyw.secureshare.config.StorageProperties;
+import xyz.stanleyw.secureshare.entity.StoredFile;
+import xyz.stanleyw.secureshare.repository.StoredFileRepository;
+
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+
+/**
+ * Moves files stored before sharding was enabled out of the flat root directory, a small batch
+ * at a time while the service keeps running.
+ * <p>
+ * Each file is hard-linked into its shard first and the row is only repointed if its path is
+ * still the old one, so readers always find the content and several instances can run the
+ * migration side by side. The new name only ever appears with complete content and is never
+ * written over, so an instance that loses the race for a row reuses or leaves alone what the
+ * winner put there. The old name is unlinked once no row references it anymore.
+ */
+@Getter
+@Slf4j
+@Component
+public class StorageLayoutMigrator {
+    private final StorageLayout layout;
+
+    private final StoredFileRepository storedFileRepository;
+
+    private final StoredFileMetadataCache metadataCache;
+
+    private final String flatPattern;
+
+    private final String nestedPattern;
+
+    // Keyset cursor over stored_files.id; the migration is done once it runs off the end
+    private volatile String cursor = "";
+
+    private volatile boolean finished;
+
+    private static final int BATCH_SIZE = 200;
+
+    // Copies are made under a temp name in the shard and only then given the final one
+    private static final String TEMP_PREFIX = ".migrate-";
+
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    public StorageLayoutMigrator(StorageProperties storageProperties,
+                                 StoredFileRepository storedFileRepository,
+                                 StoredFileMetadataCache metadataCache) {
+        this.layout = new StorageLayout(Paths.get(storageProperties.getLocation()), storageProperties.getShardLevels());
+        this.storedFileRepository = storedFileRepository;
+        this.metadataCache = metadataCache;
+
+        String root = layout.getRootLocation().toString();
+        this.flatPattern = root + "/%";
+        this.nestedPattern = root + "/%/%";
+    }
+
+    @Scheduled(initialDelay = 30_000, fixedDelay = 10_000)
+    public void migrateNextBatch() {
+        if (!layout.isSharded() || finished) {
+            return;
+        }
+
+        List<StoredFile> candidates = storedFileRepository.findFlatLayoutCandidates(
+                cursor, flatPattern, nestedPattern, BATCH_SIZE);
+
+        if (candidates.isEmpty()) {
+            finished = true;
+            log.info("[LAYOUT] No flat files left, sharded layout migration complete");
+            return;
+        }
+
+        int moved = 0;
+        for (StoredFile storedFile : candidates) {
+            cursor = storedFile.getId();
+
+            // LIKE treats '_' in the root path as a wildcard, so confirm the match here
+            if (layout.isFlat(Paths.get(storedFile.getStoragePath())) && migrate(storedFile)) {
+                moved++;
+            }
+        }
+
+        log.info("[LAYOUT] Moved {} of {} flat files into the sharded layout", moved, candidates.size());
+    }
+
+    boolean migrate(StoredFile storedFile) {
+        Path oldPath = Paths.get(storedFile.getStoragePath());
+        Path newPath = layout.shardDirectory(storedFile.getId()).resolve(storedFile.getId());
+
+        try {
+            Files.createDirectories(newPath.getParent());
+            boolean created = linkOrCopy(oldPath, newPath);
+
+            // Put there by another instance migrating the same row, or by an earlier interrupted run
+            if (!created && Files.size(newPath) != Files.size(oldPath)) {
+                log.warn("[LAYOUT] [{}] already exists with other content, file [{}] was left in place",
+                        newPath, storedFile.getId());
+                return false;
+            }
+
+            String originalFilename = oldPath.getFileName().toString();
+            if (storedFileRepository.relocate(storedFile.getId(), oldPath.toString(), newPath.toString(), originalFilename) == 0) {
+                // The row was deleted or moved by someone else meanwhile, possibly to this very
+                // path. Only a file this call made and no row points at is taken back.
+                if (created && !storedFileRepository.existsByStoragePath(newPath.toString())) {
+                    Files.deleteIfExists(newPath);
+                }
+                return false;
+            }
+
+            // Cached rows still point at the old name, which is about to go away
+            metadataCache.invalidate(storedFile.getId());
+
+            // Uploads with the same name used to share one flat file, keep it until the last one moved
+            if (!storedFileRepository.existsByStoragePath(oldPath.toString())) {
+                Files.deleteIfExists(oldPath);
+            }
+
+            return true;
+        } catch (NoSuchFileException e) {
+            log.warn("[LAYOUT] Content of file [{}] is missing at [{}]", storedFile.getId(), oldPath);
+            return false;
+        } catch (IOException e) {
+            log.error("[LAYOUT] Failed to move file [{}]! Error:{}", storedFile.getId(), e.getMessage());
+            return false;
+        }
+    }
+
+    // Returns whether this call created the target; an existing target is never replaced
+    private boolean linkOrCopy(Path source, Path target) throws IOException {
+        try {
+            Files.createLink(target, source);
+            return true;
+        } catch (FileAlreadyExistsException e) {
+            return false;
+        } catch (UnsupportedOperationException | IOException e) {
+            // No hard links on this filesystem
+            return copy(source, target);
+        }
+    }
+
+    private boolean copy(Path source, Path target) throws IOException {
+        Path tempFile = Files.createTempFile(target.getParent(), TEMP_PREFIX, TEMP_SUFFIX);
+
+        try {
+            Files.copy(source, tempFile, StandardCopyOption.REPLACE_EXISTING);
+            // Without REPLACE_EXISTING the move fails rather than replace a target that appeared meanwhile
+            Files.move(tempFile, target);
+            return true;
+        } catch (FileAlreadyExistsException e) {
+            return false;
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+    }
+}
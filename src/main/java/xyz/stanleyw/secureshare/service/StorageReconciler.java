@@ -0,0 +1,265 @@
+package xyz.stanleyw.secureshare.service;
+
+import lombok.extern.slf4j.Slf4j;
+import xyz.stanleyw.secureshare.entity.StoredFile;
+import xyz.stanleyw.secureshare.exception.StorageException;
+import xyz.stanleyw.secureshare.repository.StoredFileRepository;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Brings the storage root and the {@code stored_files} rows back in line after a crash.
+ * <p>
+ * Uploads are written to a temp file next to their final name, synced, renamed into place and
+ * only then given a row. A crash can therefore leave a temp file or a complete file without a
+ * row, but no row pointing at a partial file. Both kinds of leftovers are removed here, as are
+ * rows from before that order whose content is missing or cut short. Only files and rows older
+ * than the grace period are looked at: several instances may share the volume, and the temp
+ * files and fresh rows of uploads still running on any of them must be left alone.
+ * <p>
+ * Shard directories are walked in parallel and their files looked up a batch of paths per query,
+ * and rows are checked a batch at a time along a keyset cursor. Memory stays flat and the number
+ * of queries grows with files divided by the batch size, not with every file.
+ */
+@Slf4j
+class StorageReconciler {
+    private final StorageLayout layout;
+
+    private final StoredFileRepository storedFileRepository;
+
+    private final StoredFileMetadataCache metadataCache;
+
+    private final StorageUsage storageUsage;
+
+    private final String rootPattern;
+
+    private final Duration gracePeriod;
+
+    private static final int BATCH_SIZE = 1000;
+
+    private static final int THREADS = 8;
+
+    private static final Pattern SHARD_DIRECTORY = Pattern.compile("[0-9a-f]{2}");
+
+    record Result(int orphanFiles, int danglingRows) {
+    }
+
+    StorageReconciler(StorageLayout layout,
+                      StoredFileRepository storedFileRepository,
+                      StoredFileMetadataCache metadataCache,
+                      StorageUsage storageUsage,
+                      Duration gracePeriod) {
+        this.layout = layout;
+        this.storedFileRepository = storedFileRepository;
+        this.metadataCache = metadataCache;
+        this.storageUsage = storageUsage;
+        this.rootPattern = layout.getRootLocation() + "/%";
+        this.gracePeriod = gracePeriod;
+    }
+
+    Result reconcile() {
+        Instant startedAt = Instant.now();
+        Instant cutoff = startedAt.minus(gracePeriod);
+
+        try (ExecutorService executor = Executors.newFixedThreadPool(THREADS)) {
+            List<Future<Integer>> walks = new ArrayList<>();
+            List<Path> rootFiles = new ArrayList<>();
+
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(layout.getRootLocation())) {
+                for (Path entry : entries) {
+                    if (Files.isRegularFile(entry)) {
+                        // Flat uploads, and files that predate sharding
+                        rootFiles.add(entry);
+                    } else if (layout.isSharded() && SHARD_DIRECTORY.matcher(entry.getFileName().toString()).matches()) {
+                        walks.add(executor.submit(() -> removeOrphansUnder(entry, cutoff)));
+                    }
+                }
+            }
+
+            int orphanFiles = 0;
+            for (List<Path> batch : partition(rootFiles)) {
+                orphanFiles += removeOrphans(batch, cutoff);
+            }
+            for (Future<Integer> walk : walks) {
+                orphanFiles += walk.get();
+            }
+
+            // An empty root most likely means the volume is not mounted, not that every file is gone
+            int danglingRows = 0;
+            if (rootFiles.isEmpty() && walks.isEmpty()) {
+                log.warn("[RECONCILE] Storage root [{}] is empty, rows were left unchecked", layout.getRootLocation());
+            } else {
+                danglingRows = removeDanglingRows(executor, cutoff);
+            }
+
+            log.info("[RECONCILE] Removed {} orphan files and {} dangling rows in {} ms", orphanFiles, danglingRows,
+                    Duration.between(startedAt, Instant.now()).toMillis());
+            return new Result(orphanFiles, danglingRows);
+        } catch (IOException | UncheckedIOException e) {
+            throw new StorageException("Could not reconcile storage!", e);
+        } catch (ExecutionException e) {
+            throw new StorageException("Could not reconcile storage!", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new StorageException("Interrupted while reconciling storage", e);
+        }
+    }
+
+    private int removeOrphansUnder(Path shardDirectory, Instant cutoff) throws IOException {
+        int removed = 0;
+        List<Path> batch = new ArrayList<>(BATCH_SIZE);
+
+        try (Stream<Path> files = Files.walk(shardDirectory, layout.getShardLevels())) {
+            for (Path file : (Iterable<Path>) files.filter(Files::isRegularFile)::iterator) {
+                batch.add(file);
+
+                if (batch.size() == BATCH_SIZE) {
+                    removed += removeOrphans(batch, cutoff);
+                    batch.clear();
+                }
+            }
+        }
+
+        return removed + (batch.isEmpty() ? 0 : removeOrphans(batch, cutoff));
+    }
+
+    // Removes the files of the batch that no row points at. Sharded files are named after their
+    // ID, so one whose row still points elsewhere is in the middle of a move and stays.
+    private int removeOrphans(List<Path> files, Instant cutoff) throws IOException {
+        List<String> paths = new ArrayList<>(files.size());
+        List<String> names = new ArrayList<>(files.size());
+
+        for (Path file : files) {
+            try {
+                if (Files.getLastModifiedTime(file).toInstant().isBefore(cutoff)) {
+                    paths.add(file.toAbsolutePath().toString());
+                    names.add(file.getFileName().toString());
+                }
+            } catch (NoSuchFileException e) {
+                // Deleted or moved since the directory was listed
+            }
+        }
+
+        if (paths.isEmpty()) {
+            return 0;
+        }
+
+        Set<String> referenced = new HashSet<>(storedFileRepository.findReferencedStoragePaths(paths));
+        Set<String> existingIds = layout.isSharded()
+                ? new HashSet<>(storedFileRepository.findExistingIds(names))
+                : Set.of();
+
+        int removed = 0;
+        for (int i = 0; i < paths.size(); i++) {
+            String path = paths.get(i);
+            Path file = Paths.get(path);
+
+            if (referenced.contains(path) || (!layout.isFlat(file) && existingIds.contains(names.get(i)))) {
+                continue;
+            }
+
+            if (Files.deleteIfExists(file)) {
+                log.warn("[RECONCILE] Removed orphan file [{}]", path);
+                removed++;
+            }
+        }
+
+        return removed;
+    }
+
+    private int removeDanglingRows(ExecutorService executor, Instant cutoff)
+            throws InterruptedException, ExecutionException {
+        String cursor = "";
+        int removed = 0;
+        List<StoredFile> batch;
+
+        do {
+            batch = storedFileRepository.findReconcileCandidates(cursor, rootPattern, cutoff, BATCH_SIZE);
+
+            List<Future<Boolean>> checks = new ArrayList<>(batch.size());
+            for (StoredFile storedFile : batch) {
+                checks.add(executor.submit(() -> isIntact(storedFile)));
+            }
+
+            for (int i = 0; i < batch.size(); i++) {
+                if (!checks.get(i).get() && removeRow(batch.get(i))) {
+                    removed++;
+                }
+            }
+
+            if (!batch.isEmpty()) {
+                cursor = batch.get(batch.size() - 1).getId();
+            }
+        } while (batch.size() == BATCH_SIZE);
+
+        return removed;
+    }
+
+    // Stored as uploaded the file is as long as the content, encoded as long as recorded
+    private boolean isIntact(StoredFile storedFile) {
+        long expectedSize = storedFile.getCodec() == null && storedFile.getEncryption() == null
+                ? storedFile.getSizeBytes()
+                : storedFile.getStoredSizeBytes();
+
+        try {
+            return Files.size(Paths.get(storedFile.getStoragePath())) == expectedSize;
+        } catch (NoSuchFileException e) {
+            return false;
+        } catch (IOException e) {
+            // Can not tell, so the row stays
+            log.warn("[RECONCILE] Could not check content of file [{}]: {}", storedFile.getId(), e.getMessage());
+            return true;
+        }
+    }
+
+    private boolean removeRow(StoredFile storedFile) {
+        String id = storedFile.getId();
+        String storagePath = storedFile.getStoragePath();
+
+        // Moved or deleted since the batch was read
+        if (storedFileRepository.deleteIfAt(id, storagePath) == 0) {
+            return false;
+        }
+
+        metadataCache.invalidate(id);
+        storageUsage.recordRemoved(storedFile.getSizeBytes());
+        log.warn("[RECONCILE] Removed row of file [{}], its content at [{}] is missing or incomplete", id, storagePath);
+
+        // A partial file goes along, unless other flat uploads with the same name still use it
+        if (!storedFileRepository.existsByStoragePath(storagePath)) {
+            try {
+                Files.deleteIfExists(Paths.get(storagePath));
+            } catch (IOException e) {
+                log.warn("Could not remove partial file [{}]: {}", storagePath, e.getMessage());
+            }
+        }
+
+        return true;
+    }
+
+    private static List<List<Path>> partition(List<Path> files) {
+        List<List<Path>> batches = new ArrayList<>();
+        for (int from = 0; from < files.size(); from += BATCH_SIZE) {
+            batches.add(files.subList(from, Math.min(files.size(), from + BATCH_SIZE)));
+        }
+        return batches;
+    }
+}
@@ -4,18 +4,46 @@ import org.springframework.core.io.Resource;
 import org.springframework.web.multipart.MultipartFile;
 import xyz.stanleyw.secureshare.entity.StoredFile;
 import xyz.stanleyw.secureshare.model.ExpirationDetails;
+import xyz.stanleyw.secureshare.model.UploadSessionStatus;
+
+import java.io.InputStream;
+import java.util.List;
 
 public interface StorageService {
 
     void init();
 
-    void store(MultipartFile file);
+    StoredFile store(MultipartFile file);
+
+    StoredFile storeStream(String filename, long contentLength, InputStream inputStream);
+
+    List<StoredFile> storeAll(List<MultipartFile> files);
+
+    UploadSessionStatus createUploadSession(String filename, long totalSize);
+
+    UploadSessionStatus getUploadSession(String sessionId);
+
+    void writeChunk(String sessionId, int index, long contentLength, InputStream inputStream);
+
+    StoredFile completeUploadSession(String sessionId);
 
     Resource loadAsResource(String id);
 
     StoredFile getMetadata(String id);
 
+    /**
+     * Uses up one download of the file and returns the token that lets the same client resume it.
+     */
+    String consumeDownload(String id);
+
+    // Whether the token was handed out by a charged download of this file that can still be resumed
+    boolean isResumable(String id, String token);
+
+    List<StoredFileResource> consumeDownloads(List<String> ids);
+
     StoredFile updateExpiration(String id, ExpirationDetails expirationDetails);
 
+    List<StoredFile> updateExpirations(List<String> ids, ExpirationDetails expirationDetails);
+
     void delete(String id);
 }
@@ -0,0 +1,134 @@
+package xyz.stanleyw.secureshare.service;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+import xyz.stanleyw.secureshare.config.StorageProperties;
+import xyz.stanleyw.secureshare.exception.InsufficientStorageException;
+import xyz.stanleyw.secureshare.repository.StoredFileRepository;
+
+import java.io.IOException;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Live account of how much is stored, so uploads that would not fit are turned away before any
+ * of their bytes are written.
+ * <p>
+ * The stored total starts from the {@code sizeBytes} sum over {@code stored_files} and follows
+ * every store, delete and reap from there. It is recounted every few minutes, which also picks up
+ * what other instances did. Uploads in progress hold a reservation for their size on top, and on
+ * the filesystem backend the volume has to keep {@code minFreeSpace} free besides.
+ */
+@Getter
+@Slf4j
+@Component
+public class StorageUsage {
+    private final StoredFileRepository storedFileRepository;
+
+    // Long.MAX_VALUE without a quota
+    private final long quotaBytes;
+
+    private final long minFreeSpace;
+
+    // Volume holding the files, null with the object-store backend
+    private final Path volume;
+
+    private final AtomicLong storedBytes = new AtomicLong();
+
+    private final AtomicLong reservedBytes = new AtomicLong();
+
+    public StorageUsage(StorageProperties storageProperties, StoredFileRepository storedFileRepository) {
+        this.storedFileRepository = storedFileRepository;
+        DataSize quota = storageProperties.getQuota();
+        this.quotaBytes = quota != null ? quota.toBytes() : Long.MAX_VALUE;
+        this.minFreeSpace = storageProperties.getMinFreeSpace().toBytes();
+        this.volume = storageProperties.getBackend() == StorageProperties.Backend.FILESYSTEM
+                && !storageProperties.getLocation().isBlank()
+                ? Paths.get(storageProperties.getLocation())
+                : null;
+    }
+
+    // Runs once right at startup, then corrects any drift
+    @Scheduled(fixedDelay = 300_000)
+    public void recount() {
+        long stored = storedFileRepository.sumSizeBytes();
+        long previous = storedBytes.getAndSet(stored);
+
+        if (previous != stored) {
+            log.info("[USAGE] Stored bytes recounted as {} (was {})", stored, previous);
+        }
+    }
+
+    /**
+     * Holds {@code bytes} of room for an upload until the reservation is closed.
+     *
+     * @throws InsufficientStorageException if the upload would exceed the quota or fill the volume
+     */
+    public Reservation reserve(long bytes) {
+        // Added first and taken back on rejection, so concurrent uploads can never overbook
+        long reserved = reservedBytes.addAndGet(bytes);
+
+        if (storedBytes.get() + reserved > quotaBytes) {
+            reservedBytes.addAndGet(-bytes);
+            throw new InsufficientStorageException("Upload of " + bytes + " bytes exceeds the storage quota");
+        }
+
+        if (volume != null && usableSpace() - reserved < minFreeSpace) {
+            reservedBytes.addAndGet(-bytes);
+            throw new InsufficientStorageException("Not enough free space for an upload of " + bytes + " bytes");
+        }
+
+        return new Reservation(bytes);
+    }
+
+    /**
+     * Fails like {@link #reserve(long)} without holding on to anything, for uploads that only
+     * send their bytes later.
+     */
+    public void requireAvailable(long bytes) {
+        reserve(bytes).close();
+    }
+
+    public void recordStored(long bytes) {
+        storedBytes.addAndGet(bytes);
+    }
+
+    public void recordRemoved(long bytes) {
+        storedBytes.addAndGet(-bytes);
+    }
+
+    private long usableSpace() {
+        try {
+            FileStore fileStore = Files.getFileStore(volume);
+            return fileStore.getUsableSpace();
+        } catch (IOException e) {
+            // The volume not being there yet is for the backend to report, not a reason to reject
+            log.debug("[USAGE] Could not read free space of [{}]: {}", volume, e.getMessage());
+            return Long.MAX_VALUE;
+        }
+    }
+
+    public final class Reservation implements AutoCloseable {
+        private final long bytes;
+
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private Reservation(long bytes) {
+            this.bytes = bytes;
+        }
+
+        @Override
+        public void close() {
+            if (released.compareAndSet(false, true)) {
+                reservedBytes.addAndGet(-bytes);
+            }
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package xyz.stanleyw.secureshare.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import org.springframework.stereotype.Component;
+import xyz.stanleyw.secureshare.config.StorageProperties;
+import xyz.stanleyw.secureshare.entity.StoredFile;
+
+import java.time.Instant;
+import java.util.Collection;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Bounded in-process cache of {@code stored_files} rows keyed by file ID.
+ * <p>
+ * Entries live for the configured TTL but never past the share's own {@code expiresAt}. Unknown
+ * IDs can be cached as empty for a short time, so repeated lookups of guessed IDs are answered
+ * without a database round trip. Only uploads on this instance replace such an entry, so an ID
+ * stored elsewhere answers 404 here until it expires; negative caching is therefore off by
+ * default. Cached instances are never mutated; changes replace the entry.
+ */
+@Component
+public class StoredFileMetadataCache {
+    private final Cache<String, Optional<StoredFile>> cache;
+
+    public StoredFileMetadataCache(StorageProperties storageProperties) {
+        long ttlNanos = storageProperties.getMetadataCacheTtl().toNanos();
+        long negativeTtlNanos = storageProperties.getMetadataNegativeCacheTtl().toNanos();
+
+        this.cache = Caffeine.newBuilder()
+                .maximumSize(storageProperties.getMetadataCacheSize())
+                .expireAfter(new Expiry<String, Optional<StoredFile>>() {
+                    @Override
+                    public long expireAfterCreate(String id, Optional<StoredFile> metadata, long currentTime) {
+                        return metadata
+                                .map(storedFile -> Math.min(ttlNanos, nanosUntil(storedFile.getExpiresAt())))
+                                .orElse(negativeTtlNanos);
+                    }
+
+                    @Override
+                    public long expireAfterUpdate(String id, Optional<StoredFile> metadata, long currentTime, long currentDuration) {
+                        return expireAfterCreate(id, metadata, currentTime);
+                    }
+
+                    @Override
+                    public long expireAfterRead(String id, Optional<StoredFile> metadata, long currentTime, long currentDuration) {
+                        return currentDuration;
+                    }
+                })
+                .build();
+    }
+
+    public Optional<StoredFile> get(String id, Function<String, Optional<StoredFile>> loader) {
+        return cache.get(id, loader);
+    }
+
+    public void put(StoredFile storedFile) {
+        cache.put(storedFile.getId(), Optional.of(storedFile));
+    }
+
+    public void updateDownloadsRemaining(String id, int downloadsRemaining) {
+        cache.asMap().computeIfPresent(id,
+                (key, metadata) -> metadata.map(storedFile -> storedFile.withDownloadsRemaining(downloadsRemaining)));
+    }
+
+    public void invalidate(String id) {
+        cache.invalidate(id);
+    }
+
+    public void invalidateAll(Collection<String> ids) {
+        cache.invalidateAll(ids);
+    }
+
+    private static long nanosUntil(Instant expiresAt) {
+        if (expiresAt == null) {
+            return Long.MAX_VALUE;
+        }
+
+        long millis = Math.max(0, expiresAt.toEpochMilli() - System.currentTimeMillis());
+        return TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+}
@@ -0,0 +1,191 @@
+package xyz.stanleyw.secureshare.service;
+
+import org.springframework.core.io.AbstractResource;
+import xyz.stanleyw.secureshare.entity.StoredFile;
+import xyz.stanleyw.secureshare.exception.StorageException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * The content of a stored file, together with what a download needs to know about it. Blob paths
+ * are named by digest, so the filename is the one the file was uploaded under. This class reads
+ * the content from local disk, {@link StoredObjectResource} from the object store.
+ * <p>
+ * The bytes on disk are the content run through the file's codec, if any, and then encrypted, if
+ * the file is. {@link #getInputStream()} and {@link #contentLength()} describe the content as
+ * uploaded; the encoded form in between is what clients accepting the codec are sent.
+ */
+public class StoredFileResource extends AbstractResource {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final StoredFile storedFile;
+
+    // Null when the content is not on local disk
+    private final Path file;
+
+    // Only set for encrypted files
+    private final ContentEncryption encryption;
+
+    public StoredFileResource(StoredFile storedFile) {
+        this(storedFile, null);
+    }
+
+    public StoredFileResource(StoredFile storedFile, ContentEncryption encryption) {
+        this(storedFile, encryption, Paths.get(storedFile.getStoragePath()));
+    }
+
+    StoredFileResource(StoredFile storedFile, ContentEncryption encryption, Path file) {
+        if (storedFile.getEncryption() != null && encryption == null) {
+            throw new StorageException("No encryption key configured to read file: " + storedFile.getId());
+        }
+
+        this.storedFile = storedFile;
+        this.file = file;
+        this.encryption = storedFile.getEncryption() != null ? encryption : null;
+    }
+
+    public StoredFile getStoredFile() {
+        return storedFile;
+    }
+
+    @Override
+    public String getFilename() {
+        return storedFile.getOriginalFilename() != null ? storedFile.getOriginalFilename() : file.getFileName().toString();
+    }
+
+    @Override
+    public String getDescription() {
+        return "Stored file [" + file + "]";
+    }
+
+    @Override
+    public boolean exists() {
+        return Files.exists(file);
+    }
+
+    @Override
+    public boolean isReadable() {
+        return Files.isReadable(file) && !Files.isDirectory(file);
+    }
+
+    // Whether the content is a local file that can be handed to sendfile
+    @Override
+    public boolean isFile() {
+        return true;
+    }
+
+    @Override
+    public File getFile() throws IOException {
+        return file.toFile();
+    }
+
+    // Encoding of the content before encryption, null when there is none
+    public String getCodec() {
+        return storedFile.getCodec();
+    }
+
+    public boolean isEncrypted() {
+        return encryption != null;
+    }
+
+    // Whether the bytes on disk are the content itself and can be sent straight from the file
+    public boolean isStoredAsIs() {
+        return getCodec() == null && !isEncrypted();
+    }
+
+    @Override
+    public long contentLength() throws IOException {
+        return isStoredAsIs() ? Files.size(file) : storedFile.getSizeBytes();
+    }
+
+    // Length of the content in its codec's encoding, i.e. of the bytes on disk after decryption
+    public long encodedLength() throws IOException {
+        long storedSize = Files.size(file);
+        return isEncrypted() ? ContentEncryption.plaintextSize(storedSize) : storedSize;
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return openContent(0);
+    }
+
+    /**
+     * The content from {@code start} through {@code end}, inclusive. Decoded content is read on
+     * from start and the caller stops at end.
+     */
+    public InputStream openContent(long start, long end) throws IOException {
+        return getCodec() == null ? openEncoded(start, end) : openContent(start);
+    }
+
+    /**
+     * The content from the given offset on, decrypted and decoded.
+     */
+    public InputStream openContent(long start) throws IOException {
+        if (getCodec() == null) {
+            return openEncoded(start);
+        }
+
+        // Compressed streams have no index, so the offset is reached by inflating up to it
+        InputStream content = ContentCodec.decompressing(openEncoded(0));
+        try {
+            content.skipNBytes(start);
+            return content;
+        } catch (IOException | RuntimeException e) {
+            content.close();
+            throw e;
+        }
+    }
+
+    /**
+     * The content in its codec's encoding from the given offset on, decrypted if need be.
+     */
+    public InputStream openEncoded(long start) throws IOException {
+        if (isEncrypted()) {
+            return encryption.decrypting(file, start);
+        }
+
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        channel.position(start);
+        return Channels.newInputStream(channel);
+    }
+
+    /**
+     * The encoded bytes from {@code start} through {@code end}, inclusive. Local files are simply
+     * read on from start and the caller stops at end; remote content is fetched as that range.
+     */
+    public InputStream openEncoded(long start, long end) throws IOException {
+        return openEncoded(start);
+    }
+
+    /**
+     * CRC-32 of the content. Compressed files carry it in their trailer; anything else is read once.
+     */
+    public long contentCrc() throws IOException {
+        if (ContentCodec.GZIP.equals(getCodec())) {
+            try (InputStream trailer = openEncoded(encodedLength() - ContentCodec.TRAILER_SIZE)) {
+                return ContentCodec.crcOf(trailer.readNBytes(ContentCodec.TRAILER_SIZE));
+            }
+        }
+
+        CRC32 crc = new CRC32();
+        byte[] buffer = new byte[BUFFER_SIZE];
+
+        try (InputStream content = openContent(0)) {
+            int read;
+            while ((read = content.read(buffer)) != -1) {
+                crc.update(buffer, 0, read);
+            }
+        }
+
+        return crc.getValue();
+    }
+}
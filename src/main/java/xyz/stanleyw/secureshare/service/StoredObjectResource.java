@@ -0,0 +1,84 @@
+package xyz.stanleyw.secureshare.service;
+
+import xyz.stanleyw.secureshare.entity.StoredFile;
+import xyz.stanleyw.secureshare.exception.StorageException;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A stored file kept in the object store. Sizes come from the row, so only checking that the
+ * object is there costs a request; every read is a single ranged GET of exactly the bytes needed.
+ */
+public class StoredObjectResource extends StoredFileResource {
+    private final ObjectStore objectStore;
+
+    private final String key;
+
+    public StoredObjectResource(StoredFile storedFile, ObjectStore objectStore, String key) {
+        super(storedFile, null, null);
+        this.objectStore = objectStore;
+        this.key = key;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    @Override
+    public String getFilename() {
+        return getStoredFile().getOriginalFilename();
+    }
+
+    @Override
+    public String getDescription() {
+        return "Stored object [" + key + "]";
+    }
+
+    @Override
+    public boolean exists() {
+        try {
+            return objectStore.size(key).isPresent();
+        } catch (IOException e) {
+            // An unreachable store is not the same as missing content
+            throw new StorageException("Could not check stored object: " + key, e);
+        }
+    }
+
+    @Override
+    public boolean isReadable() {
+        return exists();
+    }
+
+    @Override
+    public boolean isFile() {
+        return false;
+    }
+
+    @Override
+    public File getFile() throws IOException {
+        throw new FileNotFoundException(getDescription() + " is not on local disk");
+    }
+
+    @Override
+    public long contentLength() {
+        return getStoredFile().getSizeBytes();
+    }
+
+    @Override
+    public long encodedLength() {
+        return getStoredFile().getStoredSizeBytes();
+    }
+
+    @Override
+    public InputStream openEncoded(long start) throws IOException {
+        return openEncoded(start, encodedLength() - 1);
+    }
+
+    @Override
+    public InputStream openEncoded(long start, long end) throws IOException {
+        return objectStore.get(key, start, end);
+    }
+}
@@ -0,0 +1,10 @@
+-- Append-only download and metadata history, kept after the share itself is gone
+CREATE TABLE access_events (
+                               id BIGSERIAL PRIMARY KEY,
+                               file_id VARCHAR(255) NOT NULL,
+                               event_type VARCHAR(16) NOT NULL,
+                               occurred_at TIMESTAMPTZ NOT NULL
+);
+
+CREATE INDEX idx_access_events_file_id
+    ON access_events (file_id, occurred_at);
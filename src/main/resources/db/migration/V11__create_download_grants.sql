@@ -0,0 +1,9 @@
+-- One row per charged download, so the client that paid for it can resume it without paying again
+CREATE TABLE download_grants (
+                                 token VARCHAR(64) PRIMARY KEY,
+                                 file_id VARCHAR(255) NOT NULL REFERENCES stored_files (id) ON DELETE CASCADE,
+                                 granted_at TIMESTAMPTZ NOT NULL
+);
+
+CREATE INDEX idx_download_grants_file_id
+    ON download_grants (file_id);
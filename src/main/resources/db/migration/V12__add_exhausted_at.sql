@@ -0,0 +1,13 @@
+ALTER TABLE stored_files
+    ADD COLUMN exhausted_at TIMESTAMPTZ;
+
+-- Only rows already used up, which the reaper keeps few; they count as exhausted at their last download
+UPDATE stored_files
+SET exhausted_at = COALESCE(last_accessed_at, created_at)
+WHERE downloads_remaining <= 0;
+
+DROP INDEX idx_stored_files_exhausted;
+
+CREATE INDEX idx_stored_files_exhausted
+    ON stored_files (exhausted_at)
+    WHERE downloads_remaining <= 0;
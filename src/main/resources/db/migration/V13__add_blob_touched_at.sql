@@ -0,0 +1,4 @@
+-- When an upload last committed content to the blob; collection leaves recently touched blobs
+-- alone, since their rows may not be inserted yet. A constant default needs no table rewrite.
+ALTER TABLE blobs
+    ADD COLUMN touched_at TIMESTAMPTZ NOT NULL DEFAULT '-infinity';
@@ -0,0 +1,12 @@
+CREATE TABLE blobs (
+                       digest VARCHAR(64) PRIMARY KEY,
+                       storage_path VARCHAR(1024) NOT NULL,
+                       size_bytes BIGINT NOT NULL,
+                       ref_count INT NOT NULL
+);
+
+ALTER TABLE stored_files
+    ADD COLUMN original_filename VARCHAR(1024);
+
+ALTER TABLE stored_files
+    ADD COLUMN blob_digest VARCHAR(64) REFERENCES blobs (digest);
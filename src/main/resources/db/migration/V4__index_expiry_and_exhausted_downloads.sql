@@ -0,0 +1,6 @@
+CREATE INDEX idx_stored_files_expires_at
+    ON stored_files (expires_at);
+
+CREATE INDEX idx_stored_files_exhausted
+    ON stored_files (id)
+    WHERE downloads_remaining <= 0;
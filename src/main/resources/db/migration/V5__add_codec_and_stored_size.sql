@@ -0,0 +1,8 @@
+ALTER TABLE stored_files
+    ADD COLUMN codec VARCHAR(16);
+
+-- A constant default is only recorded in the catalog (Postgres 11+), so existing rows are neither
+-- rewritten nor locked for long. Those rows were all stored as uploaded, where size_bytes is what
+-- counts; stored_size_bytes is only read for content stored encoded.
+ALTER TABLE stored_files
+    ADD COLUMN stored_size_bytes BIGINT NOT NULL DEFAULT 0;
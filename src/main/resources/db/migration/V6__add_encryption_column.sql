@@ -0,0 +1,2 @@
+ALTER TABLE stored_files
+    ADD COLUMN encryption VARCHAR(32);
@@ -0,0 +1,2 @@
+ALTER TABLE stored_files
+    ADD COLUMN last_accessed_at TIMESTAMPTZ;
@@ -0,0 +1,7 @@
+ALTER TABLE stored_files
+    ADD COLUMN content_sha256 VARCHAR(64);
+
+-- Blobs are addressed by the SHA-256 of their content already
+UPDATE stored_files
+SET content_sha256 = blob_digest
+WHERE blob_digest IS NOT NULL;
@@ -0,0 +1,2 @@
+CREATE INDEX idx_stored_files_storage_path
+    ON stored_files (storage_path);
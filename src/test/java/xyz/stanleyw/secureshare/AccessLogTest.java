@@ -0,0 +1,160 @@
+package xyz.stanleyw.secureshare;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.dao.DataAccessResourceFailureException;
+import xyz.stanleyw.secureshare.config.StorageProperties;
+import xyz.stanleyw.secureshare.model.AccessEvent;
+import xyz.stanleyw.secureshare.repository.AccessEventRepository;
+import xyz.stanleyw.secureshare.service.AccessLog;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+public class AccessLogTest {
+
+    @Mock
+    AccessEventRepository accessEventRepository;
+
+    private StorageProperties storageProperties;
+
+    private SimpleMeterRegistry meterRegistry;
+
+    @BeforeEach
+    void setUp() {
+        storageProperties = new StorageProperties();
+        meterRegistry = new SimpleMeterRegistry();
+    }
+
+    private AccessLog newAccessLog(int bufferSize) {
+        storageProperties.setAccessLogBufferSize(bufferSize);
+        return new AccessLog(storageProperties, accessEventRepository, meterRegistry);
+    }
+
+    private double dropped() {
+        return meterRegistry.get("storage.access_log.dropped").counter().count();
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<AccessEvent> insertedEvents(int batches) {
+        ArgumentCaptor<List<AccessEvent>> captor = ArgumentCaptor.forClass(List.class);
+        verify(accessEventRepository, times(batches)).insertAll(captor.capture());
+        return captor.getAllValues().stream().flatMap(List::stream).toList();
+    }
+
+    @Test
+    void flush_whenEventsRecorded_shouldInsertThemInOrderInOneBatch() {
+        AccessLog accessLog = newAccessLog(16);
+
+        accessLog.record("a", AccessEvent.Type.METADATA);
+        accessLog.record("a", AccessEvent.Type.DOWNLOAD);
+        accessLog.record("b", AccessEvent.Type.DOWNLOAD);
+        accessLog.flush();
+
+        List<AccessEvent> inserted = insertedEvents(1);
+        assertEquals(List.of("a", "a", "b"), inserted.stream().map(AccessEvent::fileId).toList());
+        assertEquals(AccessEvent.Type.DOWNLOAD, inserted.get(1).type());
+    }
+
+    @Test
+    void flush_whenNothingRecorded_shouldNotTouchDatabase() {
+        newAccessLog(16).flush();
+
+        verifyNoInteractions(accessEventRepository);
+    }
+
+    @Test
+    void record_whenBufferIsFull_shouldDropAndCountEvent() {
+        AccessLog accessLog = newAccessLog(2);
+
+        accessLog.record("a", AccessEvent.Type.DOWNLOAD);
+        accessLog.record("b", AccessEvent.Type.DOWNLOAD);
+        accessLog.record("c", AccessEvent.Type.DOWNLOAD);
+
+        assertEquals(1, dropped());
+
+        // Flushing frees the slots again
+        accessLog.flush();
+        accessLog.record("d", AccessEvent.Type.DOWNLOAD);
+        accessLog.flush();
+
+        assertEquals(List.of("a", "b", "d"), insertedEvents(2).stream().map(AccessEvent::fileId).toList());
+    }
+
+    @Test
+    void flush_whenInsertFails_shouldDropBatchAndCarryOn() {
+        AccessLog accessLog = newAccessLog(16);
+        doThrow(new DataAccessResourceFailureException("Mocked connection failure"))
+                .doNothing()
+                .when(accessEventRepository).insertAll(anyList());
+
+        accessLog.record("a", AccessEvent.Type.DOWNLOAD);
+        accessLog.flush();
+        accessLog.record("b", AccessEvent.Type.DOWNLOAD);
+        accessLog.flush();
+
+        assertEquals(1, dropped());
+        assertEquals(List.of("a", "b"), insertedEvents(2).stream().map(AccessEvent::fileId).toList());
+    }
+
+    @Test
+    void record_whenManyThreadsRecordWhileFlushing_shouldDeliverEveryEventOnce() throws Exception {
+        AccessLog accessLog = newAccessLog(1024);
+        List<AccessEvent> inserted = new ArrayList<>();
+        doAnswer(invocation -> inserted.addAll(invocation.getArgument(0)))
+                .when(accessEventRepository).insertAll(anyList());
+
+        int threads = 8;
+        int eventsPerThread = 5_000;
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<?>> producers = new ArrayList<>();
+
+        try {
+            for (int thread = 0; thread < threads; thread++) {
+                String fileId = "file-" + thread;
+                producers.add(executor.submit(() -> {
+                    start.await();
+                    for (int i = 0; i < eventsPerThread; i++) {
+                        accessLog.record(fileId, AccessEvent.Type.DOWNLOAD);
+                    }
+                    return null;
+                }));
+            }
+
+            start.countDown();
+            while (!producers.stream().allMatch(Future::isDone)) {
+                accessLog.flush();
+            }
+            for (Future<?> producer : producers) {
+                producer.get(30, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        accessLog.flush();
+
+        // Every event either reached the database or was counted as dropped, none twice
+        assertEquals(threads * eventsPerThread, inserted.size() + (long) dropped());
+        for (int thread = 0; thread < threads; thread++) {
+            String fileId = "file-" + thread;
+            long delivered = inserted.stream().filter(event -> event.fileId().equals(fileId)).count();
+            assertTrue(delivered <= eventsPerThread);
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package xyz.stanleyw.secureshare;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import xyz.stanleyw.secureshare.config.StorageProperties;
+import xyz.stanleyw.secureshare.entity.StoredFile;
+import xyz.stanleyw.secureshare.exception.StorageException;
+import xyz.stanleyw.secureshare.repository.StoredFileRepository;
+import xyz.stanleyw.secureshare.service.ColdStorageMover;
+import xyz.stanleyw.secureshare.service.StoredFileMetadataCache;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+public class ColdStorageMoverTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Mock
+    StoredFileRepository storedFileRepository;
+
+    private StorageProperties storageProperties;
+
+    private StoredFileMetadataCache metadataCache;
+
+    private ColdStorageMover mover;
+
+    @BeforeEach
+    void setUp() {
+        storageProperties = new StorageProperties();
+        storageProperties.setLocation(tempDir.resolve("hot").toString());
+        storageProperties.setColdLocation(tempDir.resolve("cold").toString());
+        storageProperties.setShardLevels(2);
+        metadataCache = new StoredFileMetadataCache(storageProperties);
+        mover = new ColdStorageMover(storageProperties, storedFileRepository, metadataCache);
+    }
+
+    private StoredFile hotFile(String id) throws IOException {
+        Path path = mover.getHotLayout().shardDirectory(id).resolve(id);
+        Files.createDirectories(path.getParent());
+        Files.writeString(path, "hello world");
+
+        StoredFile storedFile = new StoredFile();
+        storedFile.setId(id);
+        storedFile.setStoragePath(path.toString());
+        return storedFile;
+    }
+
+    @Test
+    void moveNextBatch_whenFileIsCold_shouldMoveItToColdTier() throws IOException {
+        StoredFile storedFile = hotFile("id");
+        Path hotPath = Path.of(storedFile.getStoragePath());
+        Path coldPath = mover.getColdLayout().shardDirectory("id").resolve("id");
+        metadataCache.put(storedFile);
+
+        when(storedFileRepository.findColdCandidates(eq(""), anyString(), any(Instant.class), any(Instant.class), anyInt()))
+                .thenReturn(List.of(storedFile));
+        when(storedFileRepository.relocate("id", hotPath.toString(), coldPath.toString(), "id"))
+                .thenReturn(1);
+        when(storedFileRepository.existsByStoragePath(hotPath.toString())).thenReturn(false);
+
+        mover.moveNextBatch();
+
+        assertEquals("hello world", Files.readString(coldPath));
+        assertFalse(Files.exists(hotPath));
+        // Only the final copy is left in the shard, no temp file
+        try (Stream<Path> shard = Files.list(coldPath.getParent())) {
+            assertEquals(List.of(coldPath), shard.toList());
+        }
+        // The stale cached row is gone, so the next lookup reads the new path from the database
+        assertEquals(Optional.empty(), metadataCache.get("id", id -> Optional.empty()));
+        // A short batch restarts the scan on the next run
+        assertEquals("", mover.getCursor());
+    }
+
+    @Test
+    void moveNextBatch_whenRowChangedMeanwhile_shouldKeepHotCopy() throws IOException {
+        StoredFile storedFile = hotFile("id");
+        Path hotPath = Path.of(storedFile.getStoragePath());
+        Path coldPath = mover.getColdLayout().shardDirectory("id").resolve("id");
+
+        when(storedFileRepository.findColdCandidates(eq(""), anyString(), any(Instant.class), any(Instant.class), anyInt()))
+                .thenReturn(List.of(storedFile));
+        when(storedFileRepository.relocate("id", hotPath.toString(), coldPath.toString(), "id"))
+                .thenReturn(0);
+        when(storedFileRepository.existsByStoragePath(coldPath.toString())).thenReturn(false);
+
+        mover.moveNextBatch();
+
+        assertTrue(Files.exists(hotPath));
+        assertFalse(Files.exists(coldPath));
+        verify(storedFileRepository, never()).existsByStoragePath(hotPath.toString());
+    }
+
+    @Test
+    void moveNextBatch_whenAnotherInstanceMovedRowFirst_shouldKeepItsColdCopy() throws IOException {
+        StoredFile storedFile = hotFile("id");
+        Path hotPath = Path.of(storedFile.getStoragePath());
+        Path coldPath = mover.getColdLayout().shardDirectory("id").resolve("id");
+
+        // The winner's copy is in place and its row already points at it
+        Files.createDirectories(coldPath.getParent());
+        Files.writeString(coldPath, "hello world");
+
+        when(storedFileRepository.findColdCandidates(eq(""), anyString(), any(Instant.class), any(Instant.class), anyInt()))
+                .thenReturn(List.of(storedFile));
+        when(storedFileRepository.relocate("id", hotPath.toString(), coldPath.toString(), "id"))
+                .thenReturn(0);
+
+        mover.moveNextBatch();
+
+        assertEquals("hello world", Files.readString(coldPath));
+        assertTrue(Files.exists(hotPath));
+        try (Stream<Path> shard = Files.list(coldPath.getParent())) {
+            assertEquals(List.of(coldPath), shard.toList());
+        }
+        verify(storedFileRepository, never()).existsByStoragePath(anyString());
+    }
+
+    @Test
+    void moveNextBatch_whenBatchIsFull_shouldContinueAfterLastId() throws IOException {
+        storageProperties.setColdMoveBatchSize(1);
+        mover = new ColdStorageMover(storageProperties, storedFileRepository, metadataCache);
+        StoredFile storedFile = hotFile("id");
+
+        when(storedFileRepository.findColdCandidates(eq(""), anyString(), any(Instant.class), any(Instant.class), eq(1)))
+                .thenReturn(List.of(storedFile));
+        when(storedFileRepository.relocate(eq("id"), anyString(), anyString(), eq("id"))).thenReturn(1);
+
+        mover.moveNextBatch();
+
+        assertEquals("id", mover.getCursor());
+    }
+
+    @Test
+    void moveNextBatch_whenNoColdLocation_shouldDoNothing() {
+        storageProperties.setColdLocation("");
+        mover = new ColdStorageMover(storageProperties, storedFileRepository, metadataCache);
+
+        mover.moveNextBatch();
+
+        assertFalse(mover.isEnabled());
+        verifyNoInteractions(storedFileRepository);
+    }
+
+    @Test
+    void constructor_whenColdLocationInsideStorageLocation_shouldThrowStorageException() {
+        storageProperties.setColdLocation(tempDir.resolve("hot").resolve("cold").toString());
+
+        assertThrows(StorageException.class,
+                () -> new ColdStorageMover(storageProperties, storedFileRepository, metadataCache));
+    }
+}
@@ -0,0 +1,109 @@
+package xyz.stanleyw.secureshare;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import xyz.stanleyw.secureshare.config.StorageProperties;
+import xyz.stanleyw.secureshare.entity.StoredBlob;
+import xyz.stanleyw.secureshare.repository.StoredBlobRepository;
+import xyz.stanleyw.secureshare.service.ContentAddressedBlobStore;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+public class ContentAddressedBlobStoreTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Mock
+    StoredBlobRepository storedBlobRepository;
+
+    private ContentAddressedBlobStore blobStore;
+
+    private static final String DIGEST = "b94d27b9934d3e08a52e52d7da7dabfac484efe37a5380ee9088f7ace2efcde9";
+
+    @BeforeEach
+    void setUp() throws IOException {
+        StorageProperties storageProperties = new StorageProperties();
+        storageProperties.setLocation(tempDir.toString());
+        blobStore = new ContentAddressedBlobStore(storageProperties, storedBlobRepository);
+        blobStore.init();
+    }
+
+    @Test
+    void pathOf_shouldFanOutByDigestPrefix() {
+        Path expected = tempDir.resolve("blobs").resolve("b9").resolve("4d").resolve(DIGEST).toAbsolutePath();
+
+        assertEquals(expected, blobStore.pathOf(DIGEST));
+    }
+
+    @Test
+    void commit_whenBlobIsNew_shouldMoveTempFileIntoPlace() throws IOException {
+        Path tempFile = blobStore.createTempFile();
+        Files.writeString(tempFile, "hello world");
+
+        Path blobFile = blobStore.commit(tempFile, DIGEST, 11);
+
+        assertEquals(blobStore.pathOf(DIGEST), blobFile);
+        assertEquals("hello world", Files.readString(blobFile));
+        assertFalse(Files.exists(tempFile));
+        verify(storedBlobRepository).touch(eq(DIGEST), eq(blobFile.toString()), eq(11L), any(Instant.class));
+    }
+
+    @Test
+    void commit_whenBlobAlreadyExists_shouldDiscardTempFile() throws IOException {
+        Path existing = blobStore.pathOf(DIGEST);
+        Files.createDirectories(existing.getParent());
+        Files.writeString(existing, "hello world");
+
+        Path tempFile = blobStore.createTempFile();
+        Files.writeString(tempFile, "hello world");
+
+        Path blobFile = blobStore.commit(tempFile, DIGEST, 11);
+
+        assertEquals(existing, blobFile);
+        assertEquals("hello world", Files.readString(blobFile));
+        assertFalse(Files.exists(tempFile));
+        verify(storedBlobRepository).touch(eq(DIGEST), eq(existing.toString()), eq(11L), any(Instant.class));
+    }
+
+    @Test
+    void collectUnreferencedBlobs_shouldRemoveFilesAndRows() throws IOException {
+        Path blobFile = blobStore.pathOf(DIGEST);
+        Files.createDirectories(blobFile.getParent());
+        Files.writeString(blobFile, "hello world");
+
+        List<StoredBlob> unreferenced = List.of(new StoredBlob(DIGEST, blobFile.toString(), 11, 0));
+        when(storedBlobRepository.lockUnreferenced(any(Instant.class), anyInt())).thenReturn(unreferenced);
+
+        blobStore.collectUnreferencedBlobs();
+
+        assertFalse(Files.exists(blobFile));
+        verify(storedBlobRepository).deleteAllInBatch(unreferenced);
+    }
+
+    @Test
+    void collectUnreferencedBlobs_shouldLeaveRecentlyTouchedBlobsAlone() {
+        ArgumentCaptor<Instant> cutoff = ArgumentCaptor.forClass(Instant.class);
+        when(storedBlobRepository.lockUnreferenced(cutoff.capture(), anyInt())).thenReturn(List.of());
+
+        Instant before = Instant.now();
+        blobStore.collectUnreferencedBlobs();
+
+        // An upload's row may still be on its way for a while after its content was committed
+        assertTrue(cutoff.getValue().isBefore(before.minus(Duration.ofMinutes(30))));
+    }
+}
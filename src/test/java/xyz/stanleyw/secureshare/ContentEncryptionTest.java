@@ -0,0 +1,142 @@
+package xyz.stanleyw.secureshare;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import xyz.stanleyw.secureshare.service.ContentEncryption;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ContentEncryptionTest {
+
+    private static final int SEGMENT = ContentEncryption.SEGMENT_SIZE;
+
+    @TempDir
+    Path tempDir;
+
+    private final ContentEncryption encryption = new ContentEncryption(key(1));
+
+    private static byte[] key(int seed) {
+        byte[] key = new byte[32];
+        new Random(seed).nextBytes(key);
+        return key;
+    }
+
+    private static byte[] content(int size) {
+        byte[] content = new byte[size];
+        new Random(size).nextBytes(content);
+        return content;
+    }
+
+    private Path encrypt(byte[] content) throws IOException {
+        Path file = tempDir.resolve("content-" + content.length);
+
+        try (OutputStream out = encryption.encrypting(Files.newOutputStream(file))) {
+            // Odd write sizes, so segments are filled across several writes
+            for (int offset = 0; offset < content.length; offset += 10_000) {
+                out.write(content, offset, Math.min(10_000, content.length - offset));
+            }
+        }
+
+        return file;
+    }
+
+    private byte[] decrypt(Path file, long start, int count) throws IOException {
+        try (InputStream in = encryption.decrypting(file, start)) {
+            return in.readNBytes(count);
+        }
+    }
+
+    @Test
+    void encrypting_shouldRoundTripAroundSegmentBoundaries() throws IOException {
+        for (int size : new int[]{1, SEGMENT - 1, SEGMENT, SEGMENT + 1, 3 * SEGMENT + 17}) {
+            byte[] content = content(size);
+            Path file = encrypt(content);
+
+            assertEquals(ContentEncryption.encryptedSize(size), Files.size(file));
+            assertEquals(size, ContentEncryption.plaintextSize(Files.size(file)));
+            assertArrayEquals(content, decrypt(file, 0, Integer.MAX_VALUE), "size " + size);
+        }
+    }
+
+    @Test
+    void encrypting_shouldNotStoreThePlaintext() throws IOException {
+        byte[] content = "the same sentence over and over. ".repeat(1000).getBytes();
+
+        byte[] stored = Files.readAllBytes(encrypt(content));
+
+        for (int i = 0; i + 32 <= content.length; i += 4096) {
+            byte[] probe = Arrays.copyOfRange(content, i, i + 32);
+            assertFalse(indexOf(stored, probe) >= 0, "plaintext found at " + i);
+        }
+    }
+
+    @Test
+    void decrypting_whenStartingMidFile_shouldReturnExactlyThatRange() throws IOException {
+        byte[] content = content(3 * SEGMENT + 17);
+        Path file = encrypt(content);
+
+        for (int start : new int[]{0, 5, SEGMENT - 1, SEGMENT, SEGMENT + 3, 3 * SEGMENT + 16}) {
+            int count = Math.min(SEGMENT + 100, content.length - start);
+            assertArrayEquals(Arrays.copyOfRange(content, start, start + count), decrypt(file, start, count),
+                    "start " + start);
+        }
+    }
+
+    @Test
+    void decrypting_whenCiphertextIsTampered_shouldFailAuthentication() throws IOException {
+        Path file = encrypt(content(2 * SEGMENT));
+        byte[] stored = Files.readAllBytes(file);
+        stored[stored.length - 100] ^= 1;
+        Files.write(file, stored);
+
+        assertThrows(IOException.class, () -> decrypt(file, SEGMENT, SEGMENT));
+    }
+
+    @Test
+    void decrypting_whenTrailingSegmentsAreCutOff_shouldFailAuthentication() throws IOException {
+        Path file = encrypt(content(2 * SEGMENT + 1));
+        byte[] stored = Files.readAllBytes(file);
+        // Drop the last segment entirely, so what remains ends on a segment boundary
+        Files.write(file, Arrays.copyOf(stored, stored.length - 17));
+
+        assertThrows(IOException.class, () -> decrypt(file, 0, Integer.MAX_VALUE));
+    }
+
+    @Test
+    void decrypting_withAnotherKey_shouldFailAuthentication() throws IOException {
+        Path file = encrypt(content(100));
+        ContentEncryption otherKey = new ContentEncryption(key(2));
+
+        assertThrows(IOException.class, () -> {
+            try (InputStream in = otherKey.decrypting(file, 0)) {
+                in.readAllBytes();
+            }
+        });
+    }
+
+    @Test
+    void constructor_whenKeyIsNot256Bits_shouldThrowIllegalArgumentException() {
+        assertThrows(IllegalArgumentException.class, () -> new ContentEncryption(new byte[16]));
+    }
+
+    private static int indexOf(byte[] haystack, byte[] needle) {
+        outer:
+        for (int i = 0; i + needle.length <= haystack.length; i++) {
+            for (int j = 0; j < needle.length; j++) {
+                if (haystack[i + j] != needle[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+}
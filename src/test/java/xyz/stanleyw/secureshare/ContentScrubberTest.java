@@ -0,0 +1,185 @@
+package xyz.stanleyw.secureshare;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.util.unit.DataSize;
+import xyz.stanleyw.secureshare.config.StorageProperties;
+import xyz.stanleyw.secureshare.entity.StoredFile;
+import xyz.stanleyw.secureshare.repository.StoredFileRepository;
+import xyz.stanleyw.secureshare.service.ContentAddressedBlobStore;
+import xyz.stanleyw.secureshare.service.ContentScrubber;
+import xyz.stanleyw.secureshare.service.FileSystemStorageService;
+import xyz.stanleyw.secureshare.service.StorageUsage;
+import xyz.stanleyw.secureshare.service.StoredFileMetadataCache;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.List;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+public class ContentScrubberTest {
+
+    // SHA-256 of "hello world"
+    private static final String HELLO_WORLD_SHA256 = "b94d27b9934d3e08a52e52d7da7dabfac484efe37a5380ee9088f7ace2efcde9";
+
+    @TempDir
+    Path tempDir;
+
+    @Mock
+    StoredFileRepository storedFileRepository;
+
+    @Mock
+    ContentAddressedBlobStore blobStore;
+
+    private StorageProperties storageProperties;
+
+    private StoredFileMetadataCache metadataCache;
+
+    private SimpleMeterRegistry meterRegistry;
+
+    private ContentScrubber scrubber;
+
+    @BeforeEach
+    void setUp() {
+        storageProperties = new StorageProperties();
+        storageProperties.setLocation(tempDir.toString());
+        storageProperties.setScrubBytesPerSecond(DataSize.ofGigabytes(1));
+        metadataCache = new StoredFileMetadataCache(storageProperties);
+        meterRegistry = new SimpleMeterRegistry();
+        scrubber = newScrubber();
+    }
+
+    private ContentScrubber newScrubber() {
+        FileSystemStorageService storageService = new FileSystemStorageService(storageProperties, storedFileRepository,
+                blobStore, metadataCache, new StorageUsage(storageProperties, storedFileRepository), false);
+        return new ContentScrubber(storageProperties, storageService, storedFileRepository, metadataCache, meterRegistry);
+    }
+
+    private StoredFile storedFile(String content, String contentSha256) throws IOException {
+        Path path = Files.writeString(tempDir.resolve("hello.txt"), content);
+
+        StoredFile storedFile = new StoredFile();
+        storedFile.setId("id");
+        storedFile.setStoragePath(path.toString());
+        storedFile.setSizeBytes(11);
+        storedFile.setContentSha256(contentSha256);
+        return storedFile;
+    }
+
+    private double scrubbed(String result) {
+        return meterRegistry.get("storage.scrub.files").tag("result", result).counter().count();
+    }
+
+    private void givenBatch(StoredFile... storedFiles) {
+        when(storedFileRepository.findScrubCandidates(eq(""), any(Instant.class), anyInt()))
+                .thenReturn(List.of(storedFiles));
+    }
+
+    @Test
+    void scrubNextBatch_whenHashMatches_shouldCountVerified() throws IOException {
+        givenBatch(storedFile("hello world", HELLO_WORLD_SHA256));
+
+        scrubber.scrubNextBatch();
+
+        assertEquals(1, scrubbed("verified"));
+        verify(storedFileRepository, never()).recordContentSha256(anyString(), anyString(), anyString());
+        // A short batch restarts the scan on the next run
+        assertEquals("", scrubber.getCursor());
+    }
+
+    @Test
+    void scrubNextBatch_whenHashIsMissing_shouldRecordItAndDropCachedRow() throws IOException {
+        StoredFile storedFile = storedFile("hello world", null);
+        metadataCache.put(storedFile);
+        givenBatch(storedFile);
+        when(storedFileRepository.recordContentSha256("id", storedFile.getStoragePath(), HELLO_WORLD_SHA256))
+                .thenReturn(1);
+
+        scrubber.scrubNextBatch();
+
+        assertEquals(1, scrubbed("recorded"));
+        assertEquals(Optional.empty(), metadataCache.get("id", id -> Optional.empty()));
+    }
+
+    @Test
+    void scrubNextBatch_whenContentChanged_shouldCountCorrupt() throws IOException {
+        givenBatch(storedFile("hello World", HELLO_WORLD_SHA256));
+
+        scrubber.scrubNextBatch();
+
+        assertEquals(1, scrubbed("corrupt"));
+        verify(storedFileRepository, never()).recordContentSha256(anyString(), anyString(), anyString());
+    }
+
+    @Test
+    void scrubNextBatch_whenContentTruncated_shouldCountCorrupt() throws IOException {
+        StoredFile storedFile = storedFile("hello", HELLO_WORLD_SHA256);
+        givenBatch(storedFile);
+        when(storedFileRepository.findById("id")).thenReturn(Optional.of(storedFile));
+
+        scrubber.scrubNextBatch();
+
+        assertEquals(1, scrubbed("corrupt"));
+    }
+
+    @Test
+    void scrubNextBatch_whenContentMissingButRowCurrent_shouldCountMissing() throws IOException {
+        StoredFile storedFile = storedFile("hello world", HELLO_WORLD_SHA256);
+        Files.delete(Path.of(storedFile.getStoragePath()));
+        givenBatch(storedFile);
+        when(storedFileRepository.findById("id")).thenReturn(Optional.of(storedFile));
+
+        scrubber.scrubNextBatch();
+
+        assertEquals(1, scrubbed("missing"));
+    }
+
+    @Test
+    void scrubNextBatch_whenFileReapedMeanwhile_shouldSkipIt() throws IOException {
+        StoredFile storedFile = storedFile("hello world", HELLO_WORLD_SHA256);
+        Files.delete(Path.of(storedFile.getStoragePath()));
+        givenBatch(storedFile);
+        when(storedFileRepository.findById("id")).thenReturn(Optional.empty());
+
+        scrubber.scrubNextBatch();
+
+        assertEquals(1, scrubbed("skipped"));
+    }
+
+    @Test
+    void scrubNextBatch_whenRateIsLow_shouldPaceReads() throws IOException {
+        storageProperties.setScrubBytesPerSecond(DataSize.ofBytes(20));
+        scrubber = newScrubber();
+        givenBatch(storedFile("hello world", HELLO_WORLD_SHA256));
+
+        long started = System.nanoTime();
+        scrubber.scrubNextBatch();
+        long elapsedMillis = (System.nanoTime() - started) / 1_000_000;
+
+        // 11 bytes at 20 bytes per second
+        assertTrue(elapsedMillis >= 500, "Scrub took only " + elapsedMillis + "ms");
+        assertEquals(1, scrubbed("verified"));
+    }
+
+    @Test
+    void scrubNextBatch_whenDisabled_shouldNotQuery() {
+        storageProperties.setScrubBytesPerSecond(null);
+        scrubber = newScrubber();
+
+        scrubber.scrubNextBatch();
+
+        assertFalse(scrubber.isEnabled());
+        verifyNoInteractions(storedFileRepository);
+    }
+}
@@ -0,0 +1,206 @@
+package xyz.stanleyw.secureshare;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import xyz.stanleyw.secureshare.config.StorageProperties;
+import xyz.stanleyw.secureshare.model.ReapedFile;
+import xyz.stanleyw.secureshare.model.ReaperRun;
+import xyz.stanleyw.secureshare.repository.StoredFileRepository;
+import xyz.stanleyw.secureshare.service.ExpiredFileReaper;
+import xyz.stanleyw.secureshare.service.StorageUsage;
+import xyz.stanleyw.secureshare.service.StoredFileMetadataCache;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+public class ExpiredFileReaperTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Mock
+    StoredFileRepository storedFileRepository;
+
+    private ExpiredFileReaper reaper;
+
+    private StorageUsage storageUsage;
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    @BeforeEach
+    void setUp() {
+        StorageProperties storageProperties = new StorageProperties();
+        storageProperties.setLocation(tempDir.toString());
+        storageProperties.setShardLevels(2);
+        storageProperties.setReaperBatchSize(2);
+        storageProperties.setReaperMaxBatches(3);
+        storageUsage = new StorageUsage(storageProperties, storedFileRepository);
+        reaper = new ExpiredFileReaper(storageProperties, storedFileRepository,
+                new StoredFileMetadataCache(storageProperties), storageUsage, Optional.empty(), meterRegistry, false);
+    }
+
+    @AfterEach
+    void tearDown() {
+        reaper.shutdown();
+    }
+
+    private ReapedFile reapedFile(String id, Path path, String blobDigest) {
+        return new ReapedFile() {
+            public String getId() {
+                return id;
+            }
+
+            public String getStoragePath() {
+                return path.toString();
+            }
+
+            public long getSizeBytes() {
+                return 11;
+            }
+
+            public String getBlobDigest() {
+                return blobDigest;
+            }
+        };
+    }
+
+    private Path storedContent(String id) throws IOException {
+        Path file = reaper.getLayout().shardDirectory(id).resolve(id);
+        Files.createDirectories(file.getParent());
+        Files.writeString(file, "hello world");
+        return file;
+    }
+
+    @Test
+    void reapExpiredFiles_whenBatchesAreFull_shouldKeepGoingUntilShortBatch() throws IOException {
+        Path first = storedContent("a");
+        Path second = storedContent("b");
+        Path third = storedContent("c");
+        storageUsage.recordStored(100);
+
+        when(storedFileRepository.deleteExpiredBatch(any(Instant.class), eq(2)))
+                .thenReturn(List.of(reapedFile("a", first, null), reapedFile("b", second, null)))
+                .thenReturn(List.of(reapedFile("c", third, null)));
+
+        ReaperRun run = reaper.reapExpiredFiles();
+
+        // Two expired batches plus one (empty) exhausted batch
+        assertEquals(3, run.getBatches());
+        assertEquals(3, run.getDeletedRows());
+        assertEquals(3, run.getUnlinkedFiles());
+        assertEquals(0, run.getFailedUnlinks());
+        assertFalse(Files.exists(first));
+        assertFalse(Files.exists(second));
+        assertFalse(Files.exists(third));
+        // Every reaped row gives its 11 bytes back
+        assertEquals(67, storageUsage.getStoredBytes().get());
+    }
+
+    @Test
+    void deleteExpiredFilesScanner_shouldRecordRunAndBatchMetrics() throws IOException {
+        Path first = storedContent("a");
+        Path second = storedContent("b");
+
+        when(storedFileRepository.deleteExpiredBatch(any(Instant.class), eq(2)))
+                .thenReturn(List.of(reapedFile("a", first, null), reapedFile("b", second, null)))
+                .thenReturn(List.of());
+
+        reaper.deleteExpiredFilesScanner();
+
+        assertEquals(2, reaper.getLastRun().getDeletedRows());
+        assertEquals(1, meterRegistry.get("storage.reaper.run").timer().count());
+        // One full expired batch, one empty expired batch, one empty exhausted batch
+        assertEquals(3, meterRegistry.get("storage.reaper.batch.size").summary().count());
+        assertEquals(2.0, meterRegistry.get("storage.reaper.batch.size").summary().totalAmount());
+        assertEquals(0.0, meterRegistry.get("storage.reaper.unlink.failures").counter().count());
+    }
+
+    @Test
+    void reapExpiredFiles_whenBacklogIsLarge_shouldStopAfterMaxBatches() throws IOException {
+        Path file = storedContent("a");
+
+        when(storedFileRepository.deleteExpiredBatch(any(Instant.class), eq(2)))
+                .thenReturn(List.of(reapedFile("a", file, null), reapedFile("b", file, null)));
+
+        ReaperRun run = reaper.reapExpiredFiles();
+
+        assertEquals(3, run.getBatches());
+        assertEquals(6, run.getDeletedRows());
+        verify(storedFileRepository, times(3)).deleteExpiredBatch(any(Instant.class), eq(2));
+        verify(storedFileRepository, never()).deleteExhaustedBatch(any(Instant.class), anyInt());
+    }
+
+    @Test
+    void reapExpiredFiles_whenDownloadsExhausted_shouldReapThoseToo() throws IOException {
+        Path exhausted = storedContent("a");
+
+        when(storedFileRepository.deleteExpiredBatch(any(Instant.class), eq(2))).thenReturn(List.of());
+        when(storedFileRepository.deleteExhaustedBatch(any(Instant.class), eq(2)))
+                .thenReturn(List.of(reapedFile("a", exhausted, null)));
+
+        ReaperRun run = reaper.reapExpiredFiles();
+
+        assertEquals(2, run.getBatches());
+        assertEquals(1, run.getDeletedRows());
+        assertFalse(Files.exists(exhausted));
+    }
+
+    @Test
+    void reapExpiredFiles_whenDownloadsExhausted_shouldOnlyReapThoseUsedUpBeforeGracePeriod() {
+        when(storedFileRepository.deleteExpiredBatch(any(Instant.class), eq(2))).thenReturn(List.of());
+
+        Instant before = Instant.now();
+        reaper.reapExpiredFiles();
+
+        // The last download may still be streaming or resumed within the default hour
+        ArgumentCaptor<Instant> cutoff = ArgumentCaptor.forClass(Instant.class);
+        verify(storedFileRepository).deleteExhaustedBatch(cutoff.capture(), eq(2));
+        assertFalse(cutoff.getValue().isBefore(before.minus(Duration.ofHours(1))));
+        assertFalse(cutoff.getValue().isAfter(Instant.now().minus(Duration.ofHours(1))));
+    }
+
+    @Test
+    void reapExpiredFiles_whenRowReferencesBlob_shouldLeaveFileToBlobCollector() throws IOException {
+        Path blob = tempDir.resolve("blob");
+        Files.writeString(blob, "hello world");
+
+        when(storedFileRepository.deleteExpiredBatch(any(Instant.class), eq(2)))
+                .thenReturn(List.of(reapedFile("a", blob, "digest")));
+
+        ReaperRun run = reaper.reapExpiredFiles();
+
+        assertEquals(1, run.getDeletedRows());
+        assertEquals(0, run.getUnlinkedFiles());
+        assertTrue(Files.exists(blob));
+    }
+
+    @Test
+    void reapExpiredFiles_whenFlatFileIsStillShared_shouldKeepIt() throws IOException {
+        Path flat = tempDir.resolve("test.txt").toAbsolutePath();
+        Files.writeString(flat, "hello world");
+
+        when(storedFileRepository.deleteExpiredBatch(any(Instant.class), eq(2)))
+                .thenReturn(List.of(reapedFile("a", flat, null)));
+        when(storedFileRepository.existsByStoragePath(flat.toString())).thenReturn(true);
+
+        reaper.reapExpiredFiles();
+
+        assertTrue(Files.exists(flat));
+    }
+}
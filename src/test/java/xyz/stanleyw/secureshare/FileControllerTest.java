@@ -1,8 +1,11 @@
 package xyz.stanleyw.secureshare;
 
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.webmvc.test.autoconfigure.WebMvcTest;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.MediaType;
 import org.springframework.mock.web.MockMultipartFile;
 import org.springframework.test.context.ActiveProfiles;
@@ -11,13 +14,43 @@ import org.springframework.test.web.servlet.MockMvc;
 import tools.jackson.databind.ObjectMapper;
 import xyz.stanleyw.secureshare.controller.FileController;
 import xyz.stanleyw.secureshare.entity.StoredFile;
+import xyz.stanleyw.secureshare.exception.InsufficientStorageException;
+import xyz.stanleyw.secureshare.exception.InvalidUploadException;
 import xyz.stanleyw.secureshare.exception.StorageException;
+import xyz.stanleyw.secureshare.exception.StoredFileGoneException;
 import xyz.stanleyw.secureshare.exception.StoredFileNotFoundException;
+import xyz.stanleyw.secureshare.exception.TooManyUploadSessionsException;
+import xyz.stanleyw.secureshare.exception.UploadTooLargeException;
+import xyz.stanleyw.secureshare.model.AccessEvent;
+import xyz.stanleyw.secureshare.model.BulkExpirationRequest;
 import xyz.stanleyw.secureshare.model.ExpirationDetails;
+import xyz.stanleyw.secureshare.model.UploadSessionRequest;
+import xyz.stanleyw.secureshare.model.UploadSessionStatus;
+import xyz.stanleyw.secureshare.service.AccessLog;
+import xyz.stanleyw.secureshare.service.ContentCodec;
 import xyz.stanleyw.secureshare.service.StorageService;
+import xyz.stanleyw.secureshare.service.StoredFileResource;
+import xyz.stanleyw.secureshare.service.StoredObjectResource;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipInputStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.mockito.Mockito.*;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.*;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
@@ -34,15 +67,33 @@ public class FileControllerTest {
     @MockitoBean
     private StorageService storageService;
 
+    @MockitoBean
+    private AccessLog accessLog;
+
+    @TempDir
+    Path tempDir;
+
+    private FileSystemResource storedContent(String text) throws IOException {
+        Path file = tempDir.resolve("test.txt");
+        Files.writeString(file, text);
+        return new FileSystemResource(file);
+    }
+
     @Test
     void uploadFile_whenFileIsValid_shouldReturn200() throws Exception {
+        StoredFile storedFile = new StoredFile();
+        storedFile.setId("id");
+
+        when(storageService.store(any(MockMultipartFile.class))).thenReturn(storedFile);
+
         MockMultipartFile file =
                 new MockMultipartFile("file", "test.txt",
                         MediaType.TEXT_PLAIN_VALUE, "sample".getBytes());
 
         mockMvc.perform(multipart("/upload")
                 .file(file))
-                .andExpect(status().isOk());
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.id").value("id"));
     }
 
     @Test
@@ -60,6 +111,139 @@ public class FileControllerTest {
                 .andExpect(status().isInternalServerError());
     }
 
+    @Test
+    void uploadFiles_whenFilesAreValid_shouldReturnEveryId() throws Exception {
+        StoredFile first = new StoredFile();
+        first.setId("first");
+        StoredFile second = new StoredFile();
+        second.setId("second");
+
+        when(storageService.storeAll(anyList())).thenReturn(List.of(first, second));
+
+        mockMvc.perform(multipart("/upload/batch")
+                        .file(new MockMultipartFile("files", "a.txt", MediaType.TEXT_PLAIN_VALUE, "a".getBytes()))
+                        .file(new MockMultipartFile("files", "b.txt", MediaType.TEXT_PLAIN_VALUE, "b".getBytes())))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.ids[0]").value("first"))
+                .andExpect(jsonPath("$.ids[1]").value("second"));
+    }
+
+    @Test
+    void uploadFiles_whenTooManyFiles_shouldReturn400() throws Exception {
+        doThrow(new InvalidUploadException("Exception!"))
+                .when(storageService)
+                .storeAll(anyList());
+
+        mockMvc.perform(multipart("/upload/batch")
+                        .file(new MockMultipartFile("files", "a.txt", MediaType.TEXT_PLAIN_VALUE, "a".getBytes())))
+                .andExpect(status().isBadRequest());
+    }
+
+    @Test
+    void uploadFileStream_whenBodyIsValid_shouldReturnStoredFileId() throws Exception {
+        StoredFile storedFile = new StoredFile();
+        storedFile.setId("id");
+
+        when(storageService.storeStream(eq("test.txt"), eq(6L), any(InputStream.class))).thenReturn(storedFile);
+
+        mockMvc.perform(put("/upload/stream")
+                        .param("filename", "test.txt")
+                        .contentType(MediaType.APPLICATION_OCTET_STREAM)
+                        .header(HttpHeaders.CONTENT_LENGTH, 6)
+                        .content("sample".getBytes()))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.id").value("id"));
+    }
+
+    @Test
+    void uploadFileStream_whenTooLarge_shouldReturn413() throws Exception {
+        doThrow(new UploadTooLargeException("Exception!"))
+                .when(storageService)
+                .storeStream(eq("test.txt"), eq(6L), any(InputStream.class));
+
+        mockMvc.perform(put("/upload/stream")
+                        .param("filename", "test.txt")
+                        .contentType(MediaType.APPLICATION_OCTET_STREAM)
+                        .header(HttpHeaders.CONTENT_LENGTH, 6)
+                        .content("sample".getBytes()))
+                .andExpect(status().is(413));
+    }
+
+    @Test
+    void createUploadSession_whenRequestIsValid_shouldReturnSession() throws Exception {
+        UploadSessionStatus session = new UploadSessionStatus("session", "test.txt", 20, 8, 3, List.of());
+
+        when(storageService.createUploadSession("test.txt", 20)).thenReturn(session);
+
+        mockMvc.perform(post("/upload/sessions")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(objectMapper.writeValueAsString(new UploadSessionRequest("test.txt", 20))))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.sessionId").value("session"))
+                .andExpect(jsonPath("$.chunkCount").value(3));
+    }
+
+    @Test
+    void createUploadSession_whenStorageIsFull_shouldReturn507() throws Exception {
+        doThrow(new InsufficientStorageException("Exception!"))
+                .when(storageService)
+                .createUploadSession("test.txt", 20);
+
+        mockMvc.perform(post("/upload/sessions")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(objectMapper.writeValueAsString(new UploadSessionRequest("test.txt", 20))))
+                .andExpect(status().isInsufficientStorage());
+    }
+
+    @Test
+    void createUploadSession_whenTooManySessionsOpen_shouldReturn503() throws Exception {
+        doThrow(new TooManyUploadSessionsException("Exception!"))
+                .when(storageService)
+                .createUploadSession("test.txt", 20);
+
+        mockMvc.perform(post("/upload/sessions")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(objectMapper.writeValueAsString(new UploadSessionRequest("test.txt", 20))))
+                .andExpect(status().isServiceUnavailable())
+                .andExpect(header().exists(HttpHeaders.RETRY_AFTER));
+    }
+
+    @Test
+    void uploadChunk_whenChunkIsValid_shouldReturn204() throws Exception {
+        mockMvc.perform(put("/upload/sessions/{sessionId}/chunks/{index}", "session", 1)
+                        .contentType(MediaType.APPLICATION_OCTET_STREAM)
+                        .header(HttpHeaders.CONTENT_LENGTH, 6)
+                        .content("sample".getBytes()))
+                .andExpect(status().isNoContent());
+
+        verify(storageService).writeChunk(eq("session"), eq(1), eq(6L), any(InputStream.class));
+    }
+
+    @Test
+    void uploadChunk_whenChunkIsInvalid_shouldReturn400() throws Exception {
+        doThrow(new InvalidUploadException("Exception!"))
+                .when(storageService)
+                .writeChunk(eq("session"), eq(9), eq(6L), any(InputStream.class));
+
+        mockMvc.perform(put("/upload/sessions/{sessionId}/chunks/{index}", "session", 9)
+                        .contentType(MediaType.APPLICATION_OCTET_STREAM)
+                        .header(HttpHeaders.CONTENT_LENGTH, 6)
+                        .content("sample".getBytes()))
+                .andExpect(status().isBadRequest());
+    }
+
+    @Test
+    void completeUploadSession_whenAllChunksReceived_shouldReturnStoredFileId() throws Exception {
+        StoredFile storedFile = new StoredFile();
+        storedFile.setId("id");
+
+        when(storageService.completeUploadSession("session")).thenReturn(storedFile);
+
+        mockMvc.perform(post("/upload/sessions/{sessionId}/complete", "session"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.id").value("id"));
+    }
+
     @Test
     void getStoredFileMetadata_whenValidId_shouldReturnStoredFile() throws Exception {
         String id = "id";
@@ -71,6 +255,22 @@ public class FileControllerTest {
         mockMvc.perform(get("/{id}", id))
                 .andExpect(status().isOk())
                 .andExpect(jsonPath("$.id").value("id"));
+
+        verify(accessLog).record(id, AccessEvent.Type.METADATA);
+    }
+
+    @Test
+    void getAccessCounts_whenEventsFlushed_shouldReturnCountsPerType() throws Exception {
+        String id = "id";
+        when(accessLog.countsFor(id, Instant.parse("2026-01-01T00:00:00Z")))
+                .thenReturn(Map.of(AccessEvent.Type.DOWNLOAD, 3L));
+
+        mockMvc.perform(get("/{id}/access", id).param("since", "2026-01-01T00:00:00Z"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.id").value("id"))
+                .andExpect(jsonPath("$.downloads").value(3))
+                .andExpect(jsonPath("$.resumes").value(0))
+                .andExpect(jsonPath("$.metadataReads").value(0));
     }
 
     @Test
@@ -83,6 +283,8 @@ public class FileControllerTest {
 
         mockMvc.perform(get("/{id}", id))
                 .andExpect(status().isNotFound());
+
+        verifyNoInteractions(accessLog);
     }
 
     @Test
@@ -104,6 +306,27 @@ public class FileControllerTest {
 
     }
 
+    @Test
+    void updateExpirationDetailsBatch_shouldReturnUpdatedFiles() throws Exception {
+        BulkExpirationRequest bulkExpirationRequest = new BulkExpirationRequest(List.of("a", "b"), 5, 3600);
+
+        StoredFile storedFile = new StoredFile();
+        storedFile.setId("a");
+
+        when(storageService.updateExpirations(eq(List.of("a", "b")), any(ExpirationDetails.class)))
+                .thenReturn(List.of(storedFile));
+
+        mockMvc.perform(
+                put("/expiration/batch")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(objectMapper.writeValueAsString(bulkExpirationRequest)))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.files[0].id").value("a"))
+                .andExpect(jsonPath("$.files.length()").value(1));
+
+        verify(storageService, never()).updateExpiration(anyString(), any(ExpirationDetails.class));
+    }
+
     @Test
     void updateExpirationDetails_whenInvalidId_shouldReturn404() throws Exception {
         String id = "id";
@@ -119,4 +342,300 @@ public class FileControllerTest {
                         .content(objectMapper.writeValueAsString(expirationDetails)))
                 .andExpect(status().isNotFound());
     }
+
+    @Test
+    void downloadFile_whenValidId_shouldStreamWholeFile() throws Exception {
+        String id = "id";
+        when(storageService.loadAsResource(id)).thenReturn(storedContent("hello world"));
+        when(storageService.consumeDownload(id)).thenReturn("token");
+
+        mockMvc.perform(get("/{id}/content", id))
+                .andExpect(status().isOk())
+                .andExpect(header().string(HttpHeaders.ETAG, "\"id\""))
+                .andExpect(header().string(HttpHeaders.ACCEPT_RANGES, "bytes"))
+                .andExpect(header().string("Download-Token", "token"))
+                .andExpect(header().longValue(HttpHeaders.CONTENT_LENGTH, 11))
+                .andExpect(content().string("hello world"));
+
+        verify(storageService).consumeDownload(id);
+    }
+
+    @Test
+    void downloadFile_whenRangeResumesGrantedDownload_shouldReturnOnlyThatRangeForFree() throws Exception {
+        String id = "id";
+        when(storageService.loadAsResource(id)).thenReturn(storedContent("hello world"));
+        when(storageService.isResumable(id, "token")).thenReturn(true);
+
+        mockMvc.perform(get("/{id}/content", id)
+                        .header(HttpHeaders.RANGE, "bytes=6-")
+                        .header("Download-Token", "token"))
+                .andExpect(status().isPartialContent())
+                .andExpect(header().string(HttpHeaders.CONTENT_RANGE, "bytes 6-10/11"))
+                .andExpect(content().string("world"));
+
+        // The download being resumed was charged when the token was handed out
+        verify(storageService, never()).consumeDownload(id);
+        verify(accessLog).record(id, AccessEvent.Type.RESUME);
+    }
+
+    @Test
+    void downloadFile_whenRangeHasNoGrant_shouldChargeIt() throws Exception {
+        String id = "id";
+        when(storageService.loadAsResource(id)).thenReturn(storedContent("hello world"));
+        when(storageService.isResumable(id, "forged")).thenReturn(false);
+        when(storageService.consumeDownload(id)).thenReturn("token");
+
+        mockMvc.perform(get("/{id}/content", id)
+                        .header(HttpHeaders.RANGE, "bytes=6-")
+                        .header("Download-Token", "forged"))
+                .andExpect(status().isPartialContent())
+                .andExpect(header().string("Download-Token", "token"))
+                .andExpect(content().string("world"));
+
+        verify(accessLog).record(id, AccessEvent.Type.DOWNLOAD);
+    }
+
+    @Test
+    void downloadFile_whenRangeWithoutGrantIsRepeatedOnSingleDownloadShare_shouldRefuseTheSecond() throws Exception {
+        String id = "id";
+        when(storageService.loadAsResource(id)).thenReturn(storedContent("hello world"));
+        // maxDownloads=1: the first charge takes the last download
+        when(storageService.consumeDownload(id))
+                .thenReturn("token")
+                .thenThrow(new StoredFileGoneException("Exception!"));
+
+        mockMvc.perform(get("/{id}/content", id)
+                        .header(HttpHeaders.RANGE, "bytes=1-"))
+                .andExpect(status().isPartialContent());
+
+        mockMvc.perform(get("/{id}/content", id)
+                        .header(HttpHeaders.RANGE, "bytes=1-"))
+                .andExpect(status().isGone())
+                .andExpect(header().doesNotExist(HttpHeaders.CONTENT_RANGE));
+
+        verify(storageService, times(2)).consumeDownload(id);
+        verify(accessLog, times(1)).record(id, AccessEvent.Type.DOWNLOAD);
+    }
+
+    @Test
+    void downloadFile_whenIfRangeIsStale_shouldReturnWholeFile() throws Exception {
+        String id = "id";
+        when(storageService.loadAsResource(id)).thenReturn(storedContent("hello world"));
+
+        mockMvc.perform(get("/{id}/content", id)
+                        .header(HttpHeaders.RANGE, "bytes=6-")
+                        .header(HttpHeaders.IF_RANGE, "\"other\""))
+                .andExpect(status().isOk())
+                .andExpect(content().string("hello world"));
+    }
+
+    @Test
+    void downloadFile_whenRangeUnsatisfiable_shouldReturn416() throws Exception {
+        String id = "id";
+        when(storageService.loadAsResource(id)).thenReturn(storedContent("hello world"));
+
+        mockMvc.perform(get("/{id}/content", id)
+                        .header(HttpHeaders.RANGE, "bytes=50-60"))
+                .andExpect(status().isRequestedRangeNotSatisfiable())
+                .andExpect(header().string(HttpHeaders.CONTENT_RANGE, "bytes */11"));
+    }
+
+    @Test
+    void downloadFile_whenETagMatches_shouldReturn304() throws Exception {
+        String id = "id";
+        when(storageService.loadAsResource(id)).thenReturn(storedContent("hello world"));
+
+        mockMvc.perform(get("/{id}/content", id)
+                        .header(HttpHeaders.IF_NONE_MATCH, "\"id\""))
+                .andExpect(status().isNotModified())
+                .andExpect(content().string(""));
+
+        verify(storageService, never()).consumeDownload(id);
+        verifyNoInteractions(accessLog);
+    }
+
+    @Test
+    void downloadFile_whenContentHashKnown_shouldUseItAsETagAndDigest() throws Exception {
+        String id = "id";
+        String contentSha256 = "b94d27b9934d3e08a52e52d7da7dabfac484efe37a5380ee9088f7ace2efcde9";
+        StoredFile storedFile = storedFileAt(id, "test.txt", "hello world");
+        storedFile.setSizeBytes(11);
+        storedFile.setContentSha256(contentSha256);
+        when(storageService.loadAsResource(id)).thenReturn(new StoredFileResource(storedFile));
+
+        mockMvc.perform(get("/{id}/content", id))
+                .andExpect(status().isOk())
+                .andExpect(header().string(HttpHeaders.ETAG, "\"" + contentSha256 + "\""))
+                .andExpect(header().string("Repr-Digest", "sha-256=:uU0nuZNNPgilLlLX2n2r+sSE7+N6U4DukIj3rOLvzek=:"))
+                .andExpect(header().string("Digest", "SHA-256=uU0nuZNNPgilLlLX2n2r+sSE7+N6U4DukIj3rOLvzek="))
+                .andExpect(content().string("hello world"));
+
+        verify(accessLog).record(id, AccessEvent.Type.DOWNLOAD);
+    }
+
+    @Test
+    void downloadFile_whenDownloadsExhausted_shouldReturn410() throws Exception {
+        String id = "id";
+        when(storageService.loadAsResource(id)).thenReturn(storedContent("hello world"));
+
+        doThrow(new StoredFileGoneException("Exception!"))
+                .when(storageService)
+                .consumeDownload(id);
+
+        mockMvc.perform(get("/{id}/content", id))
+                .andExpect(status().isGone());
+    }
+
+    private StoredFile compressedFile(String id, String text) throws IOException {
+        Path file = tempDir.resolve(id + ".gz");
+        try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(file))) {
+            out.write(text.getBytes());
+        }
+
+        StoredFile storedFile = new StoredFile();
+        storedFile.setId(id);
+        storedFile.setStoragePath(file.toString());
+        storedFile.setOriginalFilename("test.txt");
+        storedFile.setSizeBytes(text.length());
+        storedFile.setCodec(ContentCodec.GZIP);
+        storedFile.setStoredSizeBytes(Files.size(file));
+        return storedFile;
+    }
+
+    @Test
+    void downloadFile_whenStoredCompressedAndGzipAccepted_shouldSendStoredBytes() throws Exception {
+        String id = "id";
+        StoredFileResource resource = new StoredFileResource(compressedFile(id, "hello world"));
+        when(storageService.loadAsResource(id)).thenReturn(resource);
+
+        mockMvc.perform(get("/{id}/content", id)
+                        .header(HttpHeaders.ACCEPT_ENCODING, "br, gzip;q=0.8"))
+                .andExpect(status().isOk())
+                .andExpect(header().string(HttpHeaders.CONTENT_ENCODING, "gzip"))
+                .andExpect(header().string(HttpHeaders.ETAG, "\"id-gzip\""))
+                .andExpect(header().string(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING))
+                .andExpect(header().longValue(HttpHeaders.CONTENT_LENGTH, Files.size(resource.getFile().toPath())))
+                .andExpect(content().bytes(Files.readAllBytes(resource.getFile().toPath())));
+
+        verify(storageService).consumeDownload(id);
+    }
+
+    @Test
+    void downloadFile_whenStoredCompressedAndGzipNotAccepted_shouldInflateRequestedRange() throws Exception {
+        String id = "id";
+        when(storageService.loadAsResource(id)).thenReturn(new StoredFileResource(compressedFile(id, "hello world")));
+
+        mockMvc.perform(get("/{id}/content", id)
+                        .header(HttpHeaders.ACCEPT_ENCODING, "gzip;q=0, *")
+                        .header(HttpHeaders.RANGE, "bytes=6-"))
+                .andExpect(status().isPartialContent())
+                .andExpect(header().doesNotExist(HttpHeaders.CONTENT_ENCODING))
+                .andExpect(header().string(HttpHeaders.ETAG, "\"id\""))
+                .andExpect(header().string(HttpHeaders.CONTENT_RANGE, "bytes 6-10/11"))
+                .andExpect(content().string("world"));
+    }
+
+    @Test
+    void downloadFile_whenStoredAsObjectAndRangeRequested_shouldFetchOnlyThatRange() throws Exception {
+        String id = "id";
+        InMemoryObjectStore objectStore = new InMemoryObjectStore();
+        objectStore.put("key", new ByteArrayInputStream("hello world".getBytes()), 11);
+
+        StoredFile storedFile = new StoredFile();
+        storedFile.setId(id);
+        storedFile.setStoragePath("object:key");
+        storedFile.setOriginalFilename("test.txt");
+        storedFile.setSizeBytes(11);
+        storedFile.setStoredSizeBytes(11);
+        when(storageService.loadAsResource(id)).thenReturn(new StoredObjectResource(storedFile, objectStore, "key"));
+
+        mockMvc.perform(get("/{id}/content", id)
+                        .header(HttpHeaders.RANGE, "bytes=6-"))
+                .andExpect(status().isPartialContent())
+                .andExpect(header().string(HttpHeaders.CONTENT_RANGE, "bytes 6-10/11"))
+                .andExpect(content().string("world"));
+
+        assertEquals(List.of("key bytes=6-10"), objectStore.rangeRequests());
+    }
+
+    @Test
+    void downloadFile_whenInvalidId_shouldReturn404() throws Exception {
+        String id = "id";
+
+        doThrow(new StoredFileNotFoundException("Exception!"))
+                .when(storageService)
+                .loadAsResource(id);
+
+        mockMvc.perform(get("/{id}/content", id))
+                .andExpect(status().isNotFound());
+    }
+
+    private StoredFile storedFileAt(String id, String originalFilename, String text) throws IOException {
+        Path file = tempDir.resolve(id);
+        Files.writeString(file, text);
+
+        StoredFile storedFile = new StoredFile();
+        storedFile.setId(id);
+        storedFile.setStoragePath(file.toString());
+        storedFile.setOriginalFilename(originalFilename);
+        return storedFile;
+    }
+
+    @Test
+    void downloadArchive_whenFilesAvailable_shouldStreamStoredZipEntries() throws Exception {
+        List<StoredFileResource> files = List.of(
+                new StoredFileResource(storedFileAt("a", "report.txt", "first file")),
+                new StoredFileResource(storedFileAt("b", "report.txt", "second file")));
+
+        when(storageService.consumeDownloads(List.of("a", "b"))).thenReturn(files);
+
+        byte[] archive = mockMvc.perform(get("/archive.zip").param("ids", "a", "b"))
+                .andExpect(status().isOk())
+                .andExpect(header().string(HttpHeaders.CONTENT_TYPE, "application/zip"))
+                .andReturn()
+                .getResponse()
+                .getContentAsByteArray();
+
+        try (ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(archive))) {
+            ZipEntry first = zip.getNextEntry();
+            assertEquals("report.txt", first.getName());
+            assertEquals(ZipEntry.STORED, first.getMethod());
+            assertEquals("first file", new String(zip.readAllBytes()));
+
+            ZipEntry second = zip.getNextEntry();
+            assertEquals("report (1).txt", second.getName());
+            assertEquals("second file", new String(zip.readAllBytes()));
+
+            assertNull(zip.getNextEntry());
+        }
+    }
+
+    @Test
+    void downloadArchive_whenFileStoredCompressed_shouldInflateIntoEntry() throws Exception {
+        when(storageService.consumeDownloads(List.of("a")))
+                .thenReturn(List.of(new StoredFileResource(compressedFile("a", "compressed file"))));
+
+        byte[] archive = mockMvc.perform(get("/archive.zip").param("ids", "a"))
+                .andExpect(status().isOk())
+                .andReturn()
+                .getResponse()
+                .getContentAsByteArray();
+
+        try (ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(archive))) {
+            ZipEntry entry = zip.getNextEntry();
+            assertEquals("test.txt", entry.getName());
+            assertEquals("compressed file", new String(zip.readAllBytes()));
+            assertNull(zip.getNextEntry());
+        }
+    }
+
+    @Test
+    void downloadArchive_whenAnyFileIsUsedUp_shouldReturn410() throws Exception {
+        doThrow(new StoredFileGoneException("Exception!"))
+                .when(storageService)
+                .consumeDownloads(List.of("a", "b"));
+
+        mockMvc.perform(get("/archive.zip").param("ids", "a", "b"))
+                .andExpect(status().isGone());
+    }
 }
@@ -0,0 +1,61 @@
+package xyz.stanleyw.secureshare;
+
+import org.junit.jupiter.api.Test;
+import xyz.stanleyw.secureshare.service.FileIdGenerator;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class FileIdGeneratorTest {
+
+    private static final String ALPHABET = "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz";
+
+    @Test
+    void next_shouldOnlyUseAlphabetAtRequestedLength() {
+        FileIdGenerator generator = new FileIdGenerator(ALPHABET, 7);
+
+        for (int i = 0; i < 10_000; i++) {
+            String id = generator.next();
+            assertEquals(7, id.length());
+            assertTrue(id.chars().allMatch(c -> ALPHABET.indexOf(c) >= 0), id);
+        }
+    }
+
+    @Test
+    void next_shouldEventuallyUseEveryCharacter() {
+        FileIdGenerator generator = new FileIdGenerator(ALPHABET, 7);
+        Set<Integer> seen = new HashSet<>();
+
+        for (int i = 0; i < 10_000 && seen.size() < ALPHABET.length(); i++) {
+            generator.next().chars().forEach(seen::add);
+        }
+
+        assertEquals(ALPHABET.length(), seen.size());
+    }
+
+    @Test
+    void next_whenCalledFromManyVirtualThreads_shouldNotRepeatIds() throws InterruptedException {
+        FileIdGenerator generator = new FileIdGenerator(ALPHABET, 12);
+        Set<String> ids = ConcurrentHashMap.newKeySet();
+
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            IntStream.range(0, 20_000).forEach(i -> executor.submit(() -> ids.add(generator.next())));
+            executor.shutdown();
+            assertTrue(executor.awaitTermination(30, TimeUnit.SECONDS));
+        }
+
+        assertEquals(20_000, ids.size());
+    }
+
+    @Test
+    void constructor_whenAlphabetTooShort_shouldThrow() {
+        assertThrows(IllegalArgumentException.class, () -> new FileIdGenerator("a", 7));
+    }
+}
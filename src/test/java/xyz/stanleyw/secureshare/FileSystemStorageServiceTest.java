@@ -9,22 +9,53 @@ import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.core.io.Resource;
 import org.springframework.mock.web.MockMultipartFile;
+import org.springframework.util.unit.DataSize;
 import org.springframework.web.multipart.MultipartFile;
 import xyz.stanleyw.secureshare.config.StorageProperties;
 import xyz.stanleyw.secureshare.entity.StoredFile;
+import xyz.stanleyw.secureshare.exception.InsufficientStorageException;
+import xyz.stanleyw.secureshare.exception.InvalidUploadException;
 import xyz.stanleyw.secureshare.exception.StorageException;
+import xyz.stanleyw.secureshare.exception.StoredFileGoneException;
 import xyz.stanleyw.secureshare.exception.StoredFileNotFoundException;
+import xyz.stanleyw.secureshare.exception.TooManyUploadSessionsException;
+import xyz.stanleyw.secureshare.exception.UploadTooLargeException;
 import xyz.stanleyw.secureshare.model.ExpirationDetails;
+import xyz.stanleyw.secureshare.model.UploadSessionStatus;
 import xyz.stanleyw.secureshare.repository.StoredFileRepository;
+import xyz.stanleyw.secureshare.service.ContentAddressedBlobStore;
+import xyz.stanleyw.secureshare.service.ContentCodec;
+import xyz.stanleyw.secureshare.service.ContentEncryption;
 import xyz.stanleyw.secureshare.service.FileSystemStorageService;
+import xyz.stanleyw.secureshare.service.StorageUsage;
+import xyz.stanleyw.secureshare.service.StoredFileMetadataCache;
+import xyz.stanleyw.secureshare.service.StoredFileResource;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
 import java.time.Instant;
+import java.security.MessageDigest;
 import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HexFormat;
+import java.util.List;
 import java.util.Optional;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.Mockito.*;
@@ -38,15 +69,23 @@ public class FileSystemStorageServiceTest {
     @Mock
     StoredFileRepository storedFileRepository;
 
+    @Mock
+    ContentAddressedBlobStore blobStore;
+
     private FileSystemStorageService storageService;
 
     private static final Logger LOGGER = LoggerFactory.getLogger(FileSystemStorageServiceTest.class);
 
+    private FileSystemStorageService newStorageService(StorageProperties storageProperties) {
+        return new FileSystemStorageService(storageProperties, storedFileRepository, blobStore,
+                new StoredFileMetadataCache(storageProperties), new StorageUsage(storageProperties, storedFileRepository), false);
+    }
+
     @BeforeEach
     void setUp() {
         StorageProperties storageProperties = new StorageProperties();
         storageProperties.setLocation(tempDir.toString());
-        storageService = new FileSystemStorageService(storageProperties, storedFileRepository);
+        storageService = newStorageService(storageProperties);
     }
 
     @Test
@@ -55,7 +94,7 @@ public class FileSystemStorageServiceTest {
         emptyLocProps.setLocation("");
 
         StorageException ex = assertThrows(StorageException.class,
-                () -> new FileSystemStorageService(emptyLocProps, storedFileRepository));
+                () -> newStorageService(emptyLocProps));
 
         LOGGER.info(ex.getMessage());
     }
@@ -66,7 +105,7 @@ public class FileSystemStorageServiceTest {
         whitespaceLocProps.setLocation("    ");
 
         StorageException ex = assertThrows(StorageException.class,
-                () -> new FileSystemStorageService(whitespaceLocProps, storedFileRepository));
+                () -> newStorageService(whitespaceLocProps));
 
         LOGGER.info(ex.getMessage());
     }
@@ -83,7 +122,7 @@ public class FileSystemStorageServiceTest {
 
         StorageProperties props = new StorageProperties();
         props.setLocation(nonExistentPath.toString());
-        storageService = new FileSystemStorageService(props, storedFileRepository);
+        storageService = newStorageService(props);
 
         storageService.init();
 
@@ -99,6 +138,116 @@ public class FileSystemStorageServiceTest {
         assertTrue(Files.isDirectory(tempDir));
     }
 
+    @Test
+    void init_whenPartFilesAreLeftOver_shouldRemoveOnlyThoseIdlePastSessionTimeout() throws IOException {
+        Path stalePart = tempDir.resolve(".uploads/stale.part");
+        Files.createDirectories(stalePart.getParent());
+        Files.writeString(stalePart, "hello");
+        Files.setLastModifiedTime(stalePart, FileTime.from(Instant.now().minus(2, ChronoUnit.HOURS)));
+        // Possibly still being written by another instance on the same volume
+        Path livePart = Files.writeString(tempDir.resolve(".uploads/live.part"), "hello");
+
+        storageService.init();
+
+        assertFalse(Files.exists(stalePart));
+        assertTrue(Files.exists(livePart));
+    }
+
+    // Older than the default reconcile grace period
+    private static Path leftover(Path file, String content) throws IOException {
+        Files.createDirectories(file.getParent());
+        Files.writeString(file, content);
+        Files.setLastModifiedTime(file, FileTime.from(Instant.now().minus(7, ChronoUnit.HOURS)));
+        return file;
+    }
+
+    @Test
+    void reconcile_whenFilesHaveNoRow_shouldRemoveThemAndKeepReferencedFiles() throws IOException {
+        Path referenced = leftover(tempDir.resolve("kept.txt"), "hello world");
+        Path orphan = leftover(tempDir.resolve("orphan.txt"), "hello world");
+        Path tempFile = leftover(tempDir.resolve(".upload-123.tmp"), "hello");
+        when(storedFileRepository.findReferencedStoragePaths(anyCollection()))
+                .thenReturn(List.of(referenced.toString()));
+        storageService.init();
+
+        storageService.reconcile();
+
+        assertTrue(Files.exists(referenced));
+        assertFalse(Files.exists(orphan));
+        assertFalse(Files.exists(tempFile));
+    }
+
+    @Test
+    void reconcile_whenFilesAreWithinGracePeriod_shouldKeepThem() throws IOException {
+        // Possibly still being written, or committed but not inserted yet, by another instance
+        Path tempFile = Files.writeString(tempDir.resolve(".upload-123.tmp"), "hello");
+        Path committed = Files.writeString(tempDir.resolve("committed.txt"), "hello world");
+        Files.setLastModifiedTime(committed, FileTime.from(Instant.now().minus(5, ChronoUnit.HOURS)));
+        storageService.init();
+
+        storageService.reconcile();
+
+        assertTrue(Files.exists(tempFile));
+        assertTrue(Files.exists(committed));
+        verify(storedFileRepository, never()).findReferencedStoragePaths(anyCollection());
+        // Rows go by the same cutoff
+        verify(storedFileRepository).findReconcileCandidates(eq(""), anyString(),
+                argThat(cutoff -> cutoff.isBefore(Instant.now().minus(5, ChronoUnit.HOURS))), anyInt());
+    }
+
+    @Test
+    void reconcile_whenShardedFileIsBeingMigrated_shouldKeepIt() throws IOException {
+        StorageProperties props = new StorageProperties();
+        props.setLocation(tempDir.toString());
+        props.setShardLevels(2);
+        FileSystemStorageService service = newStorageService(props);
+
+        // Linked into its shard but the row still points at the flat name
+        Path migrating = leftover(service.getLayout().shardDirectory("moving").resolve("moving"), "hello world");
+        Path orphan = leftover(service.getLayout().shardDirectory("crashed").resolve("crashed"), "hello world");
+        when(storedFileRepository.findReferencedStoragePaths(anyCollection())).thenReturn(List.of());
+        when(storedFileRepository.findExistingIds(anyCollection())).thenReturn(List.of("moving"));
+        service.init();
+
+        service.reconcile();
+
+        assertTrue(Files.exists(migrating));
+        assertFalse(Files.exists(orphan));
+    }
+
+    @Test
+    void reconcile_whenRowContentIsMissingOrTruncated_shouldRemoveRow() throws IOException {
+        Path intactPath = leftover(tempDir.resolve("intact.txt"), "hello world");
+        Path truncatedPath = leftover(tempDir.resolve("truncated.txt"), "hello");
+        StoredFile intact = storedFileAt("intact", intactPath);
+        StoredFile truncated = storedFileAt("truncated", truncatedPath);
+        StoredFile missing = storedFileAt("missing", tempDir.resolve("missing.txt"));
+
+        when(storedFileRepository.findReferencedStoragePaths(anyCollection()))
+                .thenReturn(List.of(intactPath.toString(), truncatedPath.toString()));
+        when(storedFileRepository.findReconcileCandidates(eq(""), anyString(), any(Instant.class), anyInt()))
+                .thenReturn(List.of(intact, missing, truncated));
+        when(storedFileRepository.deleteIfAt("missing", missing.getStoragePath())).thenReturn(1);
+        when(storedFileRepository.deleteIfAt("truncated", truncated.getStoragePath())).thenReturn(1);
+        when(storedFileRepository.existsByStoragePath(anyString())).thenReturn(false);
+        storageService.init();
+
+        storageService.reconcile();
+
+        verify(storedFileRepository, never()).deleteIfAt(eq("intact"), anyString());
+        assertTrue(Files.exists(intactPath));
+        assertFalse(Files.exists(truncatedPath));
+    }
+
+    private static StoredFile storedFileAt(String id, Path path) {
+        StoredFile storedFile = new StoredFile();
+        storedFile.setId(id);
+        storedFile.setStoragePath(path.toString());
+        storedFile.setSizeBytes(11);
+        storedFile.setStoredSizeBytes(11);
+        return storedFile;
+    }
+
     @Test
     void init_whenDirectoryCannotBeCreated_shouldThrowStorageException() {
         assertTrue(tempDir.toFile().setReadOnly());
@@ -106,7 +255,7 @@ public class FileSystemStorageServiceTest {
 
         StorageProperties props = new StorageProperties();
         props.setLocation(invalidRootLocation.toString());
-        storageService = new FileSystemStorageService(props, storedFileRepository);
+        storageService = newStorageService(props);
 
         StorageException ex = assertThrows(StorageException.class,
                 () -> storageService.init());
@@ -149,13 +298,13 @@ public class FileSystemStorageServiceTest {
     }
 
     @Test
-    void store_whenFileTransferToFails_shouldThrowIOException() throws IOException {
+    void store_whenFileCanNotBeRead_shouldThrowStorageException() throws IOException {
         MultipartFile mockMultipartFile = mock(MultipartFile.class);
         when(mockMultipartFile.isEmpty()).thenReturn(false);
         when(mockMultipartFile.getOriginalFilename()).thenReturn("test.txt");
 
-        doThrow(new IOException("Mocked IOException TransferTo Failure"))
-                .when(mockMultipartFile).transferTo(any(Path.class));
+        when(mockMultipartFile.getInputStream())
+                .thenThrow(new IOException("Mocked IOException GetInputStream Failure"));
 
         StorageException ex = assertThrows(StorageException.class,
                 () -> storageService.store(mockMultipartFile));
@@ -171,6 +320,7 @@ public class FileSystemStorageServiceTest {
                 "text/plain",
                 "hello world".getBytes()
         );
+        when(storedFileRepository.insert(any(StoredFile.class))).thenReturn(true);
 
         storageService.store(multipartFile);
 
@@ -180,12 +330,650 @@ public class FileSystemStorageServiceTest {
         assertEquals("hello world", Files.readString(expectedPath));
 
         ArgumentCaptor<StoredFile> captor = ArgumentCaptor.forClass(StoredFile.class);
-        verify(storedFileRepository).save(captor.capture());
+        verify(storedFileRepository).insert(captor.capture());
 
         StoredFile saved = captor.getValue();
 
         assertEquals(expectedPath.toString(), saved.getStoragePath());
         assertEquals(multipartFile.getSize(), saved.getSizeBytes());
+        // SHA-256 of "hello world", taken while the upload was copied into place
+        assertEquals("b94d27b9934d3e08a52e52d7da7dabfac484efe37a5380ee9088f7ace2efcde9", saved.getContentSha256());
+    }
+
+    @Test
+    void storeAll_whenFilesAreValid_shouldWriteEveryFileAndInsertOneBatch() throws IOException {
+        StorageProperties props = new StorageProperties();
+        props.setLocation(tempDir.toString());
+        props.setShardLevels(2);
+        FileSystemStorageService service = newStorageService(props);
+
+        List<MultipartFile> files = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            files.add(new MockMultipartFile("files", "file-" + i + ".txt", "text/plain", ("content " + i).getBytes()));
+        }
+
+        when(storedFileRepository.insertAllIfAbsent(anyList())).thenReturn(List.of());
+
+        List<StoredFile> result = service.storeAll(files);
+
+        assertEquals(10, result.size());
+        for (int i = 0; i < 10; i++) {
+            assertEquals("file-" + i + ".txt", result.get(i).getOriginalFilename());
+            assertEquals("content " + i, Files.readString(Path.of(result.get(i).getStoragePath())));
+        }
+        assertEquals(10, result.stream().map(StoredFile::getId).distinct().count());
+        verify(storedFileRepository).insertAllIfAbsent(result);
+        verify(storedFileRepository, never()).insert(any(StoredFile.class));
+    }
+
+    @Test
+    void storeAll_whenIdInBatchIsTaken_shouldRetryOnlyThatFile() throws IOException {
+        StorageProperties props = new StorageProperties();
+        props.setLocation(tempDir.toString());
+        props.setShardLevels(2);
+        FileSystemStorageService service = newStorageService(props);
+
+        List<MultipartFile> files = List.of(
+                new MockMultipartFile("files", "a.txt", "text/plain", "a".getBytes()),
+                new MockMultipartFile("files", "b.txt", "text/plain", "b".getBytes()));
+
+        when(storedFileRepository.insertAllIfAbsent(anyList()))
+                .thenAnswer(invocation -> List.of(invocation.<List<StoredFile>>getArgument(0).get(1)));
+        when(storedFileRepository.insert(any(StoredFile.class))).thenReturn(true);
+
+        List<StoredFile> result = service.storeAll(files);
+
+        StoredFile retried = result.get(1);
+        assertEquals(service.getLayout().shardDirectory(retried.getId()).resolve(retried.getId()).toString(),
+                retried.getStoragePath());
+        assertEquals("b", Files.readString(Path.of(retried.getStoragePath())));
+        verify(storedFileRepository).insert(retried);
+    }
+
+    @Test
+    void storeAll_whenRetryOfTakenIdFails_shouldRemoveEveryRowAndFile() {
+        StorageProperties props = new StorageProperties();
+        props.setLocation(tempDir.toString());
+        props.setShardLevels(2);
+        FileSystemStorageService service = newStorageService(props);
+
+        List<MultipartFile> files = List.of(
+                new MockMultipartFile("files", "a.txt", "text/plain", "a".getBytes()),
+                new MockMultipartFile("files", "b.txt", "text/plain", "b".getBytes()),
+                new MockMultipartFile("files", "c.txt", "text/plain", "c".getBytes()));
+
+        List<StoredFile> written = new ArrayList<>();
+        when(storedFileRepository.insertAllIfAbsent(anyList())).thenAnswer(invocation -> {
+            written.addAll(invocation.getArgument(0));
+            return List.of(written.get(1), written.get(2));
+        });
+        when(storedFileRepository.insert(any(StoredFile.class)))
+                .thenThrow(new IllegalStateException("Mocked insert failure"));
+
+        assertThrows(IllegalStateException.class, () -> service.storeAll(files));
+
+        // Only the row the batch inserted is deleted; the others never made it in under their own ID
+        verify(storedFileRepository).deleteReleasingBlob(written.get(0).getId());
+        verify(storedFileRepository, times(1)).deleteReleasingBlob(anyString());
+        written.forEach(file -> assertFalse(Files.exists(Path.of(file.getStoragePath()))));
+    }
+
+    @Test
+    void storeAll_whenBatchInsertFails_shouldRemoveWrittenFiles() {
+        StorageProperties props = new StorageProperties();
+        props.setLocation(tempDir.toString());
+        props.setShardLevels(2);
+        FileSystemStorageService service = newStorageService(props);
+
+        List<MultipartFile> files = List.of(
+                new MockMultipartFile("files", "a.txt", "text/plain", "a".getBytes()),
+                new MockMultipartFile("files", "b.txt", "text/plain", "b".getBytes()));
+
+        List<Path> writtenPaths = new ArrayList<>();
+        when(storedFileRepository.insertAllIfAbsent(anyList())).thenAnswer(invocation -> {
+            invocation.<List<StoredFile>>getArgument(0).forEach(file -> writtenPaths.add(Path.of(file.getStoragePath())));
+            throw new IllegalStateException("Mocked batch failure");
+        });
+
+        assertThrows(IllegalStateException.class, () -> service.storeAll(files));
+
+        assertEquals(2, writtenPaths.size());
+        writtenPaths.forEach(path -> assertFalse(Files.exists(path)));
+    }
+
+    @Test
+    void storeAll_whenFlatLayoutAndNamesRepeat_shouldThrowInvalidUploadException() {
+        List<MultipartFile> files = List.of(
+                new MockMultipartFile("files", "a.txt", "text/plain", "a".getBytes()),
+                new MockMultipartFile("files", "a.txt", "text/plain", "b".getBytes()));
+
+        assertThrows(InvalidUploadException.class, () -> storageService.storeAll(files));
+        verifyNoInteractions(storedFileRepository);
+    }
+
+    @Test
+    void storeAll_whenTooManyFiles_shouldThrowInvalidUploadException() {
+        StorageProperties props = new StorageProperties();
+        props.setLocation(tempDir.toString());
+        props.setMaxBulkFiles(1);
+        FileSystemStorageService service = newStorageService(props);
+
+        List<MultipartFile> files = List.of(
+                new MockMultipartFile("files", "a.txt", "text/plain", "a".getBytes()),
+                new MockMultipartFile("files", "b.txt", "text/plain", "b".getBytes()));
+
+        assertThrows(InvalidUploadException.class, () -> service.storeAll(files));
+    }
+
+    @Test
+    void storeStream_whenBodyIsValid_shouldStoreSuccessfully() throws IOException {
+        byte[] body = "hello world".getBytes();
+        when(storedFileRepository.insert(any(StoredFile.class))).thenReturn(true);
+
+        StoredFile result = storageService.storeStream("test.txt", body.length, new ByteArrayInputStream(body));
+
+        Path expectedPath = tempDir.resolve("test.txt").toAbsolutePath();
+
+        assertTrue(Files.exists(expectedPath));
+        assertEquals("hello world", Files.readString(expectedPath));
+
+        ArgumentCaptor<StoredFile> captor = ArgumentCaptor.forClass(StoredFile.class);
+        verify(storedFileRepository).insert(captor.capture());
+
+        assertSame(result, captor.getValue());
+        assertEquals(expectedPath.toString(), result.getStoragePath());
+        assertEquals(body.length, result.getSizeBytes());
+    }
+
+    @Test
+    void storeStream_whenBodyIsLargerThanBuffer_shouldStoreEveryByte() throws IOException {
+        byte[] body = new byte[200 * 1024 + 17];
+        for (int i = 0; i < body.length; i++) {
+            body[i] = (byte) i;
+        }
+        when(storedFileRepository.insert(any(StoredFile.class))).thenReturn(true);
+
+        storageService.storeStream("large.bin", body.length, new ByteArrayInputStream(body));
+
+        assertArrayEquals(body, Files.readAllBytes(tempDir.resolve("large.bin")));
+    }
+
+    @Test
+    void storeStream_whenCompressionEnabledAndBodyIsCompressible_shouldStoreGzip() throws IOException {
+        StorageProperties props = new StorageProperties();
+        props.setLocation(tempDir.toString());
+        props.setCompressionEnabled(true);
+        FileSystemStorageService service = newStorageService(props);
+
+        byte[] body = "timestamp=2024-01-01T00:00:00Z level=INFO msg=request served\n".repeat(4000).getBytes();
+        when(storedFileRepository.insert(any(StoredFile.class))).thenReturn(true);
+
+        StoredFile result = service.storeStream("app.log", body.length, new ByteArrayInputStream(body));
+
+        Path storedPath = tempDir.resolve("app.log");
+        assertEquals(ContentCodec.GZIP, result.getCodec());
+        assertEquals(body.length, result.getSizeBytes());
+        assertEquals(Files.size(storedPath), result.getStoredSizeBytes());
+        assertTrue(result.getStoredSizeBytes() < body.length / 10);
+
+        try (InputStream content = ContentCodec.decompressing(Files.newInputStream(storedPath))) {
+            assertArrayEquals(body, content.readAllBytes());
+        }
+    }
+
+    @Test
+    void storeStream_whenCompressionEnabledAndBodyIsIncompressible_shouldStoreAsIs() throws IOException {
+        StorageProperties props = new StorageProperties();
+        props.setLocation(tempDir.toString());
+        props.setCompressionEnabled(true);
+        FileSystemStorageService service = newStorageService(props);
+
+        byte[] body = new byte[100 * 1024];
+        new Random(42).nextBytes(body);
+        when(storedFileRepository.insert(any(StoredFile.class))).thenReturn(true);
+
+        StoredFile result = service.storeStream("photo.jpg", body.length, new ByteArrayInputStream(body));
+
+        assertNull(result.getCodec());
+        assertEquals(body.length, result.getStoredSizeBytes());
+        assertArrayEquals(body, Files.readAllBytes(tempDir.resolve("photo.jpg")));
+    }
+
+    private StorageProperties encryptedProperties() {
+        byte[] key = new byte[32];
+        new Random(7).nextBytes(key);
+
+        StorageProperties props = new StorageProperties();
+        props.setLocation(tempDir.toString());
+        props.setEncryptionEnabled(true);
+        props.setEncryptionKey(Base64.getEncoder().encodeToString(key));
+        return props;
+    }
+
+    @Test
+    void constructor_whenEncryptionEnabledWithoutKey_shouldThrowStorageException() {
+        StorageProperties props = new StorageProperties();
+        props.setLocation(tempDir.toString());
+        props.setEncryptionEnabled(true);
+
+        assertThrows(StorageException.class, () -> newStorageService(props));
+    }
+
+    @Test
+    void storeStream_whenEncryptionEnabled_shouldStoreCiphertextAndServeAnyRange() throws IOException {
+        FileSystemStorageService service = newStorageService(encryptedProperties());
+
+        byte[] body = new byte[200 * 1024 + 17];
+        new Random(42).nextBytes(body);
+        when(storedFileRepository.insert(any(StoredFile.class))).thenReturn(true);
+
+        StoredFile result = service.storeStream("secret.bin", body.length, new ByteArrayInputStream(body));
+
+        Path storedPath = tempDir.resolve("secret.bin");
+        assertEquals(ContentEncryption.SCHEME, result.getEncryption());
+        assertEquals(body.length, result.getSizeBytes());
+        assertEquals(ContentEncryption.encryptedSize(body.length), Files.size(storedPath));
+        assertEquals(Files.size(storedPath), result.getStoredSizeBytes());
+
+        StoredFileResource resource = (StoredFileResource) service.loadAsResource(result.getId());
+
+        assertEquals(body.length, resource.contentLength());
+        try (InputStream content = resource.getInputStream()) {
+            assertArrayEquals(body, content.readAllBytes());
+        }
+        try (InputStream range = resource.openContent(100_000)) {
+            assertArrayEquals(Arrays.copyOfRange(body, 100_000, 150_000), range.readNBytes(50_000));
+        }
+    }
+
+    @Test
+    void storeStream_whenEncryptionAndCompressionEnabled_shouldCompressThenEncrypt() throws IOException {
+        StorageProperties props = encryptedProperties();
+        props.setCompressionEnabled(true);
+        FileSystemStorageService service = newStorageService(props);
+
+        byte[] body = "id,name,amount\n1,alice,10\n2,bob,20\n".repeat(5000).getBytes();
+        when(storedFileRepository.insert(any(StoredFile.class))).thenReturn(true);
+
+        StoredFile result = service.storeStream("ledger.csv", body.length, new ByteArrayInputStream(body));
+
+        assertEquals(ContentCodec.GZIP, result.getCodec());
+        assertEquals(ContentEncryption.SCHEME, result.getEncryption());
+        assertTrue(result.getStoredSizeBytes() < body.length / 10);
+
+        StoredFileResource resource = (StoredFileResource) service.loadAsResource(result.getId());
+        try (InputStream content = resource.getInputStream()) {
+            assertArrayEquals(body, content.readAllBytes());
+        }
+    }
+
+    @Test
+    void storeStream_whenShardingEnabled_shouldStoreUnderShardDirectoryNamedById() throws IOException {
+        StorageProperties props = new StorageProperties();
+        props.setLocation(tempDir.toString());
+        props.setShardLevels(2);
+        FileSystemStorageService service = newStorageService(props);
+        when(storedFileRepository.insert(any(StoredFile.class))).thenReturn(true);
+
+        StoredFile result = service.storeStream("test.txt", 11, new ByteArrayInputStream("hello world".getBytes()));
+
+        Path expectedPath = service.getLayout().shardDirectory(result.getId()).resolve(result.getId());
+
+        assertEquals(expectedPath.toString(), result.getStoragePath());
+        assertEquals(tempDir.toAbsolutePath(), expectedPath.getParent().getParent().getParent());
+        assertEquals("hello world", Files.readString(expectedPath));
+        assertEquals("test.txt", result.getOriginalFilename());
+        assertFalse(Files.exists(tempDir.resolve("test.txt")));
+    }
+
+    @Test
+    void storeStream_whenIdIsAlreadyTaken_shouldRetryWithNewIdAndMoveContent() throws IOException {
+        StorageProperties props = new StorageProperties();
+        props.setLocation(tempDir.toString());
+        props.setShardLevels(2);
+        FileSystemStorageService service = newStorageService(props);
+
+        List<String> attemptedIds = new ArrayList<>();
+        when(storedFileRepository.insert(any(StoredFile.class))).thenAnswer(invocation -> {
+            StoredFile candidate = invocation.getArgument(0);
+            attemptedIds.add(candidate.getId());
+            return attemptedIds.size() > 1;
+        });
+
+        StoredFile result = service.storeStream("test.txt", 11, new ByteArrayInputStream("hello world".getBytes()));
+
+        assertEquals(2, attemptedIds.size());
+        assertNotEquals(attemptedIds.get(0), attemptedIds.get(1));
+        assertEquals(attemptedIds.get(1), result.getId());
+
+        Path expectedPath = service.getLayout().shardDirectory(result.getId()).resolve(result.getId());
+        assertEquals(expectedPath.toString(), result.getStoragePath());
+        assertEquals("hello world", Files.readString(expectedPath));
+        Path collidedPath = service.getLayout().shardDirectory(attemptedIds.get(0)).resolve(attemptedIds.get(0));
+        assertFalse(Files.exists(collidedPath));
+    }
+
+    @Test
+    void storeStream_whenNoIdCanBeAllocated_shouldThrowStorageException() {
+        when(storedFileRepository.insert(any(StoredFile.class))).thenReturn(false);
+
+        assertThrows(StorageException.class,
+                () -> storageService.storeStream("test.txt", 11, new ByteArrayInputStream("hello world".getBytes())));
+
+        verify(storedFileRepository, times(5)).insert(any(StoredFile.class));
+    }
+
+    @Test
+    void storeStream_whenBodyIsTruncated_shouldThrowAndRemovePartialFile() {
+        byte[] body = "hello".getBytes();
+
+        assertThrows(StorageException.class,
+                () -> storageService.storeStream("test.txt", 11, new ByteArrayInputStream(body)));
+
+        assertFalse(Files.exists(tempDir.resolve("test.txt")));
+        verify(storedFileRepository, never()).insert(any(StoredFile.class));
+        // Neither the final name nor the temp file it was written to is left behind
+        assertArrayEquals(new String[0], tempDir.toFile().list());
+    }
+
+    @Test
+    void storeStream_whenBodyIsTruncated_shouldKeepExistingFileWithSameName() throws IOException {
+        Path existing = Files.writeString(tempDir.resolve("test.txt"), "hello world");
+
+        assertThrows(StorageException.class,
+                () -> storageService.storeStream("test.txt", 11, new ByteArrayInputStream("hello".getBytes())));
+
+        assertEquals("hello world", Files.readString(existing));
+    }
+
+    @Test
+    void storeStream_whenBodyIsLongerThanDeclared_shouldThrowAndRemovePartialFile() {
+        byte[] body = "hello world".getBytes();
+
+        assertThrows(StorageException.class,
+                () -> storageService.storeStream("test.txt", 5, new ByteArrayInputStream(body)));
+
+        assertFalse(Files.exists(tempDir.resolve("test.txt")));
+    }
+
+    @Test
+    void storeStream_whenContentLengthExceedsLimit_shouldThrowUploadTooLargeException() {
+        long tooLarge = DataSize.ofMegabytes(50).toBytes() + 1;
+
+        assertThrows(UploadTooLargeException.class,
+                () -> storageService.storeStream("test.txt", tooLarge, new ByteArrayInputStream(new byte[0])));
+    }
+
+    @Test
+    void storeStream_whenFilenameIsMalicious_shouldThrowStorageException() {
+        assertThrows(StorageException.class,
+                () -> storageService.storeStream("../testMaliciousDir", 5, new ByteArrayInputStream("hello".getBytes())));
+    }
+
+    @Test
+    void storeStream_whenDeduplicationEnabled_shouldCommitBlobByContentDigest() throws Exception {
+        StorageProperties props = new StorageProperties();
+        props.setLocation(tempDir.toString());
+        props.setDeduplicationEnabled(true);
+        FileSystemStorageService service = newStorageService(props);
+
+        byte[] body = "hello world".getBytes();
+        String expectedDigest = HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(body));
+        Path tempFile = Files.createFile(tempDir.resolve("upload.tmp"));
+        Path blobFile = tempDir.resolve("blob");
+
+        when(blobStore.createTempFile()).thenReturn(tempFile);
+        when(blobStore.commit(tempFile, expectedDigest, body.length)).thenAnswer(invocation -> {
+            Files.move(tempFile, blobFile);
+            return blobFile;
+        });
+        when(storedFileRepository.insert(any(StoredFile.class))).thenReturn(true);
+
+        StoredFile result = service.storeStream("test.txt", body.length, new ByteArrayInputStream(body));
+
+        assertEquals(expectedDigest, result.getBlobDigest());
+        assertEquals(blobFile.toString(), result.getStoragePath());
+        assertEquals("test.txt", result.getOriginalFilename());
+        assertEquals("hello world", Files.readString(blobFile));
+        assertFalse(Files.exists(tempDir.resolve("test.txt")));
+        verify(storedFileRepository).insert(result);
+    }
+
+    @Test
+    void store_whenDeduplicationEnabled_shouldCloseUploadStream() throws Exception {
+        StorageProperties props = new StorageProperties();
+        props.setLocation(tempDir.toString());
+        props.setDeduplicationEnabled(true);
+        FileSystemStorageService service = newStorageService(props);
+
+        AtomicBoolean closed = new AtomicBoolean();
+        MultipartFile multipartFile = new MockMultipartFile("file", "test.txt", "text/plain", "hello world".getBytes()) {
+            @Override
+            public InputStream getInputStream() {
+                return new ByteArrayInputStream("hello world".getBytes()) {
+                    @Override
+                    public void close() {
+                        closed.set(true);
+                    }
+                };
+            }
+        };
+        Path tempFile = Files.createFile(tempDir.resolve("upload.tmp"));
+
+        when(blobStore.createTempFile()).thenReturn(tempFile);
+        when(blobStore.commit(eq(tempFile), anyString(), eq(11L))).thenReturn(tempDir.resolve("blob"));
+        when(storedFileRepository.insert(any(StoredFile.class))).thenReturn(true);
+
+        service.store(multipartFile);
+
+        // Disk-backed parts hold a file descriptor until their stream is closed
+        assertTrue(closed.get());
+    }
+
+    @Test
+    void storeStream_whenDeduplicatedRowCannotBeSaved_shouldLeaveBlobToCollector() throws Exception {
+        StorageProperties props = new StorageProperties();
+        props.setLocation(tempDir.toString());
+        props.setDeduplicationEnabled(true);
+        FileSystemStorageService service = newStorageService(props);
+
+        byte[] body = "hello world".getBytes();
+        String expectedDigest = HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(body));
+        Path tempFile = Files.createFile(tempDir.resolve("upload.tmp"));
+
+        when(blobStore.createTempFile()).thenReturn(tempFile);
+        when(blobStore.commit(tempFile, expectedDigest, body.length)).thenReturn(tempDir.resolve("blob"));
+        when(storedFileRepository.insert(any(StoredFile.class))).thenThrow(new IllegalStateException("Mocked save failure"));
+
+        assertThrows(IllegalStateException.class,
+                () -> service.storeStream("test.txt", body.length, new ByteArrayInputStream(body)));
+
+        // No reference was taken without the row, so the collector reclaims the blob in time
+        verify(blobStore).commit(tempFile, expectedDigest, body.length);
+        assertFalse(Files.exists(tempFile));
+    }
+
+    private FileSystemStorageService chunkedStorageService(long chunkSize) {
+        StorageProperties props = new StorageProperties();
+        props.setLocation(tempDir.toString());
+        props.setChunkSize(DataSize.ofBytes(chunkSize));
+
+        FileSystemStorageService service = newStorageService(props);
+        service.init();
+        return service;
+    }
+
+    @Test
+    void createUploadSession_whenSizeIsValid_shouldSplitIntoChunks() {
+        FileSystemStorageService service = chunkedStorageService(4);
+
+        UploadSessionStatus session = service.createUploadSession("test.txt", 11);
+
+        assertEquals(3, session.getChunkCount());
+        assertEquals(4, session.getChunkSize());
+        assertTrue(session.getReceivedChunks().isEmpty());
+    }
+
+    @Test
+    void createUploadSession_whenSessionLimitReached_shouldThrowTooManyUploadSessionsException() {
+        StorageProperties props = new StorageProperties();
+        props.setLocation(tempDir.toString());
+        props.setChunkSize(DataSize.ofBytes(4));
+        props.setMaxUploadSessions(1);
+        FileSystemStorageService service = newStorageService(props);
+        service.init();
+
+        UploadSessionStatus open = service.createUploadSession("test.txt", 4);
+
+        assertThrows(TooManyUploadSessionsException.class,
+                () -> service.createUploadSession("other.txt", 4));
+
+        // Completing the open session gives its slot back
+        when(storedFileRepository.insert(any(StoredFile.class))).thenReturn(true);
+        service.writeChunk(open.getSessionId(), 0, 4, new ByteArrayInputStream("abcd".getBytes()));
+        service.completeUploadSession(open.getSessionId());
+
+        assertEquals(1, service.createUploadSession("other.txt", 4).getChunkCount());
+    }
+
+    @Test
+    void createUploadSession_whenOpenSessionsFillQuota_shouldRejectUntilOneCompletes() {
+        StorageProperties props = new StorageProperties();
+        props.setLocation(tempDir.toString());
+        props.setChunkSize(DataSize.ofBytes(4));
+        props.setQuota(DataSize.ofBytes(10));
+        StorageUsage storageUsage = new StorageUsage(props, storedFileRepository);
+        FileSystemStorageService service = new FileSystemStorageService(props, storedFileRepository, blobStore,
+                new StoredFileMetadataCache(props), storageUsage, false);
+        service.init();
+
+        UploadSessionStatus first = service.createUploadSession("first.txt", 8);
+
+        // No chunk has arrived yet, the first session's room is held all the same
+        assertEquals(8, storageUsage.getReservedBytes().get());
+        assertThrows(InsufficientStorageException.class,
+                () -> service.createUploadSession("second.txt", 8));
+        assertEquals(8, storageUsage.getReservedBytes().get());
+
+        when(storedFileRepository.insert(any(StoredFile.class))).thenReturn(true);
+        service.writeChunk(first.getSessionId(), 0, 4, new ByteArrayInputStream("abcd".getBytes()));
+        service.writeChunk(first.getSessionId(), 1, 4, new ByteArrayInputStream("efgh".getBytes()));
+        service.completeUploadSession(first.getSessionId());
+
+        // Completed, the bytes count as stored instead of reserved
+        assertEquals(0, storageUsage.getReservedBytes().get());
+        assertEquals(8, storageUsage.getStoredBytes().get());
+    }
+
+    @Test
+    void completeUploadSession_whenChunksArriveOutOfOrderInParallel_shouldAssembleFile() throws Exception {
+        FileSystemStorageService service = chunkedStorageService(4);
+        byte[] body = "hello chunked world".getBytes();
+
+        UploadSessionStatus session = service.createUploadSession("test.txt", body.length);
+        when(storedFileRepository.insert(any(StoredFile.class))).thenReturn(true);
+
+        ExecutorService executor = Executors.newFixedThreadPool(session.getChunkCount());
+        List<Future<?>> results = new ArrayList<>();
+
+        try {
+            for (int index = session.getChunkCount() - 1; index >= 0; index--) {
+                int chunk = index;
+                int from = chunk * 4;
+                int to = Math.min(body.length, from + 4);
+
+                results.add(executor.submit(() -> service.writeChunk(session.getSessionId(), chunk, to - from,
+                        new ByteArrayInputStream(body, from, to - from))));
+            }
+
+            for (Future<?> result : results) {
+                result.get(30, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertEquals(session.getChunkCount(), service.getUploadSession(session.getSessionId()).getReceivedChunks().size());
+
+        StoredFile storedFile = service.completeUploadSession(session.getSessionId());
+
+        Path expectedPath = tempDir.resolve("test.txt").toAbsolutePath();
+        assertArrayEquals(body, Files.readAllBytes(expectedPath));
+        assertEquals(expectedPath.toString(), storedFile.getStoragePath());
+        assertEquals(body.length, storedFile.getSizeBytes());
+        verify(storedFileRepository).insert(storedFile);
+
+        assertThrows(StoredFileNotFoundException.class,
+                () -> service.getUploadSession(session.getSessionId()));
+    }
+
+    @Test
+    void completeUploadSession_whenEncryptionEnabled_shouldSealEachChunkInPlace() throws Exception {
+        StorageProperties props = encryptedProperties();
+        props.setChunkSize(DataSize.ofBytes(ContentEncryption.SEGMENT_SIZE));
+        FileSystemStorageService service = newStorageService(props);
+        service.init();
+
+        byte[] body = new byte[2 * ContentEncryption.SEGMENT_SIZE + 1000];
+        new Random(3).nextBytes(body);
+        UploadSessionStatus session = service.createUploadSession("secret.bin", body.length);
+        when(storedFileRepository.insert(any(StoredFile.class))).thenReturn(true);
+
+        // Last chunk first, so the part file is filled out of order
+        for (int index = session.getChunkCount() - 1; index >= 0; index--) {
+            int from = index * ContentEncryption.SEGMENT_SIZE;
+            int length = Math.min(ContentEncryption.SEGMENT_SIZE, body.length - from);
+            service.writeChunk(session.getSessionId(), index, length, new ByteArrayInputStream(body, from, length));
+        }
+
+        StoredFile storedFile = service.completeUploadSession(session.getSessionId());
+
+        assertEquals(ContentEncryption.SCHEME, storedFile.getEncryption());
+        assertEquals(ContentEncryption.encryptedSize(body.length), storedFile.getStoredSizeBytes());
+
+        StoredFileResource resource = (StoredFileResource) service.loadAsResource(storedFile.getId());
+        try (InputStream content = resource.getInputStream()) {
+            assertArrayEquals(body, content.readAllBytes());
+        }
+    }
+
+    @Test
+    void completeUploadSession_whenChunkMissing_shouldThrowInvalidUploadException() {
+        FileSystemStorageService service = chunkedStorageService(4);
+
+        UploadSessionStatus session = service.createUploadSession("test.txt", 8);
+        service.writeChunk(session.getSessionId(), 0, 4, new ByteArrayInputStream("abcd".getBytes()));
+
+        assertThrows(InvalidUploadException.class,
+                () -> service.completeUploadSession(session.getSessionId()));
+
+        verify(storedFileRepository, never()).insert(any(StoredFile.class));
+    }
+
+    @Test
+    void writeChunk_whenLengthDoesNotMatchChunk_shouldThrowInvalidUploadException() {
+        FileSystemStorageService service = chunkedStorageService(4);
+
+        UploadSessionStatus session = service.createUploadSession("test.txt", 8);
+
+        assertThrows(InvalidUploadException.class,
+                () -> service.writeChunk(session.getSessionId(), 1, 3, new ByteArrayInputStream("abc".getBytes())));
+    }
+
+    @Test
+    void writeChunk_whenIndexOutOfRange_shouldThrowInvalidUploadException() {
+        FileSystemStorageService service = chunkedStorageService(4);
+
+        UploadSessionStatus session = service.createUploadSession("test.txt", 8);
+
+        assertThrows(InvalidUploadException.class,
+                () -> service.writeChunk(session.getSessionId(), 2, 4, new ByteArrayInputStream("abcd".getBytes())));
+    }
+
+    @Test
+    void writeChunk_whenSessionUnknown_shouldThrowStoredFileNotFoundException() {
+        assertThrows(StoredFileNotFoundException.class,
+                () -> storageService.writeChunk("missing", 0, 4, new ByteArrayInputStream("abcd".getBytes())));
     }
 
     @Test
@@ -215,50 +1003,366 @@ public class FileSystemStorageServiceTest {
     }
 
     @Test
-    void updateExpiration_whenFileIdIsInvalid_shouldThrowStoredFileNotFoundException() {
+    void getMetadata_whenCalledRepeatedly_shouldQueryRepositoryOnce() {
         String id = "id";
-        ExpirationDetails expirationDetails = new ExpirationDetails();
+        StoredFile storedFile = new StoredFile();
+        storedFile.setId(id);
+        storedFile.setExpiresAt(Instant.now().plus(1, ChronoUnit.DAYS));
+
+        when(storedFileRepository.findById(id)).thenReturn(Optional.of(storedFile));
+
+        storageService.getMetadata(id);
+        StoredFile result = storageService.getMetadata(id);
+
+        assertEquals(id, result.getId());
+        verify(storedFileRepository, times(1)).findById(id);
+    }
+
+    @Test
+    void getMetadata_whenUnknownIdIsRequestedRepeatedly_shouldQueryRepositoryOnce() {
+        String id = "guessed";
 
         when(storedFileRepository.findById(id)).thenReturn(Optional.empty());
 
-        assertThrows(StoredFileNotFoundException.class,
-                () -> storageService.updateExpiration(id, expirationDetails));
+        assertThrows(StoredFileNotFoundException.class, () -> storageService.getMetadata(id));
+        assertThrows(StoredFileNotFoundException.class, () -> storageService.getMetadata(id));
 
-        verify(storedFileRepository).findById(id);
+        verify(storedFileRepository, times(1)).findById(id);
     }
 
     @Test
-    void updateExpiration_whenFileIdIsValid_shouldUpdateAndReturnStoredFile() {
+    void getMetadata_whenShareHasExpired_shouldNotServeCachedCopy() {
         String id = "id";
-        ExpirationDetails expirationDetails = new ExpirationDetails(67, 241200);
+        StoredFile storedFile = new StoredFile();
+        storedFile.setId(id);
+        storedFile.setExpiresAt(Instant.now().minusSeconds(1));
+
+        when(storedFileRepository.findById(id)).thenReturn(Optional.of(storedFile));
 
-        Instant createdAt = Instant.parse("2025-12-11T00:00:00Z");
+        storageService.getMetadata(id);
+        storageService.getMetadata(id);
 
+        verify(storedFileRepository, times(2)).findById(id);
+    }
+
+    @Test
+    void getMetadata_afterDownloadConsumed_shouldReflectRemainingCount() {
+        String id = "id";
         StoredFile storedFile = new StoredFile();
         storedFile.setId(id);
-        storedFile.setMaxDownloads(100);
-        storedFile.setDownloadsRemaining(99);
-        storedFile.setCreatedAt(createdAt);
+        storedFile.setExpiresAt(Instant.now().plus(1, ChronoUnit.DAYS));
+        storedFile.setDownloadsRemaining(5);
 
         when(storedFileRepository.findById(id)).thenReturn(Optional.of(storedFile));
+        when(storedFileRepository.consumeDownloadGranting(eq(id), anyString(), any(Instant.class)))
+                .thenReturn(List.of(4));
+
+        storageService.getMetadata(id);
+        storageService.consumeDownload(id);
 
-        when(storedFileRepository.save(any(StoredFile.class)))
-                .thenAnswer(invocation -> invocation.getArgument(0));
+        assertEquals(4, storageService.getMetadata(id).getDownloadsRemaining());
+        // The cached instance is replaced, never mutated
+        assertEquals(5, storedFile.getDownloadsRemaining());
+        verify(storedFileRepository, times(1)).findById(id);
+    }
 
-        Instant expectedExpiresAt = storedFile.getCreatedAt()
-                .plus(expirationDetails.getExpiresInSeconds(), ChronoUnit.SECONDS);
+    @Test
+    void getMetadata_afterDelete_shouldQueryRepositoryAgain() {
+        String id = "id";
+        StoredFile storedFile = new StoredFile();
+        storedFile.setId(id);
+        storedFile.setExpiresAt(Instant.now().plus(1, ChronoUnit.DAYS));
+        storedFile.setBlobDigest("digest");
 
-        int downloadsUsed = storedFile.getMaxDownloads() - storedFile.getDownloadsRemaining();
-        int expectedDownloadsRemaining = expirationDetails.getMaxDownloads() - downloadsUsed;
+        when(storedFileRepository.findById(id))
+                .thenReturn(Optional.of(storedFile), Optional.of(storedFile), Optional.empty());
+
+        storageService.getMetadata(id);
+        storageService.delete(id);
+
+        assertThrows(StoredFileNotFoundException.class, () -> storageService.getMetadata(id));
+        verify(storedFileRepository, times(3)).findById(id);
+    }
+
+    @Test
+    void loadAsResource_whenFileIdIsValid_shouldReturnReadableResource() throws IOException {
+        String id = "id";
+        Path storedPath = tempDir.resolve("test.txt");
+        Files.writeString(storedPath, "hello world");
+
+        StoredFile storedFile = new StoredFile();
+        storedFile.setId(id);
+        storedFile.setStoragePath(storedPath.toString());
+
+        when(storedFileRepository.findById(id)).thenReturn(Optional.of(storedFile));
+
+        Resource resource = storageService.loadAsResource(id);
+
+        assertTrue(resource.isReadable());
+        assertEquals(storedPath, resource.getFile().toPath());
+    }
+
+    @Test
+    void loadAsResource_whenContentMissingOnDisk_shouldThrowStoredFileNotFoundException() {
+        String id = "id";
+        StoredFile storedFile = new StoredFile();
+        storedFile.setId(id);
+        storedFile.setStoragePath(tempDir.resolve("missing.txt").toString());
+
+        when(storedFileRepository.findById(id)).thenReturn(Optional.of(storedFile));
+
+        assertThrows(StoredFileNotFoundException.class,
+                () -> storageService.loadAsResource(id));
+    }
+
+    @Test
+    void loadAsResource_whenCachedPathMovedToColdTier_shouldReadFromNewPath() throws IOException {
+        String id = "id";
+        Path coldPath = tempDir.resolve("cold-id");
+        Files.writeString(coldPath, "hello world");
+
+        StoredFile stale = new StoredFile();
+        stale.setId(id);
+        stale.setStoragePath(tempDir.resolve("hot-id").toString());
+        StoredFile moved = new StoredFile();
+        moved.setId(id);
+        moved.setStoragePath(coldPath.toString());
+
+        when(storedFileRepository.findById(id)).thenReturn(Optional.of(stale), Optional.of(moved));
+
+        assertEquals(coldPath, storageService.loadAsResource(id).getFile().toPath());
+        // The moved row replaced the stale cache entry
+        assertEquals(coldPath, storageService.loadAsResource(id).getFile().toPath());
+        verify(storedFileRepository, times(2)).findById(id);
+    }
+
+    @Test
+    void consumeDownload_whenDownloadsRemain_shouldReturnTheTokenItGranted() {
+        String id = "id";
+        when(storedFileRepository.consumeDownloadGranting(eq(id), anyString(), any(Instant.class)))
+                .thenReturn(List.of(41));
+
+        String token = storageService.consumeDownload(id);
+
+        verify(storedFileRepository).consumeDownloadGranting(eq(id), eq(token), any(Instant.class));
+        verify(storedFileRepository, never()).existsById(id);
+        // Another download gets a token of its own
+        assertNotEquals(token, storageService.consumeDownload(id));
+    }
+
+    @Test
+    void consumeDownload_whenDownloadsExhausted_shouldThrowStoredFileGoneException() {
+        String id = "id";
+        when(storedFileRepository.consumeDownloadGranting(eq(id), anyString(), any(Instant.class)))
+                .thenReturn(List.of());
+        when(storedFileRepository.existsById(id)).thenReturn(true);
+
+        assertThrows(StoredFileGoneException.class,
+                () -> storageService.consumeDownload(id));
+    }
+
+    @Test
+    void consumeDownload_whenFileIdIsInvalid_shouldThrowStoredFileNotFoundException() {
+        String id = "id";
+        when(storedFileRepository.consumeDownloadGranting(eq(id), anyString(), any(Instant.class)))
+                .thenReturn(List.of());
+        when(storedFileRepository.existsById(id)).thenReturn(false);
+
+        assertThrows(StoredFileNotFoundException.class,
+                () -> storageService.consumeDownload(id));
+    }
+
+    @Test
+    void isResumable_whenTokenWasGranted_shouldNotChargeOne() {
+        String id = "id";
+        when(storedFileRepository.isGranted(eq(id), eq("token"), any(Instant.class))).thenReturn(true);
+
+        assertTrue(storageService.isResumable(id, "token"));
+        verify(storedFileRepository, never()).consumeDownloadGranting(anyString(), anyString(), any(Instant.class));
+    }
+
+    @Test
+    void isResumable_whenTokenIsMissing_shouldNotQuery() {
+        assertFalse(storageService.isResumable("id", null));
+        assertFalse(storageService.isResumable("id", " "));
+
+        verifyNoInteractions(storedFileRepository);
+    }
+
+    @Test
+    void consumeDownload_whenCalledConcurrently_shouldPassRepositoryAnswerThrough() throws Exception {
+        String id = "id";
+        int allowedDownloads = 100;
+        int clients = 400;
+        AtomicInteger downloadsRemaining = new AtomicInteger(allowedDownloads);
+
+        // Stands in for the conditional UPDATE, which is what actually prevents over-serving. This
+        // only checks that the service serves exactly what the repository grants, with no
+        // check-then-act of its own around it.
+        when(storedFileRepository.consumeDownloadGranting(eq(id), anyString(), any(Instant.class)))
+                .thenAnswer(invocation -> {
+                    int before = downloadsRemaining.getAndUpdate(current -> current > 0 ? current - 1 : current);
+                    return before > 0 ? List.of(before - 1) : List.of();
+                });
+        when(storedFileRepository.existsById(id)).thenReturn(true);
+
+        ExecutorService executor = Executors.newFixedThreadPool(clients);
+        CountDownLatch startGate = new CountDownLatch(1);
+        AtomicInteger served = new AtomicInteger();
+        AtomicInteger rejected = new AtomicInteger();
+        List<Future<?>> results = new ArrayList<>();
+
+        try {
+            for (int i = 0; i < clients; i++) {
+                results.add(executor.submit(() -> {
+                    startGate.await();
+                    try {
+                        storageService.consumeDownload(id);
+                        served.incrementAndGet();
+                    } catch (StoredFileGoneException e) {
+                        rejected.incrementAndGet();
+                    }
+                    return null;
+                }));
+            }
+
+            startGate.countDown();
+
+            for (Future<?> result : results) {
+                result.get(30, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertEquals(allowedDownloads, served.get());
+        assertEquals(clients - allowedDownloads, rejected.get());
+        assertEquals(0, downloadsRemaining.get());
+
+        // No read-modify-write through the entity
+        verify(storedFileRepository, never()).findById(anyString());
+        verify(storedFileRepository, never()).save(any(StoredFile.class));
+    }
+
+    private StoredFile storedFileWithContent(String id) throws IOException {
+        Path file = tempDir.resolve(id);
+        Files.writeString(file, "content of " + id);
+
+        StoredFile storedFile = new StoredFile();
+        storedFile.setId(id);
+        storedFile.setStoragePath(file.toString());
+        storedFile.setExpiresAt(Instant.now().plus(1, ChronoUnit.DAYS));
+        return storedFile;
+    }
+
+    @Test
+    void consumeDownloads_whenAllAvailable_shouldChargeEachFileOnce() throws IOException {
+        StoredFile first = storedFileWithContent("a");
+        StoredFile second = storedFileWithContent("b");
+
+        when(storedFileRepository.findById("a")).thenReturn(Optional.of(first));
+        when(storedFileRepository.findById("b")).thenReturn(Optional.of(second));
+        when(storedFileRepository.consumeDownloadsIfAllAvailable(eq(List.of("a", "b")), any(Instant.class), eq(2)))
+                .thenReturn(List.of("a", "b"));
+
+        List<StoredFileResource> result = storageService.consumeDownloads(List.of("a", "b", "a"));
+
+        assertEquals(List.of(first, second), result.stream().map(StoredFileResource::getStoredFile).toList());
+    }
+
+    @Test
+    void consumeDownloads_whenAnyFileIsUsedUp_shouldThrowStoredFileGoneException() throws IOException {
+        when(storedFileRepository.findById("a")).thenReturn(Optional.of(storedFileWithContent("a")));
+        when(storedFileRepository.findById("b")).thenReturn(Optional.of(storedFileWithContent("b")));
+        when(storedFileRepository.consumeDownloadsIfAllAvailable(eq(List.of("a", "b")), any(Instant.class), eq(2)))
+                .thenReturn(List.of());
+
+        assertThrows(StoredFileGoneException.class,
+                () -> storageService.consumeDownloads(List.of("a", "b")));
+    }
+
+    @Test
+    void consumeDownloads_whenContentMissing_shouldThrowBeforeCharging() {
+        StoredFile storedFile = new StoredFile();
+        storedFile.setId("a");
+        storedFile.setStoragePath(tempDir.resolve("missing").toString());
+        storedFile.setExpiresAt(Instant.now().plus(1, ChronoUnit.DAYS));
+
+        when(storedFileRepository.findById("a")).thenReturn(Optional.of(storedFile));
+
+        assertThrows(StoredFileNotFoundException.class,
+                () -> storageService.consumeDownloads(List.of("a")));
+
+        verify(storedFileRepository, never()).consumeDownloadsIfAllAvailable(anyList(), any(Instant.class), anyInt());
+    }
+
+    @Test
+    void updateExpiration_whenFileIdIsInvalid_shouldThrowStoredFileNotFoundException() {
+        String id = "id";
+        ExpirationDetails expirationDetails = new ExpirationDetails();
+
+        when(storedFileRepository.updateExpirationReturning(id, 0, 0)).thenReturn(List.of());
+
+        assertThrows(StoredFileNotFoundException.class,
+                () -> storageService.updateExpiration(id, expirationDetails));
+
+        verify(storedFileRepository, never()).findById(anyString());
+        verify(storedFileRepository, never()).save(any(StoredFile.class));
+    }
+
+    @Test
+    void updateExpiration_whenFileIdIsValid_shouldUpdateInOneStatementAndCacheResult() {
+        String id = "id";
+        ExpirationDetails expirationDetails = new ExpirationDetails(67, 241200);
+
+        StoredFile updated = new StoredFile();
+        updated.setId(id);
+        updated.setMaxDownloads(67);
+        updated.setDownloadsRemaining(66);
+        updated.setExpiresAt(Instant.parse("2025-12-13T19:00:00Z"));
+
+        when(storedFileRepository.updateExpirationReturning(id, 67, 241200)).thenReturn(List.of(updated));
 
         StoredFile result = storageService.updateExpiration(id, expirationDetails);
 
-        assertEquals(expectedExpiresAt, result.getExpiresAt());
-        assertEquals(expirationDetails.getMaxDownloads(), result.getMaxDownloads());
-        assertEquals(expectedDownloadsRemaining, result.getDownloadsRemaining());
+        assertSame(updated, result);
+        verify(storedFileRepository, never()).findById(anyString());
+        verify(storedFileRepository, never()).save(any(StoredFile.class));
 
-        verify(storedFileRepository).findById(id);
-        verify(storedFileRepository).save(storedFile);
+        // The updated row is served from the cache afterwards
+        assertSame(updated, storageService.getMetadata(id));
+    }
+
+    @Test
+    void updateExpirations_shouldUpdateDistinctIdsInOneStatement() {
+        ExpirationDetails expirationDetails = new ExpirationDetails(5, 3600);
+
+        StoredFile a = new StoredFile();
+        a.setId("a");
+        StoredFile b = new StoredFile();
+        b.setId("b");
+
+        when(storedFileRepository.updateExpirationsReturning(List.of("a", "b", "missing"), 5, 3600))
+                .thenReturn(List.of(a, b));
+
+        List<StoredFile> result = storageService.updateExpirations(List.of("a", "b", "a", "missing"), expirationDetails);
+
+        assertEquals(List.of(a, b), result);
+        assertSame(b, storageService.getMetadata("b"));
+        verify(storedFileRepository, never()).findById(anyString());
+    }
+
+    @Test
+    void updateExpirations_whenTooManyIds_shouldThrowInvalidUploadException() {
+        StorageProperties props = new StorageProperties();
+        props.setLocation(tempDir.toString());
+        props.setMaxExpirationUpdates(2);
+        storageService = newStorageService(props);
+
+        assertThrows(InvalidUploadException.class,
+                () -> storageService.updateExpirations(List.of("a", "b", "c"), new ExpirationDetails()));
+
+        verify(storedFileRepository, never()).updateExpirationsReturning(anyList(), anyInt(), anyLong());
     }
 
     @Test
@@ -272,4 +1376,38 @@ public class FileSystemStorageServiceTest {
 
         verify(storedFileRepository).findById(id);
     }
+
+    @Test
+    void delete_whenFileReferencesBlob_shouldReleaseBlobWithRow() {
+        String id = "id";
+        StoredFile storedFile = new StoredFile();
+        storedFile.setId(id);
+        storedFile.setBlobDigest("digest");
+
+        when(storedFileRepository.findById(id)).thenReturn(Optional.of(storedFile));
+
+        storageService.delete(id);
+
+        verify(storedFileRepository).deleteReleasingBlob(id);
+        verify(storedFileRepository, never()).existsByStoragePath(any());
+    }
+
+    @Test
+    void delete_whenFileIsStoredDirectly_shouldRemoveContentFromDisk() throws IOException {
+        String id = "id";
+        Path storedPath = tempDir.resolve("test.txt");
+        Files.writeString(storedPath, "hello world");
+
+        StoredFile storedFile = new StoredFile();
+        storedFile.setId(id);
+        storedFile.setStoragePath(storedPath.toString());
+
+        when(storedFileRepository.findById(id)).thenReturn(Optional.of(storedFile));
+        when(storedFileRepository.existsByStoragePath(storedPath.toString())).thenReturn(false);
+
+        storageService.delete(id);
+
+        verify(storedFileRepository).deleteReleasingBlob(id);
+        assertFalse(Files.exists(storedPath));
+    }
 }
@@ -0,0 +1,164 @@
+package xyz.stanleyw.secureshare;
+
+import xyz.stanleyw.secureshare.service.ObjectStore;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.OptionalLong;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In-process stand-in for an S3-compatible store with the same multipart and range semantics,
+ * recording what was asked of it.
+ */
+public class InMemoryObjectStore implements ObjectStore {
+    private final Map<String, byte[]> objects = new ConcurrentHashMap<>();
+
+    // Parts of every open multipart upload by upload ID, then by part number
+    private final Map<String, Map<Integer, byte[]>> multipartUploads = new ConcurrentHashMap<>();
+
+    private final Queue<String> rangeRequests = new ConcurrentLinkedQueue<>();
+
+    private final AtomicInteger partsInFlight = new AtomicInteger();
+
+    private final AtomicInteger maxPartsInFlight = new AtomicInteger();
+
+    // When set, every part upload waits until enough others have arrived, or gives up after a while
+    private volatile CountDownLatch partRendezvous;
+
+    public void awaitConcurrentParts(int parts) {
+        partRendezvous = new CountDownLatch(parts);
+    }
+
+    public byte[] object(String key) {
+        return objects.get(key);
+    }
+
+    public Map<String, byte[]> objects() {
+        return objects;
+    }
+
+    public int openMultipartUploads() {
+        return multipartUploads.size();
+    }
+
+    public List<String> rangeRequests() {
+        return List.copyOf(rangeRequests);
+    }
+
+    public int maxPartsInFlight() {
+        return maxPartsInFlight.get();
+    }
+
+    @Override
+    public void init() {
+    }
+
+    @Override
+    public void put(String key, InputStream content, long length) throws IOException {
+        objects.put(key, readExactly(content, length));
+    }
+
+    @Override
+    public String createMultipartUpload(String key) {
+        String uploadId = UUID.randomUUID().toString();
+        multipartUploads.put(uploadId, new ConcurrentHashMap<>());
+        return uploadId;
+    }
+
+    @Override
+    public String uploadPart(String key, String uploadId, int partNumber, InputStream content, long length) throws IOException {
+        int inFlight = partsInFlight.incrementAndGet();
+        maxPartsInFlight.accumulateAndGet(inFlight, Math::max);
+
+        try {
+            CountDownLatch rendezvous = partRendezvous;
+            if (rendezvous != null) {
+                rendezvous.countDown();
+                rendezvous.await(5, TimeUnit.SECONDS);
+            }
+
+            byte[] part = readExactly(content, length);
+            requireUpload(uploadId).put(partNumber, part);
+            return "\"etag-" + partNumber + "-" + Arrays.hashCode(part) + "\"";
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted", e);
+        } finally {
+            partsInFlight.decrementAndGet();
+        }
+    }
+
+    @Override
+    public void completeMultipartUpload(String key, String uploadId, List<String> partETags) throws IOException {
+        Map<Integer, byte[]> parts = requireUpload(uploadId);
+        ByteArrayOutputStream object = new ByteArrayOutputStream();
+
+        for (int partNumber = 1; partNumber <= partETags.size(); partNumber++) {
+            byte[] part = parts.get(partNumber);
+            String expectedETag = part == null ? null : "\"etag-" + partNumber + "-" + Arrays.hashCode(part) + "\"";
+            if (!partETags.get(partNumber - 1).equals(expectedETag)) {
+                throw new IOException("Invalid part " + partNumber);
+            }
+            object.write(part);
+        }
+
+        objects.put(key, object.toByteArray());
+        multipartUploads.remove(uploadId);
+    }
+
+    @Override
+    public void abortMultipartUpload(String key, String uploadId) {
+        multipartUploads.remove(uploadId);
+    }
+
+    @Override
+    public InputStream get(String key, long start, long end) throws IOException {
+        byte[] object = objects.get(key);
+        if (object == null) {
+            throw new IOException("No such key: " + key);
+        }
+
+        rangeRequests.add(key + " bytes=" + start + "-" + end);
+        int to = (int) Math.min(end + 1, object.length);
+        return new ByteArrayInputStream(Arrays.copyOfRange(object, (int) start, to));
+    }
+
+    @Override
+    public OptionalLong size(String key) {
+        byte[] object = objects.get(key);
+        return object == null ? OptionalLong.empty() : OptionalLong.of(object.length);
+    }
+
+    @Override
+    public void delete(String key) {
+        objects.remove(key);
+    }
+
+    private Map<Integer, byte[]> requireUpload(String uploadId) throws IOException {
+        Map<Integer, byte[]> parts = multipartUploads.get(uploadId);
+        if (parts == null) {
+            throw new IOException("No such upload: " + uploadId);
+        }
+        return parts;
+    }
+
+    private static byte[] readExactly(InputStream content, long length) throws IOException {
+        byte[] bytes = content.readNBytes((int) length);
+        if (bytes.length != length) {
+            throw new IOException("Body ended after " + bytes.length + " of " + length + " bytes");
+        }
+        return bytes;
+    }
+}
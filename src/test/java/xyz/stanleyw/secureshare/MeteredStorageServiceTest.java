@@ -0,0 +1,102 @@
+package xyz.stanleyw.secureshare;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import xyz.stanleyw.secureshare.entity.StoredFile;
+import xyz.stanleyw.secureshare.exception.StoredFileNotFoundException;
+import xyz.stanleyw.secureshare.exception.UploadTooLargeException;
+import xyz.stanleyw.secureshare.service.FileSystemStorageService;
+import xyz.stanleyw.secureshare.service.MeteredStorageService;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+public class MeteredStorageServiceTest {
+
+    @Mock
+    FileSystemStorageService delegate;
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    private MeteredStorageService storageService;
+
+    @BeforeEach
+    void setUp() {
+        storageService = new MeteredStorageService(delegate, meterRegistry);
+    }
+
+    private long operationCount(String operation, String outcome) {
+        return meterRegistry.get("storage.operation")
+                .tag("operation", operation)
+                .tag("outcome", outcome)
+                .timer()
+                .count();
+    }
+
+    @Test
+    void constructor_shouldRegisterEveryOperationTimerUpFront() {
+        assertEquals(0, operationCount("consume_download", "success"));
+        assertEquals(0, operationCount("delete", "error"));
+        assertEquals(28, meterRegistry.get("storage.operation").timers().size());
+    }
+
+    @Test
+    void storeStream_whenSuccessful_shouldRecordLatencyAndBytes() {
+        StoredFile storedFile = new StoredFile();
+        storedFile.setSizeBytes(1024);
+        InputStream body = new ByteArrayInputStream(new byte[1024]);
+
+        AtomicReference<Double> activeDuringUpload = new AtomicReference<>();
+        when(delegate.storeStream("file.txt", 1024, body)).thenAnswer(invocation -> {
+            activeDuringUpload.set(meterRegistry.get("storage.uploads.active").gauge().value());
+            return storedFile;
+        });
+
+        assertSame(storedFile, storageService.storeStream("file.txt", 1024, body));
+
+        assertEquals(1, operationCount("store_stream", "success"));
+        assertEquals(1024.0, meterRegistry.get("storage.bytes.written").counter().count());
+        assertEquals(1.0, activeDuringUpload.get());
+        assertEquals(0.0, meterRegistry.get("storage.uploads.active").gauge().value());
+    }
+
+    @Test
+    void storeStream_whenRejected_shouldRecordErrorAndNoBytes() {
+        InputStream body = new ByteArrayInputStream(new byte[0]);
+        when(delegate.storeStream("file.txt", Long.MAX_VALUE, body))
+                .thenThrow(new UploadTooLargeException("Mocked limit"));
+
+        assertThrows(UploadTooLargeException.class,
+                () -> storageService.storeStream("file.txt", Long.MAX_VALUE, body));
+
+        assertEquals(1, operationCount("store_stream", "error"));
+        assertEquals(0.0, meterRegistry.get("storage.bytes.written").counter().count());
+        assertEquals(0.0, meterRegistry.get("storage.uploads.active").gauge().value());
+    }
+
+    @Test
+    void getMetadata_shouldDelegateAndRecordLatency() {
+        StoredFile storedFile = new StoredFile();
+        when(delegate.getMetadata("id")).thenReturn(storedFile);
+
+        assertSame(storedFile, storageService.getMetadata("id"));
+        assertEquals(1, operationCount("get_metadata", "success"));
+    }
+
+    @Test
+    void delete_whenFileMissing_shouldRecordErrorAndRethrow() {
+        doThrow(new StoredFileNotFoundException("Mocked missing")).when(delegate).delete("id");
+
+        assertThrows(StoredFileNotFoundException.class, () -> storageService.delete("id"));
+        assertEquals(1, operationCount("delete", "error"));
+    }
+}
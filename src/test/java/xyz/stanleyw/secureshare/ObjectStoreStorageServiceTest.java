@@ -0,0 +1,211 @@
+package xyz.stanleyw.secureshare;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.core.io.Resource;
+import org.springframework.mock.web.MockMultipartFile;
+import org.springframework.util.unit.DataSize;
+import org.springframework.web.multipart.MultipartFile;
+import xyz.stanleyw.secureshare.config.StorageProperties;
+import xyz.stanleyw.secureshare.entity.StoredFile;
+import xyz.stanleyw.secureshare.exception.StorageException;
+import xyz.stanleyw.secureshare.model.UploadSessionStatus;
+import xyz.stanleyw.secureshare.repository.StoredFileRepository;
+import xyz.stanleyw.secureshare.service.ObjectStoreStorageService;
+import xyz.stanleyw.secureshare.service.StorageUsage;
+import xyz.stanleyw.secureshare.service.StoredFileMetadataCache;
+import xyz.stanleyw.secureshare.service.StoredFileResource;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+public class ObjectStoreStorageServiceTest {
+
+    private static final int PART_SIZE = 5 * 1024 * 1024;
+
+    @Mock
+    StoredFileRepository storedFileRepository;
+
+    private final InMemoryObjectStore objectStore = new InMemoryObjectStore();
+
+    private ObjectStoreStorageService storageService;
+
+    private static StorageProperties objectStoreProperties() {
+        StorageProperties storageProperties = new StorageProperties();
+        storageProperties.setBackend(StorageProperties.Backend.OBJECT_STORE);
+        storageProperties.setChunkSize(DataSize.ofBytes(PART_SIZE));
+        storageProperties.getObjectStore().setPartSize(DataSize.ofBytes(PART_SIZE));
+        storageProperties.getObjectStore().setPartUploadThreads(3);
+        return storageProperties;
+    }
+
+    private ObjectStoreStorageService newStorageService(StorageProperties storageProperties) {
+        return new ObjectStoreStorageService(storageProperties, storedFileRepository, objectStore,
+                new StoredFileMetadataCache(storageProperties), new StorageUsage(storageProperties, storedFileRepository), false);
+    }
+
+    @BeforeEach
+    void setUp() {
+        storageService = newStorageService(objectStoreProperties());
+    }
+
+    @AfterEach
+    void tearDown() {
+        storageService.shutdown();
+    }
+
+    private static byte[] content(int size) {
+        byte[] content = new byte[size];
+        new Random(size).nextBytes(content);
+        return content;
+    }
+
+    private byte[] objectOf(StoredFile storedFile) {
+        assertTrue(storedFile.getStoragePath().startsWith("object:"));
+        return objectStore.object(storedFile.getStoragePath().substring("object:".length()));
+    }
+
+    @Test
+    void constructor_whenCompressionEnabled_shouldThrowStorageException() {
+        StorageProperties props = objectStoreProperties();
+        props.setCompressionEnabled(true);
+
+        assertThrows(StorageException.class, () -> newStorageService(props));
+    }
+
+    @Test
+    void constructor_whenPartSizeBelowStoreMinimum_shouldThrowStorageException() {
+        StorageProperties props = objectStoreProperties();
+        props.getObjectStore().setPartSize(DataSize.ofMegabytes(1));
+
+        assertThrows(StorageException.class, () -> newStorageService(props));
+    }
+
+    @Test
+    void storeStream_whenBodyFitsInOnePart_shouldPutSingleObject() {
+        when(storedFileRepository.insert(any(StoredFile.class))).thenReturn(true);
+
+        StoredFile result = storageService.storeStream("hello.txt", 11,
+                new ByteArrayInputStream("hello world".getBytes()));
+
+        assertEquals("hello world", new String(objectOf(result)));
+        assertEquals(11, result.getSizeBytes());
+        assertEquals("hello.txt", result.getOriginalFilename());
+        assertEquals("b94d27b9934d3e08a52e52d7da7dabfac484efe37a5380ee9088f7ace2efcde9", result.getContentSha256());
+        assertEquals(0, objectStore.maxPartsInFlight());
+        verify(storedFileRepository).insert(result);
+    }
+
+    @Test
+    void storeStream_whenBodySpansSeveralParts_shouldUploadPartsInParallel() {
+        when(storedFileRepository.insert(any(StoredFile.class))).thenReturn(true);
+        byte[] content = content(3 * PART_SIZE + 17);
+        objectStore.awaitConcurrentParts(3);
+
+        StoredFile result = storageService.storeStream("large.bin", content.length, new ByteArrayInputStream(content));
+
+        assertArrayEquals(content, objectOf(result));
+        assertEquals(3, objectStore.maxPartsInFlight());
+        assertEquals(0, objectStore.openMultipartUploads());
+    }
+
+    @Test
+    void storeStream_whenBodyEndsEarly_shouldAbortMultipartUploadAndThrow() {
+        byte[] content = content(PART_SIZE + 100);
+
+        assertThrows(StorageException.class,
+                () -> storageService.storeStream("short.bin", 2L * PART_SIZE, new ByteArrayInputStream(content)));
+
+        assertTrue(objectStore.objects().isEmpty());
+        assertEquals(0, objectStore.openMultipartUploads());
+        verify(storedFileRepository, never()).insert(any(StoredFile.class));
+    }
+
+    @Test
+    void storeStream_whenRowCannotBeSaved_shouldRemoveUploadedObject() {
+        when(storedFileRepository.insert(any(StoredFile.class))).thenThrow(new IllegalStateException("database down"));
+
+        assertThrows(IllegalStateException.class,
+                () -> storageService.storeStream("hello.txt", 5, new ByteArrayInputStream("hello".getBytes())));
+
+        assertTrue(objectStore.objects().isEmpty());
+    }
+
+    @Test
+    void storeAll_whenFilesAreValid_shouldStoreEveryFileInOneBatch() {
+        when(storedFileRepository.insertAllIfAbsent(anyList())).thenReturn(List.of());
+        List<MultipartFile> files = List.of(
+                new MockMultipartFile("files", "a.txt", "text/plain", "content a".getBytes()),
+                new MockMultipartFile("files", "b.txt", "text/plain", "content b".getBytes()));
+
+        List<StoredFile> result = storageService.storeAll(files);
+
+        assertEquals(2, result.size());
+        assertEquals("content a", new String(objectOf(result.get(0))));
+        assertEquals("content b", new String(objectOf(result.get(1))));
+        verify(storedFileRepository).insertAllIfAbsent(result);
+    }
+
+    @Test
+    void completeUploadSession_whenChunksArriveOutOfOrder_shouldAssembleObjectFromParts() {
+        when(storedFileRepository.insert(any(StoredFile.class))).thenReturn(true);
+        byte[] content = content(PART_SIZE + 10);
+        UploadSessionStatus session = storageService.createUploadSession("chunked.bin", content.length);
+
+        storageService.writeChunk(session.getSessionId(), 1, 10,
+                new ByteArrayInputStream(Arrays.copyOfRange(content, PART_SIZE, content.length)));
+        storageService.writeChunk(session.getSessionId(), 0, PART_SIZE,
+                new ByteArrayInputStream(Arrays.copyOf(content, PART_SIZE)));
+
+        assertEquals(List.of(0, 1), storageService.getUploadSession(session.getSessionId()).getReceivedChunks());
+
+        StoredFile result = storageService.completeUploadSession(session.getSessionId());
+
+        assertArrayEquals(content, objectOf(result));
+        assertEquals(content.length, result.getSizeBytes());
+        assertEquals(0, objectStore.openMultipartUploads());
+    }
+
+    @Test
+    void loadAsResource_whenRangeIsRead_shouldFetchOnlyThatRange() throws IOException {
+        when(storedFileRepository.insert(any(StoredFile.class))).thenReturn(true);
+        StoredFile stored = storageService.storeStream("hello.txt", 11,
+                new ByteArrayInputStream("hello world".getBytes()));
+
+        Resource resource = storageService.loadAsResource(stored.getId());
+
+        assertFalse(resource.isFile());
+        assertEquals(11, resource.contentLength());
+        try (InputStream range = ((StoredFileResource) resource).openContent(6, 10)) {
+            assertEquals("world", new String(range.readAllBytes()));
+        }
+        String key = stored.getStoragePath().substring("object:".length());
+        assertEquals(List.of(key + " bytes=6-10"), objectStore.rangeRequests());
+    }
+
+    @Test
+    void delete_whenFileExists_shouldRemoveRowAndObject() {
+        when(storedFileRepository.insert(any(StoredFile.class))).thenReturn(true);
+        StoredFile stored = storageService.storeStream("hello.txt", 5, new ByteArrayInputStream("hello".getBytes()));
+        when(storedFileRepository.findById(stored.getId())).thenReturn(Optional.of(stored));
+
+        storageService.delete(stored.getId());
+
+        verify(storedFileRepository).deleteReleasingBlob(stored.getId());
+        assertTrue(objectStore.objects().isEmpty());
+    }
+}
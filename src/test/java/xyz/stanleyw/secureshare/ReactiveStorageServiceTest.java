@@ -0,0 +1,189 @@
+package xyz.stanleyw.secureshare;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.util.unit.DataSize;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.test.StepVerifier;
+import xyz.stanleyw.secureshare.config.StorageProperties;
+import xyz.stanleyw.secureshare.entity.StoredFile;
+import xyz.stanleyw.secureshare.exception.StorageException;
+import xyz.stanleyw.secureshare.exception.StoredFileGoneException;
+import xyz.stanleyw.secureshare.exception.UploadTooLargeException;
+import xyz.stanleyw.secureshare.repository.ReactiveStoredFileRepository;
+import xyz.stanleyw.secureshare.repository.StoredFileRepository;
+import xyz.stanleyw.secureshare.service.ReactiveStorageService;
+import xyz.stanleyw.secureshare.service.StorageService;
+import xyz.stanleyw.secureshare.service.StorageUsage;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+public class ReactiveStorageServiceTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Mock
+    ReactiveStoredFileRepository reactiveStoredFileRepository;
+
+    @Mock
+    StoredFileRepository storedFileRepository;
+
+    @Mock
+    StorageService blockingStorageService;
+
+    private StorageProperties storageProperties;
+
+    private StorageUsage storageUsage;
+
+    private ReactiveStorageService storageService;
+
+    @BeforeEach
+    void setUp() {
+        storageProperties = new StorageProperties();
+        storageProperties.setLocation(tempDir.toString());
+        storageProperties.setMaxUploadSize(DataSize.ofBytes(16));
+        storageUsage = new StorageUsage(storageProperties, storedFileRepository);
+        storageService = new ReactiveStorageService(storageProperties, reactiveStoredFileRepository,
+                blockingStorageService, storageUsage);
+    }
+
+    private static Flux<DataBuffer> body(String... parts) {
+        return Flux.fromArray(parts)
+                .map(part -> DefaultDataBufferFactory.sharedInstance.wrap(part.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static StoredFile storedFile(Path file, int downloadsRemaining) {
+        StoredFile storedFile = new StoredFile();
+        storedFile.setId("id");
+        storedFile.setStoragePath(file.toString());
+        storedFile.setSizeBytes(11);
+        storedFile.setOriginalFilename("hello.txt");
+        storedFile.setDownloadsRemaining(downloadsRemaining);
+        return storedFile;
+    }
+
+    @Test
+    void store_whenBodyMatchesLength_shouldWriteFileAndInsertRow() throws Exception {
+        when(reactiveStoredFileRepository.insert(any(StoredFile.class))).thenReturn(Mono.just(true));
+
+        StepVerifier.create(storageService.store("hello.txt", 11, body("hello ", "world")))
+                .assertNext(storedFile -> {
+                    assertEquals(11, storedFile.getSizeBytes());
+                    assertEquals("hello.txt", storedFile.getOriginalFilename());
+                    // SHA-256 of "hello world", hashed across both buffers
+                    assertEquals("b94d27b9934d3e08a52e52d7da7dabfac484efe37a5380ee9088f7ace2efcde9",
+                            storedFile.getContentSha256());
+                })
+                .verifyComplete();
+
+        assertEquals("hello world", Files.readString(tempDir.resolve("hello.txt")));
+        assertEquals(11, storageUsage.getStoredBytes().get());
+        assertEquals(0, storageUsage.getReservedBytes().get());
+    }
+
+    @Test
+    void store_whenBodyEndsEarly_shouldFailAndRemovePartialFile() {
+        StepVerifier.create(storageService.store("hello.txt", 11, body("hello")))
+                .expectError(StorageException.class)
+                .verify();
+
+        assertFalse(Files.exists(tempDir.resolve("hello.txt")));
+        verify(reactiveStoredFileRepository, never()).insert(any(StoredFile.class));
+        assertEquals(0, storageUsage.getReservedBytes().get());
+    }
+
+    @Test
+    void store_whenBodyEndsEarly_shouldKeepExistingFileWithSameName() throws Exception {
+        Files.writeString(tempDir.resolve("hello.txt"), "hello world");
+
+        StepVerifier.create(storageService.store("hello.txt", 11, body("hello")))
+                .expectError(StorageException.class)
+                .verify();
+
+        assertEquals("hello world", Files.readString(tempDir.resolve("hello.txt")));
+        try (Stream<Path> files = Files.list(tempDir)) {
+            assertEquals(List.of(tempDir.resolve("hello.txt")), files.toList());
+        }
+    }
+
+    @Test
+    void store_whenLengthUnknownAndBodyOverLimit_shouldRejectAsTooLarge() {
+        StepVerifier.create(storageService.store("hello.txt", -1, body("0123456789", "0123456789")))
+                .expectError(UploadTooLargeException.class)
+                .verify();
+
+        verify(reactiveStoredFileRepository, never()).insert(any(StoredFile.class));
+    }
+
+    @Test
+    void store_whenIdIsTaken_shouldRetryWithNewId() {
+        when(reactiveStoredFileRepository.insert(any(StoredFile.class)))
+                .thenReturn(Mono.just(false), Mono.just(true));
+
+        StepVerifier.create(storageService.store("hello.txt", 5, body("hello")))
+                .expectNextCount(1)
+                .verifyComplete();
+
+        verify(reactiveStoredFileRepository, times(2)).insert(any(StoredFile.class));
+        assertEquals(5, storageUsage.getStoredBytes().get());
+    }
+
+    @Test
+    void download_whenStoredAsIs_shouldStreamFileAfterChargingDownload() throws Exception {
+        Path file = Files.writeString(tempDir.resolve("hello.txt"), "hello world");
+        when(reactiveStoredFileRepository.consumeDownload(eq("id"), any(Instant.class))).thenReturn(Mono.just(4));
+
+        ReactiveStorageService.Download download = storageService.download(storedFile(file, 5)).block();
+
+        assertNotNull(download);
+        assertEquals("hello.txt", download.filename());
+        assertEquals(11, download.contentLength());
+
+        String content = DataBufferUtils.join(download.content())
+                .map(buffer -> {
+                    String text = buffer.toString(StandardCharsets.UTF_8);
+                    DataBufferUtils.release(buffer);
+                    return text;
+                })
+                .block();
+        assertEquals("hello world", content);
+        verifyNoInteractions(blockingStorageService);
+    }
+
+    @Test
+    void download_whenNoDownloadsRemaining_shouldFailWithGone() throws Exception {
+        Path file = Files.writeString(tempDir.resolve("hello.txt"), "hello world");
+        when(reactiveStoredFileRepository.consumeDownload(eq("id"), any(Instant.class))).thenReturn(Mono.empty());
+        when(reactiveStoredFileRepository.existsById("id")).thenReturn(Mono.just(true));
+
+        StepVerifier.create(storageService.download(storedFile(file, 0)))
+                .expectError(StoredFileGoneException.class)
+                .verify();
+    }
+
+    @Test
+    void constructor_whenEncryptionEnabled_shouldThrowStorageException() {
+        storageProperties.setEncryptionEnabled(true);
+
+        assertThrows(StorageException.class, () -> new ReactiveStorageService(storageProperties,
+                reactiveStoredFileRepository, blockingStorageService, storageUsage));
+    }
+}
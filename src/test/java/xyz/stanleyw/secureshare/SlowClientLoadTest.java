@@ -0,0 +1,203 @@
+package xyz.stanleyw.secureshare;
+
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Opens many slow streaming uploads against a running instance and measures how quickly a cheap
+ * metadata request is still answered while they are in flight.
+ * <p>
+ * Each slow upload keeps its request thread busy until the last byte arrives. On the default
+ * platform-thread pool (200 threads) the probe queues behind them once the pool is exhausted;
+ * with {@code VIRTUAL_THREADS_ENABLED=true} it should stay fast.
+ * <p>
+ * Every client shares one remote address, so the instance has to admit that many uploads per
+ * client, or all but a few are turned away with 503 and never occupy a thread. Start it with
+ * {@code MAX_CONCURRENT_UPLOADS_PER_CLIENT=400}, once per mode, and run:
+ * <pre>
+ * ./gradlew loadTest -Dloadtest.base-url=http://localhost:8080 -Dloadtest.clients=400
+ * </pre>
+ * Against a lower limit the turned away uploads are counted and reported, and the run fails
+ * because the probe was not measured under the requested load.
+ * Excluded from the regular test task; skipped when nothing listens on the base URL.
+ */
+@Tag("load")
+public class SlowClientLoadTest {
+
+    private final String baseUrl = System.getProperty("loadtest.base-url", "http://localhost:8080");
+
+    private final int clients = Integer.getInteger("loadtest.clients", 400);
+
+    private final int trickleSeconds = Integer.getInteger("loadtest.trickle-seconds", 10);
+
+    // Optional; when set the run fails if the probe's p99 exceeds it
+    private final long maxProbeLatencyMillis = Long.getLong("loadtest.max-probe-latency-ms", -1);
+
+    private static final int TRICKLE_CHUNKS = 20;
+
+    private static final int TRICKLE_CHUNK_SIZE = 1024;
+
+    private static final Pattern ID_PATTERN = Pattern.compile("\"id\"\\s*:\\s*\"([^\"]+)\"");
+
+    @Test
+    void slowUploads_shouldNotStarveOtherRequests() throws Exception {
+        try (ExecutorService clientThreads = Executors.newVirtualThreadPerTaskExecutor()) {
+            HttpClient client = HttpClient.newBuilder()
+                    .version(HttpClient.Version.HTTP_1_1)
+                    .connectTimeout(Duration.ofSeconds(5))
+                    .executor(clientThreads)
+                    .build();
+
+            String probeId = uploadProbeFile(client);
+
+            long started = System.nanoTime();
+            List<CompletableFuture<HttpResponse<String>>> uploads = new ArrayList<>();
+            for (int i = 0; i < clients; i++) {
+                uploads.add(client.sendAsync(slowUpload("slow-" + i + ".bin"), HttpResponse.BodyHandlers.ofString()));
+            }
+
+            // Let the slow uploads occupy the server before probing
+            Thread.sleep(1_000);
+
+            List<Long> probeLatencies = new ArrayList<>();
+            long probeUntil = System.nanoTime() + Duration.ofSeconds(trickleSeconds).toNanos();
+            while (System.nanoTime() < probeUntil) {
+                long probeStarted = System.nanoTime();
+                HttpResponse<String> probe = client.send(
+                        HttpRequest.newBuilder(URI.create(baseUrl + "/" + probeId))
+                                .timeout(Duration.ofSeconds(60))
+                                .GET()
+                                .build(),
+                        HttpResponse.BodyHandlers.ofString());
+                assertEquals(200, probe.statusCode());
+                probeLatencies.add((System.nanoTime() - probeStarted) / 1_000_000);
+                Thread.sleep(200);
+            }
+
+            int succeeded = 0;
+            int turnedAway = 0;
+            for (CompletableFuture<HttpResponse<String>> upload : uploads) {
+                int status = upload.get().statusCode();
+                if (status == 200) {
+                    succeeded++;
+                } else if (status == 503) {
+                    turnedAway++;
+                }
+            }
+            long elapsedMillis = (System.nanoTime() - started) / 1_000_000;
+
+            Collections.sort(probeLatencies);
+            long p50 = percentile(probeLatencies, 50);
+            long p99 = percentile(probeLatencies, 99);
+
+            System.out.printf("[LOAD] %d slow uploads (%d ok, %d turned away) over %d ms; metadata probe n=%d p50=%d ms p99=%d ms max=%d ms%n",
+                    clients, succeeded, turnedAway, elapsedMillis, probeLatencies.size(), p50, p99,
+                    probeLatencies.get(probeLatencies.size() - 1));
+
+            assertEquals(clients, succeeded + turnedAway, "Uploads failed with other statuses than 503");
+            assertEquals(0, turnedAway, turnedAway + " uploads were turned away, start the instance with"
+                    + " MAX_CONCURRENT_UPLOADS_PER_CLIENT=" + clients);
+            if (maxProbeLatencyMillis >= 0) {
+                assertTrue(p99 <= maxProbeLatencyMillis,
+                        "Probe p99 of " + p99 + " ms exceeds " + maxProbeLatencyMillis + " ms");
+            }
+        }
+    }
+
+    private String uploadProbeFile(HttpClient client) throws InterruptedException {
+        HttpResponse<String> response;
+
+        try {
+            response = client.send(
+                    HttpRequest.newBuilder(URI.create(baseUrl + "/upload/stream?filename=probe.txt"))
+                            .PUT(HttpRequest.BodyPublishers.ofString("probe"))
+                            .build(),
+                    HttpResponse.BodyHandlers.ofString());
+        } catch (IOException e) {
+            assumeTrue(false, "No instance reachable at " + baseUrl + ": " + e.getMessage());
+            throw new IllegalStateException(e);
+        }
+
+        assertEquals(200, response.statusCode());
+        Matcher matcher = ID_PATTERN.matcher(response.body());
+        assertTrue(matcher.find(), "Upload response carries no id: " + response.body());
+        return matcher.group(1);
+    }
+
+    private HttpRequest slowUpload(String filename) {
+        long length = (long) TRICKLE_CHUNKS * TRICKLE_CHUNK_SIZE;
+        long pauseMillis = Duration.ofSeconds(trickleSeconds).toMillis() / TRICKLE_CHUNKS;
+
+        // fromPublisher with a length keeps the Content-Length header the stream endpoint requires
+        HttpRequest.BodyPublisher body = HttpRequest.BodyPublishers.fromPublisher(
+                HttpRequest.BodyPublishers.ofInputStream(() -> new TricklingInputStream(pauseMillis)), length);
+
+        return HttpRequest.newBuilder(URI.create(baseUrl + "/upload/stream?filename=" + filename))
+                .timeout(Duration.ofMinutes(5))
+                .PUT(body)
+                .build();
+    }
+
+    private static long percentile(List<Long> sorted, int percentile) {
+        int index = (int) Math.ceil(percentile / 100.0 * sorted.size()) - 1;
+        return sorted.get(Math.max(0, index));
+    }
+
+    /**
+     * Hands out at most one chunk per read, pausing before each, like a client on a very slow link.
+     */
+    private static class TricklingInputStream extends InputStream {
+        private final long pauseMillis;
+
+        private long remaining = (long) TRICKLE_CHUNKS * TRICKLE_CHUNK_SIZE;
+
+        TricklingInputStream(long pauseMillis) {
+            this.pauseMillis = pauseMillis;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            return read(single, 0, 1) == -1 ? -1 : single[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining == 0) {
+                return -1;
+            }
+
+            try {
+                Thread.sleep(pauseMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while trickling", e);
+            }
+
+            int count = (int) Math.min(Math.min(len, TRICKLE_CHUNK_SIZE), remaining);
+            Arrays.fill(b, off, off + count, (byte) 'x');
+            remaining -= count;
+            return count;
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package xyz.stanleyw.secureshare;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import xyz.stanleyw.secureshare.config.StorageProperties;
+import xyz.stanleyw.secureshare.entity.StoredFile;
+import xyz.stanleyw.secureshare.repository.StoredFileRepository;
+import xyz.stanleyw.secureshare.service.StorageLayoutMigrator;
+import xyz.stanleyw.secureshare.service.StoredFileMetadataCache;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+public class StorageLayoutMigratorTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Mock
+    StoredFileRepository storedFileRepository;
+
+    private StorageLayoutMigrator migrator;
+
+    @BeforeEach
+    void setUp() {
+        StorageProperties storageProperties = new StorageProperties();
+        storageProperties.setLocation(tempDir.toString());
+        storageProperties.setShardLevels(2);
+        migrator = new StorageLayoutMigrator(storageProperties, storedFileRepository, new StoredFileMetadataCache(storageProperties));
+    }
+
+    private StoredFile flatFile(String id, String name) throws IOException {
+        Path path = tempDir.resolve(name).toAbsolutePath();
+        Files.writeString(path, "hello world");
+
+        StoredFile storedFile = new StoredFile();
+        storedFile.setId(id);
+        storedFile.setStoragePath(path.toString());
+        return storedFile;
+    }
+
+    @Test
+    void migrateNextBatch_whenFlatFileExists_shouldMoveItIntoItsShard() throws IOException {
+        StoredFile storedFile = flatFile("id", "test.txt");
+        Path oldPath = Path.of(storedFile.getStoragePath());
+        Path newPath = migrator.getLayout().shardDirectory("id").resolve("id");
+
+        when(storedFileRepository.findFlatLayoutCandidates(eq(""), anyString(), anyString(), anyInt()))
+                .thenReturn(List.of(storedFile));
+        when(storedFileRepository.relocate("id", oldPath.toString(), newPath.toString(), "test.txt"))
+                .thenReturn(1);
+        when(storedFileRepository.existsByStoragePath(oldPath.toString())).thenReturn(false);
+
+        migrator.migrateNextBatch();
+
+        assertEquals("hello world", Files.readString(newPath));
+        assertFalse(Files.exists(oldPath));
+        assertEquals("id", migrator.getCursor());
+    }
+
+    @Test
+    void migrateNextBatch_whenFlatFileIsShared_shouldKeepOldPathForRemainingRows() throws IOException {
+        StoredFile storedFile = flatFile("id", "test.txt");
+        Path oldPath = Path.of(storedFile.getStoragePath());
+
+        when(storedFileRepository.findFlatLayoutCandidates(eq(""), anyString(), anyString(), anyInt()))
+                .thenReturn(List.of(storedFile));
+        when(storedFileRepository.relocate(eq("id"), eq(oldPath.toString()), anyString(), eq("test.txt")))
+                .thenReturn(1);
+        when(storedFileRepository.existsByStoragePath(oldPath.toString())).thenReturn(true);
+
+        migrator.migrateNextBatch();
+
+        assertTrue(Files.exists(oldPath));
+    }
+
+    @Test
+    void migrateNextBatch_whenRowChangedConcurrently_shouldDiscardNewCopy() throws IOException {
+        StoredFile storedFile = flatFile("id", "test.txt");
+        Path oldPath = Path.of(storedFile.getStoragePath());
+        Path newPath = migrator.getLayout().shardDirectory("id").resolve("id");
+
+        when(storedFileRepository.findFlatLayoutCandidates(eq(""), anyString(), anyString(), anyInt()))
+                .thenReturn(List.of(storedFile));
+        when(storedFileRepository.relocate(eq("id"), eq(oldPath.toString()), anyString(), eq("test.txt")))
+                .thenReturn(0);
+        when(storedFileRepository.existsByStoragePath(newPath.toString())).thenReturn(false);
+
+        migrator.migrateNextBatch();
+
+        assertTrue(Files.exists(oldPath));
+        assertFalse(Files.exists(newPath));
+        verify(storedFileRepository, never()).existsByStoragePath(oldPath.toString());
+    }
+
+    @Test
+    void migrateNextBatch_whenAnotherInstanceMovedRowFirst_shouldKeepItsTarget() throws IOException {
+        StoredFile storedFile = flatFile("id", "test.txt");
+        Path oldPath = Path.of(storedFile.getStoragePath());
+        Path newPath = migrator.getLayout().shardDirectory("id").resolve("id");
+
+        // The winner's link is already in place and its row points at it
+        Files.createDirectories(newPath.getParent());
+        Files.createLink(newPath, oldPath);
+
+        when(storedFileRepository.findFlatLayoutCandidates(eq(""), anyString(), anyString(), anyInt()))
+                .thenReturn(List.of(storedFile));
+        when(storedFileRepository.relocate(eq("id"), eq(oldPath.toString()), eq(newPath.toString()), eq("test.txt")))
+                .thenReturn(0);
+
+        migrator.migrateNextBatch();
+
+        assertEquals("hello world", Files.readString(newPath));
+        verify(storedFileRepository, never()).existsByStoragePath(anyString());
+    }
+
+    @Test
+    void migrateNextBatch_whenTargetHoldsOtherContent_shouldNeitherReplaceNorRelocate() throws IOException {
+        StoredFile storedFile = flatFile("id", "test.txt");
+        Path newPath = migrator.getLayout().shardDirectory("id").resolve("id");
+        Files.createDirectories(newPath.getParent());
+        Files.writeString(newPath, "hello");
+
+        when(storedFileRepository.findFlatLayoutCandidates(eq(""), anyString(), anyString(), anyInt()))
+                .thenReturn(List.of(storedFile));
+
+        migrator.migrateNextBatch();
+
+        assertEquals("hello", Files.readString(newPath));
+        assertTrue(Files.exists(Path.of(storedFile.getStoragePath())));
+        verify(storedFileRepository, never()).relocate(anyString(), anyString(), anyString(), anyString());
+    }
+
+    @Test
+    void migrateNextBatch_whenNothingLeft_shouldStopScanning() {
+        when(storedFileRepository.findFlatLayoutCandidates(eq(""), anyString(), anyString(), anyInt()))
+                .thenReturn(List.of());
+
+        migrator.migrateNextBatch();
+        migrator.migrateNextBatch();
+
+        assertTrue(migrator.isFinished());
+        verify(storedFileRepository, times(1)).findFlatLayoutCandidates(anyString(), anyString(), anyString(), anyInt());
+    }
+}
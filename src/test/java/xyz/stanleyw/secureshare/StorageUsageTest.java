@@ -0,0 +1,87 @@
+package xyz.stanleyw.secureshare;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.util.unit.DataSize;
+import xyz.stanleyw.secureshare.config.StorageProperties;
+import xyz.stanleyw.secureshare.exception.InsufficientStorageException;
+import xyz.stanleyw.secureshare.repository.StoredFileRepository;
+import xyz.stanleyw.secureshare.service.StorageUsage;
+
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+public class StorageUsageTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Mock
+    StoredFileRepository storedFileRepository;
+
+    private StorageProperties storageProperties;
+
+    @BeforeEach
+    void setUp() {
+        storageProperties = new StorageProperties();
+        storageProperties.setLocation(tempDir.toString());
+        storageProperties.setQuota(DataSize.ofBytes(1000));
+    }
+
+    @Test
+    void reserve_whenUploadFitsQuota_shouldHoldRoomUntilClosed() {
+        when(storedFileRepository.sumSizeBytes()).thenReturn(600L);
+        StorageUsage storageUsage = new StorageUsage(storageProperties, storedFileRepository);
+        storageUsage.recount();
+
+        StorageUsage.Reservation reservation = storageUsage.reserve(300);
+
+        assertThrows(InsufficientStorageException.class, () -> storageUsage.reserve(200));
+
+        reservation.close();
+        // Closing twice gives nothing back twice
+        reservation.close();
+
+        assertDoesNotThrow(() -> storageUsage.reserve(400).close());
+        assertEquals(0, storageUsage.getReservedBytes().get());
+    }
+
+    @Test
+    void recordStoredAndRemoved_shouldFollowStoredFiles() {
+        StorageUsage storageUsage = new StorageUsage(storageProperties, storedFileRepository);
+
+        storageUsage.recordStored(900);
+        assertThrows(InsufficientStorageException.class, () -> storageUsage.requireAvailable(101));
+
+        storageUsage.recordRemoved(500);
+        assertDoesNotThrow(() -> storageUsage.requireAvailable(600));
+        assertEquals(400, storageUsage.getStoredBytes().get());
+    }
+
+    @Test
+    void reserve_whenVolumeWouldRunLow_shouldThrowInsufficientStorageException() {
+        storageProperties.setQuota(null);
+        storageProperties.setMinFreeSpace(DataSize.ofBytes(Long.MAX_VALUE / 2));
+        StorageUsage storageUsage = new StorageUsage(storageProperties, storedFileRepository);
+
+        assertThrows(InsufficientStorageException.class, () -> storageUsage.reserve(1));
+        assertEquals(0, storageUsage.getReservedBytes().get());
+    }
+
+    @Test
+    void reserve_withObjectStoreBackend_shouldOnlyCheckQuota() {
+        storageProperties.setBackend(StorageProperties.Backend.OBJECT_STORE);
+        storageProperties.setQuota(null);
+        storageProperties.setMinFreeSpace(DataSize.ofBytes(Long.MAX_VALUE / 2));
+        StorageUsage storageUsage = new StorageUsage(storageProperties, storedFileRepository);
+
+        assertDoesNotThrow(() -> storageUsage.reserve(1).close());
+    }
+}
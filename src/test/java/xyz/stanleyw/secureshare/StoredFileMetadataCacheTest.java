@@ -0,0 +1,100 @@
+package xyz.stanleyw.secureshare;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import xyz.stanleyw.secureshare.config.StorageProperties;
+import xyz.stanleyw.secureshare.entity.StoredFile;
+import xyz.stanleyw.secureshare.service.StoredFileMetadataCache;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class StoredFileMetadataCacheTest {
+
+    private StoredFileMetadataCache metadataCache;
+
+    private final AtomicInteger loads = new AtomicInteger();
+
+    private final Function<String, Optional<StoredFile>> emptyLoader = id -> {
+        loads.incrementAndGet();
+        return Optional.empty();
+    };
+
+    @BeforeEach
+    void setUp() {
+        StorageProperties storageProperties = new StorageProperties();
+        storageProperties.setLocation("unused");
+        metadataCache = new StoredFileMetadataCache(storageProperties);
+    }
+
+    private StoredFile storedFile(String id, Instant expiresAt) {
+        StoredFile storedFile = new StoredFile();
+        storedFile.setId(id);
+        storedFile.setExpiresAt(expiresAt);
+        return storedFile;
+    }
+
+    @Test
+    void get_whenIdIsUnknown_shouldNotCacheItByDefault() {
+        assertTrue(metadataCache.get("id", emptyLoader).isEmpty());
+        assertTrue(metadataCache.get("id", emptyLoader).isEmpty());
+
+        // Another instance may store the ID right after the first lookup
+        assertEquals(2, loads.get());
+    }
+
+    @Test
+    void get_whenNegativeCachingIsEnabled_shouldCacheUnknownId() {
+        StorageProperties storageProperties = new StorageProperties();
+        storageProperties.setLocation("unused");
+        storageProperties.setMetadataNegativeCacheTtl(Duration.ofSeconds(2));
+        metadataCache = new StoredFileMetadataCache(storageProperties);
+
+        assertTrue(metadataCache.get("id", emptyLoader).isEmpty());
+        assertTrue(metadataCache.get("id", emptyLoader).isEmpty());
+
+        assertEquals(1, loads.get());
+    }
+
+    @Test
+    void put_shouldReplaceNegativeEntry() {
+        StorageProperties storageProperties = new StorageProperties();
+        storageProperties.setLocation("unused");
+        storageProperties.setMetadataNegativeCacheTtl(Duration.ofSeconds(2));
+        metadataCache = new StoredFileMetadataCache(storageProperties);
+
+        assertTrue(metadataCache.get("id", emptyLoader).isEmpty());
+
+        metadataCache.put(storedFile("id", Instant.now().plus(1, ChronoUnit.DAYS)));
+
+        assertTrue(metadataCache.get("id", emptyLoader).isPresent());
+        assertEquals(1, loads.get());
+    }
+
+    @Test
+    void invalidateAll_shouldDropEveryGivenEntry() {
+        metadataCache.put(storedFile("a", Instant.now().plus(1, ChronoUnit.DAYS)));
+        metadataCache.put(storedFile("b", Instant.now().plus(1, ChronoUnit.DAYS)));
+
+        metadataCache.invalidateAll(List.of("a", "b"));
+
+        assertTrue(metadataCache.get("a", emptyLoader).isEmpty());
+        assertTrue(metadataCache.get("b", emptyLoader).isEmpty());
+        assertEquals(2, loads.get());
+    }
+
+    @Test
+    void updateDownloadsRemaining_whenNotCached_shouldNotCreateEntry() {
+        metadataCache.updateDownloadsRemaining("id", 3);
+
+        assertTrue(metadataCache.get("id", emptyLoader).isEmpty());
+        assertEquals(1, loads.get());
+    }
+}
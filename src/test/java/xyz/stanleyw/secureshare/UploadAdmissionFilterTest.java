@@ -0,0 +1,169 @@
+package xyz.stanleyw.secureshare;
+
+import jakarta.servlet.FilterChain;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.http.HttpHeaders;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.util.unit.DataSize;
+import tools.jackson.databind.json.JsonMapper;
+import xyz.stanleyw.secureshare.config.StorageProperties;
+import xyz.stanleyw.secureshare.controller.UploadAdmissionFilter;
+import xyz.stanleyw.secureshare.repository.StoredFileRepository;
+import xyz.stanleyw.secureshare.service.StorageUsage;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@ExtendWith(MockitoExtension.class)
+public class UploadAdmissionFilterTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Mock
+    StoredFileRepository storedFileRepository;
+
+    private StorageProperties storageProperties;
+
+    private StorageUsage storageUsage;
+
+    @BeforeEach
+    void setUp() {
+        storageProperties = new StorageProperties();
+        storageProperties.setLocation(tempDir.toString());
+        storageProperties.setQuota(DataSize.ofBytes(100));
+        storageProperties.setMaxConcurrentUploadsPerClient(1);
+        storageProperties.setUploadQueueTimeout(Duration.ZERO);
+        storageUsage = new StorageUsage(storageProperties, storedFileRepository);
+    }
+
+    private UploadAdmissionFilter newFilter() {
+        return new UploadAdmissionFilter(storageProperties, storageUsage, JsonMapper.builder().build());
+    }
+
+    private static MockHttpServletRequest upload(String client, int contentLength) {
+        MockHttpServletRequest request = new MockHttpServletRequest("PUT", "/upload/stream");
+        request.setRemoteAddr(client);
+        request.setContent(new byte[contentLength]);
+        return request;
+    }
+
+    @Test
+    void doFilter_whenUploadFits_shouldReserveItsLengthWhileRunning() throws Exception {
+        AtomicReference<Long> reservedDuringUpload = new AtomicReference<>();
+        MockHttpServletResponse response = new MockHttpServletResponse();
+
+        newFilter().doFilter(upload("10.0.0.1", 60), response,
+                (request, ignored) -> reservedDuringUpload.set(storageUsage.getReservedBytes().get()));
+
+        assertEquals(200, response.getStatus());
+        assertEquals(60, reservedDuringUpload.get());
+        assertEquals(0, storageUsage.getReservedBytes().get());
+    }
+
+    @Test
+    void doFilter_whenChunkOfUploadSession_shouldNotReserveAgain() throws Exception {
+        // The session already holds room for all of its chunks
+        StorageUsage.Reservation session = storageUsage.reserve(100);
+        MockHttpServletRequest chunk = new MockHttpServletRequest("PUT", "/upload/sessions/session/chunks/0");
+        chunk.setRemoteAddr("10.0.0.1");
+        chunk.setContent(new byte[60]);
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        AtomicReference<Long> reservedDuringUpload = new AtomicReference<>();
+
+        newFilter().doFilter(chunk, response,
+                (request, ignored) -> reservedDuringUpload.set(storageUsage.getReservedBytes().get()));
+
+        assertEquals(200, response.getStatus());
+        assertEquals(100, reservedDuringUpload.get());
+        session.close();
+    }
+
+    @Test
+    void doFilter_whenUploadExceedsQuota_shouldReturn507WithoutReadingBody() throws Exception {
+        storageUsage.recordStored(50);
+        MockHttpServletResponse response = new MockHttpServletResponse();
+
+        newFilter().doFilter(upload("10.0.0.1", 60), response,
+                (request, ignored) -> fail("Upload should not have been admitted"));
+
+        assertEquals(507, response.getStatus());
+        assertTrue(response.getContentAsString().contains("storage quota"));
+        assertEquals(0, storageUsage.getReservedBytes().get());
+    }
+
+    @Test
+    void doFilter_whenClientHasNoFreeSlot_shouldReturn503WithRetryAfter() throws Exception {
+        UploadAdmissionFilter filter = newFilter();
+        MockHttpServletResponse second = new MockHttpServletResponse();
+        MockHttpServletResponse otherClient = new MockHttpServletResponse();
+
+        FilterChain whileFirstUploadRuns = (request, ignored) -> {
+            filter.doFilter(upload("10.0.0.1", 1), second, (r, s) -> fail("Second upload should wait for a slot"));
+            filter.doFilter(upload("10.0.0.2", 1), otherClient, (r, s) -> { });
+        };
+        filter.doFilter(upload("10.0.0.1", 1), new MockHttpServletResponse(), whileFirstUploadRuns);
+
+        assertEquals(503, second.getStatus());
+        assertEquals("1", second.getHeader(HttpHeaders.RETRY_AFTER));
+        // Slots are per client
+        assertEquals(200, otherClient.getStatus());
+
+        // The slot is free again once the first upload is done
+        MockHttpServletResponse third = new MockHttpServletResponse();
+        filter.doFilter(upload("10.0.0.1", 1), third, (r, s) -> { });
+        assertEquals(200, third.getStatus());
+    }
+
+    @Test
+    void doFilter_whenOtherClientsFillTheTable_shouldKeepLimitsOfClientWithUploadInFlight() throws Exception {
+        storageProperties.setMaxTrackedUploadClients(1);
+        UploadAdmissionFilter filter = newFilter();
+        MockHttpServletResponse second = new MockHttpServletResponse();
+
+        FilterChain whileFirstUploadRuns = (request, ignored) -> {
+            for (int i = 2; i < 10; i++) {
+                filter.doFilter(upload("10.0.0." + i, 1), new MockHttpServletResponse(), (r, s) -> { });
+            }
+            // A fresh set of limits would let this one in next to the running upload
+            filter.doFilter(upload("10.0.0.1", 1), second, (r, s) -> fail("Second upload should wait for a slot"));
+        };
+        filter.doFilter(upload("10.0.0.1", 1), new MockHttpServletResponse(), whileFirstUploadRuns);
+
+        assertEquals(503, second.getStatus());
+    }
+
+    @Test
+    void doFilter_whenBandwidthLimited_shouldSlowDownReadsBeyondBurst() throws Exception {
+        storageProperties.setQuota(null);
+        storageProperties.setMaxUploadBandwidthPerClient(DataSize.ofBytes(4000));
+        long started = System.nanoTime();
+
+        // One second of burst, then 2000 bytes at 4000 bytes per second
+        newFilter().doFilter(upload("10.0.0.1", 6000), new MockHttpServletResponse(),
+                (request, ignored) -> request.getInputStream().readAllBytes());
+
+        assertTrue(System.nanoTime() - started >= Duration.ofMillis(450).toNanos());
+    }
+
+    @Test
+    void doFilter_whenRequestIsNotAnUpload_shouldPassThrough() throws Exception {
+        storageUsage.recordStored(1000);
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/upload/sessions/session");
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        AtomicReference<Boolean> called = new AtomicReference<>(false);
+
+        newFilter().doFilter(request, response, (r, s) -> called.set(true));
+
+        assertTrue(called.get());
+    }
+}